@@ -31,6 +31,7 @@ import org.apache.hadoop.hdfs.protocol.CorruptFileBlocks;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.DirectoryListing;
 import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hdfs.protocol.HdfsLocatedFileStatus;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlockWithMetaInfo;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
@@ -653,6 +654,16 @@ public class FailoverClientProtocol implements ClientProtocol {
     }).callFS();
   }
 
+  @Override
+  public LocatedBlocks[] getBlockLocations(final String[] srcs,
+      final long offset, final long length) throws IOException {
+    return (failoverHandler.new ImmutableFSCaller<LocatedBlocks[]>() {
+      public LocatedBlocks[] call() throws IOException {
+        return namenode.getBlockLocations(srcs, offset, length);
+      }
+    }).callFS();
+  }
+
   @Override
   public VersionedLocatedBlocks open(final String src, final long offset,
       final long length) throws IOException {
@@ -753,6 +764,26 @@ public class FailoverClientProtocol implements ClientProtocol {
     }).callFS();
   }
 
+  @Override
+  public HdfsFileStatus[] getHdfsFileInfo(final String[] srcs)
+      throws IOException {
+    return (failoverHandler.new ImmutableFSCaller<HdfsFileStatus[]>() {
+      public HdfsFileStatus[] call() throws IOException {
+        return namenode.getHdfsFileInfo(srcs);
+      }
+    }).callFS();
+  }
+
+  @Override
+  public HdfsLocatedFileStatus[] getLocatedFileInfo(final String[] srcs)
+      throws IOException {
+    return (failoverHandler.new ImmutableFSCaller<HdfsLocatedFileStatus[]>() {
+      public HdfsLocatedFileStatus[] call() throws IOException {
+        return namenode.getLocatedFileInfo(srcs);
+      }
+    }).callFS();
+  }
+
   @Override
   public HdfsFileStatus[] getHdfsListing(final String src) throws IOException {
     return (failoverHandler.new ImmutableFSCaller<HdfsFileStatus[]>() {
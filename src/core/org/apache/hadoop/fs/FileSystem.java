@@ -1565,6 +1565,33 @@ public abstract class FileSystem extends Configured implements Closeable {
    */
   public abstract FileStatus getFileStatus(Path f) throws IOException;
 
+  /**
+   * Return the statuses and block locations of a batch of paths.
+   * File systems that can resolve many paths in one request should override
+   * this; the default implementation asks for each path in turn.
+   *
+   * @param files the paths we want information from
+   * @return one LocatedFileStatus per path, in the same order; an entry is
+   *         null if the path does not exist
+   * @throws IOException see specific implementation
+   */
+  public LocatedFileStatus[] getLocatedFileStatus(Path[] files)
+      throws IOException {
+    LocatedFileStatus[] results = new LocatedFileStatus[files.length];
+    for (int i = 0; i < files.length; i++) {
+      FileStatus stat;
+      try {
+        stat = getFileStatus(files[i]);
+      } catch (FileNotFoundException e) {
+        continue;
+      }
+      BlockLocation[] locs = stat.isDir() ? null :
+          getFileBlockLocations(stat, 0, stat.getLen());
+      results[i] = new LocatedFileStatus(stat, locs);
+    }
+    return results;
+  }
+
   /**
    * Get the checksum of a file.
    *
@@ -256,6 +256,16 @@ public class UTF8 implements WritableComparable {
     return readChars(in, bytes);
   }
 
+  /** Read a UTF-8 encoded string whose length in bytes, as written by
+   * {@link #writeString(DataOutput, String)}, has already been read.
+   *
+   * @see DataInput#readUTF()
+   */
+  public static String readString(DataInput in, int length)
+    throws IOException {
+    return readChars(in, length);
+  }
+
   private static String readChars(DataInput in, int nBytes)
     throws IOException {
     DataOutputBuffer obuf = OBUF_FACTORY.get();  
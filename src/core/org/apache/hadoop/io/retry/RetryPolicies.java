@@ -25,6 +25,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.ServerBusyException;
 
 /**
  * <p>
@@ -100,6 +101,28 @@ public class RetryPolicies {
     return new ExponentialBackoffRetry(maxRetries, sleepTime, timeUnit);
   }
   
+  /**
+   * <p>
+   * Keep trying a limited number of times while the server rejects the call
+   * with a {@link ServerBusyException}, waiting a random time between half of
+   * and the full <code>sleepTime</code> multiplied by 2 to the number of
+   * retries so far, but no more than <code>maxSleepTime</code>.
+   * Other exceptions are handled by <code>defaultPolicy</code>.
+   * </p>
+   * <p>
+   * {@link org.apache.hadoop.ipc.Client} already retries blocking calls
+   * rejected this way, see <code>ipc.client.busy.max.retries</code>; set it
+   * to 0 for proxies that use this policy so that calls are not retried by
+   * both.
+   * </p>
+   */
+  public static final RetryPolicy exponentialBackoffOnServerBusy(
+      RetryPolicy defaultPolicy, int maxRetries, long sleepTime,
+      long maxSleepTime, TimeUnit timeUnit) {
+    return new ServerBusyRetry(defaultPolicy, maxRetries, sleepTime,
+                               maxSleepTime, timeUnit);
+  }
+  
   /**
    * <p>
    * Set a default policy with some explicit handlers for specific exceptions.
@@ -255,4 +278,36 @@ public class RetryPolicies {
       return sleepTime*r.nextInt(1<<(retries+1));
     }
   }
+  
+  static class ServerBusyRetry extends RetryLimited {
+    private RetryPolicy defaultPolicy;
+    private long maxSleepTime;
+    private Random r = new Random();
+    
+    public ServerBusyRetry(RetryPolicy defaultPolicy, int maxRetries,
+        long sleepTime, long maxSleepTime, TimeUnit timeUnit) {
+      super(maxRetries, sleepTime, timeUnit);
+      this.defaultPolicy = defaultPolicy;
+      this.maxSleepTime = maxSleepTime;
+    }
+    
+    @Override
+    public boolean shouldRetry(Exception e, int retries) throws Exception {
+      if (e instanceof ServerBusyException ||
+          (e instanceof RemoteException &&
+           ServerBusyException.class.getName().equals(
+               ((RemoteException) e).getClassName()))) {
+        return super.shouldRetry(e, retries);
+      }
+      return defaultPolicy.shouldRetry(e, retries);
+    }
+    
+    @Override
+    protected long calculateSleepTime(int retries) {
+      long max = Math.min(maxSleepTime, sleepTime << Math.min(retries, 20));
+      synchronized (r) {
+        return max / 2 + (long) (r.nextDouble() * max / 2);
+      }
+    }
+  }
 }
@@ -31,19 +31,25 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.Random;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -57,6 +63,10 @@ import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.ipc.metrics.RpcClientMetrics;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.ReflectionUtils;
@@ -87,6 +97,35 @@ public class Client {
 
   private SocketFactory socketFactory;           // how to create sockets
   private int refCount = 1;
+
+  /** How often a call rejected with a {@link ServerBusyException} is
+   * retried before the exception is passed to the caller. */
+  public static final String IPC_CLIENT_BUSY_MAX_RETRIES_KEY =
+    "ipc.client.busy.max.retries";
+  public static final int IPC_CLIENT_BUSY_MAX_RETRIES_DEFAULT = 4;
+  /** Base and maximum backoff, in msec, after a {@link ServerBusyException}. */
+  public static final String IPC_CLIENT_BUSY_BACKOFF_KEY =
+    "ipc.client.busy.backoff.ms";
+  public static final long IPC_CLIENT_BUSY_BACKOFF_DEFAULT = 100;
+  public static final String IPC_CLIENT_BUSY_BACKOFF_MAX_KEY =
+    "ipc.client.busy.backoff.max.ms";
+  public static final long IPC_CLIENT_BUSY_BACKOFF_MAX_DEFAULT = 10000;
+
+  final private int busyMaxRetries;
+  final private long busyBackoff;
+  final private long busyBackoffMax;
+  private final Random backoffRandom = new Random();
+  // statistics on calls rejected by overloaded servers
+  protected final RpcClientMetrics clientMetrics;
+
+  /** Class name of the {@link CompressionCodec} servers are asked to compress
+   * large responses with; empty for no compression. */
+  public static final String IPC_CLIENT_RESPONSE_COMPRESSION_CODEC_KEY =
+    "ipc.client.response.compression.codec";
+
+  final private CompressionCodec responseCodec;
+  // time (usec) spent decompressing responses
+  private final AtomicLong decompressionTime = new AtomicLong();
   
   final private static String PING_INTERVAL_NAME = "ipc.ping.interval";
   final static int DEFAULT_PING_INTERVAL = 60000; // 1 min
@@ -202,6 +241,106 @@ public class Client {
     }
   }
 
+  /** A call whose result is delivered through a {@link Future} and an
+   * optional {@link RpcCallback} instead of blocking the caller. */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private final InetSocketAddress addr;
+    private final RpcCallback<Writable> callback;
+    private Connection connection;
+    private boolean cancelled;
+
+    AsyncCall(Writable param, InetSocketAddress addr,
+              RpcCallback<Writable> callback) {
+      super(param);
+      this.addr = addr;
+      this.callback = callback;
+    }
+
+    synchronized void setConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    /** Wake up all waiters and run the callback, if any. */
+    @Override
+    protected synchronized void callComplete() {
+      if (done) {
+        return;                                 // cancelled
+      }
+      if (error != null && !(error instanceof RemoteException)) {
+        error = wrapException(addr, error);
+      }
+      done = true;
+      notifyAll();
+      if (callback != null) {
+        try {
+          if (error == null) {
+            callback.completed(value);
+          } else {
+            callback.failed(error);
+          }
+        } catch (Throwable t) {
+          LOG.warn("Callback for call #" + id + " to " + addr + " threw", t);
+        }
+      }
+    }
+
+    /** Abandon the call. A response arriving later is discarded and the
+     * callback is not invoked. The request may still be executed by the
+     * server if it has already been sent. */
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (done) {
+        return false;
+      }
+      cancelled = true;
+      done = true;
+      if (connection != null) {
+        connection.removeCall(id);
+      }
+      notifyAll();
+      return true;
+    }
+
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    public synchronized Writable get()
+        throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return getResult();
+    }
+
+    public synchronized Writable get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+      while (!done) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new TimeoutException("Call #" + id + " to " + addr +
+                                     " did not complete in time");
+        }
+        wait(remaining);
+      }
+      return getResult();
+    }
+
+    private Writable getResult() throws ExecutionException {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      if (error != null) {
+        throw new ExecutionException(error);
+      }
+      return value;
+    }
+  }
+
   /** Thread that reads responses and notifies callers.  Each connection owns a
    * socket connected to a remote address.  Calls are multiplexed through this
    * socket: responses may be delivered out of order. */
@@ -221,6 +360,7 @@ public class Client {
     private AtomicBoolean shouldCloseConnection = new AtomicBoolean();  // indicate if the connection is closed
     private AtomicLong currentSetupId  = new AtomicLong(0L);
     private IOException closeException; // close reason
+    private volatile int serverFeatures = 0; // acknowledged by the server
     private final ThreadFactory daemonThreadFactory = new ThreadFactory() {
       private final ThreadFactory defaultThreadFactory =
         Executors.defaultThreadFactory();
@@ -251,7 +391,9 @@ public class Client {
       UserGroupInformation ticket = remoteId.getTicket();
       Class<?> protocol = remoteId.getProtocol();
       header = 
-        new ConnectionHeader(protocol == null ? null : protocol.getName(), ticket);
+        new ConnectionHeader(protocol == null ? null : protocol.getName(), ticket,
+            responseCodec == null ? null : responseCodec.getClass().getName(),
+            ConnectionHeader.FEATURE_COMPACT_INVOCATIONS);
       
       this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
           remoteId.getAddress().toString() +
@@ -279,6 +421,11 @@ public class Client {
       return true;
     }
 
+    /** Forget about a call, e.g. because it was cancelled. */
+    private void removeCall(int id) {
+      calls.remove(id);
+    }
+
     /** This class sends a ping to the remote side when timeout on
      * reading. If no failure is detected, it retries until at least
      * a byte is read.
@@ -552,10 +699,28 @@ public class Client {
      * threads.
      */
     public void sendParam(final Call call) throws InterruptedException {
-      if (shouldCloseConnection.get()) {
+      CountDownLatch latch = submitParam(call);
+      if (latch == null) {
         return;
       }
 
+      if (!latch.await(pingInterval, TimeUnit.MILLISECONDS)) {
+        markClosed(new IOException(
+          String.format("timeout waiting for sendParam, %d ms", pingInterval)
+        ));
+      }
+    }
+
+    /** Queues the parameter of a call to be sent, without waiting for it
+     * to be written out.
+     * @return a latch released once the parameter has been written, or null
+     *         if the connection is being closed
+     */
+    private CountDownLatch submitParam(final Call call) {
+      if (shouldCloseConnection.get()) {
+        return null;
+      }
+
       final CountDownLatch latch = new CountDownLatch(1);
       executor.submit(new Runnable() {
         @Override
@@ -574,7 +739,13 @@ public class Client {
               //data to be written
               d = new DataOutputBuffer();
               d.writeInt(call.id);
-              call.param.write(d);
+              if ((serverFeatures &
+                   ConnectionHeader.FEATURE_COMPACT_INVOCATIONS) != 0 &&
+                  call.param instanceof CompactWritable) {
+                ((CompactWritable) call.param).writeCompact(d);
+              } else {
+                call.param.write(d);
+              }
               byte[] data = d.getData();
               int dataLength = d.getLength();
               out.writeInt(dataLength);      //first put the data length
@@ -591,12 +762,7 @@ public class Client {
           }
         }
       });
-
-      if (!latch.await(pingInterval, TimeUnit.MILLISECONDS)) {
-        markClosed(new IOException(
-          String.format("timeout waiting for sendParam, %d ms", pingInterval)
-        ));
-      }
+      return latch;
     }
 
     /* Receive a response.
@@ -614,17 +780,34 @@ public class Client {
         if (LOG.isDebugEnabled())
           LOG.debug(getName() + " got value #" + id);
 
+        if (id == Server.FEATURES_CALLID) {
+          in.readInt();                           // always SUCCESS
+          serverFeatures = in.readInt();
+          return;
+        }
+
         Call call = calls.get(id);
 
         int state = in.readInt();     // read call status
         if (state == Status.SUCCESS.state) {
           Writable value = ReflectionUtils.newInstance(valueClass, conf);
           value.readFields(in);                 // read value
-          call.setValue(value);
+          if (call != null) {                   // null if cancelled
+            call.setValue(value);
+          }
+          calls.remove(id);
+        } else if (state == Status.SUCCESS_COMPRESSED.state) {
+          Writable value = readCompressedValue();
+          if (call != null) {                   // null if cancelled
+            call.setValue(value);
+          }
           calls.remove(id);
         } else if (state == Status.ERROR.state) {
-          call.setException(new RemoteException(WritableUtils.readString(in),
-                                                WritableUtils.readString(in)));
+          RemoteException re = new RemoteException(WritableUtils.readString(in),
+                                                    WritableUtils.readString(in));
+          if (call != null) {
+            call.setException(re);
+          }
           calls.remove(id);
         } else if (state == Status.FATAL.state) {
           // Close the connection
@@ -638,6 +821,26 @@ public class Client {
       }
     }
     
+    /* Read a value the server compressed because it was large. */
+    private Writable readCompressedValue() throws IOException {
+      if (responseCodec == null) {
+        throw new IOException("Unexpected compressed response from " + server);
+      }
+      byte[] compressed = new byte[in.readInt()];
+      in.readFully(compressed);
+      long startNanos = System.nanoTime();
+      Writable value = ReflectionUtils.newInstance(valueClass, conf);
+      Decompressor decompressor = CodecPool.getDecompressor(responseCodec);
+      try {
+        value.readFields(new DataInputStream(responseCodec.createInputStream(
+            new ByteArrayInputStream(compressed), decompressor)));
+      } finally {
+        CodecPool.returnDecompressor(decompressor);
+      }
+      decompressionTime.addAndGet((System.nanoTime() - startNanos) / 1000);
+      return value;
+    }
+
     private synchronized void markClosed(IOException e) {
       if (shouldCloseConnection.compareAndSet(false, true)) {
         executor.shutdown();
@@ -750,6 +953,14 @@ public class Client {
     this.maxRetries = conf.getInt("ipc.client.connect.max.retries", 10);
     this.tcpNoDelay = conf.getBoolean("ipc.client.tcpnodelay", false);
     this.pingInterval = getPingInterval(conf);
+    this.busyMaxRetries = conf.getInt(IPC_CLIENT_BUSY_MAX_RETRIES_KEY,
+                                      IPC_CLIENT_BUSY_MAX_RETRIES_DEFAULT);
+    this.busyBackoff = conf.getLong(IPC_CLIENT_BUSY_BACKOFF_KEY,
+                                    IPC_CLIENT_BUSY_BACKOFF_DEFAULT);
+    this.busyBackoffMax = conf.getLong(IPC_CLIENT_BUSY_BACKOFF_MAX_KEY,
+                                       IPC_CLIENT_BUSY_BACKOFF_MAX_DEFAULT);
+    this.responseCodec = getResponseCodec(conf);
+    this.clientMetrics = new RpcClientMetrics();
     if (LOG.isDebugEnabled()) {
       LOG.debug("The ping interval is" + this.pingInterval + "ms.");
     }
@@ -784,6 +995,7 @@ public class Client {
     if (!running.compareAndSet(true, false)) {
       return;
     }
+    clientMetrics.shutdown();
     
     synchronized (connections) {
       // wake up all connections
@@ -836,6 +1048,73 @@ public class Client {
                        Class<?> protocol, UserGroupInformation ticket,
                        int rpcTimeout)
                        throws InterruptedException, IOException {
+    for (int retries = 0; ; retries++) {
+      try {
+        return callOnce(param, addr, protocol, ticket, rpcTimeout);
+      } catch (RemoteException re) {
+        if (retries >= busyMaxRetries || !isServerBusy(re)) {
+          throw re;
+        }
+        backoff(addr, retries);
+      }
+    }
+  }
+
+  /** Returns true if the exception says the server rejected the call
+   * because it was overloaded. */
+  static boolean isServerBusy(IOException e) {
+    return e instanceof RemoteException &&
+      ServerBusyException.class.getName().equals(
+          ((RemoteException) e).getClassName());
+  }
+
+  /** Sleep before retrying a call rejected by an overloaded server. The
+   * sleep grows exponentially with the number of retries and is randomized
+   * so that rejected clients do not come back in lock step. */
+  private void backoff(InetSocketAddress addr, int retries)
+      throws IOException {
+    long maxSleep = Math.min(busyBackoffMax, busyBackoff << Math.min(retries, 20));
+    long sleep;
+    synchronized (backoffRandom) {
+      sleep = maxSleep / 2 + (long) (backoffRandom.nextDouble() * maxSleep / 2);
+    }
+    clientMetrics.serverBusyRetries.inc();
+    clientMetrics.serverBusyBackoffTime.inc(sleep);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Server " + addr + " is busy, retrying in " + sleep + " ms");
+    }
+    try {
+      Thread.sleep(sleep);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while backing off from " +
+                                       "busy server " + addr);
+    }
+  }
+
+  private static CompressionCodec getResponseCodec(Configuration conf) {
+    String codec = conf.get(IPC_CLIENT_RESPONSE_COMPRESSION_CODEC_KEY, "");
+    if (codec.length() == 0) {
+      return null;
+    }
+    try {
+      return (CompressionCodec) ReflectionUtils.newInstance(
+          conf.getClassByName(codec), conf);
+    } catch (Exception e) {
+      LOG.warn("Cannot use " + codec + " for responses: " + e);
+      return null;
+    }
+  }
+
+  /** Total time in usec spent decompressing responses. */
+  public long getResponseDecompressionTime() {
+    return decompressionTime.get();
+  }
+
+  private Writable callOnce(Writable param, InetSocketAddress addr,
+                            Class<?> protocol, UserGroupInformation ticket,
+                            int rpcTimeout)
+                            throws InterruptedException, IOException {
     Call call = new Call(param);
     Connection connection = getConnection(addr, protocol, ticket,
 		rpcTimeout, call);
@@ -877,6 +1156,43 @@ public class Client {
     }
   }
 
+  /** Make a call, passing <code>param</code>, to the IPC server running at
+   * <code>address</code> which is servicing the <code>protocol</code> protocol,
+   * with the <code>ticket</code> credentials and <code>rpcTimeout</code>,
+   * without waiting for the result.
+   *
+   * The call is multiplexed over the same connection as blocking calls, so
+   * any number of calls can be in flight without a thread per call. Only
+   * the first call on a new connection waits for the connection to be set
+   * up; after that this method returns as soon as the parameter is queued.
+   * Unlike the blocking calls, a call rejected by a busy server is not
+   * retried; the {@link ServerBusyException} is reported to the caller.
+   *
+   * @param callback notified when the call completes; may be null
+   * @return a future for the value. Failures are reported as an
+   *         {@link ExecutionException} wrapping a {@link RemoteException} or
+   *         a local IOException.
+   * @throws IOException if the connection could not be set up
+   */
+  public Future<Writable> callAsync(Writable param, InetSocketAddress addr,
+                                    Class<?> protocol,
+                                    UserGroupInformation ticket,
+                                    int rpcTimeout,
+                                    RpcCallback<Writable> callback)
+                                    throws IOException {
+    AsyncCall call = new AsyncCall(param, addr, callback);
+    Connection connection = getConnection(addr, protocol, ticket,
+        rpcTimeout, call);
+    call.setConnection(connection);
+    try {
+      connection.submitParam(call);               // send the parameter
+    } catch (RejectedExecutionException e) {
+      call.cancel(false);
+      throw new IOException("connection has been closed", e);
+    }
+    return call;
+  }
+
   /**
    * Take an IOException and the address we were trying to connect to
    * and return an IOException with the input exception as the cause.
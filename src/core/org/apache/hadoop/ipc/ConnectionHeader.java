@@ -19,6 +19,7 @@ package org.apache.hadoop.ipc;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 
 import org.apache.commons.logging.Log;
@@ -34,9 +35,14 @@ import org.apache.hadoop.security.UserGroupInformation;
  */
 class ConnectionHeader implements Writable {
   public static final Log LOG = LogFactory.getLog(ConnectionHeader.class);
+
+  /** Feature flag: the client can send the id of methods with their name. */
+  static final int FEATURE_COMPACT_INVOCATIONS = 1;
   
   private String protocol;
   private UserGroupInformation ugi = new UnixUserGroupInformation();
+  private String compressionCodec;    // for large responses; null if none
+  private int features;               // FEATURE_* flags the client supports
   
   public ConnectionHeader() {}
   
@@ -49,8 +55,23 @@ class ConnectionHeader implements Writable {
    *            the server
    */
   public ConnectionHeader(String protocol, UserGroupInformation ugi) {
+    this(protocol, ugi, null, 0);
+  }
+
+  /**
+   * Create a new {@link ConnectionHeader} that also tells the server
+   * which optional features the client supports.
+   * @param compressionCodec class name of the
+   *                         {@link org.apache.hadoop.io.compress.CompressionCodec}
+   *                         the client can decompress responses with, or null
+   * @param features FEATURE_* flags of the client
+   */
+  public ConnectionHeader(String protocol, UserGroupInformation ugi,
+                          String compressionCodec, int features) {
     this.protocol = protocol;
     this.ugi = ugi;
+    this.compressionCodec = compressionCodec;
+    this.features = features;
   }
 
   @Override
@@ -66,6 +87,19 @@ class ConnectionHeader implements Writable {
     } else {
       ugi = null;
     }
+
+    // the codec and features are optional and not sent by older clients
+    compressionCodec = null;
+    features = 0;
+    try {
+      String codec = Text.readString(in);
+      if (!codec.isEmpty()) {
+        compressionCodec = codec;
+      }
+      features = in.readInt();
+    } catch (EOFException e) {
+      // no more optional fields
+    }
   }
 
   @Override
@@ -77,6 +111,13 @@ class ConnectionHeader implements Writable {
     } else {
       out.writeBoolean(false);
     }
+    // older servers ignore the rest of the header
+    if (compressionCodec != null || features != 0) {
+      Text.writeString(out, (compressionCodec == null) ? "" : compressionCodec);
+    }
+    if (features != 0) {
+      out.writeInt(features);
+    }
   }
 
   public String getProtocol() {
@@ -87,6 +128,14 @@ class ConnectionHeader implements Writable {
     return ugi;
   }
 
+  public String getCompressionCodec() {
+    return compressionCodec;
+  }
+
+  public int getFeatures() {
+    return features;
+  }
+
   public String toString() {
     return protocol + "-" + ugi;
   }
@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A {@link RpcScheduler} that assigns priority levels based on the share
+ * of recent calls each identity has made. Call counts are periodically
+ * multiplied by a decay factor, so an identity that stops flooding the
+ * server regains its priority after a few decay periods.
+ *
+ * An identity whose share of the total (decayed) call volume is at least
+ * thresholds[i] is placed at level i+1 or lower. With the default
+ * thresholds for four levels, an identity making more than half of the
+ * calls is placed at level 3, more than a quarter at level 2 and more than
+ * an eighth at level 1.
+ */
+public class DecayRpcScheduler implements RpcScheduler {
+  public static final Log LOG = LogFactory.getLog(DecayRpcScheduler.class);
+
+  /** How often call counts are decayed, in milliseconds. */
+  public static final String IPC_CALLQUEUE_DECAY_PERIOD_KEY =
+    "ipc.server.callqueue.decay.period.ms";
+  public static final long IPC_CALLQUEUE_DECAY_PERIOD_DEFAULT = 5000;
+
+  /** The factor call counts are multiplied by at every decay. */
+  public static final String IPC_CALLQUEUE_DECAY_FACTOR_KEY =
+    "ipc.server.callqueue.decay.factor";
+  public static final float IPC_CALLQUEUE_DECAY_FACTOR_DEFAULT = 0.5f;
+
+  /**
+   * Comma separated, ascending list of call-volume percentages, one fewer
+   * than the number of priority levels.
+   */
+  public static final String IPC_CALLQUEUE_THRESHOLDS_KEY =
+    "ipc.server.callqueue.decay.thresholds";
+
+  /** Identity used for calls which carry no user information. */
+  static final String UNKNOWN_IDENTITY = "*unknown*";
+
+  private final int numLevels;
+  private final double[] thresholds;
+  private final float decayFactor;
+
+  // identity -> decayed number of calls
+  private final ConcurrentHashMap<String, AtomicLong> callCounts =
+    new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong totalCalls = new AtomicLong();
+
+  // identity -> level, recomputed at every decay
+  private volatile Map<String, Integer> scheduleCache =
+    new HashMap<String, Integer>();
+
+  private final Timer decayTimer;
+
+  public DecayRpcScheduler(int numLevels, Configuration conf) {
+    if (numLevels < 1) {
+      throw new IllegalArgumentException("number of levels must be positive");
+    }
+    this.numLevels = numLevels;
+    this.decayFactor = conf.getFloat(IPC_CALLQUEUE_DECAY_FACTOR_KEY,
+                                     IPC_CALLQUEUE_DECAY_FACTOR_DEFAULT);
+    if (decayFactor <= 0 || decayFactor >= 1) {
+      throw new IllegalArgumentException(IPC_CALLQUEUE_DECAY_FACTOR_KEY +
+          " must be between 0 and 1, got " + decayFactor);
+    }
+    this.thresholds = parseThresholds(numLevels, conf);
+    long decayPeriod = conf.getLong(IPC_CALLQUEUE_DECAY_PERIOD_KEY,
+                                    IPC_CALLQUEUE_DECAY_PERIOD_DEFAULT);
+
+    decayTimer = new Timer("IPC call queue decay", true);
+    decayTimer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        decayCurrentCounts();
+      }
+    }, decayPeriod, decayPeriod);
+  }
+
+  private static double[] parseThresholds(int numLevels, Configuration conf) {
+    double[] result = new double[numLevels - 1];
+    String[] values = conf.getStrings(IPC_CALLQUEUE_THRESHOLDS_KEY);
+    if (values == null) {
+      // 1/2^(n-1), ..., 1/4, 1/2
+      for (int i = 0; i < result.length; i++) {
+        result[i] = Math.pow(2, i - result.length);
+      }
+      return result;
+    }
+    if (values.length != result.length) {
+      throw new IllegalArgumentException(IPC_CALLQUEUE_THRESHOLDS_KEY +
+          " must have " + result.length + " entries, got " + values.length);
+    }
+    for (int i = 0; i < result.length; i++) {
+      result[i] = Double.parseDouble(values[i].trim()) / 100.0;
+      if (i > 0 && result[i] < result[i - 1]) {
+        throw new IllegalArgumentException(IPC_CALLQUEUE_THRESHOLDS_KEY +
+            " must be in ascending order");
+      }
+    }
+    return result;
+  }
+
+  /** {@inheritDoc} */
+  public int getPriorityLevel(Schedulable obj) {
+    String identity = obj.getIdentity();
+    if (identity == null) {
+      identity = UNKNOWN_IDENTITY;
+    }
+    long count = incrementCount(identity);
+    Integer cached = scheduleCache.get(identity);
+    if (cached != null) {
+      return cached.intValue();
+    }
+    return computeLevel(count, totalCalls.get());
+  }
+
+  private long incrementCount(String identity) {
+    AtomicLong count = callCounts.get(identity);
+    if (count == null) {
+      AtomicLong newCount = new AtomicLong();
+      count = callCounts.putIfAbsent(identity, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    totalCalls.incrementAndGet();
+    return count.incrementAndGet();
+  }
+
+  private int computeLevel(long count, long total) {
+    if (total <= 0) {
+      return 0;
+    }
+    double share = (double) count / total;
+    int level = 0;
+    while (level < thresholds.length && share >= thresholds[level]) {
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * Decay all call counts, drop identities that have gone quiet and
+   * recompute the cached schedule.
+   */
+  void decayCurrentCounts() {
+    long total = 0;
+    Iterator<Map.Entry<String, AtomicLong>> it =
+      callCounts.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, AtomicLong> entry = it.next();
+      AtomicLong count = entry.getValue();
+      long decayed = (long) (count.get() * decayFactor);
+      count.set(decayed);
+      if (decayed == 0) {
+        it.remove();
+      } else {
+        total += decayed;
+      }
+    }
+    totalCalls.set(total);
+
+    Map<String, Integer> oldSchedule = scheduleCache;
+    Map<String, Integer> schedule = new HashMap<String, Integer>();
+    for (Map.Entry<String, AtomicLong> entry : callCounts.entrySet()) {
+      int level = computeLevel(entry.getValue().get(), total);
+      schedule.put(entry.getKey(), level);
+      Integer oldLevel = oldSchedule.get(entry.getKey());
+      if (level > 0 && (oldLevel == null || oldLevel.intValue() != level)) {
+        LOG.info("Scheduling calls from " + entry.getKey() +
+                 " at priority level " + level + " (" + entry.getValue() +
+                 " of " + total + " recent calls)");
+      }
+    }
+    scheduleCache = schedule;
+  }
+
+  public int getNumLevels() {
+    return numLevels;
+  }
+
+  /** Returns the decayed call counts per identity. */
+  public Map<String, Long> getCallCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : callCounts.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the identities currently scheduled below the highest priority
+   * level, as a map from identity to level.
+   */
+  public Map<String, Integer> getThrottledIdentities() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Integer> entry : scheduleCache.entrySet()) {
+      if (entry.getValue().intValue() > 0) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  /** {@inheritDoc} */
+  public void stop() {
+    decayTimer.cancel();
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The methods of a protocol by their id, so that the server can find the
+ * method of a call without a reflective lookup by name.
+ *
+ * The id of a method is its {@link ProtocolSignature} fingerprint. The
+ * client and the server compute their tables independently, from versions
+ * of the protocol that may differ, so an id is only a hint: calls carry the
+ * method name too, and a method is only returned for an id if its name and
+ * parameter classes match the call. Methods whose ids collide are left out.
+ */
+class DispatchTable {
+  public static final Log LOG = LogFactory.getLog(DispatchTable.class);
+
+  /** The id of methods that are not in the table. */
+  static final int NO_ID = 0;
+
+  private static final Map<Class<?>, DispatchTable> TABLES =
+    new ConcurrentHashMap<Class<?>, DispatchTable>();
+
+  private static class Entry {
+    final Method method;
+    final Class<?>[] parameterTypes;
+
+    Entry(Method method) {
+      this.method = method;
+      this.parameterTypes = method.getParameterTypes();
+    }
+  }
+
+  private final Map<Integer, Entry> methods = new HashMap<Integer, Entry>();
+
+  private DispatchTable(Class<?> protocol) {
+    Set<Integer> collisions = new HashSet<Integer>();
+    for (Method method : protocol.getMethods()) {
+      int id = ProtocolSignature.getFingerprint(method);
+      if (id == NO_ID || collisions.contains(id)) {
+        continue;
+      }
+      Entry other = methods.put(id, new Entry(method));
+      if (other != null) {
+        LOG.warn("Methods " + other.method + " and " + method +
+                 " have the same id; calls to them will be looked up by name");
+        methods.remove(id);
+        collisions.add(id);
+        continue;
+      }
+      method.setAccessible(true);
+    }
+  }
+
+  /** Get the table of a protocol, building it on first use. */
+  static DispatchTable get(Class<?> protocol) {
+    DispatchTable table = TABLES.get(protocol);
+    if (table == null) {
+      table = new DispatchTable(protocol);
+      TABLES.put(protocol, table);
+    }
+    return table;
+  }
+
+  /**
+   * @return the id of the method, or {@link #NO_ID} if it is not in the
+   *         table
+   */
+  int getMethodId(Method method) {
+    int id = ProtocolSignature.getFingerprint(method);
+    Entry e = methods.get(id);
+    return (e != null && e.method.equals(method)) ? id : NO_ID;
+  }
+
+  /**
+   * @return the method with the given id, if it also has the given name and
+   *         parameter classes; null otherwise, in which case the method is
+   *         to be looked up by name
+   */
+  Method getMethod(int id, String name, Class<?>[] parameterClasses) {
+    Entry e = methods.get(id);
+    if (e == null || !e.method.getName().equals(name) ||
+        !Arrays.equals(e.parameterTypes, parameterClasses)) {
+      return null;
+    }
+    return e.method;
+  }
+}
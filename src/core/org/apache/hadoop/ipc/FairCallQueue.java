@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A multi-level call queue. Each call is placed into the sub-queue of the
+ * priority level chosen by a {@link RpcScheduler} (by default a
+ * {@link DecayRpcScheduler}, which demotes identities making a large share
+ * of the recent calls), and handlers drain the sub-queues in the order
+ * chosen by a {@link RpcMultiplexer} (by default a
+ * {@link WeightedRoundRobinMultiplexer}). A single heavy user thus can only
+ * fill its own, rarely served, sub-queue instead of starving everybody else.
+ *
+ * Enable it on a server by setting <code>ipc.server.callqueue.impl</code>
+ * to this class.
+ */
+public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
+  implements BlockingQueue<E> {
+
+  /** Number of priority levels. */
+  public static final String IPC_CALLQUEUE_PRIORITY_LEVELS_KEY =
+    "ipc.server.callqueue.priority.levels";
+  public static final int IPC_CALLQUEUE_PRIORITY_LEVELS_DEFAULT = 4;
+
+  private final List<BlockingQueue<E>> queues;
+  private final RpcScheduler scheduler;
+  private final RpcMultiplexer multiplexer;
+
+  // Handlers wait on this when all the sub-queues are empty
+  private final ReentrantLock takeLock = new ReentrantLock();
+  private final Condition notEmpty = takeLock.newCondition();
+
+  /**
+   * Create a fair call queue.
+   * @param capacity total capacity, split evenly across the levels
+   * @param conf configuration
+   */
+  public FairCallQueue(int capacity, Configuration conf) {
+    this(conf.getInt(IPC_CALLQUEUE_PRIORITY_LEVELS_KEY,
+                     IPC_CALLQUEUE_PRIORITY_LEVELS_DEFAULT), capacity, conf);
+  }
+
+  private FairCallQueue(int numLevels, int capacity, Configuration conf) {
+    this(numLevels, capacity, new DecayRpcScheduler(numLevels, conf),
+         new WeightedRoundRobinMultiplexer(numLevels, conf));
+  }
+
+  FairCallQueue(int numLevels, int capacity, RpcScheduler scheduler,
+                RpcMultiplexer multiplexer) {
+    if (numLevels < 1) {
+      throw new IllegalArgumentException("number of levels must be positive");
+    }
+    int levelCapacity = Math.max(1, capacity / numLevels);
+    queues = new ArrayList<BlockingQueue<E>>(numLevels);
+    for (int i = 0; i < numLevels; i++) {
+      queues.add(new LinkedBlockingQueue<E>(levelCapacity));
+    }
+    this.scheduler = scheduler;
+    this.multiplexer = multiplexer;
+  }
+
+  /**
+   * Returns the level to place e at. Calls go to their scheduled level if
+   * there is room, otherwise to the first lower priority level that has
+   * room. If all of those are full the scheduled level is returned.
+   */
+  private int chooseLevel(E e) {
+    int level = Math.min(Math.max(scheduler.getPriorityLevel(e), 0),
+                         queues.size() - 1);
+    for (int i = level; i < queues.size(); i++) {
+      if (queues.get(i).remainingCapacity() > 0) {
+        return i;
+      }
+    }
+    return level;
+  }
+
+  private void signalNotEmpty() {
+    takeLock.lock();
+    try {
+      notEmpty.signal();
+    } finally {
+      takeLock.unlock();
+    }
+  }
+
+  /**
+   * Poll the sub-queues, starting with the one picked by the multiplexer.
+   */
+  private E pollQueues() {
+    int start = multiplexer.getAndAdvanceCurrentIndex();
+    int numQueues = queues.size();
+    for (int i = 0; i < numQueues; i++) {
+      E e = queues.get((start + i) % numQueues).poll();
+      if (e != null) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    int level = chooseLevel(e);
+    e.setPriorityLevel(level);
+    queues.get(level).put(e);
+    signalNotEmpty();
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    int level = chooseLevel(e);
+    e.setPriorityLevel(level);
+    if (!queues.get(level).offer(e, timeout, unit)) {
+      return false;
+    }
+    signalNotEmpty();
+    return true;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    int level = chooseLevel(e);
+    e.setPriorityLevel(level);
+    if (!queues.get(level).offer(e)) {
+      return false;
+    }
+    signalNotEmpty();
+    return true;
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    takeLock.lockInterruptibly();
+    try {
+      E e;
+      while ((e = pollQueues()) == null) {
+        notEmpty.await();
+      }
+      return e;
+    } finally {
+      takeLock.unlock();
+    }
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    takeLock.lockInterruptibly();
+    try {
+      E e;
+      while ((e = pollQueues()) == null) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return e;
+    } finally {
+      takeLock.unlock();
+    }
+  }
+
+  @Override
+  public E poll() {
+    return pollQueues();
+  }
+
+  @Override
+  public E peek() {
+    for (BlockingQueue<E> q : queues) {
+      E e = q.peek();
+      if (e != null) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (BlockingQueue<E> q : queues) {
+      size += q.size();
+    }
+    return size;
+  }
+
+  /**
+   * Returns a snapshot of the queued calls, highest priority first.
+   * The iterator does not support removal.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    List<E> snapshot = new ArrayList<E>();
+    for (BlockingQueue<E> q : queues) {
+      snapshot.addAll(q);
+    }
+    return Collections.unmodifiableList(snapshot).iterator();
+  }
+
+  @Override
+  public int remainingCapacity() {
+    int remaining = 0;
+    for (BlockingQueue<E> q : queues) {
+      remaining += q.remainingCapacity();
+    }
+    return remaining;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int drained = 0;
+    E e;
+    while (drained < maxElements && (e = pollQueues()) != null) {
+      c.add(e);
+      drained++;
+    }
+    return drained;
+  }
+
+  /** Returns the number of priority levels. */
+  public int getNumLevels() {
+    return queues.size();
+  }
+
+  /** Returns the number of calls queued at each priority level. */
+  public int[] getQueueSizes() {
+    int[] sizes = new int[queues.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = queues.get(i).size();
+    }
+    return sizes;
+  }
+
+  public RpcScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /** Stops the scheduler. */
+  public void stop() {
+    scheduler.stop();
+  }
+}
@@ -32,6 +32,10 @@ import java.net.SocketTimeoutException;
 import java.io.*;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -71,9 +75,14 @@ public class RPC {
   private RPC() {}                                  // no public ctor
 
 
-  /** A method invocation, including the method name and its parameters.*/
-  private static class Invocation implements Writable, Configurable {
+  /** A method invocation, including the method name and its parameters.
+   * The compact encoding adds the id of the method in the
+   * {@link DispatchTable} of the protocol, before the method name. Compact
+   * invocations start with a zero length where the method name would be,
+   * which the old encoding never has as method names are not empty. */
+  static class Invocation implements CompactWritable, Configurable {
     private String methodName;
+    private int methodId = DispatchTable.NO_ID;
     private Class[] parameterClasses;
     private Object[] parameters;
     private Configuration conf;
@@ -81,7 +90,12 @@ public class RPC {
     public Invocation() {}
 
     public Invocation(Method method, Object[] parameters) {
+      this(method, parameters, DispatchTable.NO_ID);
+    }
+
+    public Invocation(Method method, Object[] parameters, int methodId) {
       this.methodName = method.getName();
+      this.methodId = methodId;
       this.parameterClasses = method.getParameterTypes();
       this.parameters = parameters;
     }
@@ -89,6 +103,10 @@ public class RPC {
     /** The name of the method invoked. */
     public String getMethodName() { return methodName; }
 
+    /** The id of the method invoked, or {@link DispatchTable#NO_ID} if
+     * the invocation only names the method. */
+    public int getMethodId() { return methodId; }
+
     /** The parameter classes. */
     public Class[] getParameterClasses() { return parameterClasses; }
 
@@ -96,7 +114,14 @@ public class RPC {
     public Object[] getParameters() { return parameters; }
 
     public void readFields(DataInput in) throws IOException {
-      methodName = UTF8.readString(in);
+      int nameLength = in.readUnsignedShort();
+      if (nameLength == 0) {
+        methodId = in.readInt();
+        methodName = UTF8.readString(in);
+      } else {
+        methodId = DispatchTable.NO_ID;
+        methodName = UTF8.readString(in, nameLength);
+      }
       parameters = new Object[in.readInt()];
       parameterClasses = new Class[parameters.length];
       ObjectWritable objectWritable = new ObjectWritable();
@@ -108,6 +133,21 @@ public class RPC {
 
     public void write(DataOutput out) throws IOException {
       UTF8.writeString(out, methodName);
+      writeParameters(out);
+    }
+
+    public void writeCompact(DataOutput out) throws IOException {
+      if (methodId == DispatchTable.NO_ID) {
+        write(out);
+        return;
+      }
+      out.writeShort(0);
+      out.writeInt(methodId);
+      UTF8.writeString(out, methodName);
+      writeParameters(out);
+    }
+
+    private void writeParameters(DataOutput out) throws IOException {
       out.writeInt(parameterClasses.length);
       for (int i = 0; i < parameterClasses.length; i++) {
         ObjectWritable.writeObject(out, parameters[i], parameterClasses[i],
@@ -207,6 +247,7 @@ public class RPC {
     final private long MIN_DNS_CHECK_INTERVAL_MSEC = 120 * 1000 ;
     final private int rpcTimeout;
     final private Class<?> protocol;
+    final private DispatchTable dispatchTable;
 
     public Invoker(InetSocketAddress address, UserGroupInformation ticket, 
                    Configuration conf, SocketFactory factory, int rpcTimeout,
@@ -216,6 +257,13 @@ public class RPC {
       this.client = CLIENTS.getClient(conf, factory);
       this.rpcTimeout = rpcTimeout;
       this.protocol = protocol;
+      this.dispatchTable =
+        (protocol == null) ? null : DispatchTable.get(protocol);
+    }
+
+    private Invocation newInvocation(Method method, Object[] args) {
+      return new Invocation(method, args, (dispatchTable == null) ?
+          DispatchTable.NO_ID : dispatchTable.getMethodId(method));
     }
     
     private synchronized InetSocketAddress getAddress() {
@@ -248,7 +296,7 @@ public class RPC {
 
       ObjectWritable value = null;
       try {
-        value = (ObjectWritable) client.call(new Invocation(method, args),
+        value = (ObjectWritable) client.call(newInvocation(method, args),
             getAddress(), protocol, ticket, rpcTimeout);
       } catch (RemoteException re) {
         throw re;
@@ -268,6 +316,37 @@ public class RPC {
       }
       return value.get();
     }
+
+    /** Invoke a method without waiting for its result. */
+    Future<Object> invokeAsync(Method method, Object[] args,
+                               final RpcCallback<Object> callback)
+      throws IOException {
+      RpcCallback<Writable> unwrappingCallback = null;
+      if (callback != null) {
+        unwrappingCallback = new RpcCallback<Writable>() {
+          public void completed(Writable result) {
+            callback.completed(((ObjectWritable)result).get());
+          }
+          public void failed(IOException error) {
+            callback.failed(error);
+          }
+        };
+      }
+      try {
+        return new UnwrappingFuture(client.callAsync(
+            newInvocation(method, args), getAddress(), protocol, ticket,
+            rpcTimeout, unwrappingCallback));
+      } catch (ConnectException ce) {
+        needCheckDnsUpdate = true;
+        throw ce;
+      } catch (NoRouteToHostException nrhe) {
+        needCheckDnsUpdate = true;
+        throw nrhe;
+      } catch (PortUnreachableException pue) {
+        needCheckDnsUpdate = true;
+        throw pue;
+      }
+    }
     
     /* close the IPC client that's responsible for this invoker's RPCs */ 
     synchronized private void close() {
@@ -278,6 +357,36 @@ public class RPC {
     }
   }
 
+  /** Unwraps the {@link ObjectWritable} returned by an asynchronous call. */
+  private static class UnwrappingFuture implements Future<Object> {
+    private final Future<Writable> future;
+
+    UnwrappingFuture(Future<Writable> future) {
+      this.future = future;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return future.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+      return ((ObjectWritable)future.get()).get();
+    }
+
+    public Object get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      return ((ObjectWritable)future.get(timeout, unit)).get();
+    }
+  }
+
   /**
    * An exception indicating that the client and server have
    * incompatible versions. They are not able to communicate with each other.
@@ -656,6 +765,27 @@ public class RPC {
     }
   }
 
+  /**
+   * Invoke a method of an RPC proxy without waiting for its result. Any
+   * number of such calls may be outstanding on the proxy's connection at a
+   * time, without a thread per call.
+   *
+   * @param proxy a proxy returned by {@link #getProxy}
+   * @param method the protocol method to invoke
+   * @param args the arguments of the method
+   * @param callback notified when the call completes; may be null
+   * @return a future for the return value of the method. Failures are
+   *         reported as an {@link ExecutionException} wrapping a
+   *         {@link RemoteException} or a local IOException.
+   * @throws IOException if the connection could not be set up
+   */
+  public static Future<Object> callAsync(VersionedProtocol proxy,
+      Method method, Object[] args, RpcCallback<Object> callback)
+      throws IOException {
+    return ((Invoker)Proxy.getInvocationHandler(proxy)).invokeAsync(
+        method, args, callback);
+  }
+
   /** 
    * Expert: Make multiple, parallel calls to a set of servers.
    * @deprecated Use {@link #call(Method, Object[][], InetSocketAddress[], UserGroupInformation, Configuration)} instead 
@@ -759,17 +889,34 @@ public class RPC {
                         false);
     }
 
+    @Override
+    protected int getSupportedFeatures() {
+      return ConnectionHeader.FEATURE_COMPACT_INVOCATIONS;
+    }
+
+    @Override
+    protected String getMethodName(Writable param) {
+      return ((Invocation) param).getMethodName();
+    }
+
     public Writable call(Class<?> protocol, Writable param, long receivedTime) 
     throws IOException {
       try {
         Invocation call = (Invocation)param;
+        Method method = null;
+        if (call.getMethodId() != DispatchTable.NO_ID) {
+          method = DispatchTable.get(protocol).getMethod(call.getMethodId(),
+              call.getMethodName(), call.getParameterClasses());
+        }
+        if (method == null) {
+          // no id, or one that this version of the protocol does not map
+          // to the same method as the client
+          method = protocol.getMethod(call.getMethodName(),
+                                      call.getParameterClasses());
+          method.setAccessible(true);
+        }
         if (verbose) log("Call: " + call);
 
-        Method method =
-          protocol.getMethod(call.getMethodName(),
-                                   call.getParameterClasses());
-        method.setAccessible(true);
-
         int qTime = (int) (System.currentTimeMillis()-receivedTime);
         long startNanoTime = System.nanoTime();
         Object value = method.invoke(instance, call.getParameters());
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of heap buffers holding serialized RPC responses, so that handlers
+ * do not allocate a new array for every response they send.
+ * Buffers come in power of two size classes; responses larger than the
+ * largest class are allocated to size and never pooled. The total capacity
+ * kept in the pool is bounded.
+ */
+class ResponseBufferPool {
+  static final int MIN_BUFFER_SIZE = 512;
+
+  private final int maxBufferSize;
+  private final long maxPooledBytes;
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> pools;
+
+  /**
+   * @param maxBufferSize the largest buffer that is pooled; rounded up to a
+   *                      power of two
+   * @param maxPooledBytes upper bound on the total capacity of idle buffers;
+   *                       0 disables pooling
+   */
+  ResponseBufferPool(int maxBufferSize, long maxPooledBytes) {
+    int numClasses = sizeClass(Math.max(maxBufferSize, MIN_BUFFER_SIZE)) + 1;
+    this.maxBufferSize = MIN_BUFFER_SIZE << (numClasses - 1);
+    this.maxPooledBytes = maxPooledBytes;
+    pools = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(numClasses);
+    for (int i = 0; i < numClasses; i++) {
+      pools.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+  }
+
+  /** Index of the smallest size class holding <code>size</code> bytes. */
+  private static int sizeClass(int size) {
+    int sizeClass = 0;
+    while ((MIN_BUFFER_SIZE << sizeClass) < size) {
+      sizeClass++;
+    }
+    return sizeClass;
+  }
+
+  /**
+   * Returns a buffer containing a copy of the given bytes, positioned at 0
+   * with the limit set to <code>len</code>.
+   */
+  ByteBuffer copyOf(byte[] data, int off, int len) {
+    ByteBuffer buf = get(len);
+    buf.put(data, off, len);
+    buf.flip();
+    return buf;
+  }
+
+  /** Returns an empty buffer with capacity of at least <code>size</code>. */
+  ByteBuffer get(int size) {
+    if (maxPooledBytes <= 0 || size > maxBufferSize) {
+      return ByteBuffer.allocate(size);
+    }
+    int sizeClass = sizeClass(size);
+    ByteBuffer buf = pools.get(sizeClass).poll();
+    if (buf == null) {
+      return ByteBuffer.allocate(MIN_BUFFER_SIZE << sizeClass);
+    }
+    pooledBytes.addAndGet(-buf.capacity());
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Return a buffer obtained from {@link #get(int)} to the pool. The caller
+   * must not use the buffer afterwards.
+   */
+  void release(ByteBuffer buf) {
+    int capacity = buf.capacity();
+    if (capacity > maxBufferSize || capacity < MIN_BUFFER_SIZE ||
+        Integer.bitCount(capacity) != 1 || !buf.hasArray()) {
+      return;                                   // not a pooled size class
+    }
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);         // pool is full; drop it
+      return;
+    }
+    pools.get(sizeClass(capacity)).offer(buf);
+  }
+
+  /** Total capacity of the idle buffers currently in the pool. */
+  long getPooledBytes() {
+    return pooledBytes.get();
+  }
+}
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+
+/**
+ * Receives the outcome of an asynchronous RPC.
+ * Callbacks are invoked from the thread that reads responses off the
+ * connection, so they must return quickly and must not make blocking
+ * calls over the same connection.
+ *
+ * @see Client#callAsync(org.apache.hadoop.io.Writable,
+ *      java.net.InetSocketAddress, Class,
+ *      org.apache.hadoop.security.UserGroupInformation, int, RpcCallback)
+ */
+public interface RpcCallback<T> {
+
+  /** Called with the return value when the call succeeds. */
+  void completed(T result);
+
+  /**
+   * Called when the call fails; the error is either a
+   * {@link RemoteException} or a local IO failure.
+   */
+  void failed(IOException error);
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+/**
+ * An item that can be placed into a priority level by a {@link RpcScheduler}.
+ */
+public interface Schedulable {
+
+  /**
+   * The identity this item is accounted to, usually the user name of the
+   * caller. May be null if the caller is not known.
+   */
+  String getIdentity();
+
+  /** The priority level the item was queued at. */
+  int getPriorityLevel();
+
+  /** Records the priority level the item was queued at. */
+  void setPriorityLevel(int level);
+}
@@ -24,6 +24,9 @@ import java.io.DataOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
@@ -47,16 +50,16 @@ import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.security.auth.Subject;
@@ -68,8 +71,14 @@ import org.apache.hadoop.security.SecurityUtil;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.TimingWheel;
 import org.apache.hadoop.ipc.metrics.RpcMetrics;
 import org.apache.hadoop.security.authorize.AuthorizationException;
 
@@ -89,6 +98,12 @@ public abstract class Server {
   // 1 : Introduce ping and server does not throw away RPCs
   // 3 : Introduce the protocol into the RPC connection header
   public static final byte CURRENT_VERSION = 3;
+
+  /**
+   * Id of the response that acknowledges the optional features of a
+   * connection header which the server supports.
+   */
+  static final int FEATURES_CALLID = -2;
   
   /**
    * How many calls per handler are allowed in the queue.
@@ -112,6 +127,48 @@ public abstract class Server {
   public static final String IPC_SERVER_RPC_READ_THREADS_KEY =
                                         "ipc.server.read.threadpool.size";
   public static final int IPC_SERVER_RPC_READ_THREADS_DEFAULT = 1;
+  /**
+   * The {@link BlockingQueue} implementation calls are queued in, e.g.
+   * {@link FairCallQueue}. It must have a (int, Configuration) or an (int)
+   * constructor taking the capacity.
+   */
+  public static final String IPC_SERVER_CALLQUEUE_IMPL_KEY =
+                                        "ipc.server.callqueue.impl";
+  /**
+   * How many ready responses of a connection the Responder may send with a
+   * single gathering write; 1 writes every response separately.
+   */
+  public static final String IPC_SERVER_RESPONSE_BATCH_SIZE_KEY =
+                                        "ipc.server.response.batch.size";
+  public static final int IPC_SERVER_RESPONSE_BATCH_SIZE_DEFAULT = 16;
+  /**
+   * Upper bound on the bytes kept in idle pooled response buffers;
+   * 0 disables the pool.
+   */
+  public static final String IPC_SERVER_RESPONSE_POOL_BYTES_KEY =
+                                        "ipc.server.response.pool.bytes";
+  public static final long IPC_SERVER_RESPONSE_POOL_BYTES_DEFAULT =
+                                        4 * 1024 * 1024;
+  /**
+   * Fraction of the call queue capacity above which new calls are rejected
+   * with a {@link ServerBusyException} instead of blocking the reader;
+   * 0 disables rejection.
+   */
+  public static final String IPC_SERVER_CALLQUEUE_HIGHWATERMARK_KEY =
+                                        "ipc.server.callqueue.highwatermark";
+  public static final float IPC_SERVER_CALLQUEUE_HIGHWATERMARK_DEFAULT = 0f;
+  /**
+   * Responses of at least this many bytes are compressed for clients that
+   * asked for compression in their connection header; 0 disables it.
+   */
+  public static final String IPC_SERVER_RESPONSE_COMPRESSION_THRESHOLD_KEY =
+                                "ipc.server.response.compression.threshold";
+  public static final int IPC_SERVER_RESPONSE_COMPRESSION_THRESHOLD_DEFAULT =
+                                32 * 1024;
+  /**
+   * Responses larger than this are allocated to size and not pooled.
+   */
+  static final int MAX_POOLED_RESPONSE_SIZE = 64 * 1024;
 
   public static final Log LOG = LogFactory.getLog(Server.class);
 
@@ -166,6 +223,19 @@ public abstract class Server {
     return CurCall.get();
   }
   
+  /**
+   * Returns the name of the method called by the current call, or null if
+   * not invoked inside an RPC or the server does not know method names.
+   */
+  public static String getCurrentMethodName() {
+    Call call = CurCall.get();
+    Server server = SERVER.get();
+    if (call != null && server != null) {
+      return server.getMethodName(call.param);
+    }
+    return null;
+  }
+
   /**
    * Gives access to the subject of the current call.
    */
@@ -231,20 +301,26 @@ public abstract class Server {
   private Configuration conf;
 
   private int maxQueueSize;
+  private final int rejectQueueSize;  // reject calls above this; 0 if never
   private final int maxRespSize;
+  private final int responseBatchSize;
+  private final int compressionThreshold;
+  // the codecs of io.compression.codecs, which clients may ask for
+  private final CompressionCodecFactory codecFactory;
+  private final ResponseBufferPool responseBufferPool;
   private int socketSendBufferSize;
   private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
   volatile private boolean running = true;         // true while server runs
   private BlockingQueue<Call> callQueue; // queued calls
 
-  private List<Connection> connectionList =
-    Collections.synchronizedList(new LinkedList<Connection>());
-  //maintain a list
-  //of client connections
+  // the open client connections; the readers, responder and listener all
+  // close connections, so this must not serialize them
+  private final Set<Connection> connectionSet = Collections.newSetFromMap(
+    new ConcurrentHashMap<Connection, Boolean>());
   private Listener listener = null;
   private Responder responder = null;
-  private int numConnections = 0;
+  private final AtomicInteger numConnections = new AtomicInteger(0);
   private Handler[] handlers = null;
 
   /**
@@ -279,7 +355,7 @@ public abstract class Server {
   }
 
   /** A call queued for handling. */
-  private static class Call {
+  private static class Call implements Schedulable {
     private int id;                               // the client's call id
     private Writable param;                       // the parameter passed
     private Connection connection;                // connection to client
@@ -288,6 +364,10 @@ public abstract class Server {
     private ByteBuffer response;                      // the response for this call
     private boolean delayResponse = false;
     private Responder responder;
+    private int priorityLevel = 0;                // level in the call queue
+    private final long receivedNanos = System.nanoTime();
+    private long respondNanos;                    // when queued for sending
+    private String methodName;    // for per method latencies; null if none
     
 
     public Call(int id, Writable param, Connection connection, Responder responder) { 
@@ -307,6 +387,14 @@ public abstract class Server {
     public synchronized void setResponse(ByteBuffer response) {
       this.response = response;
     }
+
+    /** Hand the fully sent response buffer back to the pool. */
+    synchronized void releaseResponse(ResponseBufferPool pool) {
+      if (response != null) {
+        pool.release(response);
+        response = null;
+      }
+    }
     
     public synchronized void delayResponse() {
       this.delayResponse = true;
@@ -322,6 +410,22 @@ public abstract class Server {
     public synchronized boolean delayed() {
       return this.delayResponse;
     }
+
+    @Override
+    public String getIdentity() {
+      UserGroupInformation ugi = connection.header.getUgi();
+      return (ugi == null) ? null : ugi.getUserName();
+    }
+
+    @Override
+    public int getPriorityLevel() {
+      return priorityLevel;
+    }
+
+    @Override
+    public void setPriorityLevel(int level) {
+      this.priorityLevel = level;
+    }
   }
 
   /** Listens on the socket. Creates jobs for the handler threads*/
@@ -333,11 +437,15 @@ public abstract class Server {
     private Reader[] readers = null;
     private int currentReader = 0;
     private InetSocketAddress address; //the address we bind at
-    private Random rand = new Random();
-    private long lastCleanupRunTime = 0; //the last time when a cleanup connec-
-                                         //-tion (for idle connections) ran
-    private long cleanupInterval = 10000; //the minimum interval between
-                                          //two cleanup runs
+    // idle deadlines of the connections; only used by the listener thread.
+    // A tick is a quarter of the idle time, so that a connection is looked
+    // at no later than 1.25 times maxIdleTime after its last contact.
+    private final TimingWheel<Connection> idleWheel =
+      new TimingWheel<Connection>(Math.max(1, maxIdleTime / 4), 64,
+                                  System.currentTimeMillis());
+    // whether the connections are in the idle wheel; they are only while
+    // there are more connections than the idle threshold
+    private boolean idleWheelArmed = false;
     private int backlogLength = conf.getInt("ipc.server.listen.queue.size", 128);
     private ExecutorService readPool;
 
@@ -427,51 +535,59 @@ public abstract class Server {
         this.notify();
       }
     }
-    /** cleanup connections from connectionList. Choose a random range
-     * to scan and also have a limit on the number of the connections
-     * that will be cleanedup per run. The criteria for cleanup is the time
-     * for which the connection was idle. If 'force' is true then all
-     * connections will be looked at for the cleanup.
+    /** cleanup idle connections. Connections are only closed while
+     * there are more than the idle threshold; below it the idle wheel is
+     * emptied, and it is filled with all the connections again once the
+     * threshold is crossed. Each connection is in the idle wheel at the
+     * time it would have been idle for too long, as of its last contact
+     * when it was scheduled; only the connections whose time has come are
+     * looked at, and there is a limit on the number of connections that
+     * will be cleaned up per run. If 'force' is true then all connections
+     * will be looked at for the cleanup.
      */
     private void cleanupConnections(boolean force) {
-      if (force || numConnections > thresholdIdleConnections) {
-        long currentTime = System.currentTimeMillis();
-        if (!force && (currentTime - lastCleanupRunTime) < cleanupInterval) {
-          return;
-        }
-        int start = 0;
-        int end = numConnections - 1;
-        if (!force) {
-          start = rand.nextInt() % numConnections;
-          end = rand.nextInt() % numConnections;
-          int temp;
-          if (end < start) {
-            temp = start;
-            start = end;
-            end = temp;
-          }
-        }
-        int i = start;
-        int numNuked = 0;
-        while (i <= end) {
-          Connection c;
-          synchronized (connectionList) {
-            try {
-              c = connectionList.get(i);
-            } catch (Exception e) {return;}
-          }
+      long currentTime = System.currentTimeMillis();
+      if (force) {
+        for (Connection c : connectionSet) {
           if (c.timedOut(currentTime)) {
             if (LOG.isDebugEnabled())
               LOG.debug(getName() + ": disconnecting client " + c.getHostAddress());
             closeConnection(c);
-            numNuked++;
-            end--;
-            c = null;
-            if (!force && numNuked == maxConnectionsToNuke) break;
           }
-          else i++;
         }
-        lastCleanupRunTime = System.currentTimeMillis();
+      }
+      if (numConnections.get() <= thresholdIdleConnections) {
+        if (idleWheelArmed) {
+          idleWheel.clear();
+          idleWheelArmed = false;
+        }
+        return;
+      }
+      if (!idleWheelArmed) {
+        for (Connection c : connectionSet) {
+          idleWheel.add(c, c.getLastContact() + maxIdleTime);
+        }
+        idleWheelArmed = true;
+      }
+      int numNuked = 0;
+      for (Connection c : idleWheel.expire(currentTime)) {
+        if (!connectionSet.contains(c)) {
+          continue;                             // closed in the meantime
+        }
+        if (c.timedOut(currentTime) && numNuked < maxConnectionsToNuke &&
+            numConnections.get() > thresholdIdleConnections) {
+          if (LOG.isDebugEnabled())
+            LOG.debug(getName() + ": disconnecting client " + c.getHostAddress());
+          closeConnection(c);
+          numNuked++;
+        } else if (c.timedOut(currentTime)) {
+          // over the per-run limit; look at it again in the next tick
+          idleWheel.add(c, currentTime);
+        } else {
+          // still in use; look at it again when it may be idle
+          idleWheel.add(c, Math.max(c.getLastContact(), currentTime) +
+                           maxIdleTime);
+        }
       }
     }
 
@@ -528,9 +644,11 @@ public abstract class Server {
         acceptChannel= null;
 
         // clean up all connections
-        while (!connectionList.isEmpty()) {
-          closeConnection(connectionList.remove(0));
+        for (Connection c : connectionSet) {
+          closeConnection(c);
         }
+        idleWheel.clear();
+        idleWheelArmed = false;
         readPool.shutdownNow();
       }
     }
@@ -574,13 +692,14 @@ public abstract class Server {
           SelectionKey readKey = reader.registerChannel(channel);
           c = new Connection(readKey, channel, System.currentTimeMillis());
           readKey.attach(c);
-          synchronized (connectionList) {
-            connectionList.add(numConnections, c);
-            numConnections++;
+          connectionSet.add(c);
+          numConnections.incrementAndGet();
+          if (idleWheelArmed) {
+            idleWheel.add(c, c.getLastContact() + maxIdleTime);
           }
           if (LOG.isDebugEnabled())
             LOG.debug("Server connection from " + c.toString() +
-                "; # active connections: " + numConnections +
+                "; # active connections: " + numConnections.get() +
                 "; # queued calls: " + callQueue.size());
         } finally {
           reader.finishAdd();
@@ -611,7 +730,7 @@ public abstract class Server {
         if (LOG.isDebugEnabled())
           LOG.debug(getName() + ": disconnecting client " +
                     c.getHostAddress() + ". Number of active connections: "+
-                    numConnections);
+                    numConnections.get());
         closeConnection(c);
         c = null;
       }
@@ -763,29 +882,25 @@ public abstract class Server {
       }
     }
 
-    // Processes one response. Returns true if there are no more pending
-    // data for this channel.
+    // Sends as many of the queued responses of a channel as the socket
+    // accepts, coalescing up to responseBatchSize of them into one gathering
+    // write. Returns true if there are no more pending data for this channel.
     //
     private boolean processResponse(LinkedList<Call> responseQueue,
                                     boolean inHandler) throws IOException {
       boolean error = true;
       boolean done = false;       // there is more data for this channel.
-      int numElements = 0;
       Call call = null;
       try {
         synchronized (responseQueue) {
           //
           // If there are no items for this channel, then we are done
           //
-          numElements = responseQueue.size();
-          if (numElements == 0) {
+          if (responseQueue.isEmpty()) {
             error = false;
             return true;              // no more data for this channel.
           }
-          //
-          // Extract the first call
-          //
-          call = responseQueue.removeFirst();
+          call = responseQueue.getFirst();
           SocketChannel channel = call.connection.channel;
           if (LOG.isDebugEnabled()) {
             LOG.debug(getName() + ": responding to #" + call.id + " from " +
@@ -794,28 +909,36 @@ public abstract class Server {
           //
           // Send as much data as we can in the non-blocking fashion
           //
-          int numBytes = channelWrite(channel, call.response);
+          int numBytes = writeResponses(channel, responseQueue);
           if (numBytes < 0) {
             return true;
           }
-          if (!call.response.hasRemaining()) {
-            call.connection.decRpcCount();
-            if (numElements == 1) {    // last call fully processes.
-              done = true;             // no more data for this channel.
-            } else {
-              done = false;            // more calls pending to be sent.
+          //
+          // Retire the calls that have been sent completely. A gathering
+          // write fills the buffers in order, so these are at the head.
+          //
+          while (!responseQueue.isEmpty() &&
+                 !responseQueue.getFirst().response.hasRemaining()) {
+            Call sent = responseQueue.removeFirst();
+            sent.connection.decRpcCount();
+            if (sent.methodName != null) {
+              rpcMetrics.incMethodResponseTime(sent.methodName,
+                  (System.nanoTime() - sent.respondNanos) / 1000);
             }
+            sent.releaseResponse(responseBufferPool);
             if (LOG.isDebugEnabled()) {
-              LOG.debug(getName() + ": responding to #" + call.id + " from " +
-                        call.connection + " Wrote " + numBytes + " bytes.");
+              LOG.debug(getName() + ": responding to #" + sent.id + " from " +
+                        sent.connection + " done.");
             }
+          }
+          if (responseQueue.isEmpty()) {
+            done = true;               // no more data for this channel.
           } else {
             //
-            // If we were unable to write the entire response out, then
+            // If we were unable to write all the responses out, then
             // insert in Selector queue.
             //
-            call.connection.responseQueue.addFirst(call);
-
+            call = responseQueue.getFirst();
             if (inHandler) {
               // set the serve time when the response has to be sent later
               call.timestamp = System.currentTimeMillis();
@@ -835,8 +958,9 @@ public abstract class Server {
             }
             if (LOG.isDebugEnabled()) {
               LOG.debug(getName() + ": responding to #" + call.id + " from " +
-                        call.connection + " Wrote partial " + numBytes +
-                        " bytes.");
+                        call.connection + " Wrote " + numBytes +
+                        " bytes, " + responseQueue.size() +
+                        " responses pending.");
             }
           }
           error = false;              // everything went off well
@@ -851,10 +975,43 @@ public abstract class Server {
       return done;
     }
 
+    //
+    // Write the responses at the head of the queue. Consecutive responses
+    // are gathered into a single write as long as their total size stays
+    // within NIO_BUFFER_LIMIT, which bounds the temporary direct buffers
+    // the jdk allocates for a write.
+    //
+    private int writeResponses(SocketChannel channel,
+                               LinkedList<Call> responseQueue)
+                               throws IOException {
+      int count = 0;
+      int bytes = 0;
+      int maxCount = Math.min(responseBatchSize, responseQueue.size());
+      ByteBuffer[] buffers = null;
+      for (Call c : responseQueue) {
+        int remaining = c.response.remaining();
+        if (count == maxCount ||
+            (count > 0 && bytes + remaining > NIO_BUFFER_LIMIT)) {
+          break;
+        }
+        if (buffers == null) {
+          buffers = new ByteBuffer[maxCount];
+        }
+        buffers[count++] = c.response;
+        bytes += remaining;
+      }
+      if (count == 1) {
+        return channelWrite(channel, buffers[0]);
+      }
+      rpcMetrics.gatheredResponses.inc(count);
+      return (int) channel.write(buffers, 0, count);
+    }
+
     //
     // Enqueue a response from the application.
     //
     void doRespond(Call call) throws IOException {
+      call.respondNanos = System.nanoTime();
       synchronized (call.connection.responseQueue) {
         call.connection.responseQueue.addLast(call);
         if (call.connection.responseQueue.size() == 1) {
@@ -891,7 +1048,7 @@ public abstract class Server {
     private ByteBuffer dataLengthBuffer;
     private LinkedList<Call> responseQueue;
     private volatile int rpcCount = 0; // number of outstanding rpcs
-    private long lastContact;
+    private volatile long lastContact;
     private int dataLength;
     private Socket socket;
     // Cache the remote host & port info so that even if the socket is
@@ -901,14 +1058,13 @@ public abstract class Server {
 
     ConnectionHeader header = new ConnectionHeader();
     Class<?> protocol;
+    CompressionCodec responseCodec;  // compresses large responses, if set
+    int features;                    // features supported by both sides
 
     Subject user = null;
 
     // Fake 'call' for failed authorization response
     private final int AUTHROIZATION_FAILED_CALLID = -1;
-    private final Call authFailedCall = 
-      new Call(AUTHROIZATION_FAILED_CALLID, null, null, null);
-    private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
     
     public Connection(SelectionKey key, SocketChannel channel, 
                       long lastContact) {
@@ -1041,9 +1197,14 @@ public abstract class Server {
               if (LOG.isDebugEnabled()) {
                 LOG.debug("Successfully authorized " + header);
               }
+              features = header.getFeatures() & getSupportedFeatures();
+              if (features != 0) {
+                acknowledgeFeatures();
+              }
             } catch (AuthorizationException ae) {
-              authFailedCall.connection = this;
-              setupResponse(authFailedResponse, authFailedCall,
+              Call authFailedCall =
+                new Call(AUTHROIZATION_FAILED_CALLID, null, this, responder);
+              setupResponse(new ResponseBuffer(), authFailedCall,
                             Status.FATAL, null,
                             ae.getClass().getName(), ae.getMessage());
               responder.doRespond(authFailedCall);
@@ -1076,6 +1237,28 @@ public abstract class Server {
       // TODO: Get the user name from the GSS API for Kerberbos-based security
       // Create the user subject
       user = SecurityUtil.getSubject(header.getUgi());
+
+      String codec = header.getCompressionCodec();
+      if (codec != null && codecFactory != null) {
+        // never load a class the client names, only the configured codecs
+        responseCodec = codecFactory.getCodecByClassName(codec);
+        if (responseCodec == null) {
+          throw new IOException("Unknown compression codec: " + codec);
+        }
+      }
+    }
+
+    /* Tell the client which of its features will be used */
+    private void acknowledgeFeatures() throws IOException {
+      ResponseBuffer buf = new ResponseBuffer();
+      DataOutputStream out = new DataOutputStream(buf);
+      out.writeInt(FEATURES_CALLID);
+      out.writeInt(Status.SUCCESS.state);
+      out.writeInt(features);
+      Call ack = new Call(FEATURES_CALLID, null, this, responder);
+      ack.setResponse(responseBufferPool.copyOf(buf.getData(), 0, buf.size()));
+      incRpcCount();                // decremented once the ack is sent
+      responder.doRespond(ack);
     }
 
     private void processData() throws  IOException, InterruptedException {
@@ -1090,7 +1273,26 @@ public abstract class Server {
       param.readFields(dis);        
         
       Call call = new Call(id, param, this, responder);
-      callQueue.put(call);              // queue the call; maybe blocked here
+      if (rejectQueueSize <= 0) {
+        callQueue.put(call);              // queue the call; maybe blocked here
+      } else if (callQueue.size() >= rejectQueueSize || !callQueue.offer(call)) {
+        rejectCall(call);                 // overloaded; tell client to back off
+      }
+    }
+
+    /** Respond to a call that could not be queued with a retriable
+     * {@link ServerBusyException}. */
+    private void rejectCall(Call call) throws IOException {
+      rpcMetrics.rpcRejectedCalls.inc();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Rejecting call #" + call.id + " from " + this +
+                  "; # queued calls: " + callQueue.size());
+      }
+      setupResponse(new ResponseBuffer(), call, Status.ERROR, null,
+                    ServerBusyException.class.getName(),
+                    "Server busy: call queue of " + maxQueueSize +
+                    " is over its high-water mark of " + rejectQueueSize);
+      responder.doRespond(call);
     }
 
     private synchronized void close() throws IOException {
@@ -1117,8 +1319,7 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
-       ByteArrayOutputStream buf =
-         new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
+      ResponseBuffer buf = new ResponseBuffer(INITIAL_RESP_BUF_SIZE);
       while (running) {
         try {
           final Call call = callQueue.poll(1000, TimeUnit.MILLISECONDS); 
@@ -1130,6 +1331,9 @@ public abstract class Server {
           if (LOG.isDebugEnabled())
             LOG.debug(getName() + ": has #" + call.id + " from " +
                       call.connection);
+          rpcMetrics.incCallQueueWaitTime(call.getPriorityLevel(),
+              System.currentTimeMillis() - call.timestamp);
+          long startNanos = System.nanoTime();
 
           String errorClass = null;
           String error = null;
@@ -1163,6 +1367,12 @@ public abstract class Server {
             error = StringUtils.stringifyException(e);
           }
           CurCall.set(null);
+          call.methodName = getMethodName(call.param);
+          if (call.methodName != null) {
+            rpcMetrics.incMethodTimes(call.methodName,
+                (startNanos - call.receivedNanos) / 1000,
+                (System.nanoTime() - startNanos) / 1000);
+          }
 
           setupResponse(buf, call,
                         (error == null) ? Status.SUCCESS : Status.ERROR,
@@ -1172,7 +1382,7 @@ public abstract class Server {
           if (buf.size() > maxRespSize) {
             LOG.warn("Large response size " + buf.size() + " for call " +
                 call.toString());
-            buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
+            buf = new ResponseBuffer(INITIAL_RESP_BUF_SIZE);
           }
           if (!call.delayed()) {
             responder.doRespond(call);
@@ -1221,7 +1431,32 @@ public abstract class Server {
                                    IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT);
     this.readThreads = conf.getInt(IPC_SERVER_RPC_READ_THREADS_KEY,
                                    IPC_SERVER_RPC_READ_THREADS_DEFAULT);
-    this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize);
+    float highWaterMark = conf.getFloat(IPC_SERVER_CALLQUEUE_HIGHWATERMARK_KEY,
+                                   IPC_SERVER_CALLQUEUE_HIGHWATERMARK_DEFAULT);
+    this.rejectQueueSize = (highWaterMark <= 0) ? 0 :
+      Math.max(1, (int) (maxQueueSize * Math.min(highWaterMark, 1f)));
+    this.compressionThreshold = conf.getInt(
+                                   IPC_SERVER_RESPONSE_COMPRESSION_THRESHOLD_KEY,
+                                   IPC_SERVER_RESPONSE_COMPRESSION_THRESHOLD_DEFAULT);
+    CompressionCodecFactory factory = null;
+    if (compressionThreshold > 0) {
+      try {
+        factory = new CompressionCodecFactory(conf);
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Responses will not be compressed: " + e.getMessage());
+      }
+    }
+    this.codecFactory = factory;
+    this.responseBatchSize = Math.max(1, conf.getInt(
+                                   IPC_SERVER_RESPONSE_BATCH_SIZE_KEY,
+                                   IPC_SERVER_RESPONSE_BATCH_SIZE_DEFAULT));
+    this.responseBufferPool = new ResponseBufferPool(MAX_POOLED_RESPONSE_SIZE,
+        conf.getLong(IPC_SERVER_RESPONSE_POOL_BYTES_KEY,
+                     IPC_SERVER_RESPONSE_POOL_BYTES_DEFAULT));
+    this.callQueue = createCallQueue(
+        conf.getClass(IPC_SERVER_CALLQUEUE_IMPL_KEY,
+                      LinkedBlockingQueue.class, BlockingQueue.class),
+        maxQueueSize, conf);
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1238,11 +1473,37 @@ public abstract class Server {
     responder = new Responder();
   }
 
-  private void closeConnection(Connection connection) {
-    synchronized (connectionList) {
-      if (connectionList.remove(connection))
-        numConnections--;
+  /**
+   * Instantiate the call queue, trying the (int, Configuration) constructor
+   * first and the (int) constructor second.
+   */
+  @SuppressWarnings("unchecked")
+  private static BlockingQueue<Call> createCallQueue(Class<?> queueClass,
+      int maxQueueSize, Configuration conf) {
+    try {
+      Constructor<?> ctor;
+      Object queue;
+      try {
+        ctor = queueClass.getConstructor(int.class, Configuration.class);
+        queue = ctor.newInstance(maxQueueSize, conf);
+      } catch (NoSuchMethodException e) {
+        ctor = queueClass.getConstructor(int.class);
+        queue = ctor.newInstance(maxQueueSize);
+      }
+      LOG.info("Using call queue " + queueClass.getName());
+      return (BlockingQueue<Call>) queue;
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException("Could not create call queue " +
+          queueClass.getName(), e.getTargetException());
+    } catch (Exception e) {
+      throw new RuntimeException("Could not create call queue " +
+          queueClass.getName(), e);
     }
+  }
+
+  private void closeConnection(Connection connection) {
+    if (connectionSet.remove(connection))
+      numConnections.decrementAndGet();
     try {
       connection.close();
     } catch (IOException e) {
@@ -1260,7 +1521,7 @@ public abstract class Server {
    * @param error error message, if the call failed
    * @throws IOException
    */
-  private void setupResponse(ByteArrayOutputStream response,
+  private void setupResponse(ResponseBuffer response,
                              Call call, Status status,
                              Writable rv, String errorClass, String error)
   throws IOException {
@@ -1271,11 +1532,68 @@ public abstract class Server {
 
     if (status == Status.SUCCESS) {
       rv.write(out);
+      CompressionCodec codec = call.connection.responseCodec;
+      if (codec != null && response.size() - 8 >= compressionThreshold) {
+        compressResponse(response, call, codec);
+      }
     } else {
       WritableUtils.writeString(out, errorClass);
       WritableUtils.writeString(out, error);
     }
-    call.setResponse(ByteBuffer.wrap(response.toByteArray()));
+    call.setResponse(responseBufferPool.copyOf(response.getData(), 0,
+                                               response.size()));
+  }
+
+  /**
+   * Replace the value of a successful response with its compressed form,
+   * preceded by its compressed length, unless compression does not pay.
+   */
+  private void compressResponse(ResponseBuffer response, Call call,
+                                CompressionCodec codec) throws IOException {
+    long startNanos = System.nanoTime();
+    int valueLength = response.size() - 8;
+    ByteArrayOutputStream compressed =
+      new ByteArrayOutputStream(valueLength / 4);
+    Compressor compressor = CodecPool.getCompressor(codec);
+    try {
+      CompressionOutputStream cout =
+        codec.createOutputStream(compressed, compressor);
+      cout.write(response.getData(), 8, valueLength);
+      cout.finish();
+    } finally {
+      CodecPool.returnCompressor(compressor);
+    }
+    rpcMetrics.responseCompressionTime.inc(
+        (System.nanoTime() - startNanos) / 1000);
+    int saved = valueLength - compressed.size() - 4;
+    if (saved <= 0) {
+      return;
+    }
+    rpcMetrics.compressedResponses.inc();
+    rpcMetrics.responseBytesSaved.inc(saved);
+
+    response.reset();
+    DataOutputStream out = new DataOutputStream(response);
+    out.writeInt(call.id);
+    out.writeInt(Status.SUCCESS_COMPRESSED.state);
+    out.writeInt(compressed.size());
+    compressed.writeTo(out);
+  }
+
+  /** A ByteArrayOutputStream whose contents can be read without a copy. */
+  private static class ResponseBuffer extends ByteArrayOutputStream {
+    ResponseBuffer() {
+      super();
+    }
+
+    ResponseBuffer(int size) {
+      super(size);
+    }
+
+    /** Returns the underlying array; valid up to {@link #size()}. */
+    byte[] getData() {
+      return buf;
+    }
   }
 
   Configuration getConf() {
@@ -1342,6 +1660,9 @@ public abstract class Server {
     listener.interrupt();
     listener.doStop();
     responder.interrupt();
+    if (callQueue instanceof FairCallQueue) {
+      ((FairCallQueue<?>) callQueue).stop();
+    }
     notifyAll();
     if (this.rpcMetrics != null) {
       this.rpcMetrics.shutdown();
@@ -1380,6 +1701,24 @@ public abstract class Server {
                                Writable param, long receiveTime)
   throws IOException;
 
+  /**
+   * The name under which the latencies of a call are recorded, e.g. the
+   * method it invokes. Calls without a name are not broken down.
+   * @param param the call parameter
+   * @return the name, or null to skip per method latencies
+   */
+  protected String getMethodName(Writable param) {
+    return null;
+  }
+
+  /**
+   * The optional {@link ConnectionHeader} features the server supports.
+   * @return FEATURE_* flags of {@link ConnectionHeader}
+   */
+  protected int getSupportedFeatures() {
+    return 0;
+  }
+
   /**
    * Authorize the incoming client connection.
    *
@@ -1395,7 +1734,7 @@ public abstract class Server {
    * @return the number of open rpc connections
    */
   public int getNumOpenConnections() {
-    return numConnections;
+    return numConnections.get();
   }
 
   /**
@@ -1406,6 +1745,33 @@ public abstract class Server {
     return callQueue.size();
   }
 
+  /**
+   * The number of rpc calls queued at each priority level. The result has a
+   * single entry unless a multi-level call queue is configured.
+   * @return The number of rpc calls in the queue per priority level.
+   */
+  public int[] getCallQueueLenPerLevel() {
+    if (callQueue instanceof FairCallQueue) {
+      return ((FairCallQueue<?>) callQueue).getQueueSizes();
+    }
+    return new int[] { callQueue.size() };
+  }
+
+  /**
+   * The identities the call queue currently schedules below the highest
+   * priority, mapped to their priority level. Empty unless a
+   * {@link FairCallQueue} with a {@link DecayRpcScheduler} is configured.
+   */
+  public Map<String, Integer> getThrottledIdentities() {
+    if (callQueue instanceof FairCallQueue) {
+      RpcScheduler scheduler = ((FairCallQueue<?>) callQueue).getScheduler();
+      if (scheduler instanceof DecayRpcScheduler) {
+        return ((DecayRpcScheduler) scheduler).getThrottledIdentities();
+      }
+    }
+    return Collections.emptyMap();
+  }
+
 
   /**
    * When the read or write buffer size is larger than this limit, i/o will be
@@ -23,6 +23,7 @@ package org.apache.hadoop.ipc;
 enum Status {
   SUCCESS (0),
   ERROR (1),
+  SUCCESS_COMPRESSED (2),  // only sent to clients that asked for compression
   FATAL (-1);
   
   int state;
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A {@link RpcMultiplexer} which serves queue i weights[i] times before
+ * moving on to queue i+1. The default weights halve with every level, so
+ * with four levels the queues are served 8, 4, 2 and 1 times per round.
+ */
+public class WeightedRoundRobinMultiplexer implements RpcMultiplexer {
+
+  /** Comma separated list of weights, one per priority level. */
+  public static final String IPC_CALLQUEUE_WEIGHTS_KEY =
+    "ipc.server.callqueue.weights";
+
+  private final int[] weights;
+  private int currentQueue = 0;
+  private int requestsLeft;
+
+  public WeightedRoundRobinMultiplexer(int numQueues, Configuration conf) {
+    if (numQueues < 1) {
+      throw new IllegalArgumentException("number of queues must be positive");
+    }
+    weights = new int[numQueues];
+    String[] values = conf.getStrings(IPC_CALLQUEUE_WEIGHTS_KEY);
+    if (values == null) {
+      for (int i = 0; i < numQueues; i++) {
+        weights[i] = 1 << (numQueues - i - 1);
+      }
+    } else {
+      if (values.length != numQueues) {
+        throw new IllegalArgumentException(IPC_CALLQUEUE_WEIGHTS_KEY +
+            " must have " + numQueues + " entries, got " + values.length);
+      }
+      for (int i = 0; i < numQueues; i++) {
+        weights[i] = Integer.parseInt(values[i].trim());
+        if (weights[i] < 1) {
+          throw new IllegalArgumentException(IPC_CALLQUEUE_WEIGHTS_KEY +
+              " entries must be positive");
+        }
+      }
+    }
+    requestsLeft = weights[0];
+  }
+
+  /** {@inheritDoc} */
+  public synchronized int getAndAdvanceCurrentIndex() {
+    int index = currentQueue;
+    if (--requestsLeft <= 0) {
+      currentQueue = (currentQueue + 1) % weights.length;
+      requestsLeft = weights[currentQueue];
+    }
+    return index;
+  }
+}
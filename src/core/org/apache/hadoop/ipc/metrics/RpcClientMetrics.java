@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc.metrics;
+
+import org.apache.hadoop.ipc.Client;
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+
+/**
+ * This class is for maintaining the statistics of an RPC {@link Client}
+ * and publishing them through the metrics interfaces, as
+ * {@link RpcMetrics} does for a server.
+ */
+public class RpcClientMetrics implements Updater {
+  public MetricsRegistry registry = new MetricsRegistry();
+  private MetricsRecord metricsRecord;
+  private MetricsContext context = null;
+
+  public RpcClientMetrics() {
+    context = MetricsUtil.getContext("rpc");
+    metricsRecord = MetricsUtil.createRecord(context, "client");
+    context.registerUpdater(this);
+  }
+
+  public MetricsTimeVaryingLong serverBusyRetries =
+          new MetricsTimeVaryingLong("ServerBusyRetries", registry,
+              "Calls retried because the server was busy");
+  public MetricsTimeVaryingLong serverBusyBackoffTime =
+          new MetricsTimeVaryingLong("ServerBusyBackoffTime", registry,
+              "Time (msec) calls spent backing off from busy servers");
+
+  /**
+   * Push the metrics to the monitoring subsystem on doUpdate() call.
+   */
+  public void doUpdates(MetricsContext context) {
+    synchronized (this) {
+      for (MetricsBase m : registry.getMetricsList()) {
+        m.pushMetric(metricsRecord);
+      }
+    }
+    metricsRecord.update();
+  }
+
+  public void shutdown() {
+    if (context != null) {
+      context.unregisterUpdater(this);
+    }
+  }
+}
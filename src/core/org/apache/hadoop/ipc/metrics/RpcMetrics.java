@@ -27,6 +27,9 @@ import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsIntValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingHistogram;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -60,6 +63,18 @@ public class RpcMetrics implements Updater {
         + hostName + ", port=" + port);
 
     context.registerUpdater(this);
+
+    int numLevels = server.getCallQueueLenPerLevel().length;
+    if (numLevels > 1) {
+      callQueueLenPerLevel = new MetricsIntValue[numLevels];
+      callQueueWaitTimePerLevel = new MetricsTimeVaryingRate[numLevels];
+      for (int i = 0; i < numLevels; i++) {
+        callQueueLenPerLevel[i] =
+          new MetricsIntValue("callQueueLen_level" + i, registry);
+        callQueueWaitTimePerLevel[i] =
+          new MetricsTimeVaryingRate("CallQueueWaitTime_level" + i, registry);
+      }
+    }
     
     // Need to clean up the interface to RpcMgt - don't need both metrics and server params
     rpcMBean = new RpcActivityMBean(registry, hostName, port);
@@ -80,6 +95,75 @@ public class RpcMetrics implements Updater {
           new MetricsIntValue("NumOpenConnections", registry);
   public MetricsIntValue callQueueLen = 
           new MetricsIntValue("callQueueLen", registry);
+  public MetricsTimeVaryingInt rpcRejectedCalls =
+          new MetricsTimeVaryingInt("RpcRejectedCalls", registry,
+              "Calls rejected because the call queue was overloaded");
+  public MetricsIntValue numThrottledIdentities =
+          new MetricsIntValue("NumThrottledIdentities", registry,
+              "Callers scheduled below the highest call queue priority");
+  public MetricsTimeVaryingInt compressedResponses =
+          new MetricsTimeVaryingInt("CompressedResponses", registry,
+              "Responses sent compressed");
+  public MetricsTimeVaryingLong responseBytesSaved =
+          new MetricsTimeVaryingLong("ResponseCompressionBytesSaved", registry,
+              "Bytes saved by compressing responses");
+  public MetricsTimeVaryingRate responseCompressionTime =
+          new MetricsTimeVaryingRate("ResponseCompressionTime", registry,
+              "Time (usec) spent compressing responses");
+  public MetricsTimeVaryingInt gatheredResponses =
+          new MetricsTimeVaryingInt("GatheredResponses", registry,
+              "Responses sent together with others in one gathering write");
+
+  /**
+   * Per priority level queue length and queue wait time (msec); only set
+   * when the server uses a multi-level call queue.
+   */
+  public MetricsIntValue[] callQueueLenPerLevel;
+  public MetricsTimeVaryingRate[] callQueueWaitTimePerLevel;
+
+  /**
+   * Record the time a call spent in the call queue at the given level.
+   */
+  public void incCallQueueWaitTime(int level, long waitTime) {
+    if (callQueueWaitTimePerLevel != null &&
+        level < callQueueWaitTimePerLevel.length) {
+      callQueueWaitTimePerLevel[level].inc(waitTime);
+    }
+  }
+  
+  /**
+   * Record the latencies (usec) of a call to the given method: the time it
+   * waited in the call queue and the time a handler spent processing it.
+   * Together with {@link #incMethodResponseTime(String, long)} these are
+   * published as per method percentiles, named e.g. getFileInfoQueueTime.
+   */
+  public void incMethodTimes(String method, long queueTime,
+                             long processingTime) {
+    getHistogram(method + "QueueTime").inc(queueTime);
+    getHistogram(method + "ProcessingTime").inc(processingTime);
+  }
+
+  /**
+   * Record the time (usec) from queueing the response to a call to the
+   * given method until it was completely written to the client.
+   */
+  public void incMethodResponseTime(String method, long responseTime) {
+    getHistogram(method + "ResponseTime").inc(responseTime);
+  }
+
+  private MetricsTimeVaryingHistogram getHistogram(String name) {
+    MetricsTimeVaryingHistogram h =
+      (MetricsTimeVaryingHistogram) registry.get(name);
+    if (h == null) {
+      try {
+        h = new MetricsTimeVaryingHistogram(name, registry);
+      } catch (IllegalArgumentException iae) {
+        // registered concurrently; re-fetch the handle
+        h = (MetricsTimeVaryingHistogram) registry.get(name);
+      }
+    }
+    return h;
+  }
   
   /**
    * Push the metrics to the monitoring subsystem on doUpdate() call.
@@ -91,6 +175,13 @@ public class RpcMetrics implements Updater {
       // the metrics do not have be copied here.
       numOpenConnections.set(myServer.getNumOpenConnections());
       callQueueLen.set(myServer.getCallQueueLen());
+      if (callQueueLenPerLevel != null) {
+        int[] lens = myServer.getCallQueueLenPerLevel();
+        for (int i = 0; i < lens.length && i < callQueueLenPerLevel.length; i++) {
+          callQueueLenPerLevel[i].set(lens[i]);
+        }
+      }
+      numThrottledIdentities.set(myServer.getThrottledIdentities().size());
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
       }
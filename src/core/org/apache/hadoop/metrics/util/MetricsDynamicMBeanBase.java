@@ -103,6 +103,16 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         metricsRateAttributeMod.put(o.getName() + MIN_TIME, o);
         metricsRateAttributeMod.put(o.getName() + MAX_TIME, o);
         
+      } else if (MetricsTimeVaryingHistogram.class.isInstance(o)) {
+        // One attribute for the number of ops and one for each percentile
+        attributesInfo.add(new MBeanAttributeInfo(o.getName() + NUM_OPS, "java.lang.Integer",
+            o.getDescription(), true, false, false));
+        metricsRateAttributeMod.put(o.getName() + NUM_OPS, o);
+        for (String p : MetricsTimeVaryingHistogram.PERCENTILE_NAMES) {
+          attributesInfo.add(new MBeanAttributeInfo(o.getName() + p, "java.lang.Long",
+              o.getDescription(), true, false, false));
+          metricsRateAttributeMod.put(o.getName() + p, o);
+        }
       }  else if ( MetricsIntValue.class.isInstance(o) || MetricsTimeVaryingInt.class.isInstance(o) ) {
         attributesInfo.add(new MBeanAttributeInfo(o.getName(), "java.lang.Integer",
             o.getDescription(), true, false, false)); 
@@ -161,6 +171,17 @@ public abstract class MetricsDynamicMBeanBase implements DynamicMBean {
         MetricsUtil.LOG.error("Unexpected attrubute suffix");
         throw new AttributeNotFoundException();
       }
+    } else if (o instanceof MetricsTimeVaryingHistogram) {
+      MetricsTimeVaryingHistogram oh = (MetricsTimeVaryingHistogram) o;
+      if (attributeName.endsWith(NUM_OPS))
+        return oh.getPreviousIntervalNumOps();
+      String[] names = MetricsTimeVaryingHistogram.PERCENTILE_NAMES;
+      for (int i = 0; i < names.length; i++) {
+        if (attributeName.equals(oh.getName() + names[i]))
+          return oh.getPreviousIntervalPercentile(i);
+      }
+      MetricsUtil.LOG.error("Unexpected attrubute suffix");
+      throw new AttributeNotFoundException();
     } else {
         MetricsUtil.LOG.error("unknown metrics type: " + o.getClass().getName());
         throw new AttributeNotFoundException();
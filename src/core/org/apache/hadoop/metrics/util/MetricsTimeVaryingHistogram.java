@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics.util;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.util.StringUtils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The MetricsTimeVaryingHistogram class is for a latency metric whose
+ * distribution matters more than its average (e.g. the time to serve an
+ * rpc). Values are counted in log-linear buckets with a relative error of
+ * at most 1/8, and the 50th, 95th, 99th and 99.9th percentiles of each
+ * interval are computed at the interval heart beat (the interval is set in
+ * the metrics config file).
+ *
+ */
+public class MetricsTimeVaryingHistogram extends MetricsBase {
+
+  private static final Log LOG =
+    LogFactory.getLog("org.apache.hadoop.metrics.util");
+
+  /** Percentiles published for each interval. */
+  public static final double[] PERCENTILES = { 0.50, 0.95, 0.99, 0.999 };
+  /** Suffixes of the published percentiles, in the order of PERCENTILES. */
+  public static final String[] PERCENTILE_NAMES =
+    { "P50", "P95", "P99", "P999" };
+
+  // Each power of two is split into SUB_BUCKETS linear buckets; values
+  // below SUB_BUCKETS have a bucket of their own.
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;   // larger values are clamped
+  public static final int NUM_BUCKETS =
+    (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+  private final long[] counts = new long[NUM_BUCKETS];
+  private int numOperations = 0;
+  private long maxValue = 0;
+  private int previousIntervalNumOps = 0;
+  private long[] previousIntervalPercentiles = new long[PERCENTILES.length];
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   */
+  public MetricsTimeVaryingHistogram(final String nam,
+      final MetricsRegistry registry, final String description) {
+    super(nam, description);
+    registry.add(nam, this);
+  }
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   * A description of {@link #NO_DESCRIPTION} is used
+   */
+  public MetricsTimeVaryingHistogram(final String nam,
+      final MetricsRegistry registry) {
+    this(nam, registry, NO_DESCRIPTION);
+  }
+
+  /** The bucket a value is counted in. */
+  public static int getBucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (value < 0) ? 0 : (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** The largest value that falls into the given bucket. */
+  public static long getBucketUpperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Compute the {@link #PERCENTILES} of a distribution.
+   * @param counts the number of values in each bucket
+   * @param numOps the number of values
+   * @param maxValue the largest value
+   * @return the percentiles, all 0 if there were no values
+   */
+  public static long[] getPercentiles(long[] counts, long numOps,
+                                      long maxValue) {
+    long[] percentiles = new long[PERCENTILES.length];
+    if (numOps > 0) {
+      int p = 0;
+      long seen = 0;
+      for (int i = 0; i < counts.length && p < PERCENTILES.length; i++) {
+        seen += counts[i];
+        while (p < PERCENTILES.length &&
+               seen >= (long) Math.ceil(PERCENTILES[p] * numOps)) {
+          percentiles[p++] = Math.min(getBucketUpperBound(i), maxValue);
+        }
+      }
+    }
+    return percentiles;
+  }
+
+  /**
+   * Add a value to the distribution of the current interval
+   * @param value the value, e.g. the time for one operation
+   */
+  public synchronized void inc(final long value) {
+    counts[getBucket(value)]++;
+    numOperations++;
+    if (value > maxValue) {
+      maxValue = value;
+    }
+  }
+
+  private synchronized void intervalHeartBeat() {
+    previousIntervalPercentiles =
+      getPercentiles(counts, numOperations, maxValue);
+    previousIntervalNumOps = numOperations;
+    Arrays.fill(counts, 0);
+    numOperations = 0;
+    maxValue = 0;
+  }
+
+  /**
+   * Push the number of operations and the percentiles of the interval
+   * since the last push to the mr.
+   *
+   * Note this does NOT push to JMX
+   * (JMX gets the info via {@link #getPreviousIntervalNumOps()} and
+   * {@link #getPreviousIntervalPercentile(int)})
+   *
+   * @param mr
+   */
+  public synchronized void pushMetric(final MetricsRecord mr) {
+    intervalHeartBeat();
+    try {
+      mr.incrMetric(getName() + "_num_ops", previousIntervalNumOps);
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        mr.setMetric(getName() + "_" + PERCENTILE_NAMES[i].toLowerCase(),
+                     previousIntervalPercentiles[i]);
+      }
+    } catch (Exception e) {
+      LOG.info("pushMetric failed for " + getName() + "\n" +
+          StringUtils.stringifyException(e));
+    }
+  }
+
+  /**
+   * The number of values added in the previous interval
+   * @return - ops in prev interval
+   */
+  public synchronized int getPreviousIntervalNumOps() {
+    return previousIntervalNumOps;
+  }
+
+  /**
+   * A percentile of the values added in the previous interval
+   * @param index - index of the percentile in {@link #PERCENTILES}
+   * @return the percentile, or 0 if there were no values
+   */
+  public synchronized long getPreviousIntervalPercentile(int index) {
+    return previousIntervalPercentiles[index];
+  }
+}
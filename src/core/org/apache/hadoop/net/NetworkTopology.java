@@ -19,8 +19,11 @@ package org.apache.hadoop.net;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -299,9 +302,102 @@ public class NetworkTopology {
     }
   } // end of InnerNode
     
+  /**
+   * An immutable view of the leaves of the tree for the read-only queries.
+   * The leaves are ordered such that the leaves under any inner node form
+   * a contiguous range, and every leaf knows the inner nodes on its path
+   * from the root, so that the queries need no lock and allocate nothing.
+   */
+  private static final class Snapshot {
+    final Node[] leaves;
+    // position of every leaf in leaves
+    final IdentityHashMap<Node, Integer> index;
+    // ids of the inner nodes from the root down to the parent of a leaf;
+    // the leaves of a rack share the same array
+    final int[][] ancestors;
+    // range of the leaves under an inner node, by its path with and
+    // without the leading ~
+    final Map<String, int[]> ranges = new HashMap<String, int[]>();
+    final Map<String, int[]> excludedRanges = new HashMap<String, int[]>();
+    final int numOfRacks;
+
+    private int numOfInnerNodes = 0;
+    private int numOfLeaves = 0;
+
+    Snapshot(InnerNode root, int numOfRacks) {
+      int size = root.getNumOfLeaves();
+      this.leaves = new Node[size];
+      this.index = new IdentityHashMap<Node, Integer>(size);
+      this.ancestors = new int[size][];
+      this.numOfRacks = numOfRacks;
+      add(root, NodeBase.ROOT, new int[0]);
+    }
+
+    private void add(InnerNode inner, String path, int[] parentIds) {
+      int[] ids = new int[parentIds.length + 1];
+      System.arraycopy(parentIds, 0, ids, 0, parentIds.length);
+      ids[parentIds.length] = numOfInnerNodes++;
+      int start = numOfLeaves;
+      for (Node child : inner.getChildren()) {
+        if (child instanceof InnerNode) {
+          add((InnerNode)child,
+              path + NodeBase.PATH_SEPARATOR_STR + child.getName(), ids);
+        } else if (numOfLeaves < leaves.length) {
+          leaves[numOfLeaves] = child;
+          index.put(child, numOfLeaves);
+          ancestors[numOfLeaves] = ids;
+          numOfLeaves++;
+        }
+      }
+      int[] range = new int[] {start, numOfLeaves};
+      ranges.put(path, range);
+      excludedRanges.put("~" + path, range);
+    }
+
+    int getDistance(int i, int j) {
+      if (i == j) {
+        return 0;
+      }
+      int[] a1 = ancestors[i];
+      int[] a2 = ancestors[j];
+      if (a1 == a2) {
+        return 2;
+      }
+      int common = 0;
+      while (common < a1.length && common < a2.length &&
+             a1[common] == a2[common]) {
+        common++;
+      }
+      return a1.length + a2.length - 2 * common + 2;
+    }
+
+    /** @return a random leaf of scope, or null if scope is not known */
+    Node chooseRandom(String scope) {
+      if (scope.startsWith("~")) {
+        int[] range = excludedRanges.get(scope);
+        if (range == null) {
+          return null;
+        }
+        int excluded = range[1] - range[0];
+        if (leaves.length - excluded <= 0) {
+          return null;
+        }
+        int i = r.nextInt(leaves.length - excluded);
+        return leaves[i < range[0] ? i : i + excluded];
+      }
+      int[] range = ranges.get(scope);
+      if (range == null || range[1] == range[0]) {
+        return null;
+      }
+      return leaves[range[0] + r.nextInt(range[1] - range[0])];
+    }
+  }
+
   InnerNode clusterMap = new InnerNode(InnerNode.ROOT); // the root
   private int numOfRacks = 0;  // rack counter
   private ReadWriteLock netlock;
+  // the current snapshot; reset by every change and rebuilt on demand
+  private volatile Snapshot snapshot = null;
   private Set<String> masterRacksSet = new HashSet<String>();
     
   public NetworkTopology() {
@@ -346,7 +442,10 @@ public class NetworkTopology {
           numOfRacks++;
         }
       }
-      LOG.debug("NetworkTopology became:\n" + this.toString());
+      snapshot = null;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("NetworkTopology became:\n" + this.toString());
+      }
     } finally {
       netlock.writeLock().unlock();
     }
@@ -372,7 +471,10 @@ public class NetworkTopology {
           numOfRacks--;
         }
       }
-      LOG.debug("NetworkTopology became:\n" + this.toString());
+      snapshot = null;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("NetworkTopology became:\n" + this.toString());
+      }
     } finally {
       netlock.writeLock().unlock();
     }
@@ -386,6 +488,12 @@ public class NetworkTopology {
    */
   public boolean contains(Node node) {
     if (node == null) return false;
+    if (getSnapshot().index.containsKey(node)) {
+      return true;
+    }
+    if (!(node instanceof InnerNode)) {
+      return false;
+    }
     netlock.readLock().lock();
     try {
       Node parent = node.getParent();
@@ -400,6 +508,29 @@ public class NetworkTopology {
     return false; 
   }
     
+  /**
+   * Get the snapshot of the current tree, building it if the tree changed
+   * since the last one. The snapshot is built and published under the read
+   * lock, so that no change can slip in between.
+   */
+  private Snapshot getSnapshot() {
+    Snapshot current = snapshot;
+    if (current != null) {
+      return current;
+    }
+    netlock.readLock().lock();
+    try {
+      current = snapshot;
+      if (current == null) {
+        current = new Snapshot(clusterMap, numOfRacks);
+        snapshot = current;
+      }
+      return current;
+    } finally {
+      netlock.readLock().unlock();
+    }
+  }
+
   /** Given a string representation of a node, return its reference
    * 
    * @param loc
@@ -439,22 +570,12 @@ public class NetworkTopology {
 
   /** Return the total number of racks */
   public int getNumOfRacks() {
-    netlock.readLock().lock();
-    try {
-      return numOfRacks;
-    } finally {
-      netlock.readLock().unlock();
-    }
+    return getSnapshot().numOfRacks;
   }
 
   /** Return the total number of nodes */
   public int getNumOfLeaves() {
-    netlock.readLock().lock();
-    try {
-      return clusterMap.getNumOfLeaves();
-    } finally {
-      netlock.readLock().unlock();
-    }
+    return getSnapshot().leaves.length;
   }
     
   /** Return the distance between two nodes
@@ -467,9 +588,26 @@ public class NetworkTopology {
    * node1 or node2 do not belong to the cluster
    */
   public int getDistance(Node node1, Node node2) {
+    return getDistance(getSnapshot(), node1, node2);
+  }
+
+  private int getDistance(Snapshot s, Node node1, Node node2) {
     if (node1 == node2) {
       return 0;
     }
+    Integer i1 = s.index.get(node1);
+    Integer i2 = s.index.get(node2);
+    if (i1 != null && i2 != null) {
+      return s.getDistance(i1, i2);
+    }
+    return walkDistance(node1, node2);
+  }
+
+  /**
+   * {@link #getDistance(Node, Node)} of two different nodes by walking the
+   * tree under the read lock, for nodes the snapshot does not know.
+   */
+  int walkDistance(Node node1, Node node2) {
     Node n1=node1, n2=node2;
     int dis = 0;
     netlock.readLock().lock();
@@ -512,10 +650,26 @@ public class NetworkTopology {
    * node1 or node2 do not belong to the cluster
    */
   public boolean isOnSameRack( Node node1,  Node node2) {
+    return isOnSameRack(getSnapshot(), node1, node2);
+  }
+
+  private boolean isOnSameRack(Snapshot s, Node node1, Node node2) {
     if (node1 == null || node2 == null) {
       return false;
     }
-      
+    Integer i1 = s.index.get(node1);
+    Integer i2 = s.index.get(node2);
+    if (i1 != null && i2 != null) {
+      return s.ancestors[i1] == s.ancestors[i2];
+    }
+    return walkIsOnSameRack(node1, node2);
+  }
+
+  /**
+   * {@link #isOnSameRack(Node, Node)} of two non-null nodes by walking the
+   * tree under the read lock, for nodes the snapshot does not know.
+   */
+  boolean walkIsOnSameRack(Node node1, Node node2) {
     netlock.readLock().lock();
     try {
       return node1.getParent()==node2.getParent();
@@ -532,6 +686,10 @@ public class NetworkTopology {
    * @return the choosen node
    */
   public Node chooseRandom(String scope) {
+    Node node = getSnapshot().chooseRandom(scope);
+    if (node != null) {
+      return node;
+    }
     netlock.readLock().lock();
     try {
       if (scope.startsWith("~")) {
@@ -582,6 +740,45 @@ public class NetworkTopology {
    */
   public int countNumOfAvailableNodes(String scope,
                                       Collection<Node> excludedNodes) {
+    Snapshot s = getSnapshot();
+    boolean excludeScope = scope.startsWith("~");
+    int[] range = excludeScope ?
+        s.excludedRanges.get(scope) : s.ranges.get(scope);
+    if (range != null) {
+      String path = null;
+      int count = 0; // the number of nodes in both scope & excludedNodes
+      for (Node node : excludedNodes) {
+        Integer i = s.index.get(node);
+        if (i != null) {
+          if (i >= range[0] && i < range[1]) {
+            count++;
+          }
+        } else {
+          if (path == null) {
+            path = excludeScope ? scope.substring(1) : scope;
+          }
+          if ((NodeBase.getPath(node)+NodeBase.PATH_SEPARATOR_STR).
+              startsWith(path+NodeBase.PATH_SEPARATOR_STR)) {
+            count++;
+          }
+        }
+      }
+      int scopeNodeCount = range[1] - range[0];
+      if (excludeScope) {
+        return s.leaves.length - scopeNodeCount - excludedNodes.size() + count;
+      } else {
+        return scopeNodeCount - count;
+      }
+    }
+    return walkCountNumOfAvailableNodes(scope, excludedNodes);
+  }
+
+  /**
+   * {@link #countNumOfAvailableNodes(String, Collection)} by walking the
+   * tree under the read lock, for scopes the snapshot does not know.
+   */
+  int walkCountNumOfAvailableNodes(String scope,
+                                   Collection<Node> excludedNodes) {
     boolean isExcluded=false;
     if (scope.startsWith("~")) {
       isExcluded=true;
@@ -654,6 +851,7 @@ public class NetworkTopology {
   public void pseudoSortByDistance( Node reader, Node[] nodes ) {
     int tempIndex = 0;
     if (reader != null ) {
+      Snapshot s = getSnapshot();
       int localRackNode = -1;
       //scan the array to find the local node & local rack node
       for(int i=0; i<nodes.length; i++) {
@@ -669,7 +867,7 @@ public class NetworkTopology {
             }
             break;
           }
-        } else if(localRackNode == -1 && isOnSameRack(reader, nodes[i])) {
+        } else if(localRackNode == -1 && isOnSameRack(s, reader, nodes[i])) {
           //local rack
           localRackNode = i;
           if(tempIndex != 0 ) break;
@@ -726,33 +924,29 @@ public class NetworkTopology {
       return;
     }
 
-    netlock.readLock().lock();
-    try {
-      if (writer == null || !contains(writer)) {
-        writer = nodes[0];
-      }
-      for (int index = 0; index < nodes.length; index++) {
-        Node shortestNode = nodes[index];
-        int shortestDistance = getDistance(writer, shortestNode);
-        int shortestIndex = index;
-        for (int i = index + 1; i < nodes.length; i++) {
-          Node currentNode = nodes[i];
-          int currentDistance = getDistance(writer, currentNode);
-          if (shortestDistance > currentDistance) {
-            shortestDistance = currentDistance;
-            shortestNode = currentNode;
-            shortestIndex = i;
-          }
-        }
-        //switch position index & shortestIndex
-        if (index != shortestIndex) {
-          nodes[shortestIndex] = nodes[index];
-          nodes[index] = shortestNode;
+    Snapshot s = getSnapshot();
+    if (writer == null || !contains(writer)) {
+      writer = nodes[0];
+    }
+    for (int index = 0; index < nodes.length; index++) {
+      Node shortestNode = nodes[index];
+      int shortestDistance = getDistance(s, writer, shortestNode);
+      int shortestIndex = index;
+      for (int i = index + 1; i < nodes.length; i++) {
+        Node currentNode = nodes[i];
+        int currentDistance = getDistance(s, writer, currentNode);
+        if (shortestDistance > currentDistance) {
+          shortestDistance = currentDistance;
+          shortestNode = currentNode;
+          shortestIndex = i;
         }
-        writer = shortestNode;
       }
-    } finally {
-      netlock.readLock().unlock();
+      //switch position index & shortestIndex
+      if (index != shortestIndex) {
+        nodes[shortestIndex] = nodes[index];
+        nodes[index] = shortestNode;
+      }
+      writer = shortestNode;
     }
   }
 }
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A hashed timing wheel for expiring elements at a deadline.
+ * Time is divided into ticks and each tick is hashed onto one of a fixed
+ * number of slots, so adding an element and expiring each element are
+ * O(1), independent of how many elements are scheduled.
+ * Deadlines further out than one turn of the wheel stay in their slot
+ * until the wheel comes around to them.
+ *
+ * Elements are never moved when their deadline changes; instead the
+ * caller re-checks an expired element and adds it again if it is still
+ * alive. The same element may therefore be in the wheel more than once.
+ *
+ * This class is not synchronized.
+ */
+public class TimingWheel<E> {
+  private static class Entry<E> {
+    final E element;
+    final long deadline;
+
+    Entry(E element, long deadline) {
+      this.element = element;
+      this.deadline = deadline;
+    }
+  }
+
+  private final long tickLength;
+  private final List<List<Entry<E>>> slots;
+  private long lastTick;    // the last tick whose slot has been expired
+  private int size = 0;
+
+  /** Construct an empty wheel.
+   * @param tickLength length of a tick, in the unit of the deadlines
+   * @param numSlots number of slots
+   * @param now the current time
+   */
+  public TimingWheel(long tickLength, int numSlots, long now) {
+    if (tickLength <= 0 || numSlots <= 0) {
+      throw new IllegalArgumentException("tickLength=" + tickLength +
+                                         ", numSlots=" + numSlots);
+    }
+    this.tickLength = tickLength;
+    this.slots = new ArrayList<List<Entry<E>>>(numSlots);
+    for (int i = 0; i < numSlots; i++) {
+      slots.add(new ArrayList<Entry<E>>());
+    }
+    this.lastTick = now / tickLength;
+  }
+
+  /** Schedule an element to expire at the given deadline.
+   * The element is returned by the first call to {@link #expire(long)} in
+   * a tick after the one of the deadline, so it expires at most one tick
+   * late. A deadline in the past expires at the next call in a later tick.
+   */
+  public void add(E element, long deadline) {
+    long tick = Math.max(deadline / tickLength + 1, lastTick + 1);
+    slots.get((int) (tick % slots.size())).add(
+        new Entry<E>(element, deadline));
+    size++;
+  }
+
+  /** Remove and return the elements whose deadline is at or before now.
+   * Only the slots of the ticks elapsed since the previous call are visited.
+   */
+  public List<E> expire(long now) {
+    List<E> expired = new ArrayList<E>();
+    long nowTick = now / tickLength;
+    long endTick = Math.min(nowTick, lastTick + slots.size());
+    for (long tick = lastTick + 1; tick <= endTick; tick++) {
+      List<Entry<E>> slot = slots.get((int) (tick % slots.size()));
+      if (slot.isEmpty()) {
+        continue;
+      }
+      // entries due in a later turn of the wheel stay in the slot
+      int kept = 0;
+      for (int i = 0; i < slot.size(); i++) {
+        Entry<E> e = slot.get(i);
+        if (e.deadline <= now) {
+          expired.add(e.element);
+        } else {
+          slot.set(kept++, e);
+        }
+      }
+      slot.subList(kept, slot.size()).clear();
+    }
+    lastTick = Math.max(lastTick, nowTick);
+    size -= expired.size();
+    return expired;
+  }
+
+  /** @return the number of scheduled entries */
+  public int size() {
+    return size;
+  }
+
+  /** Remove all the entries. */
+  public void clear() {
+    for (List<Entry<E>> slot : slots) {
+      slot.clear();
+    }
+    size = 0;
+  }
+}
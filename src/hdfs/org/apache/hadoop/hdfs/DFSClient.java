@@ -84,6 +84,7 @@ import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.DirectoryListing;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hdfs.protocol.HdfsLocatedFileStatus;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlockWithFileName;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
@@ -179,6 +180,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private String localhostNetworkLocation = null;
   DNSToSwitchMapping dnsToSwitchMapping = null;
   private int ipTosValue = NetUtils.NOT_SET_IP_TOS;
+  // max number of paths sent to the namenode in one batched file info call
+  private final int fileInfoBatchSize;
 
   /**
    * This variable tracks the number of failures for each thread of 
@@ -365,6 +368,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     // dfs.write.packet.size is an internal config variable
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
     this.maxBlockAcquireFailures = getMaxBlockAcquireFailures(conf);
+    this.fileInfoBatchSize = Math.max(1,
+        conf.getInt("dfs.client.fileinfo.batch.size", 1000));
     this.localHost = InetAddress.getLocalHost();
     
     // fetch network location of localhost
@@ -1605,6 +1610,99 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Get the file info for a batch of files. Paths are sent to the namenode
+   * in batches of dfs.client.fileinfo.batch.size, falling back to one rpc
+   * per path if the namenode does not support batched calls.
+   *
+   * @param srcs the paths of the files
+   * @return one FileStatus per path; an entry is null if the file
+   *         does not exist
+   */
+  public FileStatus[] getFileInfo(String[] srcs) throws IOException {
+    checkOpen();
+    FileStatus[] stats = new FileStatus[srcs.length];
+    if (!isBatchedFileInfoSupported()) {
+      for (int i = 0; i < srcs.length; i++) {
+        stats[i] = getFileInfo(srcs[i]);
+      }
+      return stats;
+    }
+    try {
+      for (int start = 0; start < srcs.length; start += fileInfoBatchSize) {
+        String[] batch = Arrays.copyOfRange(srcs, start,
+            Math.min(srcs.length, start + fileInfoBatchSize));
+        HdfsFileStatus[] hdfsStats = namenode.getHdfsFileInfo(batch);
+        for (int i = 0; i < batch.length; i++) {
+          stats[start + i] = toFileStatus(hdfsStats[i], batch[i]);
+        }
+      }
+    } catch(RemoteException re) {
+      throw re.unwrapRemoteException(AccessControlException.class);
+    }
+    return stats;
+  }
+
+  /**
+   * Get the file info together with the block locations for a batch of
+   * files. Each batch costs one rpc regardless of the number of paths in it,
+   * instead of two rpcs per path.
+   *
+   * @param srcs the paths of the files
+   * @return one LocatedFileStatus per path; an entry is null if the file
+   *         does not exist
+   */
+  public LocatedFileStatus[] getLocatedFileInfo(String[] srcs)
+      throws IOException {
+    checkOpen();
+    LocatedFileStatus[] stats = new LocatedFileStatus[srcs.length];
+    if (!isLocatedFileInfoSupported()) {
+      for (int i = 0; i < srcs.length; i++) {
+        FileStatus stat = getFileInfo(srcs[i]);
+        if (stat != null) {
+          stats[i] = new LocatedFileStatus(stat, stat.isDir() ? null :
+              getBlockLocations(srcs[i], 0, stat.getLen()));
+        }
+      }
+      return stats;
+    }
+    try {
+      for (int start = 0; start < srcs.length; start += fileInfoBatchSize) {
+        String[] batch = Arrays.copyOfRange(srcs, start,
+            Math.min(srcs.length, start + fileInfoBatchSize));
+        HdfsLocatedFileStatus[] hdfsStats =
+            namenode.getLocatedFileInfo(batch);
+        for (int i = 0; i < batch.length; i++) {
+          HdfsLocatedFileStatus stat = hdfsStats[i];
+          stats[start + i] = toLocatedFileStatus(stat,
+              stat == null ? null : stat.getBlockLocations(), batch[i]);
+        }
+      }
+    } catch(RemoteException re) {
+      throw re.unwrapRemoteException(AccessControlException.class,
+                                     FileNotFoundException.class);
+    }
+    return stats;
+  }
+
+  /** Check if the namenode supports the batched file info rpc */
+  private boolean isBatchedFileInfoSupported() throws IOException {
+    if (namenodeProtocolProxy == null) {
+      return namenodeVersion >= ClientProtocol.BATCHED_FILE_INFO_VERSION;
+    }
+    return namenodeProtocolProxy.isMethodSupported(
+        "getHdfsFileInfo", String[].class);
+  }
+
+  /** Check if the namenode supports the located file info rpc */
+  private boolean isLocatedFileInfoSupported() throws IOException {
+    if (namenodeProtocolProxy == null) {
+      return namenodeVersion >= ClientProtocol.LOCATED_FILE_INFO_VERSION;
+    }
+    return namenodeProtocolProxy.isMethodSupported(
+        "getLocatedFileInfo", String[].class);
+  }
+
   /**
    * Get the checksum of a file.
    * @param src The file path
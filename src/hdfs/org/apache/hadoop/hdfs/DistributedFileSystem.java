@@ -677,6 +677,48 @@ public class DistributedFileSystem extends FileSystem {
     }
   }
 
+  /**
+   * Returns the stat information about a batch of files, fetched from the
+   * namenode in one rpc per dfs.client.fileinfo.batch.size paths.
+   * @return one FileStatus per path; an entry is null if the file
+   *         does not exist.
+   */
+  public FileStatus[] getFileStatuses(Path[] files) throws IOException {
+    FileStatus[] stats = dfs.getFileInfo(getPathNames(files));
+    for (FileStatus stat : stats) {
+      if (stat != null) {
+        stat.makeQualified(this);
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the stat information together with the block locations about
+   * a batch of files, fetched from the namenode in batches.
+   * @return one LocatedFileStatus per path; an entry is null if the file
+   *         does not exist.
+   */
+  @Override
+  public LocatedFileStatus[] getLocatedFileStatus(Path[] files)
+      throws IOException {
+    LocatedFileStatus[] stats = dfs.getLocatedFileInfo(getPathNames(files));
+    for (LocatedFileStatus stat : stats) {
+      if (stat != null) {
+        stat.makeQualified(this);
+      }
+    }
+    return stats;
+  }
+
+  private String[] getPathNames(Path[] files) {
+    String[] srcs = new String[files.length];
+    for (int i = 0; i < files.length; i++) {
+      srcs[i] = getPathName(files[i]);
+    }
+    return srcs;
+  }
+
   /** {@inheritDoc} */
   public MD5MD5CRC32FileChecksum getFileChecksum(Path f) throws IOException {
     return dfs.getFileChecksum(getPathName(f));
@@ -47,6 +47,8 @@ public interface ClientProtocol extends VersionedProtocol {
   public static final long SAVENAMESPACE_FORCE = 54L;
   public static final long RECOVER_LEASE_VERSION = 55L;
   public static final long CLOSE_RECOVER_LEASE_VERSION = 56L;
+  public static final long BATCHED_FILE_INFO_VERSION = 57L;
+  public static final long LOCATED_FILE_INFO_VERSION = 58L;
 
   /**
    * Compared to the previous version the following changes have been introduced:
@@ -57,9 +59,11 @@ public interface ClientProtocol extends VersionedProtocol {
    * 54: Add saveNamespace(boolean force)
    * 55: a lightweight recoverLease introduced.
    * 56: make recoverLease returns if the file is closed or not
+   * 57: batched getHdfsFileInfo(String[]) and getBlockLocations(String[], ...)
+   * 58: getLocatedFileInfo(String[])
    */
 
-  public static final long versionID = CLOSE_RECOVER_LEASE_VERSION;
+  public static final long versionID = LOCATED_FILE_INFO_VERSION;
   
   ///////////////////////////////////////
   // File contents
@@ -86,6 +90,25 @@ public interface ClientProtocol extends VersionedProtocol {
   public LocatedBlocks  getBlockLocations(String src,
                                           long offset,
                                           long length) throws IOException;
+
+  /**
+   * Get locations of the blocks of a batch of files within the same range.
+   * All the files are resolved under a single acquisition of the namesystem
+   * lock, saving a round trip per file for clients that open many files.
+   * Like {@link #getBlockLocations(String, long, long)} and
+   * {@link #open(String, long, long)}, this does not update the access
+   * time of the files.
+   *
+   * @param srcs file names
+   * @param offset range start offset
+   * @param length range length
+   * @return one entry per file name, in the same order; an entry is null
+   *         if the file does not exist or is a directory
+   * @throws IOException if permission to read any of the files is denied
+   */
+  public LocatedBlocks[] getBlockLocations(String[] srcs,
+                                           long offset,
+                                           long length) throws IOException;
   
   public VersionedLocatedBlocks open(String src,
                                      long offset,
@@ -840,6 +863,32 @@ public interface ClientProtocol extends VersionedProtocol {
    */
   public HdfsFileStatus getHdfsFileInfo(String src) throws IOException;
 
+  /**
+   * Get the file info for a batch of files or directories. All the paths
+   * are resolved under a single acquisition of the namesystem lock.
+   * @param srcs The string representations of the paths
+   * @throws IOException if permission to access any of the files is denied
+   * @return one HdfsFileStatus per path, in the same order; an entry is null
+   *         if the corresponding file is not found
+   */
+  public HdfsFileStatus[] getHdfsFileInfo(String[] srcs) throws IOException;
+
+  /**
+   * Get the file info and the block locations of a batch of files or
+   * directories in a single call. All the paths are resolved under a single
+   * acquisition of the namesystem lock, so the locations of a file are
+   * consistent with its status. The access time of the files is not updated,
+   * the same as for {@link #open(String, long, long)}.
+   * @param srcs The string representations of the paths
+   * @throws IOException if permission to access any of the paths, or to
+   *         read any of the files, is denied
+   * @return one entry per path, in the same order; an entry is null if the
+   *         corresponding file is not found, and has no block locations if
+   *         it is a directory
+   */
+  public HdfsLocatedFileStatus[] getLocatedFileInfo(String[] srcs)
+      throws IOException;
+
   /**
    * Get {@link ContentSummary} rooted at the specified directory.
    * @param path The string representation of the path
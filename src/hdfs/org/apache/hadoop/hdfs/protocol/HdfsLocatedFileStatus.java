@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableFactories;
+import org.apache.hadoop.io.WritableFactory;
+
+/**
+ * The over the wire information for a file together with the locations
+ * of its blocks.
+ */
+public class HdfsLocatedFileStatus extends HdfsFileStatus {
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (HdfsLocatedFileStatus.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new HdfsLocatedFileStatus(); }
+       });
+  }
+
+  private LocatedBlocks blockLocations;
+
+  /**
+   * default constructor
+   */
+  public HdfsLocatedFileStatus() {
+  }
+
+  /**
+   * Constructor
+   * @param stat the file info
+   * @param blockLocations the locations of the blocks of the file;
+   *        null for a directory
+   */
+  public HdfsLocatedFileStatus(HdfsFileStatus stat,
+                               LocatedBlocks blockLocations) {
+    super(stat.getLen(), stat.isDir(), stat.getReplication(),
+          stat.getBlockSize(), stat.getModificationTime(),
+          stat.getAccessTime(), stat.getPermission(), stat.getOwner(),
+          stat.getGroup(), stat.getLocalNameInBytes());
+    this.blockLocations = blockLocations;
+  }
+
+  /**
+   * Get the block locations
+   * @return the block locations, or null for a directory
+   */
+  public LocatedBlocks getBlockLocations() {
+    return blockLocations;
+  }
+
+  // Writable interface
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeBoolean(blockLocations != null);
+    if (blockLocations != null) {
+      blockLocations.write(out);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    if (in.readBoolean()) {
+      blockLocations = new LocatedBlocks();
+      blockLocations.readFields(in);
+    } else {
+      blockLocations = null;
+    }
+  }
+}
@@ -25,7 +25,9 @@ public class ProtocolCompatible {
               clientVersion == ClientProtocol.LIST_CORRUPT_FILEBLOCKS_VERSION ||
               clientVersion == ClientProtocol.SAVENAMESPACE_FORCE ||
               clientVersion == ClientProtocol.RECOVER_LEASE_VERSION ||
-              clientVersion == ClientProtocol.CLOSE_RECOVER_LEASE_VERSION
+              clientVersion == ClientProtocol.CLOSE_RECOVER_LEASE_VERSION ||
+              clientVersion == ClientProtocol.BATCHED_FILE_INFO_VERSION ||
+              clientVersion == ClientProtocol.LOCATED_FILE_INFO_VERSION
             ) &&
             ( serverVersion == ClientProtocol.OPTIMIZE_FILE_STATUS_VERSION-1 ||
               serverVersion == ClientProtocol.OPTIMIZE_FILE_STATUS_VERSION ||
@@ -35,7 +37,9 @@ public class ProtocolCompatible {
               serverVersion == ClientProtocol.LIST_CORRUPT_FILEBLOCKS_VERSION ||
               serverVersion == ClientProtocol.SAVENAMESPACE_FORCE ||
               serverVersion == ClientProtocol.RECOVER_LEASE_VERSION ||
-              serverVersion == ClientProtocol.CLOSE_RECOVER_LEASE_VERSION
+              serverVersion == ClientProtocol.CLOSE_RECOVER_LEASE_VERSION ||
+              serverVersion == ClientProtocol.BATCHED_FILE_INFO_VERSION ||
+              serverVersion == ClientProtocol.LOCATED_FILE_INFO_VERSION
            ));
   }
 
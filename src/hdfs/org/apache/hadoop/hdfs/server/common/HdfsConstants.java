@@ -78,6 +78,20 @@ public interface HdfsConstants {
   public static final String DFS_IMAGE_SAVE_ON_START_KEY =
     "dfs.image.save.on.start";
   public static final boolean DFS_IMAGE_SAVE_ON_START_DEFAULT = true;
+  public static final String DFS_IMAGE_SAVE_SECTIONED_KEY =
+    "dfs.image.save.sectioned";
+  public static final boolean DFS_IMAGE_SAVE_SECTIONED_DEFAULT = false;
+  public static final String DFS_IMAGE_CHUNK_SIZE_KEY = "dfs.image.chunk.size";
+  public static final int DFS_IMAGE_CHUNK_SIZE_DEFAULT = 4 * 1024 * 1024;
+  public static final String DFS_IMAGE_LOAD_THREADS_KEY =
+    "dfs.image.load.threads";
+  public static final int DFS_IMAGE_LOAD_THREADS_DEFAULT = 4;
+  public static final String DFS_IMAGE_SAVE_THREADS_KEY =
+    "dfs.image.save.threads";
+  public static final int DFS_IMAGE_SAVE_THREADS_DEFAULT = 4;
+  public static final String DFS_IMAGE_SAVE_SEGMENT_INODES_KEY =
+    "dfs.image.save.segment.inodes";
+  public static final int DFS_IMAGE_SAVE_SEGMENT_INODES_DEFAULT = 100000;
 
   // The lease holder for recovery initiated by the NameNode
   public static final String NN_RECOVERY_LEASEHOLDER = "NN_Recovery";
@@ -383,8 +383,7 @@ public class BlockPlacementPolicyDefault extends BlockPlacementPolicy {
     int numOfAvailableNodes =
       clusterMap.countNumOfAvailableNodes(nodes, excludedNodes.keySet());
     while(numOfAvailableNodes > 0) {
-      DatanodeDescriptor chosenNode = 
-        (DatanodeDescriptor)(clusterMap.chooseRandom(nodes));
+      DatanodeDescriptor chosenNode = chooseRandomNode(nodes);
 
       Node oldNode = excludedNodes.put(chosenNode, chosenNode);
       if (oldNode == null) { // choosendNode was not in the excluded list
@@ -414,8 +413,7 @@ public class BlockPlacementPolicyDefault extends BlockPlacementPolicy {
       clusterMap.countNumOfAvailableNodes(nodes, excludedNodes.keySet());
     int numAttempts = numOfAvailableNodes * this.attemptMultiplier;
     while(numOfReplicas > 0 && numOfAvailableNodes > 0 && --numAttempts > 0) {
-      DatanodeDescriptor chosenNode = 
-        (DatanodeDescriptor)(clusterMap.chooseRandom(nodes));
+      DatanodeDescriptor chosenNode = chooseRandomNode(nodes);
       Node oldNode = excludedNodes.put(chosenNode, chosenNode);
       if (oldNode == null) {
         numOfAvailableNodes--;
@@ -433,6 +431,15 @@ public class BlockPlacementPolicyDefault extends BlockPlacementPolicy {
     }
   }
     
+  /**
+   * Pick a random node from <i>scope</i>. If scope starts with ~, the node
+   * is picked from the nodes that are not in scope.
+   * @see NetworkTopology#chooseRandom(String)
+   */
+  protected DatanodeDescriptor chooseRandomNode(String scope) {
+    return (DatanodeDescriptor)clusterMap.chooseRandom(scope);
+  }
+
   /* judge if a node is a good target.
    * return true if <i>node</i> has enough space, 
    * does not have too much load, and the rack does not have too many nodes
@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.Node;
+import org.apache.hadoop.net.NodeBase;
+import org.apache.hadoop.util.HostsFileReader;
+
+/**
+ * A block placement policy that keeps the rack constraints of
+ * {@link BlockPlacementPolicyDefault} but, instead of picking the nodes of a
+ * rack uniformly, favours the nodes that are lightly loaded. Every node is
+ * weighted by its xceiver count, its free space and its recent write
+ * throughput as reported in its heartbeats.
+ *
+ * The weights are turned into samplers, one for the whole cluster and one
+ * per rack, which are rebuilt at most once per refresh interval. Picking a
+ * node takes constant time, so choosing the targets of a block does not
+ * scan the nodes.
+ */
+public class BlockPlacementPolicyLoadAware extends BlockPlacementPolicyDefault {
+  public static final Log LOG =
+    LogFactory.getLog(BlockPlacementPolicyLoadAware.class);
+
+  /** Number of draws before falling back to the uniform choice. */
+  private static final int MAX_DRAWS = 16;
+
+  private long refreshInterval;
+  private double minWeight;
+  private final Random random = new Random();
+
+  private volatile Samplers samplers = null;
+  private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+  BlockPlacementPolicyLoadAware(Configuration conf, FSClusterStats stats,
+                                NetworkTopology clusterMap) {
+    initialize(conf, stats, clusterMap, null, null, null);
+  }
+
+  BlockPlacementPolicyLoadAware() {
+  }
+
+  /** {@inheritDoc} */
+  public void initialize(Configuration conf, FSClusterStats stats,
+      NetworkTopology clusterMap, HostsFileReader hostsReader,
+      DNSToSwitchMapping dnsToSwitchMapping, FSNamesystem ns) {
+    super.initialize(conf, stats, clusterMap, hostsReader,
+        dnsToSwitchMapping, ns);
+    this.refreshInterval = conf.getLong(
+        "dfs.replication.loadaware.refresh.interval", 3000);
+    this.minWeight = Math.min(1.0, Math.max(0.01, conf.getFloat(
+        "dfs.replication.loadaware.min.weight", 0.05f)));
+    this.samplers = null;
+  }
+
+  /**
+   * Pick a node of <i>scope</i> with a probability proportional to its
+   * weight. Falls back to the uniform choice of the topology whenever the
+   * samplers do not cover the scope.
+   */
+  @Override
+  protected DatanodeDescriptor chooseRandomNode(String scope) {
+    Samplers current = getSamplers();
+    boolean excluded = scope.startsWith("~");
+    String path = excluded ? scope.substring(1) : scope;
+    WeightedSampler sampler = null;
+    if (!excluded) {
+      sampler = NodeBase.ROOT.equals(path) ?
+          current.cluster : current.racks.get(path);
+    }
+    if (sampler == null) {
+      // draw from the whole cluster and reject the nodes outside of scope
+      sampler = current.cluster;
+    }
+    for (int i = 0; i < MAX_DRAWS && sampler.size() > 0; i++) {
+      DatanodeDescriptor node = sampler.sample(random);
+      if (isInScope(node, path) != excluded && clusterMap.contains(node)) {
+        return node;
+      }
+    }
+    return super.chooseRandomNode(scope);
+  }
+
+  private static boolean isInScope(DatanodeDescriptor node, String scope) {
+    if (NodeBase.ROOT.equals(scope)) {
+      return true;
+    }
+    String location = node.getNetworkLocation();
+    return location.equals(scope) ||
+        location.startsWith(scope + NodeBase.PATH_SEPARATOR_STR);
+  }
+
+  /**
+   * Get the samplers, rebuilding them if they are older than the refresh
+   * interval or the size of the cluster changed. Only one thread rebuilds,
+   * the others go on with the previous samplers.
+   */
+  private Samplers getSamplers() {
+    Samplers current = samplers;
+    long now = FSNamesystem.now();
+    if (current != null && now - current.created < refreshInterval &&
+        current.numOfLeaves == clusterMap.getNumOfLeaves()) {
+      return current;
+    }
+    if (current != null && !rebuilding.compareAndSet(false, true)) {
+      return current;
+    }
+    try {
+      current = new Samplers(getNodes(), now);
+      samplers = current;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Rebuilt the samplers of " + current.numOfLeaves +
+            " nodes on " + current.racks.size() + " racks");
+      }
+      return current;
+    } finally {
+      rebuilding.set(false);
+    }
+  }
+
+  /** @return all the datanodes of the topology */
+  private List<DatanodeDescriptor> getNodes() {
+    List<DatanodeDescriptor> nodes = new ArrayList<DatanodeDescriptor>();
+    LinkedList<String> locations = new LinkedList<String>();
+    locations.add(NodeBase.ROOT);
+    while (!locations.isEmpty()) {
+      List<Node> children = clusterMap.getDatanodesInRack(locations.poll());
+      if (children == null) {
+        continue;
+      }
+      for (Node child : children) {
+        if (child instanceof DatanodeDescriptor) {
+          nodes.add((DatanodeDescriptor)child);
+        } else {
+          locations.add(NodeBase.getPath(child));
+        }
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Weigh the nodes by their load. Each factor is in (0, 1]: the xceiver
+   * count and the write rate are compared to the cluster average, the free
+   * space to the capacity of the node. No node gets less than the minimum
+   * weight relative to the heaviest node, so that every node can be picked
+   * within a bounded number of draws.
+   */
+  double[] getWeights(List<DatanodeDescriptor> nodes) {
+    double totalXceivers = 0;
+    double totalWriteRate = 0;
+    for (DatanodeDescriptor node : nodes) {
+      totalXceivers += node.getXceiverCount();
+      totalWriteRate += node.getWriteRate();
+    }
+    double avgXceivers = nodes.isEmpty() ? 0 : totalXceivers / nodes.size();
+    double avgWriteRate = nodes.isEmpty() ? 0 : totalWriteRate / nodes.size();
+
+    double[] weights = new double[nodes.size()];
+    double maxWeight = 0;
+    for (int i = 0; i < weights.length; i++) {
+      DatanodeDescriptor node = nodes.get(i);
+      double load = avgXceivers > 0 ?
+          1.0 / (1.0 + node.getXceiverCount() / avgXceivers) : 1.0;
+      double write = avgWriteRate > 0 ?
+          1.0 / (1.0 + node.getWriteRate() / avgWriteRate) : 1.0;
+      double space = node.getCapacity() > 0 ?
+          (double)node.getRemaining() / node.getCapacity() : 0;
+      weights[i] = load * write * space;
+      maxWeight = Math.max(maxWeight, weights[i]);
+    }
+    double floor = maxWeight > 0 ? maxWeight * minWeight : 1.0;
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = Math.max(weights[i], floor);
+    }
+    return weights;
+  }
+
+  /** The samplers of the cluster and of every rack. */
+  private class Samplers {
+    final long created;
+    final int numOfLeaves;
+    final WeightedSampler cluster;
+    final Map<String, WeightedSampler> racks =
+      new HashMap<String, WeightedSampler>();
+
+    Samplers(List<DatanodeDescriptor> nodes, long created) {
+      this.created = created;
+      this.numOfLeaves = nodes.size();
+      double[] weights = getWeights(nodes);
+      this.cluster = new WeightedSampler(nodes, weights);
+
+      Map<String, List<Integer>> rackIndexes =
+        new HashMap<String, List<Integer>>();
+      for (int i = 0; i < nodes.size(); i++) {
+        String rack = nodes.get(i).getNetworkLocation();
+        List<Integer> indexes = rackIndexes.get(rack);
+        if (indexes == null) {
+          indexes = new ArrayList<Integer>();
+          rackIndexes.put(rack, indexes);
+        }
+        indexes.add(i);
+      }
+      for (Map.Entry<String, List<Integer>> e : rackIndexes.entrySet()) {
+        List<Integer> indexes = e.getValue();
+        List<DatanodeDescriptor> rackNodes =
+          new ArrayList<DatanodeDescriptor>(indexes.size());
+        double[] rackWeights = new double[indexes.size()];
+        for (int i = 0; i < rackWeights.length; i++) {
+          rackNodes.add(nodes.get(indexes.get(i)));
+          rackWeights[i] = weights[indexes.get(i)];
+        }
+        racks.put(e.getKey(), new WeightedSampler(rackNodes, rackWeights));
+      }
+    }
+  }
+
+  /**
+   * Picks nodes with probabilities proportional to their weights in
+   * constant time, using Walker's alias method.
+   */
+  static class WeightedSampler {
+    private final DatanodeDescriptor[] nodes;
+    private final double[] probability;
+    private final int[] alias;
+
+    WeightedSampler(List<DatanodeDescriptor> nodes, double[] weights) {
+      int n = nodes.size();
+      this.nodes = nodes.toArray(new DatanodeDescriptor[n]);
+      this.probability = new double[n];
+      this.alias = new int[n];
+      double total = 0;
+      for (double w : weights) {
+        total += w;
+      }
+      if (total <= 0) {
+        Arrays.fill(probability, 1.0);
+        return;
+      }
+
+      // scale the weights so that their average is 1 and pair every small
+      // slot with a large one that fills it up
+      double[] scaled = new double[n];
+      int[] small = new int[n];
+      int[] large = new int[n];
+      int numSmall = 0, numLarge = 0;
+      for (int i = 0; i < n; i++) {
+        scaled[i] = weights[i] * n / total;
+        if (scaled[i] < 1.0) {
+          small[numSmall++] = i;
+        } else {
+          large[numLarge++] = i;
+        }
+      }
+      while (numSmall > 0 && numLarge > 0) {
+        int s = small[--numSmall];
+        int l = large[--numLarge];
+        probability[s] = scaled[s];
+        alias[s] = l;
+        scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+        if (scaled[l] < 1.0) {
+          small[numSmall++] = l;
+        } else {
+          large[numLarge++] = l;
+        }
+      }
+      // what is left is 1 up to rounding errors
+      while (numLarge > 0) {
+        probability[large[--numLarge]] = 1.0;
+      }
+      while (numSmall > 0) {
+        probability[small[--numSmall]] = 1.0;
+      }
+    }
+
+    int size() {
+      return nodes.length;
+    }
+
+    DatanodeDescriptor sample(Random random) {
+      int i = random.nextInt(nodes.length);
+      return random.nextDouble() < probability[i] ? nodes[i] : nodes[alias[i]];
+    }
+  }
+}
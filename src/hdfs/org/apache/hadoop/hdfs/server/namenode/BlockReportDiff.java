@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * The difference between a block report of a datanode and the replicas
+ * the namenode knows of on it, computed in stages so that the write lock
+ * of the namesystem is only needed to apply it.
+ * 
+ * {@link #scan} looks up the reported blocks and copies the block list of
+ * the datanode under the read lock. {@link #diff} then finds the replicas
+ * that were not reported without any lock. Unlike
+ * {@link DatanodeDescriptor#reportDiff}, the block list of the datanode is
+ * not changed, and the replicas to remove are checked again when they are
+ * removed, since the namespace may change between the stages.
+ */
+class BlockReportDiff {
+  final DatanodeDescriptor node;
+  final List<Block> toAdd = new ArrayList<Block>();
+  final List<BlockInfo> toRemove = new ArrayList<BlockInfo>();
+  final List<Block> toInvalidate = new ArrayList<Block>();
+  final List<Block> toRetry;
+
+  /** the ids of the reported replicas the namenode already knows of */
+  private long[] reportedIds;
+  private int numReported = 0;
+  /** the generation stamps of toRemove when the node was scanned */
+  private long[] toRemoveStamps;
+
+  /** the block list of the node when it was scanned */
+  private BlockInfo[] stored;
+  /** the generation stamps of stored when the node was scanned */
+  private long[] storedStamps;
+
+  BlockReportDiff(DatanodeDescriptor node, boolean retryAbsentBlocks) {
+    this.node = node;
+    this.toRetry = retryAbsentBlocks ? new ArrayList<Block>() : null;
+  }
+
+  /**
+   * Sort the reported blocks into the ones to add, invalidate or retry,
+   * and copy the block list of the node. Must hold the read lock.
+   */
+  void scan(BlocksMap blocksMap, BlockListAsLongs newReport,
+            FSNamesystem namesystem) {
+    reportedIds = new long[newReport.getNumberOfBlocks()];
+    Block iblk = new Block(); // a fixed new'ed block to be reused with index i
+    Block oblk = new Block(); // for fixing genstamps
+    for (int i = 0; i < newReport.getNumberOfBlocks(); ++i) {
+      iblk.set(newReport.getBlockId(i), newReport.getBlockLen(i),
+               newReport.getBlockGenStamp(i));
+      BlockInfo storedBlock =
+        DatanodeDescriptor.getReportedBlock(blocksMap, iblk, oblk);
+      if (storedBlock == null) {
+        // If block is not in blocksMap it does not belong to any file
+        if (toRetry != null &&
+            namesystem.getNameNode().shouldRetryAbsentBlock(iblk)) {
+          toRetry.add(new Block(iblk));
+        } else {
+          toInvalidate.add(new Block(iblk));
+        }
+      } else if (storedBlock.findDatanode(node) < 0) {
+        // Known block, but not on the DN. If the size differs from what is
+        // in the blockmap, addStoredBlock picks up the new size.
+        if (storedBlock.getNumBytes() != iblk.getNumBytes()) {
+          toAdd.add(new Block(iblk));
+        } else {
+          toAdd.add(storedBlock);
+        }
+      } else {
+        reportedIds[numReported++] = storedBlock.getBlockId();
+      }
+    }
+
+    stored = new BlockInfo[node.numBlocks()];
+    storedStamps = new long[stored.length];
+    int i = 0;
+    for (Iterator<Block> it = node.getBlockIterator(); it.hasNext(); i++) {
+      stored[i] = (BlockInfo)it.next();
+      storedStamps[i] = stored[i].getGenerationStamp();
+    }
+  }
+
+  /**
+   * Collect the replicas of the node that were not reported. Needs no lock.
+   */
+  void diff() {
+    Arrays.sort(reportedIds, 0, numReported);
+    toRemoveStamps = new long[stored.length];
+    for (int i = 0; i < stored.length; i++) {
+      if (Arrays.binarySearch(reportedIds, 0, numReported,
+                              stored[i].getBlockId()) < 0) {
+        toRemoveStamps[toRemove.size()] = storedStamps[i];
+        toRemove.add(stored[i]);
+      }
+    }
+    reportedIds = null;
+    stored = null;
+    storedStamps = null;
+  }
+
+  /**
+   * Check that the i-th replica to remove is still the block that was
+   * scanned, with the same generation stamp. Otherwise the block was
+   * recovered or rewritten since the scan, and its replica on the node may
+   * be newer than the report. Must hold the write lock.
+   */
+  boolean isUnchangedSinceScan(int i, BlocksMap blocksMap) {
+    BlockInfo b = toRemove.get(i);
+    return b.getGenerationStamp() == toRemoveStamps[i] &&
+           blocksMap.getStoredBlock(b) == b;
+  }
+}
@@ -47,24 +47,81 @@ public class BlocksMap {
      * and triplets[3*i+1] and triplets[3*i+2] are references 
      * to the previous and the next blocks, respectively, in the 
      * list of blocks belonging to this data-node.
+     * It is null if the triplets are kept in {@link OffHeapBlockTriplets}.
      */
     private Object[] triplets;
 
+    /** The store that keeps the triplets, null if they are on the heap. */
+    private final OffHeapBlockTriplets offHeap;
+
+    /**
+     * If the triplets are kept off the heap, the id of the block in
+     * {@link #offHeap} while it has replicas, and otherwise minus the
+     * number of replicas to make room for.
+     */
+    private int offHeapId;
+
     /**
      * Construct an entry for blocksmap
      * @param replication the block's replication factor
      */
     protected BlockInfo(int replication) {
       this.triplets = new Object[3*replication];
+      this.offHeap = null;
       this.inode = null;
     }
 
     BlockInfo(Block blk, int replication) {
+      this(blk, replication, null);
+    }
+
+    /**
+     * @param offHeap the store to keep the triplets in, null to keep them
+     * on the heap
+     */
+    BlockInfo(Block blk, int replication, OffHeapBlockTriplets offHeap) {
       super(blk);
-      this.triplets = new Object[3*replication];
+      this.offHeap = offHeap;
+      if (offHeap == null) {
+        this.triplets = new Object[3*replication];
+      } else {
+        this.offHeapId = -Math.max(1, replication);
+      }
       this.inode = null;
     }
 
+    /**
+     * Can this block be in the same datanode lists as the given block?
+     * The triplets of both must be kept in the same place.
+     */
+    boolean sharesTripletsWith(BlockInfo other) {
+      return offHeap == other.offHeap;
+    }
+
+    /**
+     * @return the id of the block in the given store
+     * @throws IllegalArgumentException if the block has no triplets there
+     */
+    int getOffHeapId(OffHeapBlockTriplets store) {
+      if (offHeap != store || offHeapId < 0) {
+        throw new IllegalArgumentException("Block " + this +
+            " has no replica triplets in this off-heap store");
+      }
+      return offHeapId;
+    }
+
+    /**
+     * Free the off-heap triplets of the block, if it has any. The block
+     * must not be used with its datanodes afterwards.
+     */
+    void freeOffHeapTriplets() {
+      if (triplets == null && offHeapId >= 0) {
+        int capacity = offHeap.getCapacity(offHeapId);
+        offHeap.free(offHeapId);
+        offHeapId = -capacity;
+      }
+    }
+
     INodeFile getINode() {
       return inode;
     }
@@ -74,46 +131,73 @@ public class BlocksMap {
     }     
 
     DatanodeDescriptor getDatanode(int index) {
+      if (triplets == null) {
+        return offHeapId < 0 ? null :
+          offHeap.getDatanode(offHeapId, index);
+      }
       DatanodeDescriptor node = (DatanodeDescriptor)triplets[index*3];
       return node;
     }
 
     BlockInfo getPrevious(int index) {
+      if (triplets == null) {
+        return offHeapId < 0 ? null :
+          offHeap.getPrevious(offHeapId, index);
+      }
       BlockInfo info = (BlockInfo)triplets[index*3+1];
       return info;
     }
 
     BlockInfo getNext(int index) {
+      if (triplets == null) {
+        return offHeapId < 0 ? null :
+          offHeap.getNext(offHeapId, index);
+      }
       BlockInfo info = (BlockInfo)triplets[index*3+2];
       return info;
     }
 
     void setDatanode(int index, DatanodeDescriptor node) {
+      if (triplets == null) {
+        offHeap.setDatanode(offHeapId, index, node);
+        return;
+      }
       triplets[index*3] = node;
     }
 
     void setPrevious(int index, BlockInfo to) {
+      if (triplets == null) {
+        offHeap.setPrevious(offHeapId, index, to);
+        return;
+      }
       triplets[index*3+1] = to;
     }
 
     void setNext(int index, BlockInfo to) {
+      if (triplets == null) {
+        offHeap.setNext(offHeapId, index, to);
+        return;
+      }
       triplets[index*3+2] = to;
     }
 
     BlockInfo getSetPrevious(int index, BlockInfo to) {
-      BlockInfo info = (BlockInfo)triplets[index*3+1];
-      triplets[index*3+1] = to;
+      BlockInfo info = getPrevious(index);
+      setPrevious(index, to);
       return info;
     }
 
     BlockInfo getSetNext(int index, BlockInfo to) {
-      BlockInfo info = (BlockInfo)triplets[index*3+2];
-      triplets[index*3+2] = to;
+      BlockInfo info = getNext(index);
+      setNext(index, to);
       return info;
     }
 
     private int getCapacity() {
-      assert this.triplets != null : "BlockInfo is not initialized";
+      if (triplets == null) {
+        return offHeapId < 0 ? 0 :
+          offHeap.getCapacity(offHeapId);
+      }
       assert triplets.length % 3 == 0 : "Malformed BlockInfo";
       return triplets.length / 3;
     }
@@ -123,7 +207,18 @@ public class BlocksMap {
      *      * @return first free triplet index.
      */
     private int ensureCapacity(int num) {
-      assert this.triplets != null : "BlockInfo is not initialized";
+      if (triplets == null) {
+        if (offHeapId < 0) {
+          offHeapId = offHeap.allocate(this,
+              Math.max(-offHeapId, num));
+          return 0;
+        }
+        int last = numNodes();
+        if (getCapacity() < last+num) {
+          offHeap.reallocate(offHeapId, last+num);
+        }
+        return last;
+      }
       int last = numNodes();
       if(triplets.length >= (last+num)*3)
         return last;
@@ -141,8 +236,6 @@ public class BlocksMap {
      * Count the number of data-nodes the block belongs to.
      */
     int numNodes() {
-      assert this.triplets != null : "BlockInfo is not initialized";
-      assert triplets.length % 3 == 0 : "Malformed BlockInfo";
       for(int idx = getCapacity()-1; idx >= 0; idx--) {
         if(getDatanode(idx) != null)
           return idx+1;
@@ -184,6 +277,10 @@ public class BlocksMap {
       setDatanode(lastNode, null);
       setNext(lastNode, null); 
       setPrevious(lastNode, null); 
+      if (lastNode == 0) {
+        // no datanodes left
+        freeOffHeapTriplets();
+      }
       return true;
     }
 
@@ -318,6 +415,8 @@ public class BlocksMap {
   
   private GSet<Block, BlockInfo> blocks;
   private final FSNamesystem ns;
+  /** keeps the triplets of the blocks, null if they are on the heap */
+  private OffHeapBlockTriplets offHeapTriplets = null;
 
   BlocksMap(int initialCapacity, float loadFactor, FSNamesystem ns) {
     this.capacity = computeCapacity();
@@ -356,6 +455,45 @@ public class BlocksMap {
     blocks = null;
   }
 
+  /**
+   * Keep the replica triplets of the blocks of this map off the heap.
+   * Must be set before any block is added.
+   */
+  void setOffHeapTriplets(boolean offHeap) {
+    if (blocks.size() > 0) {
+      throw new IllegalStateException(
+          "Cannot move the triplets of existing blocks off the heap");
+    }
+    offHeapTriplets = offHeap ? new OffHeapBlockTriplets(ns) : null;
+  }
+
+  boolean isOffHeapTriplets() {
+    return offHeapTriplets != null;
+  }
+
+  /**
+   * Create a block that keeps its triplets where the blocks of this map
+   * do, so that it can be put in the same datanode lists.
+   */
+  BlockInfo newBlockInfo(Block b, int replication) {
+    return new BlockInfo(b, replication, offHeapTriplets);
+  }
+
+  /**
+   * Release the off-heap id of a datanode that was removed from the
+   * namesystem. The datanode must not have replicas any more.
+   */
+  void releaseOffHeapDatanode(DatanodeDescriptor node) {
+    if (offHeapTriplets != null) {
+      offHeapTriplets.releaseDatanode(node);
+    }
+  }
+
+  /** Bytes of direct memory that keep the triplets of the blocks. */
+  long getOffHeapTripletsBytes() {
+    return offHeapTriplets == null ? 0 : offHeapTriplets.getAllocatedBytes();
+  }
+
   /**
    * All removals from the blocks map goes through this function.
    * 
@@ -377,7 +515,7 @@ public class BlocksMap {
   private BlockInfo checkBlockInfo(Block b, int replication) {
     BlockInfo info = blocks.get(b);
     if (info == null) {
-      info = new BlockInfo(b, replication);
+      info = newBlockInfo(b, replication);
       blocks.put(info);
     }
     return info;
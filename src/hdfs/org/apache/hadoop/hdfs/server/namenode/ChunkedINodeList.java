@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * The sorted children of a large directory. The children are kept in
+ * chunks of at most {@link #MAX_CHUNK_SIZE} children each, and the chunk
+ * sizes are indexed by a Fenwick tree. Inserting or removing a child moves
+ * the children of one chunk and updates O(log(chunks)) tree nodes, instead
+ * of moving all the children after it as in an {@link ArrayList}. Only
+ * splitting, merging or dropping a chunk rebuilds the tree, in O(chunks),
+ * and a chunk has to gain or lose about MAX_CHUNK_SIZE / 2 children
+ * between two of those. Finding a child by index is a descent of the tree
+ * and finding it by name is a binary search over the chunks, each followed
+ * by a lookup within a chunk.
+ * 
+ * Like the {@link ArrayList} it replaces, this list is not synchronized;
+ * reading it does not modify it, so it may be read concurrently.
+ */
+class ChunkedINodeList extends AbstractList<INode> implements RandomAccess {
+  static final int MAX_CHUNK_SIZE = 1024;
+
+  private final ArrayList<ArrayList<INode>> chunks =
+    new ArrayList<ArrayList<INode>>();
+  /**
+   * Fenwick tree over the chunk sizes: tree[i] is the total size of the
+   * chunks (i - lowestOneBit(i), i], counting chunks from 1.
+   */
+  private int[] tree = new int[16];
+  private int size = 0;
+
+  /** Create an empty list. */
+  ChunkedINodeList() {
+    chunks.add(new ArrayList<INode>());
+  }
+
+  /**
+   * Create a list of the given children.
+   * @param sorted children sorted by name
+   */
+  ChunkedINodeList(List<INode> sorted) {
+    int size = sorted.size();
+    // leave room in every chunk for inserts
+    int fill = MAX_CHUNK_SIZE / 2;
+    for (int i = 0; i < size || chunks.isEmpty(); i += fill) {
+      ArrayList<INode> chunk = new ArrayList<INode>(MAX_CHUNK_SIZE);
+      chunk.addAll(sorted.subList(i, Math.min(i + fill, size)));
+      chunks.add(chunk);
+    }
+    rebuildTree();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public INode get(int index) {
+    checkIndex(index, size);
+    int c = chunkOf(index);
+    return chunks.get(c).get(index - startOf(c));
+  }
+
+  @Override
+  public INode set(int index, INode node) {
+    checkIndex(index, size);
+    int c = chunkOf(index);
+    return chunks.get(c).set(index - startOf(c), node);
+  }
+
+  @Override
+  public void add(int index, INode node) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: " + index +
+                                          ", Size: " + size);
+    }
+    int c = chunkOf(index);
+    ArrayList<INode> chunk = chunks.get(c);
+    if (index == size && chunk.size() == MAX_CHUNK_SIZE) {
+      // appending, as when the image is loaded: start a new chunk
+      chunk = new ArrayList<INode>(MAX_CHUNK_SIZE);
+      chunk.add(node);
+      chunks.add(c + 1, chunk);
+      rebuildTree();
+    } else {
+      chunk.add(index - startOf(c), node);
+      if (chunk.size() > MAX_CHUNK_SIZE) {
+        // split the chunk in halves
+        List<INode> tail = chunk.subList(chunk.size() / 2, chunk.size());
+        ArrayList<INode> next = new ArrayList<INode>(MAX_CHUNK_SIZE);
+        next.addAll(tail);
+        tail.clear();
+        chunks.add(c + 1, next);
+        rebuildTree();
+      } else {
+        adjust(c, 1);
+      }
+    }
+    modCount++;
+  }
+
+  @Override
+  public INode remove(int index) {
+    checkIndex(index, size);
+    int c = chunkOf(index);
+    ArrayList<INode> chunk = chunks.get(c);
+    INode removed = chunk.remove(index - startOf(c));
+    if (chunk.isEmpty() && chunks.size() > 1) {
+      chunks.remove(c);
+      rebuildTree();
+    } else if (c + 1 < chunks.size() &&
+        chunk.size() + chunks.get(c + 1).size() <= MAX_CHUNK_SIZE / 2) {
+      // merge small neighbours
+      chunk.addAll(chunks.remove(c + 1));
+      rebuildTree();
+    } else {
+      adjust(c, -1);
+    }
+    modCount++;
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    chunks.clear();
+    chunks.add(new ArrayList<INode>());
+    rebuildTree();
+    modCount++;
+  }
+
+  /**
+   * Search the children for a name, see
+   * {@link Collections#binarySearch(List, Object)}.
+   * @return the index of the child with the name if there is one,
+   *         otherwise (-(insertion point) - 1)
+   */
+  int binarySearch(byte[] name) {
+    // the last chunk whose first child is not greater than the name;
+    // only a list with one chunk may have an empty chunk
+    int lo = 0;
+    int hi = chunks.size() - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (chunks.get(mid).get(0).compareTo(name) <= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    int pos = Collections.binarySearch(chunks.get(lo), name);
+    int start = startOf(lo);
+    return pos >= 0 ? start + pos : pos - start;
+  }
+
+  /** Number of chunks, for testing. */
+  int getNumChunks() {
+    return chunks.size();
+  }
+
+  /**
+   * Iterates over the chunks rather than looking up every index.
+   */
+  @Override
+  public Iterator<INode> iterator() {
+    return new Iterator<INode>() {
+      private final int expectedModCount = modCount;
+      private int c = 0;
+      private int i = 0;
+
+      public boolean hasNext() {
+        while (c < chunks.size() && i >= chunks.get(c).size()) {
+          c++;
+          i = 0;
+        }
+        return c < chunks.size();
+      }
+
+      public INode next() {
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return chunks.get(c).get(i++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return the first chunk that ends after index, or the last chunk if
+   *         index is the size of the list
+   */
+  private int chunkOf(int index) {
+    int numChunks = chunks.size();
+    // skip the longest run of leading chunks that end at or before index
+    int c = 0;
+    for (int step = Integer.highestOneBit(numChunks); step > 0; step >>= 1) {
+      if (c + step <= numChunks && tree[c + step] <= index) {
+        c += step;
+        index -= tree[c];
+      }
+    }
+    return Math.min(c, numChunks - 1);
+  }
+
+  /** @return the index of the first child of chunk c */
+  private int startOf(int c) {
+    int start = 0;
+    for (int i = c; i > 0; i -= Integer.lowestOneBit(i)) {
+      start += tree[i];
+    }
+    return start;
+  }
+
+  /** Add delta to the size of chunk c. */
+  private void adjust(int c, int delta) {
+    int numChunks = chunks.size();
+    for (int i = c + 1; i <= numChunks; i += Integer.lowestOneBit(i)) {
+      tree[i] += delta;
+    }
+    size += delta;
+  }
+
+  /** Rebuild the tree after chunks were added or removed. */
+  private void rebuildTree() {
+    int numChunks = chunks.size();
+    if (tree.length < numChunks + 1) {
+      tree = new int[Math.max(numChunks + 1, 2 * tree.length)];
+    }
+    size = 0;
+    for (int i = 1; i <= numChunks; i++) {
+      tree[i] = chunks.get(i - 1).size();
+      size += tree[i];
+    }
+    for (int i = 1; i <= numChunks; i++) {
+      int parent = i + Integer.lowestOneBit(i);
+      if (parent <= numChunks) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+  private static void checkIndex(int index, int size) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index +
+                                          ", Size: " + size);
+    }
+  }
+}
@@ -99,6 +99,8 @@ public class DatanodeDescriptor extends DatanodeInfo {
 
   private volatile BlockInfo blockList = null;
   private int numOfBlocks = 0;  // number of block this DN has
+  /** id of this node in {@link OffHeapBlockTriplets}, -1 if it has none */
+  volatile int offHeapId = -1;
 
   // isAlive == heartbeats.contains(this)
   // This is an optimization, because contains takes O(n) time on Arraylist
@@ -124,6 +126,12 @@ public class DatanodeDescriptor extends DatanodeInfo {
   private int prevApproxBlocksScheduled = 0;
   private long lastBlocksScheduledRollTime = 0;
   private static final int BLOCKS_SCHEDULED_ROLL_INTERVAL = 600*1000; //10min
+
+  /* Write throughput in bytes per second, estimated from the growth of
+   * dfsUsed between heartbeats and smoothed over the recent heartbeats.
+   */
+  private volatile double writeRate = 0;
+  private static final double WRITE_RATE_WEIGHT = 0.3;
   /**
    * When set to true, the node is not in include list and is not allowed
    * to communicate with the namenode
@@ -227,11 +235,22 @@ public class DatanodeDescriptor extends DatanodeInfo {
     return Collections.unmodifiableSet(openINodes);
   }
 
+  /**
+   * @return the block at the head of the list of blocks of the data-node
+   */
+  BlockInfo getBlockListHead() {
+    return blockList;
+  }
+
   /**
    * Add data-node to the block.
    * Add block to the head of the list of blocks belonging to the data-node.
    */
   boolean addBlock(BlockInfo b) {
+    if (blockList != null && !b.sharesTripletsWith(blockList)) {
+      throw new IllegalArgumentException("Block " + b + " keeps its " +
+          "triplets apart from the other blocks of " + getName());
+    }
     int dnIndex = b.addNode(this);
     if(dnIndex < 0)
       return false;
@@ -310,11 +329,13 @@ public class DatanodeDescriptor extends DatanodeInfo {
    */
   void updateHeartbeat(long capacity, long dfsUsed, long remaining, long namespaceUsed, 
       int xceiverCount) {
+    long now = System.currentTimeMillis();
+    updateWriteRate(dfsUsed, now);
     this.capacity = capacity;
     this.dfsUsed = dfsUsed;
     this.remaining = remaining;
     this.namespaceUsed = namespaceUsed;
-    this.lastUpdate = System.currentTimeMillis();
+    this.lastUpdate = now;
     this.xceiverCount = xceiverCount;
     rollBlocksScheduled(lastUpdate);
   }
@@ -420,6 +441,35 @@ public class DatanodeDescriptor extends DatanodeInfo {
         null: new BlockCommand(DatanodeProtocol.DNA_INVALIDATE, deleteList);
   }
 
+  /**
+   * Find the stored block of a reported replica.
+   * @param iblk the reported replica
+   * @param oblk a block to reuse for the lookup with a wildcard stamp
+   * @return the stored block, or null if the replica does not belong
+   *         to any file
+   */
+  static BlockInfo getReportedBlock(BlocksMap blocksMap, Block iblk,
+                                    Block oblk) {
+    BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+    if(storedBlock == null) {
+      // if the block with a WILDCARD generation stamp matches 
+      // then accept this block.
+      // This block has a diferent generation stamp on the datanode 
+      // because of a lease-recovery-attempt.
+      oblk.set(iblk.getBlockId(), iblk.getNumBytes(),
+               GenerationStamp.WILDCARD_STAMP);
+      storedBlock = blocksMap.getStoredBlock(oblk);
+      if (storedBlock != null && storedBlock.getINode() != null &&
+          (storedBlock.getGenerationStamp() <= iblk.getGenerationStamp() ||
+           storedBlock.getINode().isUnderConstruction())) {
+        // accept block. It wil be cleaned up on cluster restart.
+      } else {
+        storedBlock = null;
+      }
+    }
+    return storedBlock;
+  }
+
   void reportDiff(BlocksMap blocksMap,
                   BlockListAsLongs newReport,
                   Collection<Block> toAdd,
@@ -429,7 +479,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
                   FSNamesystem namesystem) {
     // place a deilimiter in the list which separates blocks 
     // that have been reported from those that have not
-    BlockInfo delimiter = new BlockInfo(new Block(), 1);
+    BlockInfo delimiter = blocksMap.newBlockInfo(new Block(), 1);
     boolean added = this.addBlock(delimiter);
     assert added : "Delimiting block cannot be present in the node";
     // currently the delimiter is the head
@@ -446,23 +496,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
     for (int i = 0; i < newReport.getNumberOfBlocks(); ++i) {
       iblk.set(newReport.getBlockId(i), newReport.getBlockLen(i), 
                newReport.getBlockGenStamp(i));
-      BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
-      if(storedBlock == null) {
-        // if the block with a WILDCARD generation stamp matches 
-        // then accept this block.
-        // This block has a diferent generation stamp on the datanode 
-        // because of a lease-recovery-attempt.
-        oblk.set(newReport.getBlockId(i), newReport.getBlockLen(i),
-                 GenerationStamp.WILDCARD_STAMP);
-        storedBlock = blocksMap.getStoredBlock(oblk);
-        if (storedBlock != null && storedBlock.getINode() != null &&
-            (storedBlock.getGenerationStamp() <= iblk.getGenerationStamp() ||
-             storedBlock.getINode().isUnderConstruction())) {
-          // accept block. It wil be cleaned up on cluster restart.
-        } else {
-          storedBlock = null;
-        }
-      }
+      BlockInfo storedBlock = getReportedBlock(blocksMap, iblk, oblk);
       if (storedBlock == null) {
         // If block is not in blocksMap it does not belong to any file
         if (namesystem.getNameNode().shouldRetryAbsentBlock(iblk)) {
@@ -517,6 +551,24 @@ public class DatanodeDescriptor extends DatanodeInfo {
     setAdminState(WritableUtils.readEnum(in, AdminStates.class));
   }
   
+  private void updateWriteRate(long newDfsUsed, long now) {
+    if (this.capacity == 0 || this.lastUpdate == 0 || now <= this.lastUpdate) {
+      // no previous report to compare with
+      return;
+    }
+    double rate = Math.max(0, newDfsUsed - this.dfsUsed) * 1000.0
+        / (now - this.lastUpdate);
+    writeRate = WRITE_RATE_WEIGHT * rate + (1 - WRITE_RATE_WEIGHT) * writeRate;
+  }
+
+  /**
+   * @return the recent write throughput of the node in bytes per second,
+   * as estimated from its heartbeats
+   */
+  public double getWriteRate() {
+    return writeRate;
+  }
+
   /**
    * @return Approximate number of blocks currently scheduled to be written 
    * to this datanode.
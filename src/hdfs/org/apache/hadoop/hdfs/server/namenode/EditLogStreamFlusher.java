@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.hadoop.hdfs.util.InjectionEvent;
+import org.apache.hadoop.hdfs.util.InjectionHandler;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingHistogram;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Flushes one {@link EditLogOutputStream} on a thread of its own, so that
+ * {@link FSEditLog} can sync all of its journals at the same time instead
+ * of one after another. At most one flush is outstanding per stream.
+ * 
+ * The flusher also keeps the per-journal state used by the slow journal
+ * policy of {@link FSEditLog}: whether the journal is required, whether
+ * it is lagging and how many syncs in a row it has been slow for.
+ */
+class EditLogStreamFlusher implements Runnable {
+  private final EditLogOutputStream stream;
+  private final boolean required;
+  private final Daemon thread;
+  private MetricsTimeVaryingHistogram latency;
+
+  // guarded by this
+  private boolean running = true;
+  private boolean busy;           // a flush was requested and is not done
+  private long txid;              // transactions covered by that flush
+  private long flushedTxId;       // transactions flushed successfully
+  private long lastFlushTime;     // duration of the last flush, in ms
+  private IOException error;      // error of the last flush
+
+  // policy state, see FSEditLog
+  private volatile boolean lagging;
+  private int slowSyncs;          // accessed by the thread doing the sync
+
+  EditLogStreamFlusher(EditLogOutputStream stream, boolean required,
+                       NameNodeMetrics metrics) {
+    this.stream = stream;
+    this.required = required;
+    if (metrics != null) { // Metrics is non-null only when used inside name node
+      String metricsName = "syncLatency_" + stream.getName();
+      MetricsBase m = metrics.registry.get(metricsName);
+      if (m instanceof MetricsTimeVaryingHistogram) {
+        latency = (MetricsTimeVaryingHistogram) m;
+      } else if (m == null) {
+        latency = new MetricsTimeVaryingHistogram(metricsName,
+            metrics.registry, "Journal sync latency for " + stream.getName());
+      }
+    }
+    this.thread = new Daemon(this);
+    this.thread.start();
+  }
+
+  EditLogOutputStream getStream() {
+    return stream;
+  }
+
+  /** Is a failure of this journal acceptable to hold up namespace edits? */
+  boolean isRequired() {
+    return required;
+  }
+
+  boolean isLagging() {
+    return lagging;
+  }
+
+  void setLagging(boolean lagging) {
+    this.lagging = lagging;
+    this.slowSyncs = 0;
+  }
+
+  /**
+   * Count one more sync in a row that was slower than the threshold.
+   * @return the number of slow syncs in a row
+   */
+  int incrementSlowSyncs() {
+    return ++slowSyncs;
+  }
+
+  void resetSlowSyncs() {
+    slowSyncs = 0;
+  }
+
+  /**
+   * Start flushing the data made ready by
+   * {@link EditLogOutputStream#setReadyToFlush()}.
+   * @param txid the transaction id the ready data extends to
+   * @throws IOException if the previous flush is not done yet
+   */
+  synchronized void flush(long txid) throws IOException {
+    if (busy) {
+      throw new IOException("Previous flush of " + stream.getName() +
+                            " is not done");
+    }
+    this.busy = true;
+    this.txid = txid;
+    this.error = null;
+    notifyAll();
+  }
+
+  synchronized boolean isBusy() {
+    return busy;
+  }
+
+  /**
+   * Wait for the outstanding flush, if any, to complete.
+   * @param timeout the maximum time to wait in ms, 0 to wait until done
+   * @return true if no flush is outstanding any more
+   */
+  synchronized boolean waitForFlush(long timeout) {
+    long end = timeout > 0 ? FSNamesystem.now() + timeout : Long.MAX_VALUE;
+    while (busy) {
+      long left = end - FSNamesystem.now();
+      if (left <= 0) {
+        return false;
+      }
+      try {
+        wait(Math.min(left, 1000));
+      } catch (InterruptedException ie) {
+      }
+    }
+    return true;
+  }
+
+  /** The error of the last flush, null if it succeeded. */
+  synchronized IOException getError() {
+    return error;
+  }
+
+  synchronized long getFlushedTxId() {
+    return flushedTxId;
+  }
+
+  synchronized long getLastFlushTime() {
+    return lastFlushTime;
+  }
+
+  /**
+   * Let the thread exit once the outstanding flush is done. The thread is
+   * not interrupted because that would close the channel it writes to.
+   */
+  synchronized void stop() {
+    running = false;
+    notifyAll();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      synchronized (this) {
+        while (running && !busy) {
+          try {
+            wait();
+          } catch (InterruptedException ie) {
+          }
+        }
+        if (!busy) {
+          return;
+        }
+      }
+      IOException ioe = null;
+      long start = FSNamesystem.now();
+      try {
+        InjectionHandler.processEventIO(InjectionEvent.FSEDIT_FLUSH_STREAM,
+            stream.getName());
+        stream.flush();
+      } catch (IOException e) {
+        ioe = e;
+      } catch (Throwable t) {
+        ioe = new IOException("Unable to flush " + stream.getName(), t);
+      }
+      long elapsed = FSNamesystem.now() - start;
+      if (latency != null) {
+        latency.inc(elapsed);
+      }
+      synchronized (this) {
+        busy = false;
+        error = ioe;
+        lastFlushTime = elapsed;
+        if (ioe == null) {
+          flushedTxId = txid;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  public String toString() {
+    return "EditLogFlusher for " + stream.getName();
+  }
+}
@@ -57,6 +57,12 @@ public class FSDirectory implements FSConstants, Closeable {
   FSImage fsImage;  
   private boolean ready = false;
   private final int lsLimit;  // max list limit
+  // directories with more children keep them in a ChunkedINodeList
+  final int chunkedChildrenThreshold;
+  // maintain per directory subtree counts for getContentSummary
+  private final boolean incrementalContentSummary;
+  // bumped by every change that may alter the outcome of a traverse check
+  private volatile long namespaceGeneration = 0;
   
   static int BLOCK_DELETION_NO_LIMIT = 0;
 
@@ -127,6 +133,11 @@ public class FSDirectory implements FSConstants, Closeable {
     NameNode.LOG.info("Caching file names occuring more than " + threshold
         + " times ");
     nameCache = new NameCache<ByteArray>(threshold);
+    this.chunkedChildrenThreshold = conf.getInt(
+        "dfs.namenode.directory.chunked.threshold",
+        INodeDirectory.DEFAULT_CHUNKED_CHILDREN_THRESHOLD);
+    this.incrementalContentSummary = conf.getBoolean(
+        "dfs.namenode.contentsummary.incremental", false);
     initialize(conf);
   }
 
@@ -338,6 +349,7 @@ public class FSDirectory implements FSConstants, Closeable {
       }
       if(newParent == null)
         return null;
+      newParent.updateChildrenList(chunkedChildrenThreshold);
       if(!newNode.isDirectory()) {
         // Add block->file mapping
         INodeFile newF = (INodeFile)newNode;
@@ -556,6 +568,9 @@ public class FSDirectory implements FSConstants, Closeable {
       INode srcChild = null;
       String srcChildName = null;
         try {
+        // drop the traverse checks cached before the move as it starts, and
+        // those cached while it is under way once it is done, below
+        namespaceGeneration++;
         // remove src
         srcChild = removeChild(srcInodes, srcInodes.length-1);
         if (srcChild == null) {
@@ -592,6 +607,7 @@ public class FSDirectory implements FSConstants, Closeable {
           addChildNoQuotaCheck(srcInodes, srcInodes.length - 1, srcChild, -1,
               false);
         }
+        namespaceGeneration++;
       }
       NameNode.stateChangeLog.warn("DIR* FSDirectory.unprotectedRenameTo: "
           +"failed to rename "+src+" to "+dst);
@@ -645,7 +661,10 @@ public class FSDirectory implements FSConstants, Closeable {
            (fileNode.diskspaceConsumed()/oldReplication[0]);
       updateCount(inodes, inodes.length-1, 0, dsDelta, true);
 
+      long[] oldCounts = getSubtreeContribution(fileNode);
       fileNode.setReplication(replication);
+      updateSubtreeCounts(inodes, inodes.length-1, oldCounts,
+          getSubtreeContribution(fileNode));
       fileBlocks = fileNode.getBlocks();
     } finally {
       writeUnlock();
@@ -703,6 +722,7 @@ public class FSDirectory implements FSConstants, Closeable {
       }
 
       INodeFile file = (INodeFile) node;
+      long[] oldCounts = getSubtreeContribution(file);
 
       BlockInfo[] oldblocks = file.getBlocks();
       if (oldblocks == null) {
@@ -735,6 +755,7 @@ public class FSDirectory implements FSConstants, Closeable {
 
       file.updateFile(permissions, blockInfo, replication,
           mtime, atime, blockSize);
+      updateSubtreeCounts(file, oldCounts);
       return file;
     } finally {
       writeUnlock();
@@ -790,6 +811,7 @@ public class FSDirectory implements FSConstants, Closeable {
         if(inode == null)
             throw new FileNotFoundException("File does not exist: " + src);
         inode.setPermission(permissions);
+        namespaceGeneration++;
     } finally {
       writeUnlock();
     }
@@ -813,6 +835,7 @@ public class FSDirectory implements FSConstants, Closeable {
       if (groupname != null) {
         inode.setGroup(groupname);
       }
+      namespaceGeneration++;
     } finally {
       writeUnlock();
     }
@@ -853,10 +876,12 @@ public class FSDirectory implements FSConstants, Closeable {
 
     writeLock();
     try {
+      long[] oldCounts = getSubtreeContribution(trgInode);
       for(String src : srcs) {
         INodeFile srcInode = getFileINode(src);
         allSrcInodes[i++] = srcInode;
         totalBlocks += srcInode.blocks.length;
+        addCounts(oldCounts, getSubtreeContribution(srcInode), 1);
       }
       trgInode.appendBlocks(allSrcInodes, totalBlocks); // copy the blocks
 
@@ -869,10 +894,13 @@ public class FSDirectory implements FSConstants, Closeable {
         trgParent.removeChild(nodeToRemove);
         count++;
       }
+      trgParent.updateChildrenList(chunkedChildrenThreshold);
       trgInode.setModificationTime(now);
       trgParent.setModificationTime(now);
       // update quota on the parent directory ('count' files removed, 0 space)
       unprotectedUpdateCount(trgINodes, trgINodes.length-1, - count, 0);
+      updateSubtreeCounts(trgINodes, trgINodes.length-1, oldCounts,
+          getSubtreeContribution(trgInode));
       totalFiles -= srcs.length;
     } finally {
       writeUnlock();
@@ -966,6 +994,7 @@ public class FSDirectory implements FSConstants, Closeable {
         try {
           // Remove the node from the namespace
           removeChild(inodes, inodes.length-1);
+          namespaceGeneration++;
           totalFiles--;
           // set the parent's modification time
           inodes[inodes.length-2].setModificationTime(modificationTime);
@@ -1012,6 +1041,7 @@ public class FSDirectory implements FSConstants, Closeable {
     writeLock();
     try {
       long dsOld = oldnode.diskspaceConsumed();
+      long[] oldCounts = getSubtreeContribution(oldnode);
       
       //
       // Remove the node from the namespace 
@@ -1033,6 +1063,8 @@ public class FSDirectory implements FSConstants, Closeable {
       newnode.setLocalName(oldnode.getLocalNameBytes());
       parent.addChild(newnode, false);
       inodes[inodes.length-1] = newnode;
+      updateSubtreeCounts(inodes, inodes.length-1, oldCounts,
+          getSubtreeContribution(newnode));
 
       //check if disk space needs to be updated.
       long dsNew = 0;
@@ -1379,6 +1411,20 @@ public class FSDirectory implements FSConstants, Closeable {
       readUnlock();
     }
   }
+
+  /**
+   * Retrieve the existing INodes along the given path components.
+   *
+   * @see INodeDirectory#getExistingPathINodes(byte[][], INode[])
+   */
+  void getExistingPathINodes(byte[][] components, INode[] inodes) {
+    readLock();
+    try {
+      rootDir.getExistingPathINodes(components, inodes);
+    } finally {
+      readUnlock();
+    }
+  }
   
   /**
    * Get the parent node of path.
@@ -1536,7 +1582,135 @@ public class FSDirectory implements FSConstants, Closeable {
     }
   }
 
-  
+
+  /**
+   * Get the contribution of a node to the subtree counts of its ancestors,
+   * see {@link INodeDirectory#getSubtreeCounts()}.
+   * @return the counts, or null if they are not being maintained
+   */
+  private long[] getSubtreeContribution(INode node) {
+    if (!ready || !incrementalContentSummary) {
+      return null;
+    }
+    if (node.isDirectory()) {
+      long[] counts = ((INodeDirectory)node).getSubtreeCounts();
+      return counts != null ? counts :
+          computeSubtreeCounts((INodeDirectory)node);
+    }
+    return getFileContribution((INodeFile)node);
+  }
+
+  private static long[] getFileContribution(INodeFile file) {
+    if (file.isUnderConstruction()) {
+      // the length of a file being written is added in by
+      // getContentSummary, so that it does not need tracking here
+      return new long[]{0, 1, 0, 0};
+    }
+    return file.computeContentSummary(new long[]{0, 0, 0, 0});
+  }
+
+  /**
+   * Recompute and store the subtree counts of dir and all the
+   * directories under it.
+   * @return the subtree counts of dir
+   */
+  private static long[] computeSubtreeCounts(INodeDirectory dir) {
+    long[] counts = new long[]{0, 0, 1, 0};
+    for (INode child : dir.getChildren()) {
+      addCounts(counts, child.isDirectory() ?
+          computeSubtreeCounts((INodeDirectory)child) :
+          getFileContribution((INodeFile)child), 1);
+    }
+    dir.setSubtreeCounts(counts);
+    return counts;
+  }
+
+  private static void addCounts(long[] counts, long[] delta, int sign) {
+    if (counts == null || delta == null) {
+      return;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += sign * delta[i];
+    }
+  }
+
+  /**
+   * Add sign times counts to the subtree counts of the directories
+   * inodes[0, numOfINodes).
+   */
+  private void updateSubtreeCounts(INode[] inodes, int numOfINodes,
+                                   long[] counts, int sign) {
+    if (counts == null) {
+      return;
+    }
+    if (numOfINodes > inodes.length) {
+      numOfINodes = inodes.length;
+    }
+    for (int i = 0; i < numOfINodes; i++) {
+      addCounts(((INodeDirectory)inodes[i]).getSubtreeCounts(), counts, sign);
+    }
+  }
+
+  /**
+   * Move the subtree counts of the directories inodes[0, numOfINodes) from
+   * a node's old contribution to its new one.
+   */
+  private void updateSubtreeCounts(INode[] inodes, int numOfINodes,
+                                   long[] oldCounts, long[] newCounts) {
+    if (oldCounts == null || newCounts == null) {
+      return;
+    }
+    long[] delta = newCounts.clone();
+    addCounts(delta, oldCounts, -1);
+    updateSubtreeCounts(inodes, numOfINodes, delta, 1);
+  }
+
+  /**
+   * Snapshot a file's contribution to the subtree counts before its blocks
+   * change outside of a namespace operation, e.g. when a block report
+   * updates the length of a block of a closed file.
+   * @see #updateSubtreeCounts(INodeFile, long[])
+   */
+  long[] getSubtreeCountsSnapshot(INodeFile file) {
+    readLock();
+    try {
+      return getSubtreeContribution(file);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  /**
+   * Apply the change in a file's contribution since oldCounts were taken
+   * to the subtree counts of all its ancestors. Files that are no longer
+   * in the namespace, e.g. the ones of a subtree being deleted
+   * incrementally, are ignored.
+   */
+  void updateSubtreeCounts(INodeFile file, long[] oldCounts) {
+    if (oldCounts == null) {
+      return;
+    }
+    writeLock();
+    try {
+      int depth = 0;
+      for (INode node = file; node != rootDir; node = node.parent, depth++) {
+        if (node.parent == null ||
+            node.parent.getChildINode(node.getLocalNameBytes()) != node) {
+          return;
+        }
+      }
+      INode[] ancestors = new INode[depth];
+      INodeDirectory dir = file.parent;
+      for (int i = depth - 1; i >= 0; i--, dir = dir.parent) {
+        ancestors[i] = dir;
+      }
+      updateSubtreeCounts(ancestors, depth, oldCounts,
+          getSubtreeContribution(file));
+    } finally {
+      writeUnlock();
+    }
+  }
+
   /** Return the name of the path represented by inodes at [0, pos] */
   private static String getFullPathName(INode[] inodes, int pos) {
     StringBuilder fullPathName = new StringBuilder();
@@ -1795,6 +1969,10 @@ public class FSDirectory implements FSConstants, Closeable {
     if (addedNode == null) {
       updateCount(pathComponents, pos, -counts.getNsCount(), 
           -childDiskspace, true);
+    } else {
+      ((INodeDirectory)pathComponents[pos-1]).updateChildrenList(
+          chunkedChildrenThreshold);
+      updateSubtreeCounts(pathComponents, pos, getSubtreeContribution(child), 1);
     }
     return addedNode;
   }
@@ -1827,10 +2005,14 @@ public class FSDirectory implements FSConstants, Closeable {
     INode removedNode = 
       ((INodeDirectory)pathComponents[pos-1]).removeChild(pathComponents[pos]);
     if (removedNode != null) {
+      ((INodeDirectory)pathComponents[pos-1]).updateChildrenList(
+          chunkedChildrenThreshold);
       INode.DirCounts counts = new INode.DirCounts();
       removedNode.spaceConsumedInTree(counts);
       updateCountNoQuotaCheck(pathComponents, pos,
                   -counts.getNsCount(), -counts.getDsCount());
+      updateSubtreeCounts(pathComponents, pos,
+          getSubtreeContribution(removedNode), -1);
     }
     return removedNode;
   }
@@ -1846,12 +2028,19 @@ public class FSDirectory implements FSConstants, Closeable {
 
   ContentSummary getContentSummary(String src) throws IOException {
     String srcs = normalizePath(src);
+    List<String> filesUnderConstruction = incrementalContentSummary ?
+        getFSNamesystem().leaseManager.getPathsUnderConstruction(srcs) : null;
     readLock();
     try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null) {
         throw new FileNotFoundException("File does not exist: " + srcs);
       }
+      else if (targetNode.isDirectory() &&
+               getSubtreeContribution(targetNode) != null) {
+        return getIncrementalContentSummary((INodeDirectory)targetNode,
+            filesUnderConstruction);
+      }
       else {
         return targetNode.computeContentSummary();
       }
@@ -1860,6 +2049,25 @@ public class FSDirectory implements FSConstants, Closeable {
     }
   }
 
+  /**
+   * Build the content summary of a directory from its subtree counts,
+   * adding in the files under it that are still being written.
+   */
+  private ContentSummary getIncrementalContentSummary(INodeDirectory dir,
+      List<String> filesUnderConstruction) {
+    long[] summary = dir.getSubtreeCounts().clone();
+    for (String path : filesUnderConstruction) {
+      INode node = rootDir.getNode(path);
+      if (node != null && node.isUnderConstruction()) {
+        long[] file = node.computeContentSummary(new long[]{0, 0, 0, 0});
+        summary[0] += file[0];
+        summary[3] += file[3];
+      }
+    }
+    return new ContentSummary(summary[0], summary[1], summary[2],
+        dir.getNsQuota(), summary[3], dir.getDsQuota());
+  }
+
   /** Update the count of each directory with quota in the namespace
    * A directory's count is defined as the total number inodes in the tree
    * rooted at the directory.
@@ -1870,6 +2078,9 @@ public class FSDirectory implements FSConstants, Closeable {
   void updateCountForINodeWithQuota() {
     updateCountForINodeWithQuota(rootDir, new INode.DirCounts(), 
                                  new ArrayList<INode>(50));
+    if (incrementalContentSummary) {
+      computeSubtreeCounts(rootDir);
+    }
   }
   
   /** 
@@ -2010,6 +2221,14 @@ public class FSDirectory implements FSConstants, Closeable {
     }
   }
   
+  /**
+   * Get the namespace generation, which changes whenever permissions,
+   * owners or the location of inodes change.
+   */
+  long getNamespaceGeneration() {
+    return namespaceGeneration;
+  }
+
   long totalInodes() {
     readLock();
     try {
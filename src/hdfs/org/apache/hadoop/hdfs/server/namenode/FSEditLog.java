@@ -29,9 +29,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.zip.CheckedInputStream;
@@ -40,6 +47,7 @@ import java.lang.Math;
 import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.DatanodeID;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
@@ -91,6 +99,22 @@ public class FSEditLog {
   private SyncThread syncer;
 
   private ArrayList<EditLogOutputStream> editStreams = null;
+  // every stream is flushed by a flusher thread of its own
+  private final Map<EditLogOutputStream, EditLogStreamFlusher> flushers =
+    new IdentityHashMap<EditLogOutputStream, EditLogStreamFlusher>();
+  // roots of the storage directories whose edits are lagging
+  private final Set<File> laggingDirs =
+    Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  // lagging streams removed while flushing, closed once the flush is done
+  private final Set<EditLogOutputStream> removedStreams =
+    Collections.newSetFromMap(
+        new IdentityHashMap<EditLogOutputStream, Boolean>());
+
+  // slow journal policy, see setSlowJournalPolicy()
+  private Set<File> requiredEditsDirs = null;   // null if all are required
+  private long slowSyncThreshold = 1000;
+  private int maxSlowSyncs = 3;
+  private long maxLaggingTransactions = 1000000;
   private FSImage fsimage = null;
 
   // a monotonically increasing counter that represents transactionIds.
@@ -463,6 +487,22 @@ public class FSEditLog {
     printStatistics(true);
     numTransactions = totalTimeTransactions = numTransactionsBatchedInSync = 0;
 
+    // let lagging journals complete the flush they are busy with,
+    // the rest of their edits is flushed below
+    for (Map.Entry<EditLogOutputStream, EditLogStreamFlusher> entry :
+           flushers.entrySet()) {
+      entry.getValue().waitForFlush(0);
+      EditLogOutputStream eStream = entry.getKey();
+      if (removedStreams.remove(eStream)) {
+        // removed while it was flushing, see pruneFlushers()
+        try {
+          eStream.close();
+        } catch (IOException e) {
+          FSNamesystem.LOG.warn("FSEditLog:close - failed to close removed " +
+              "stream " + eStream.getName(), e);
+        }
+      }
+    }
     for (int idx = 0; idx < editStreams.size(); idx++) {
       EditLogOutputStream eStream = editStreams.get(idx);
       try {
@@ -477,6 +517,121 @@ public class FSEditLog {
       }
     }
     editStreams.clear();
+    stopFlushers();
+  }
+
+  /**
+   * Configure how journals that are persistently slow to sync are handled.
+   * By default every edits directory is required and a sync waits for all
+   * of them. An edits directory that is not listed in
+   * dfs.name.edits.dir.required is marked lagging once it has been slower
+   * than dfs.name.edits.slow.sync.threshold.ms for
+   * dfs.name.edits.slow.sync.count syncs in a row: syncs stop waiting for
+   * it and it catches up in the background. A lagging directory that falls
+   * more than dfs.name.edits.lagging.max.transactions behind is removed as
+   * if it failed.
+   */
+  synchronized void setSlowJournalPolicy(Configuration conf) {
+    Collection<String> required =
+      conf.getStringCollection("dfs.name.edits.dir.required");
+    if (required.isEmpty()) {
+      requiredEditsDirs = null;
+    } else {
+      requiredEditsDirs = new HashSet<File>();
+      for (String name : required) {
+        requiredEditsDirs.add(new File(name).getAbsoluteFile());
+      }
+    }
+    slowSyncThreshold = conf.getLong("dfs.name.edits.slow.sync.threshold.ms",
+                                     1000);
+    maxSlowSyncs = conf.getInt("dfs.name.edits.slow.sync.count", 3);
+    maxLaggingTransactions =
+      conf.getLong("dfs.name.edits.lagging.max.transactions", 1000000);
+  }
+
+  /**
+   * Are the edits of the given storage directory lagging behind the other
+   * journals? The checkpoint time of a lagging directory is kept one
+   * behind, so that it is not loaded from should the name-node stop
+   * before the directory caught up.
+   */
+  boolean isLagging(StorageDirectory sd) {
+    return laggingDirs.contains(sd.getRoot());
+  }
+
+  private static File getStorageRoot(EditLogOutputStream eStream) {
+    return ((EditLogFileOutputStream)eStream).getFile()
+                                             .getParentFile().getParentFile();
+  }
+
+  private StorageDirectory getStorageDirectory(EditLogOutputStream eStream) {
+    File root = getStorageRoot(eStream);
+    for (Iterator<StorageDirectory> it =
+           fsimage.dirIterator(NameNodeDirType.EDITS); it.hasNext();) {
+      StorageDirectory sd = it.next();
+      if (sd.getRoot().equals(root)) {
+        return sd;
+      }
+    }
+    return null;
+  }
+
+  private EditLogStreamFlusher getFlusher(EditLogOutputStream eStream) {
+    EditLogStreamFlusher flusher = flushers.get(eStream);
+    if (flusher == null) {
+      boolean required = requiredEditsDirs == null ||
+        requiredEditsDirs.contains(getStorageRoot(eStream).getAbsoluteFile());
+      flusher = new EditLogStreamFlusher(eStream, required, metrics);
+      flushers.put(eStream, flusher);
+    }
+    return flusher;
+  }
+
+  /**
+   * Stop the flushers of the streams that are no longer used. A lagging
+   * stream that was removed while it was flushing is closed here, once
+   * its flush is done.
+   */
+  private void pruneFlushers() {
+    for (Iterator<Map.Entry<EditLogOutputStream, EditLogStreamFlusher>> it =
+           flushers.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<EditLogOutputStream, EditLogStreamFlusher> entry = it.next();
+      EditLogOutputStream eStream = entry.getKey();
+      if (!editStreams.contains(eStream) && !entry.getValue().isBusy()) {
+        entry.getValue().stop();
+        it.remove();
+        if (removedStreams.remove(eStream)) {
+          try {
+            eStream.close();
+          } catch (Exception e) {}
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop all flushers once the streams have been flushed and closed.
+   * Directories that were lagging are in sync again.
+   */
+  private void stopFlushers() {
+    for (EditLogStreamFlusher flusher : flushers.values()) {
+      flusher.stop();
+    }
+    flushers.clear();
+    removedStreams.clear();
+    for (Iterator<StorageDirectory> it =
+           fsimage.dirIterator(NameNodeDirType.EDITS); it.hasNext();) {
+      StorageDirectory sd = it.next();
+      if (laggingDirs.remove(sd.getRoot())) {
+        try {
+          fsimage.writeCheckpointTime(sd);
+        } catch (IOException e) {
+          FSNamesystem.LOG.warn("Unable to write checkpoint time to " +
+                                sd.getRoot(), e);
+        }
+      }
+    }
+    laggingDirs.clear();
   }
 
   /**
@@ -1087,6 +1242,7 @@ public class FSEditLog {
     long syncStart = 0;
 
     final int numEditStreams;
+    final List<EditLogStreamFlusher> started;
     synchronized (this) {
       // Fetch the transactionId of this thread. 
       long mytxid = myTransactionId.get().txid;
@@ -1129,12 +1285,10 @@ public class FSEditLog {
       syncStart = txid;
       isSyncRunning = true;   
 
-      // swap buffers
-      for (int idx = 0; idx < numEditStreams; idx++) {
-        editStreams.get(idx).setReadyToFlush();
-      }
+      // swap buffers and start flushing
+      started = startFlushes(syncStart);
     }
-    sync(syncStart);
+    sync(started);
 
     synchronized (this) {
        synctxid = syncStart;
@@ -1144,27 +1298,73 @@ public class FSEditLog {
     endDelay(syncStart);
   }
   
-  private void sync(long syncStart) {
+  /**
+   * Start flushing all streams up to syncStart. Called by the thread doing
+   * the sync, with isSyncRunning set, so that only that thread swaps
+   * buffers and changes the lagging state of the streams.
+   * @return the flushers that were started
+   */
+  private synchronized List<EditLogStreamFlusher> startFlushes(
+      long syncStart) {
+    checkLaggingStreams();
+    List<EditLogStreamFlusher> started =
+      new ArrayList<EditLogStreamFlusher>(editStreams.size());
+    for (int idx = 0; idx < editStreams.size(); idx++) {
+      try {
+        startFlush(editStreams.get(idx), syncStart, started);
+      } catch (IOException ex) {
+        FSNamesystem.LOG.error(ex);
+        processIOError(idx);
+        idx--;
+      }
+    }
+    return started;
+  }
+
+  /**
+   * Swap the buffers of a stream and let its flusher flush them. A lagging
+   * stream whose flusher is still busy with an earlier flush is skipped;
+   * its edits accumulate until that flush is done.
+   * @throws IOException if the stream is in sync and still flushing
+   */
+  private void startFlush(EditLogOutputStream eStream, long syncStart,
+                          List<EditLogStreamFlusher> started)
+                          throws IOException {
+    EditLogStreamFlusher flusher = getFlusher(eStream);
+    if (flusher.isBusy()) {
+      if (flusher.isLagging()) {
+        return;
+      }
+      throw new IOException("Edit log " + eStream.getName() +
+                            " is still flushing an earlier sync");
+    }
+    eStream.setReadyToFlush();
+    flusher.flush(syncStart);
+    started.add(flusher);
+  }
+
+  /**
+   * Wait for the flushes started by {@link #startFlush} to complete. The
+   * streams are flushed concurrently, so a sync takes as long as the
+   * slowest journal rather than the sum of all of them.
+   */
+  private void sync(List<EditLogStreamFlusher> started) {
     ArrayList<EditLogOutputStream> errorStreams = null;
     // do the sync
     long start = FSNamesystem.now();
-    final int numEditStreams;
-    synchronized (this) {
-      numEditStreams = editStreams.size();
-      assert numEditStreams > 0: "no editlog streams";
-    }
-    for (int idx = 0; idx < numEditStreams; idx++) {
-      EditLogOutputStream eStream = editStreams.get(idx);
-      try {
-        eStream.flush();
-      } catch (IOException ie) {
+    for (EditLogStreamFlusher flusher : started) {
+      if (!awaitFlush(flusher)) {
+        continue;                   // lagging, see checkLaggingStreams()
+      }
+      IOException ie = flusher.getError();
+      if (ie != null) {
         //
         // remember the streams that encountered an error.
         //
         if (errorStreams == null) {
           errorStreams = new ArrayList<EditLogOutputStream>(1);
         }
-        errorStreams.add(eStream);
+        errorStreams.add(flusher.getStream());
         FSNamesystem.LOG.error("Unable to sync edit log. " +
                                "Fatal Error.", ie);
       }
@@ -1175,6 +1375,160 @@ public class FSEditLog {
 
     synchronized (this) {
       processIOError(errorStreams);
+      removeLaggingStreams();
+      pruneFlushers();
+    }
+  }
+
+  /**
+   * Wait for the flush of a stream to complete. A stream that is not
+   * required and has been slow for maxSlowSyncs syncs in a row is marked
+   * lagging instead of being waited for.
+   * @return false if the stream is lagging
+   */
+  private boolean awaitFlush(EditLogStreamFlusher flusher) {
+    if (flusher.isLagging()) {
+      return false;
+    }
+    if (flusher.isRequired() || slowSyncThreshold <= 0) {
+      flusher.waitForFlush(0);
+      return true;
+    }
+    if (flusher.waitForFlush(slowSyncThreshold)) {
+      flusher.resetSlowSyncs();
+      return true;
+    }
+    if (flusher.incrementSlowSyncs() >= maxSlowSyncs && markLagging(flusher)) {
+      return false;
+    }
+    flusher.waitForFlush(0);
+    return true;
+  }
+
+  /**
+   * Mark a stream as lagging. Its storage directory is first made to look
+   * older than the others, so that it is not loaded from before it caught
+   * up. At least one stream is always kept in sync.
+   * @return true if the stream is lagging now
+   */
+  private boolean markLagging(EditLogStreamFlusher flusher) {
+    EditLogOutputStream eStream = flusher.getStream();
+    StorageDirectory sd;
+    synchronized (this) {
+      int inSync = 0;
+      for (EditLogOutputStream s : editStreams) {
+        EditLogStreamFlusher f = flushers.get(s);
+        if (f == null || !f.isLagging()) {
+          inSync++;
+        }
+      }
+      sd = getStorageDirectory(eStream);
+      if (inSync <= 1 || sd == null) {
+        return false;
+      }
+      laggingDirs.add(sd.getRoot());
+      flusher.setLagging(true);
+    }
+    try {
+      fsimage.writeCheckpointTime(sd);
+    } catch (IOException e) {
+      FSNamesystem.LOG.warn("Unable to mark edit log " + eStream.getName() +
+                            " as lagging", e);
+      synchronized (this) {
+        laggingDirs.remove(sd.getRoot());
+        flusher.setLagging(false);
+      }
+      return false;
+    }
+    FSNamesystem.LOG.warn("Edit log " + eStream.getName() + " is lagging, " +
+                          maxSlowSyncs + " syncs in a row took more than " +
+                          slowSyncThreshold + " ms");
+    return true;
+  }
+
+  /**
+   * Look at the lagging streams that are done with their last flush. A
+   * stream whose flush failed is removed. A stream that flushed all the
+   * edits synced so far, and did so faster than the slow sync threshold,
+   * is in sync again. Called before the buffers are swapped, by the
+   * thread doing the sync; the flushers themselves never touch the log.
+   */
+  private synchronized void checkLaggingStreams() {
+    ArrayList<EditLogOutputStream> errorStreams = null;
+    for (EditLogOutputStream eStream : editStreams) {
+      EditLogStreamFlusher flusher = flushers.get(eStream);
+      if (flusher == null || !flusher.isLagging() || flusher.isBusy()) {
+        continue;
+      }
+      IOException ie = flusher.getError();
+      if (ie != null) {
+        FSNamesystem.LOG.error("Unable to sync lagging edit log " +
+                               eStream.getName(), ie);
+        if (errorStreams == null) {
+          errorStreams = new ArrayList<EditLogOutputStream>(1);
+        }
+        errorStreams.add(eStream);
+        continue;
+      }
+      if (flusher.getFlushedTxId() < synctxid ||
+          flusher.getLastFlushTime() >= slowSyncThreshold) {
+        continue;                   // still behind, or still slow
+      }
+      StorageDirectory sd = getStorageDirectory(eStream);
+      if (sd != null) {
+        laggingDirs.remove(sd.getRoot());
+        try {
+          fsimage.writeCheckpointTime(sd);
+        } catch (IOException e) {
+          FSNamesystem.LOG.warn("Unable to write checkpoint time to " +
+                                sd.getRoot(), e);
+          laggingDirs.add(sd.getRoot());
+          continue;
+        }
+      }
+      flusher.setLagging(false);
+      FSNamesystem.LOG.info("Edit log " + eStream.getName() +
+                            " caught up and is in sync again");
+    }
+    if (errorStreams != null) {
+      for (EditLogOutputStream eStream : errorStreams) {
+        laggingDirs.remove(getStorageRoot(eStream));
+      }
+      processIOError(errorStreams);
+    }
+  }
+
+  /**
+   * Remove the lagging streams that fell too far behind, as if they
+   * failed; they would otherwise buffer edits without bound.
+   */
+  private void removeLaggingStreams() {
+    boolean removed = false;
+    for (int idx = 0; idx < editStreams.size(); idx++) {
+      EditLogOutputStream eStream = editStreams.get(idx);
+      EditLogStreamFlusher flusher = flushers.get(eStream);
+      if (flusher == null || !flusher.isLagging() ||
+          txid - flusher.getFlushedTxId() <= maxLaggingTransactions) {
+        continue;
+      }
+      FSNamesystem.LOG.error("Edit log " + eStream.getName() + " is " +
+                             (txid - flusher.getFlushedTxId()) +
+                             " transactions behind, removing it");
+      File root = getStorageRoot(eStream);
+      if (flusher.isBusy()) {
+        // the stream is closed once the flush returns
+        editStreams.remove(idx);
+        removedStreams.add(eStream);
+        fsimage.processIOError(root);
+      } else {
+        processIOError(idx);
+      }
+      laggingDirs.remove(root);
+      removed = true;
+      idx--;
+    }
+    if (removed) {
+      fsimage.incrementCheckpointTime();
     }
   }
   
@@ -1207,6 +1561,7 @@ public class FSEditLog {
       try {
         long syncStart = 0;
         while (isRunning) {
+          List<EditLogStreamFlusher> started;
           synchronized (FSEditLog.this) {
             assert !editStreams.isEmpty() : "no editlog streams";
 
@@ -1226,18 +1581,9 @@ public class FSEditLog {
             syncStart = txid;
             isSyncRunning = true;
 
-            for (int idx = 0; idx < editStreams.size(); idx++) {
-              try {
-                editStreams.get(idx).setReadyToFlush();
-              } catch (IOException ex) {
-                FSNamesystem.LOG.error(ex);
-                processIOError(idx);
-                idx--;
-              }
-            }
-
+            started = startFlushes(syncStart);
           }
-          sync(syncStart);
+          sync(started);
           synchronized (FSEditLog.this) {
             synctxid = syncStart;
             isSyncRunning = false;
@@ -1284,6 +1630,10 @@ public class FSEditLog {
       EditLogOutputStream eStream = editStreams.get(idx);
       buf.append(" " + eStream.getName() + ":");
       buf.append(eStream.getTotalSyncTime());
+      EditLogStreamFlusher flusher = flushers.get(eStream);
+      if (flusher != null && flusher.isLagging()) {
+        buf.append("(lagging)");
+      }
       buf.append(" ");
     }
     FSNamesystem.LOG.info(buf);
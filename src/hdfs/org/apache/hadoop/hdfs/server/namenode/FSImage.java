@@ -43,10 +43,17 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -75,6 +82,7 @@ import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.Daemon;
 
 /**
  * FSImage handles checkpointing and logging of the namespace edits.
@@ -200,6 +208,17 @@ public class FSImage extends Storage {
   private CompressionCodecFactory codecFac;  // all the supported codecs
   private boolean saveOnStartup; // Should the namenode save image on startup or not
 
+  /**
+   * Sectioned image related fields, see {@link FSImageSections}
+   */
+  private boolean saveSectioned =
+    HdfsConstants.DFS_IMAGE_SAVE_SECTIONED_DEFAULT;
+  private int imageChunkSize = HdfsConstants.DFS_IMAGE_CHUNK_SIZE_DEFAULT;
+  private int imageLoadThreads = HdfsConstants.DFS_IMAGE_LOAD_THREADS_DEFAULT;
+  private int imageSaveThreads = HdfsConstants.DFS_IMAGE_SAVE_THREADS_DEFAULT;
+  private int imageSaveSegmentINodes =
+    HdfsConstants.DFS_IMAGE_SAVE_SEGMENT_INODES_DEFAULT;
+
   DataTransferThrottler imageTransferThrottler = null; // throttle image transfer
   
   /**
@@ -252,9 +271,25 @@ public class FSImage extends Storage {
         HdfsConstants.DFS_IMAGE_COMPRESS_KEY,
         HdfsConstants.DFS_IMAGE_COMPRESS_DEFAULT);
     this.codecFac = new CompressionCodecFactory(conf);
+    this.editLog.setSlowJournalPolicy(conf);
     this.saveOnStartup = conf.getBoolean(
         HdfsConstants.DFS_IMAGE_SAVE_ON_START_KEY,
         HdfsConstants.DFS_IMAGE_SAVE_ON_START_DEFAULT);
+    this.saveSectioned = conf.getBoolean(
+        HdfsConstants.DFS_IMAGE_SAVE_SECTIONED_KEY,
+        HdfsConstants.DFS_IMAGE_SAVE_SECTIONED_DEFAULT);
+    this.imageChunkSize = conf.getInt(
+        HdfsConstants.DFS_IMAGE_CHUNK_SIZE_KEY,
+        HdfsConstants.DFS_IMAGE_CHUNK_SIZE_DEFAULT);
+    this.imageLoadThreads = Math.max(1, conf.getInt(
+        HdfsConstants.DFS_IMAGE_LOAD_THREADS_KEY,
+        HdfsConstants.DFS_IMAGE_LOAD_THREADS_DEFAULT));
+    this.imageSaveThreads = Math.max(1, conf.getInt(
+        HdfsConstants.DFS_IMAGE_SAVE_THREADS_KEY,
+        HdfsConstants.DFS_IMAGE_SAVE_THREADS_DEFAULT));
+    this.imageSaveSegmentINodes = Math.max(1, conf.getInt(
+        HdfsConstants.DFS_IMAGE_SAVE_SEGMENT_INODES_KEY,
+        HdfsConstants.DFS_IMAGE_SAVE_SEGMENT_INODES_DEFAULT));
     if (this.compressImage) {
       String codecClassName = conf.get(
           HdfsConstants.DFS_IMAGE_COMPRESSION_CODEC_KEY,
@@ -854,12 +889,16 @@ public class FSImage extends Storage {
   void writeCheckpointTime(StorageDirectory sd) throws IOException {
     if (checkpointTime < 0L)
       return; // do not write negative time
+    long time = checkpointTime;
+    if (editLog != null && editLog.isLagging(sd)) {
+      time--; // see FSEditLog#isLagging
+    }
     File timeFile = getImageFile(sd, NameNodeFile.TIME);
     if (timeFile.exists()) { timeFile.delete(); }
     DataOutputStream out = new DataOutputStream(
                                                 new FileOutputStream(timeFile));
     try {
-      out.writeLong(checkpointTime);
+      out.writeLong(time);
     } finally {
       out.close();
     }
@@ -1213,18 +1252,26 @@ public class FSImage extends Storage {
 
       // read compression related info
       boolean isCompressed = false;
+      boolean isSectioned = false;
       if (imgVersion <= -25) {  // -25: 1st version providing compression option
         isCompressed = in.readBoolean();
         if (isCompressed) {
           String codecClassName = Text.readString(in);
-          CompressionCodec loadCodec = codecFac.getCodecByClassName(codecClassName);
-          if (loadCodec == null) {
-            throw new IOException("Image compression codec not supported: "
-                                 + codecClassName);
+          if (FSImageSections.SECTIONED_IMAGE.equals(codecClassName)) {
+            // chunks are compressed on their own, see FSImageSections
+            isCompressed = false;
+            isSectioned = true;
+            LOG.info("Loading sectioned image file " + src);
+          } else {
+            CompressionCodec loadCodec = codecFac.getCodecByClassName(codecClassName);
+            if (loadCodec == null) {
+              throw new IOException("Image compression codec not supported: "
+                                   + codecClassName);
+            }
+            in = new DataInputStream(loadCodec.createInputStream(fin));
+            LOG.info("Loading image file " + src + 
+                " compressed using codec " + codecClassName);
           }
-          in = new DataInputStream(loadCodec.createInputStream(fin));
-          LOG.info("Loading image file " + src + 
-              " compressed using codec " + codecClassName);
         }
       }
       if (!isCompressed) {
@@ -1233,14 +1280,19 @@ public class FSImage extends Storage {
       
       // load all inodes
       LOG.info("Number of files = " + numFiles);
-      if (imgVersion <= -30) {
-        loadLocalNameINodes(imgVersion, numFiles, in);
+      if (isSectioned) {
+        // includes the files under construction
+        loadSectionedImage(imgVersion, numFiles, in);
       } else {
-        loadFullNameINodes(imgVersion, numFiles, in);
-      }
+        if (imgVersion <= -30) {
+          loadLocalNameINodes(imgVersion, numFiles, in);
+        } else {
+          loadFullNameINodes(imgVersion, numFiles, in);
+        }
 
-      // load Files Under Construction
-      this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
+        // load Files Under Construction
+        this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
+      }
       
        // make sure to read to the end of file
        int eof = in.read();
@@ -1344,7 +1396,8 @@ public class FSImage extends Storage {
          + "is not a directory.");
      }
      int numChildren = in.readInt();
-     ((INodeDirectory) parent).setChildrenCapacity(numChildren);
+     ((INodeDirectory) parent).setChildrenCapacity(numChildren,
+         fsDir.chunkedChildrenThreshold);
      for(int i=0; i<numChildren; i++) {
        // load single inode
        byte[] localName = new byte[in.readShort()];
@@ -1360,6 +1413,191 @@ public class FSImage extends Storage {
      return numChildren;
    }
   
+  /**
+   * Children of a directory, or a part of them, decoded from a chunk of a
+   * sectioned image.
+   */
+  private static class INodeRecord {
+    final byte[] parentPath;
+    final int numChildren;
+    final int first;
+    final byte[][] names;
+    final INode[] inodes;
+
+    INodeRecord(byte[] parentPath, int numChildren, int first, int count) {
+      this.parentPath = parentPath;
+      this.numChildren = numChildren;
+      this.first = first;
+      this.names = new byte[count][];
+      this.inodes = new INode[count];
+    }
+  }
+
+  /**
+   * Decodes the inodes of a chunk of a sectioned image. Decoding needs
+   * nothing but the chunk, so chunks are decoded concurrently.
+   */
+  private class INodeChunkDecoder implements Callable<List<INodeRecord>> {
+    private final int imgVersion;
+    private final FSImageSections.Chunk chunk;
+
+    INodeChunkDecoder(int imgVersion, FSImageSections.Chunk chunk) {
+      this.imgVersion = imgVersion;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public List<INodeRecord> call() throws IOException {
+      FSNamesystem namesystem = getFSNamesystem();
+      DataInputStream in = chunk.getInputStream();
+      int numRecords = chunk.getNumRecords();
+      List<INodeRecord> records = new ArrayList<INodeRecord>(numRecords);
+      for (int r = 0; r < numRecords; r++) {
+        byte[] parentPath = new byte[in.readShort()];
+        in.readFully(parentPath);
+        int numChildren = in.readInt();
+        int first = in.readInt();
+        INodeRecord record =
+          new INodeRecord(parentPath, numChildren, first, in.readInt());
+        for (int i = 0; i < record.inodes.length; i++) {
+          record.names[i] = new byte[in.readShort()];
+          in.readFully(record.names[i]);
+          record.inodes[i] = loadINode(imgVersion, namesystem, in);
+        }
+        records.add(record);
+      }
+      return records;
+    }
+  }
+
+  /**
+   * Load a sectioned image, see {@link FSImageSections}. Inode chunks are
+   * decoded by a pool of threads while this thread reads the image and
+   * links the decoded inodes into the tree, in the order of the image so
+   * that every parent is linked before its children.
+   *
+   * @param imgVersion image version number
+   * @param numFiles total number of files to load
+   * @param in image input stream, positioned after the header
+   * @throws IOException if any error occurs
+   */
+  private void loadSectionedImage(final int imgVersion, long numFiles,
+      DataInputStream in) throws IOException {
+    FSNamesystem namesystem = getFSNamesystem();
+    FSImageSections.Reader reader =
+      new FSImageSections.Reader(in, codecFac);
+    ExecutorService decoders = newDaemonPool(imageLoadThreads,
+                                             "FSImageLoader-");
+    // bounds the decoded chunks that are held in memory
+    int maxPending = 2 * imageLoadThreads;
+    LinkedList<Future<List<INodeRecord>>> pending =
+      new LinkedList<Future<List<INodeRecord>>>();
+    long filesLoaded = 0;
+    int percentDone = 0;
+    try {
+      FSImageSections.Chunk chunk;
+      while ((chunk = reader.next()) != null) {
+        if (chunk.getType() == FSImageSections.INODES) {
+          pending.add(decoders.submit(new INodeChunkDecoder(imgVersion, chunk)));
+          while (pending.size() > maxPending) {
+            filesLoaded += linkINodes(getResult(pending.removeFirst(), "decode the image"));
+            percentDone = printProgress(filesLoaded, numFiles, percentDone);
+          }
+        } else {
+          // all inodes are in the tree before the files under construction
+          while (!pending.isEmpty()) {
+            filesLoaded += linkINodes(getResult(pending.removeFirst(), "decode the image"));
+            percentDone = printProgress(filesLoaded, numFiles, percentDone);
+          }
+          loadFilesUnderConstruction(imgVersion, chunk.getInputStream(),
+                                     namesystem);
+        }
+      }
+      while (!pending.isEmpty()) {
+        filesLoaded += linkINodes(getResult(pending.removeFirst(), "decode the image"));
+        percentDone = printProgress(filesLoaded, numFiles, percentDone);
+      }
+    } finally {
+      decoders.shutdownNow();
+    }
+    if (numFiles != filesLoaded) {
+      throw new IOException("Read unexpect number of files: " + filesLoaded);
+    }
+  }
+
+  /**
+   * Get the result of a task that loads or saves a part of the image.
+   * @param action what the task does, for the exception message
+   */
+  private static <T> T getResult(Future<T> result, String action)
+      throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while waiting to " + action).initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw (IOException)new IOException(
+          "Unable to " + action).initCause(cause);
+    }
+  }
+
+  /**
+   * Create a pool of daemon threads that load or save parts of the image.
+   */
+  private static ExecutorService newDaemonPool(int threads,
+                                               final String namePrefix) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Daemon(r);
+        t.setName(namePrefix + count++);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Link decoded inodes into the tree.
+   * @return the number of inodes linked
+   */
+  private long linkINodes(List<INodeRecord> records) throws IOException {
+    FSNamesystem namesystem = getFSNamesystem();
+    FSDirectory fsDir = namesystem.dir;
+    long linked = 0;
+    for (INodeRecord record : records) {
+      linked += record.inodes.length;
+      if (record.parentPath.length == 0) {
+        // update the root's attributes
+        updateRootAttr(record.inodes[0], namesystem);
+        continue;
+      }
+      INode parent = fsDir.rootDir.getNode(record.parentPath);
+      if (parent == null || !parent.isDirectory()) {
+        throw new IOException("Path " + new String(record.parentPath, "UTF8")
+          + " is not a directory.");
+      }
+      INodeDirectory dir = (INodeDirectory) parent;
+      if (record.first == 0) {
+        dir.setChildrenCapacity(record.numChildren,
+            fsDir.chunkedChildrenThreshold);
+      }
+      for (int i = 0; i < record.inodes.length; i++) {
+        INode newNode = record.inodes[i];
+        fsDir.addToParent(record.names[i], dir, newNode, false,
+                          record.first + i);
+        if (!newNode.isDirectory()) {
+          fsDir.totalFiles++;
+        }
+      }
+    }
+    return linked;
+  }
+
   /**
    * load fsimage files assuming full path names are stored
    *
@@ -1579,35 +1817,59 @@ public class FSImage extends Storage {
       out.writeLong(fsNamesys.getGenerationStamp());
       out.writeLong(getEditLog().getLastWrittenTxId());
       
-      if (forceUncompressed) {
-        out.writeBoolean(false);
-      } else {
-        out.writeBoolean(compressImage);
-      }
-      if (!forceUncompressed && compressImage) {
-        String codecClassName = saveCodec.getClass().getCanonicalName();
-        Text.writeString(out, codecClassName);
-        out = new DataOutputStream(saveCodec.createOutputStream(fout));
-        LOG.info("Saving image file " + dest + 
-            " compressed using codec " + codecClassName);
-      } else {
+      if (saveSectioned) {
+        // marks the sectioned format, see FSImageSections
+        out.writeBoolean(true);
+        Text.writeString(out, FSImageSections.SECTIONED_IMAGE);
         out = new DataOutputStream(new BufferedOutputStream(fout));
+        // chunks are compressed on their own
+        CompressionCodec chunkCodec =
+          (!forceUncompressed && compressImage) ? saveCodec : null;
+        LOG.info("Saving sectioned image file " + dest + (chunkCodec == null ?
+            "" : " compressed using codec " +
+            chunkCodec.getClass().getCanonicalName()));
+        saveSectionedImage(fsNamesys, out, chunkCodec);
+      } else {
+        if (forceUncompressed) {
+          out.writeBoolean(false);
+        } else {
+          out.writeBoolean(compressImage);
+        }
+        if (!forceUncompressed && compressImage) {
+          String codecClassName = saveCodec.getClass().getCanonicalName();
+          Text.writeString(out, codecClassName);
+          out = new DataOutputStream(saveCodec.createOutputStream(fout));
+          LOG.info("Saving image file " + dest + 
+              " compressed using codec " + codecClassName);
+        } else {
+          out = new DataOutputStream(new BufferedOutputStream(fout));
+        }
+        
+        long start = FSNamesystem.now();
+        byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+        ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
+        // save the root
+        saveINode2Image(fsDir.rootDir, out);
+        // save the rest of the nodes
+        saveImage(saveNamespaceContext, strbuf, fsDir.rootDir, out, fsDir.totalInodes());
+        saveNamespaceContext.addPhaseTime(SaveNamespaceContext.Phase.INODES,
+            FSNamesystem.now() - start);
+        // save files under construction
+        start = FSNamesystem.now();
+        fsNamesys.saveFilesUnderConstruction(saveNamespaceContext, out);
+        saveNamespaceContext.addPhaseTime(
+            SaveNamespaceContext.Phase.FILES_UNDER_CONSTRUCTION,
+            FSNamesystem.now() - start);
+        strbuf = null;
       }
       
-      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
-      ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
-      // save the root
-      saveINode2Image(fsDir.rootDir, out);
-      // save the rest of the nodes
-      saveImage(saveNamespaceContext, strbuf, fsDir.rootDir, out, fsDir.totalInodes());
-      // save files under construction
-      fsNamesys.saveFilesUnderConstruction(saveNamespaceContext, out);
-      strbuf = null;
-      
+      long start = FSNamesystem.now();
       out.flush();
       if (fstream instanceof FileOutputStream) {
         ((FileOutputStream)fstream).getChannel().force(true);
       }
+      saveNamespaceContext.addPhaseTime(SaveNamespaceContext.Phase.SYNC,
+          FSNamesystem.now() - start);
     } finally {
       out.close();
     }
@@ -1671,6 +1933,7 @@ public class FSImage extends Storage {
     InjectionHandler
         .processEvent(InjectionEvent.FSIMAGE_STARTING_SAVE_NAMESPACE);
     try {
+      saveNamespaceContext.resetPhaseTimes();
       // try to restore all failed edit logs here
       assert editLog != null : "editLog must be initialized";
       attemptRestoreRemovedStorage();
@@ -1763,6 +2026,8 @@ public class FSImage extends Storage {
       if (!editLog.isOpen()) editLog.open();
       processIOError(errorSDs);
       ckptState = CheckpointStates.UPLOAD_DONE;
+      LOG.info("Saved namespace, time spent in each phase summed over " +
+          "all image directories: " + saveNamespaceContext.getPhaseTimes());
     } finally {
       saveNamespaceContext.clear();
     }
@@ -1973,6 +2238,263 @@ public class FSImage extends Storage {
     return inodesProcessed;
   }
 
+  /**
+   * Save the namespace in the sectioned format, see {@link FSImageSections}.
+   */
+  private void saveSectionedImage(FSNamesystem fsNamesys,
+                                  DataOutputStream out,
+                                  CompressionCodec codec) throws IOException {
+    FSDirectory fsDir = fsNamesys.dir;
+    FSImageSections.Writer writer =
+      new FSImageSections.Writer(out, codec, imageChunkSize);
+    // the root is in a record of its own with an empty path
+    writer.startRecord(PATH_SEPARATOR, 0, 1, 0);
+    saveINode2Image(fsDir.rootDir, writer.getOut());
+    writer.endRecord(1);
+    // save the rest of the nodes
+    long start = FSNamesystem.now();
+    long inodesTotal = fsDir.totalInodes();
+    long inodesProcessed;
+    if (imageSaveThreads > 1) {
+      new ParallelSaver(writer, codec, inodesTotal).save(fsDir.rootDir);
+      inodesProcessed = writer.getINodesWritten();
+    } else {
+      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+      ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
+      inodesProcessed = saveSectionedImage(saveNamespaceContext, strbuf,
+          fsDir.rootDir, writer, inodesTotal, 1);
+    }
+    if (inodesTotal != inodesProcessed) {
+      throw new IOException("NameNode corrupted: saved inodes = "
+          + inodesProcessed + " expected inodes = " + inodesTotal);
+    }
+    saveNamespaceContext.addPhaseTime(SaveNamespaceContext.Phase.INODES,
+        FSNamesystem.now() - start);
+    // save files under construction
+    start = FSNamesystem.now();
+    writer.startChunk(FSImageSections.FILES_UNDER_CONSTRUCTION);
+    fsNamesys.saveFilesUnderConstruction(saveNamespaceContext,
+                                         writer.getOut());
+    writer.close();
+    saveNamespaceContext.addPhaseTime(
+        SaveNamespaceContext.Phase.FILES_UNDER_CONSTRUCTION,
+        FSNamesystem.now() - start);
+  }
+
+  /**
+   * Saves the namespace into a sectioned image with several threads.
+   * The saver thread walks the directories in the order
+   * {@link #saveSectionedImage} saves in, and splits their children into
+   * segments of at most {@link #imageSaveSegmentINodes} inodes: the
+   * children of a large directory are split over several segments, those
+   * of small directories share a segment. The segments are saved
+   * concurrently and appended to the image in the order of the walk.
+   */
+  private class ParallelSaver {
+    private final FSImageSections.Writer writer;
+    private final CompressionCodec codec;
+    private final long inodesTotal;
+    private final ExecutorService savers;
+    // bounds the saved segments that are held in memory
+    private final int maxPending = 2 * imageSaveThreads;
+    private final LinkedList<Future<FSImageSections.Writer>> pending =
+      new LinkedList<Future<FSImageSections.Writer>>();
+    // the children of directories for the next segment
+    private List<SegmentPart> parts = new ArrayList<SegmentPart>();
+    private int partsINodes = 0;
+    private int percentDone = 0;
+
+    ParallelSaver(FSImageSections.Writer writer, CompressionCodec codec,
+                  long inodesTotal) {
+      this.writer = writer;
+      this.codec = codec;
+      this.inodesTotal = inodesTotal;
+      this.savers = newDaemonPool(imageSaveThreads, "FSImageSubtreeSaver-");
+    }
+
+    void save(INodeDirectory root) throws IOException {
+      try {
+        partition(root, new byte[0]);
+        submit();
+        while (!pending.isEmpty()) {
+          stitch();
+        }
+      } finally {
+        savers.shutdownNow();
+      }
+    }
+
+    private void partition(INodeDirectory dir, byte[] path)
+        throws IOException {
+      saveNamespaceContext.checkCancelled();
+      List<INode> children = dir.getChildrenRaw();
+      if (children == null || children.isEmpty()) {
+        return;
+      }
+      int numChildren = children.size();
+      for (int from = 0; from < numChildren;) {
+        int to = Math.min(numChildren,
+                          from + imageSaveSegmentINodes - partsINodes);
+        parts.add(new SegmentPart(path, children, from, to));
+        partsINodes += to - from;
+        from = to;
+        if (partsINodes >= imageSaveSegmentINodes) {
+          submit();
+        }
+      }
+      for (INode child : children) {
+        if (!child.isDirectory()) {
+          continue;
+        }
+        byte[] name = child.getLocalNameBytes();
+        byte[] childPath =
+          new byte[path.length + PATH_SEPARATOR.length + name.length];
+        System.arraycopy(path, 0, childPath, 0, path.length);
+        System.arraycopy(PATH_SEPARATOR, 0, childPath, path.length,
+                         PATH_SEPARATOR.length);
+        System.arraycopy(name, 0, childPath,
+                         path.length + PATH_SEPARATOR.length, name.length);
+        partition((INodeDirectory)child, childPath);
+      }
+    }
+
+    private void submit() throws IOException {
+      if (parts.isEmpty()) {
+        return;
+      }
+      pending.add(savers.submit(new SegmentSaver(parts)));
+      parts = new ArrayList<SegmentPart>();
+      partsINodes = 0;
+      while (pending.size() > maxPending) {
+        stitch();
+      }
+    }
+
+    private void stitch() throws IOException {
+      long start = FSNamesystem.now();
+      writer.append(getResult(pending.removeFirst(), "save the image"));
+      saveNamespaceContext.addPhaseTime(SaveNamespaceContext.Phase.STITCH,
+          FSNamesystem.now() - start);
+      percentDone = printProgress(writer.getINodesWritten(), inodesTotal,
+                                  percentDone, "Saved");
+    }
+
+    /**
+     * A range of the children of a directory.
+     */
+    private class SegmentPart {
+      private final byte[] path;
+      private final List<INode> children;
+      private final int from;
+      private final int to;
+
+      SegmentPart(byte[] path, List<INode> children, int from, int to) {
+        this.path = path;
+        this.children = children;
+        this.from = from;
+        this.to = to;
+      }
+    }
+
+    /**
+     * Saves ranges of the children of directories, without their subtrees,
+     * into a segment.
+     */
+    private class SegmentSaver implements Callable<FSImageSections.Writer> {
+      private final List<SegmentPart> parts;
+
+      SegmentSaver(List<SegmentPart> parts) {
+        this.parts = parts;
+      }
+
+      @Override
+      public FSImageSections.Writer call() throws IOException {
+        long start = FSNamesystem.now();
+        FSImageSections.Writer segment =
+          new FSImageSections.Writer(codec, imageChunkSize);
+        ByteBuffer strbuf =
+          ByteBuffer.wrap(new byte[4*FSConstants.MAX_PATH_LENGTH]);
+        for (SegmentPart part : parts) {
+          saveNamespaceContext.checkCancelled();
+          strbuf.clear();
+          strbuf.put(part.path);
+          saveSectionedChildren(strbuf, part.children, part.from, part.to,
+                                segment, 0, 0);
+        }
+        saveNamespaceContext.addPhaseTime(
+            SaveNamespaceContext.Phase.SERIALIZE, FSNamesystem.now() - start);
+        return segment;
+      }
+    }
+  }
+
+  /**
+   * Save the tree below the given directory in the sectioned format, in
+   * the same order as {@link #saveImage}. The children of a directory are
+   * split over several records when they do not fit in a chunk.
+   * Progress is not logged if inodesTotal is 0.
+   */
+  private static long saveSectionedImage(SaveNamespaceContext ctx,
+                                         ByteBuffer currentDirName,
+                                         INodeDirectory current,
+                                         FSImageSections.Writer writer,
+                                         long inodesTotal,
+                                         long inodesProcessed)
+                                         throws IOException {
+    // check if we should cancel the operation
+    ctx.checkCancelled();
+
+    List<INode> children = current.getChildrenRaw();
+    if (children == null || children.isEmpty())  // empty directory
+      return inodesProcessed;
+    int prefixLen = currentDirName.position();
+    // save all children first
+    inodesProcessed = saveSectionedChildren(currentDirName, children, 0,
+        children.size(), writer, inodesTotal, inodesProcessed);
+    // save sub-directories
+    for(INode child : children) {
+      if(!child.isDirectory())
+        continue;
+      currentDirName.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
+      inodesProcessed = saveSectionedImage(ctx, currentDirName,
+          (INodeDirectory)child, writer, inodesTotal, inodesProcessed);
+      currentDirName.position(prefixLen);
+    }
+    return inodesProcessed;
+  }
+
+  /**
+   * Save the children of a directory from index from (inclusive) to index
+   * to (exclusive) in the sectioned format, without their subtrees.
+   */
+  private static long saveSectionedChildren(ByteBuffer currentDirName,
+                                            List<INode> children,
+                                            int from, int to,
+                                            FSImageSections.Writer writer,
+                                            long inodesTotal,
+                                            long inodesProcessed)
+                                            throws IOException {
+    int prefixLen = currentDirName.position();
+    byte[] path = prefixLen == 0 ? PATH_SEPARATOR : currentDirName.array();
+    int pathLen = prefixLen == 0 ? PATH_SEPARATOR.length : prefixLen;
+    int numChildren = children.size();
+    int percentDone = inodesTotal == 0 ? 0 :
+      (int)(inodesProcessed * 100 / inodesTotal);
+    for (int i = from; i < to;) {
+      int first = i;
+      writer.startRecord(path, pathLen, numChildren, first);
+      do {
+        ++inodesProcessed;
+        if (inodesTotal != 0) {
+          percentDone = printProgress(inodesProcessed, inodesTotal, percentDone, "Saved");
+        }
+        saveINode2Image(children.get(i++), writer.getOut());
+      } while (i < to && !writer.isChunkFull());
+      writer.endRecord(i - first);
+    }
+    return inodesProcessed;
+  }
+
   void loadDatanodes(int version, DataInputStream in) throws IOException {
     if (version > -3) // pre datanode image version
       return;
@@ -0,0 +1,446 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * The body of a sectioned fsimage. Instead of one stream of inodes, the
+ * body is a sequence of chunks that can be decoded independently of each
+ * other, which lets the image be loaded by several threads.
+ * 
+ * A sectioned image has the usual image header, with the compression flag
+ * set and {@link #SECTIONED_IMAGE} in place of the codec name. The body
+ * that follows is laid out as:
+ * <pre>
+ *   Text   codec of the chunks, empty if the chunks are not compressed
+ *   chunk* byte type, int records, long inodes, int raw length,
+ *          int length, length bytes of (compressed) data
+ *   byte   END
+ *   int    number of chunks
+ *   index  byte type, long offset, int records, long inodes,
+ *          int raw length, int length of every chunk
+ *   long   offset of the END marker
+ * </pre>
+ * Offsets are relative to the first chunk.
+ * 
+ * An {@link #INODES} chunk holds whole records of the form
+ * <pre>
+ *   short path length, path of the parent directory,
+ *   int number of children of the parent, int index of the first child
+ *   in this record, int number of children in this record,
+ *   the children: each its local name and inode as in the flat image
+ * </pre>
+ * The children of a large directory may be spread over several records.
+ * The root comes first, in a record of its own with an empty path. A
+ * directory is listed in a record of its parent before its own children.
+ * The {@link #FILES_UNDER_CONSTRUCTION} chunk holds the files under
+ * construction as in the flat image, and follows all inode chunks.
+ */
+public class FSImageSections {
+  /**
+   * The codec name in the image header that marks a sectioned image.
+   * Software that does not know the sectioned format fails to load such
+   * an image because it does not know the codec.
+   */
+  public static final String SECTIONED_IMAGE =
+    "org.apache.hadoop.hdfs.server.namenode.FSImageSections";
+
+  public static final byte END = 0;
+  public static final byte INODES = 1;
+  public static final byte FILES_UNDER_CONSTRUCTION = 2;
+
+  private static final int CHUNK_HEADER_SIZE = 1 + 4 + 8 + 4 + 4;
+  private static final int INDEX_ENTRY_SIZE = 1 + 8 + 4 + 8 + 4 + 4;
+
+  private FSImageSections() {}
+
+  /**
+   * A chunk of the image, as read from the image.
+   */
+  public static class Chunk {
+    private final byte type;
+    private final int numRecords;
+    private final long numINodes;
+    private final int rawLength;
+    private final byte[] data;
+    private final CompressionCodec codec;
+
+    Chunk(byte type, int numRecords, long numINodes, int rawLength,
+          byte[] data, CompressionCodec codec) {
+      this.type = type;
+      this.numRecords = numRecords;
+      this.numINodes = numINodes;
+      this.rawLength = rawLength;
+      this.data = data;
+      this.codec = codec;
+    }
+
+    public byte getType() {
+      return type;
+    }
+
+    /** Number of records in an {@link #INODES} chunk. */
+    public int getNumRecords() {
+      return numRecords;
+    }
+
+    /** Number of inodes in an {@link #INODES} chunk. */
+    public long getNumINodes() {
+      return numINodes;
+    }
+
+    /**
+     * Get the decoded contents of the chunk. This may be called by any
+     * thread.
+     */
+    public DataInputStream getInputStream() throws IOException {
+      if (codec == null) {
+        return new DataInputStream(new ByteArrayInputStream(data));
+      }
+      byte[] raw = new byte[rawLength];
+      Decompressor decompressor = CodecPool.getDecompressor(codec);
+      try {
+        InputStream in = codec.createInputStream(
+            new ByteArrayInputStream(data), decompressor);
+        new DataInputStream(in).readFully(raw);
+      } finally {
+        CodecPool.returnDecompressor(decompressor);
+      }
+      return new DataInputStream(new ByteArrayInputStream(raw));
+    }
+  }
+
+  /**
+   * Writes the chunks of a sectioned image. The contents of the current
+   * chunk are written to {@link #getOut()}; inode chunks are written a
+   * record at a time.
+   * 
+   * A segment is a writer that buffers its chunks in memory instead of
+   * writing an image. Segments can be written concurrently and are then
+   * appended to the image in order, see {@link #append(Writer)}.
+   */
+  public static class Writer {
+    private final DataOutputStream out;
+    private final DataOutputBuffer segment; // null unless a segment
+    private final CompressionCodec codec;
+    private final int chunkSize;
+    private final DataOutputBuffer chunk = new DataOutputBuffer();
+    private final DataOutputBuffer compressed;
+    private final DataOutputBuffer index = new DataOutputBuffer();
+    private int numChunks = 0;
+    private long offset = 0;         // of the next chunk
+
+    private byte type = END;         // of the current chunk, END if none
+    private int numRecords;
+    private long numINodes;
+    private int recordCountPos;      // of the count of the open record
+    private long inodesWritten = 0;
+
+    /**
+     * @param out the image, positioned after the header
+     * @param codec codec to compress each chunk with, null for none
+     * @param chunkSize size in bytes after which a chunk is closed
+     */
+    public Writer(DataOutputStream out, CompressionCodec codec,
+                  int chunkSize) throws IOException {
+      this(out, null, codec, chunkSize);
+      Text.writeString(out,
+          codec == null ? "" : codec.getClass().getCanonicalName());
+    }
+
+    /**
+     * Create a segment.
+     * @param codec codec to compress each chunk with, must be the codec
+     *              of the writer the segment is appended to
+     * @param chunkSize size in bytes after which a chunk is closed
+     */
+    public Writer(CompressionCodec codec, int chunkSize) {
+      this(null, new DataOutputBuffer(), codec, chunkSize);
+    }
+
+    private Writer(DataOutputStream out, DataOutputBuffer segment,
+                   CompressionCodec codec, int chunkSize) {
+      this.out = segment == null ? out : segment;
+      this.segment = segment;
+      this.codec = codec;
+      this.chunkSize = chunkSize;
+      this.compressed = codec == null ? null : new DataOutputBuffer();
+    }
+
+    /** Number of inodes written to records so far. */
+    public long getINodesWritten() {
+      return inodesWritten;
+    }
+
+    /** The contents of the current chunk. */
+    public DataOutputStream getOut() {
+      return chunk;
+    }
+
+    /** Has the current chunk reached the chunk size? */
+    public boolean isChunkFull() {
+      return chunk.getLength() >= chunkSize;
+    }
+
+    /** End the current chunk, if any, and start one of the given type. */
+    public void startChunk(byte type) throws IOException {
+      endChunk();
+      this.type = type;
+    }
+
+    /**
+     * Start a record of children of a directory, in an inode chunk.
+     * @param path buffer holding the path of the directory
+     * @param pathLength length of the path in the buffer
+     * @param numChildren total number of children of the directory
+     * @param first index of the first child written to this record
+     */
+    public void startRecord(byte[] path, int pathLength, int numChildren,
+                            int first) throws IOException {
+      if (type != INODES) {
+        startChunk(INODES);
+      }
+      chunk.writeShort(pathLength);
+      chunk.write(path, 0, pathLength);
+      chunk.writeInt(numChildren);
+      chunk.writeInt(first);
+      recordCountPos = chunk.getLength();
+      chunk.writeInt(0);
+    }
+
+    /**
+     * End the open record, and the chunk if it is full.
+     * @param count number of children written to the record
+     */
+    public void endRecord(int count) throws IOException {
+      byte[] buf = chunk.getData();
+      buf[recordCountPos] = (byte)(count >>> 24);
+      buf[recordCountPos + 1] = (byte)(count >>> 16);
+      buf[recordCountPos + 2] = (byte)(count >>> 8);
+      buf[recordCountPos + 3] = (byte)count;
+      numRecords++;
+      numINodes += count;
+      inodesWritten += count;
+      if (isChunkFull()) {
+        flushChunk();
+      }
+    }
+
+    /** End the current chunk. */
+    public void endChunk() throws IOException {
+      if (type != END && chunk.getLength() > 0) {
+        flushChunk();
+      }
+      type = END;
+    }
+
+    /**
+     * Append the records of a segment. The chunks the segment has closed
+     * are copied as they are; the records of its open chunk are added to
+     * the current chunk, so that small segments share chunks.
+     */
+    public void append(Writer seg) throws IOException {
+      if (seg.segment == null || seg.codec != codec) {
+        throw new IllegalArgumentException("Not a segment of this image");
+      }
+      if (seg.numChunks > 0) {
+        endChunk();
+        out.write(seg.segment.getData(), 0, seg.segment.getLength());
+        DataInputBuffer entries = new DataInputBuffer();
+        entries.reset(seg.index.getData(), seg.index.getLength());
+        byte[] rest = new byte[INDEX_ENTRY_SIZE - 1 - 8];
+        for (int i = 0; i < seg.numChunks; i++) {
+          index.writeByte(entries.readByte());
+          index.writeLong(offset + entries.readLong());
+          entries.readFully(rest);
+          index.write(rest);
+        }
+        numChunks += seg.numChunks;
+        offset += seg.offset;
+      }
+      if (seg.type == INODES && seg.chunk.getLength() > 0) {
+        if (type != INODES) {
+          startChunk(INODES);
+        }
+        chunk.write(seg.chunk.getData(), 0, seg.chunk.getLength());
+        numRecords += seg.numRecords;
+        numINodes += seg.numINodes;
+        if (isChunkFull()) {
+          flushChunk();
+        }
+      }
+      inodesWritten += seg.inodesWritten;
+    }
+
+    private void flushChunk() throws IOException {
+      byte[] data = chunk.getData();
+      int length = chunk.getLength();
+      if (codec != null) {
+        compressed.reset();
+        Compressor compressor = CodecPool.getCompressor(codec);
+        try {
+          CompressionOutputStream cout =
+            codec.createOutputStream(compressed, compressor);
+          cout.write(data, 0, length);
+          cout.finish();
+        } finally {
+          CodecPool.returnCompressor(compressor);
+        }
+        data = compressed.getData();
+        length = compressed.getLength();
+      }
+      out.writeByte(type);
+      out.writeInt(numRecords);
+      out.writeLong(numINodes);
+      out.writeInt(chunk.getLength());
+      out.writeInt(length);
+      out.write(data, 0, length);
+
+      index.writeByte(type);
+      index.writeLong(offset);
+      index.writeInt(numRecords);
+      index.writeLong(numINodes);
+      index.writeInt(chunk.getLength());
+      index.writeInt(length);
+      numChunks++;
+      offset += CHUNK_HEADER_SIZE + length;
+
+      chunk.reset();
+      numRecords = 0;
+      numINodes = 0;
+    }
+
+    /** End the last chunk and write the index. */
+    public void close() throws IOException {
+      endChunk();
+      out.writeByte(END);
+      out.writeInt(numChunks);
+      out.write(index.getData(), 0, index.getLength());
+      out.writeLong(offset);
+    }
+  }
+
+  /**
+   * Reads the chunks of a sectioned image one after another, and checks
+   * them against the index at the end.
+   */
+  public static class Reader {
+    private final DataInputStream in;
+    private final CompressionCodec codec;
+    private final DataOutputBuffer index = new DataOutputBuffer();
+    private int numChunks = 0;
+    private long offset = 0;
+    private boolean done = false;
+
+    /**
+     * @param in the image, positioned after the header
+     * @param codecs factory of the codecs the chunks may be compressed with
+     */
+    public Reader(DataInputStream in, CompressionCodecFactory codecs)
+        throws IOException {
+      this.in = in;
+      String codecClassName = Text.readString(in);
+      if (codecClassName.length() == 0) {
+        this.codec = null;
+      } else {
+        this.codec = codecs.getCodecByClassName(codecClassName);
+        if (codec == null) {
+          throw new IOException("Image compression codec not supported: "
+                                + codecClassName);
+        }
+      }
+    }
+
+    /** The codec the chunks are compressed with, null if none. */
+    public CompressionCodec getCodec() {
+      return codec;
+    }
+
+    /**
+     * Read the next chunk.
+     * @return the chunk, or null after the last one
+     */
+    public Chunk next() throws IOException {
+      if (done) {
+        return null;
+      }
+      byte type = in.readByte();
+      if (type == END) {
+        verifyIndex();
+        done = true;
+        return null;
+      }
+      if (type != INODES && type != FILES_UNDER_CONSTRUCTION) {
+        throw new IOException("Unknown image chunk type " + type +
+                              " at offset " + offset);
+      }
+      int numRecords = in.readInt();
+      long numINodes = in.readLong();
+      int rawLength = in.readInt();
+      int length = in.readInt();
+      byte[] data = new byte[length];
+      in.readFully(data);
+
+      index.writeByte(type);
+      index.writeLong(offset);
+      index.writeInt(numRecords);
+      index.writeLong(numINodes);
+      index.writeInt(rawLength);
+      index.writeInt(length);
+      numChunks++;
+      offset += CHUNK_HEADER_SIZE + length;
+      return new Chunk(type, numRecords, numINodes, rawLength, data, codec);
+    }
+
+    private void verifyIndex() throws IOException {
+      int count = in.readInt();
+      if (count != numChunks) {
+        throw new IOException("Image index lists " + count +
+                              " chunks, found " + numChunks);
+      }
+      byte[] expected = new byte[count * INDEX_ENTRY_SIZE];
+      in.readFully(expected);
+      if (!Arrays.equals(expected,
+                         Arrays.copyOf(index.getData(), index.getLength()))) {
+        throw new IOException("Image index does not match the chunks");
+      }
+      long indexOffset = in.readLong();
+      if (indexOffset != offset) {
+        throw new IOException("Image index is at offset " + indexOffset +
+                              ", expected " + offset);
+      }
+    }
+  }
+}
@@ -36,6 +36,7 @@ import org.apache.hadoop.hdfs.server.namenode.DatanodeDescriptor.Decommissioning
 import org.apache.hadoop.hdfs.server.namenode.DecommissionManager.Monitor;
 import org.apache.hadoop.hdfs.server.namenode.metrics.FSNamesystemMBean;
 import org.apache.hadoop.hdfs.server.namenode.metrics.FSNamesystemMetrics;
+import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.PermissionChecker;
 import org.apache.hadoop.security.UnixUserGroupInformation;
@@ -58,6 +59,7 @@ import org.apache.hadoop.hdfs.server.protocol.DatanodeCommand;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.DisallowedDatanodeException;
 import org.apache.hadoop.hdfs.server.protocol.IncrementalBlockReport;
+import org.apache.hadoop.hdfs.server.protocol.ReceivedBlockInfo;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
 import org.apache.hadoop.hdfs.server.protocol.UpgradeCommand;
 import org.apache.hadoop.hdfs.util.LightWeightLinkedSet;
@@ -291,6 +293,10 @@ public class FSNamesystem extends ReconfigurableBase
   private int maxReplication;
   //  How many outgoing replication streams a given node should have at one time
   private int maxReplicationStreams;
+  // the replication streams each rack may send and receive at one time,
+  // or 0 for no limit; see ReplicationBudget
+  private int maxReplicationStreamsPerRack;
+  private ReplicationBudget replicationBudget = new ReplicationBudget(0);
   // MIN_REPLICATION is how many copies we need in place or else we disallow the write
   private int minReplication;
   // Min replication for closing a file
@@ -323,6 +329,8 @@ public class FSNamesystem extends ReconfigurableBase
    * Last block index used for replication work per priority
    */
   private int[] replIndex = new int[UnderReplicatedBlocks.LEVEL];
+  // the first block of each priority not yet processed, if known
+  private Block[] replNext = new Block[UnderReplicatedBlocks.LEVEL];
 
   /**
    * NameNode RPC address
@@ -342,6 +350,10 @@ public class FSNamesystem extends ReconfigurableBase
 
   private HostsFileReader hostsReader;
   private Daemon dnthread = null;
+  // if not null, incremental block reports are queued and applied in
+  // batches by ibrthread
+  private IncrementalBlockReportQueue incrementalBlockReportQueue = null;
+  private Daemon ibrthread = null;
 
   private long maxFsObjects = 0;          // maximum number of fs objects
 
@@ -353,12 +365,33 @@ public class FSNamesystem extends ReconfigurableBase
   // Ask Datanode only up to this many blocks to delete.
   int blockInvalidateLimit;
 
+  // if positive, block reports of datanodes that already have replicas are
+  // diffed under the read lock and applied in write-locked batches of
+  // this many changes; see processReportStaged
+  private int blockReportBatchSize = 0;
+
+  // if set, the first block reports of datanodes received in startup safe
+  // mode are processed concurrently; see processInitialReportConcurrently
+  private boolean concurrentInitialReports = false;
+  private static final int INITIAL_REPORT_STRIPES = 1024;
+  // locks of the replica lists of blocks while processing initial reports
+  private final Object[] initialReportStripes =
+    new Object[INITIAL_REPORT_STRIPES];
+  // datanodes whose initial report is being processed concurrently
+  private final Set<DatanodeDescriptor> initialReportsInProgress =
+    Collections.synchronizedSet(new HashSet<DatanodeDescriptor>());
+
   // precision of access times.
   private long accessTimePrecision = 0;
 
   // lock to protect FSNamesystem.
   private ReentrantReadWriteLock fsLock;
+  // records the wait and hold times of fsLock, null if it is not profiled
+  private FSNamesystemLockProfiler lockProfiler;
   boolean hasRwLock = false; // shall we use read/write locks?
+  // if not null, mkdirs, create and rename lock the directories they
+  // change under the read lock of FSNamesystem; see lockNamespace
+  private PathLockManager pathLocks = null;
 
   // do not use manual override to exit safemode
   volatile boolean manualOverrideSafeMode = false;
@@ -369,6 +402,9 @@ public class FSNamesystem extends ReconfigurableBase
   // The operation does not actually fail.
   private boolean permissionAuditOnly = false;
 
+  // directories under which users have passed the traverse check
+  private FSPermissionChecker.TraverseCache traverseCache = null;
+
   // set of absolute path names that cannot be deleted
   Set<String> neverDeletePaths = new TreeSet<String>();
 
@@ -417,6 +453,7 @@ public class FSNamesystem extends ReconfigurableBase
           -1) * 1000L, myFSMetrics);
     this.systemStart = now();
     this.fsLock = new ReentrantReadWriteLock(); // non-fair
+    this.lockProfiler = FSNamesystemLockProfiler.create(conf);
     configManager = new ConfigManager(this, conf);
     setConfigurationParameters(conf);
 
@@ -424,6 +461,12 @@ public class FSNamesystem extends ReconfigurableBase
     // The getter for this is deprecated
     this.nameNodeAddress = nn.getNameNodeAddress();
     this.nameNode = nn;
+    boolean offHeapTriplets = conf.getBoolean(
+        "dfs.namenode.blocksmap.offheap", false);
+    if (offHeapTriplets) {
+      LOG.info("Keeping the replica triplets of blocks off the heap");
+    }
+    blocksMap.setOffHeapTriplets(offHeapTriplets);
     this.dir = new FSDirectory(this, conf);
     StartupOption startOpt = NameNode.getStartupOption(conf);
     this.dir.loadFSImage(getNamespaceDirs(conf),
@@ -472,6 +515,18 @@ public class FSNamesystem extends ReconfigurableBase
       conf.getInt("dfs.namenode.decommission.nodes.per.interval", 5)));
     dnthread.start();
 
+    int ibrQueueSize =
+      conf.getInt("dfs.namenode.incrementalblockreport.queue.size", 0);
+    if (ibrQueueSize > 0) {
+      this.incrementalBlockReportQueue = new IncrementalBlockReportQueue(this,
+          ibrQueueSize,
+          conf.getInt("dfs.namenode.incrementalblockreport.batch.size", 100));
+      this.ibrthread = new Daemon(incrementalBlockReportQueue);
+      ibrthread.start();
+      LOG.info("Queueing up to " + ibrQueueSize +
+               " incremental block reports");
+    }
+
     this.dnsToSwitchMapping = ReflectionUtils.newInstance(
       conf.getClass("topology.node.switch.mapping.impl", ScriptBasedMapping.class,
         DNSToSwitchMapping.class), conf);
@@ -530,16 +585,22 @@ public class FSNamesystem extends ReconfigurableBase
     super(conf);
     this.clusterMap = new NetworkTopology(conf);
     this.fsLock = new ReentrantReadWriteLock();
+    this.lockProfiler = FSNamesystemLockProfiler.create(conf);
     setConfigurationParameters(conf);
     this.dir = new FSDirectory(fsImage, this, conf);
   }
 
   // utility methods to acquire and release read lock and write lock
   // If hasRwLock is false, then a readLock actually turns into  write lock.
+  // The lock profiler, if any, is told of every acquisition and release.
 
   void readLock() {
     if (this.hasRwLock) {
+      long start = (lockProfiler == null) ? 0 : System.nanoTime();
       this.fsLock.readLock().lock();
+      if (lockProfiler != null) {
+        lockProfiler.acquired(false, start);
+      }
     } else {
       writeLock();
     }
@@ -547,6 +608,9 @@ public class FSNamesystem extends ReconfigurableBase
 
   void readUnlock() {
     if (this.hasRwLock) {
+      if (lockProfiler != null) {
+        lockProfiler.released(false);
+      }
       this.fsLock.readLock().unlock();
     } else {
       writeUnlock();
@@ -554,10 +618,17 @@ public class FSNamesystem extends ReconfigurableBase
   }
 
   void writeLock() {
+    long start = (lockProfiler == null) ? 0 : System.nanoTime();
     this.fsLock.writeLock().lock();
+    if (lockProfiler != null) {
+      lockProfiler.acquired(true, start);
+    }
   }
 
   void writeUnlock() {
+    if (lockProfiler != null) {
+      lockProfiler.released(true);
+    }
     this.fsLock.writeLock().unlock();
   }
 
@@ -565,6 +636,55 @@ public class FSNamesystem extends ReconfigurableBase
     return this.fsLock.isWriteLockedByCurrentThread();
   }
 
+  /**
+   * Lock the namespace to change the children of the given directories.
+   *
+   * In the fine-grained mode this takes the read lock of FSNamesystem,
+   * which keeps out operations that need the whole namespace, and then the
+   * path locks of the directories, which keep out mutations of the same
+   * subtrees. The FSDirectory lock still serializes the changes to the
+   * tree itself. Otherwise this takes the write lock.
+   *
+   * @param fine whether to use the fine-grained mode if it is enabled
+   * @param dirs the normalized paths of the directories
+   * @return the path locks, or null if the write lock was taken
+   */
+  private PathLockManager.Locks lockNamespace(boolean fine, String... dirs) {
+    if (!fine || pathLocks == null) {
+      writeLock();
+      return null;
+    }
+    readLock();
+    return pathLocks.lock(dirs);
+  }
+
+  private void unlockNamespace(PathLockManager.Locks locks) {
+    if (locks == null) {
+      writeUnlock();
+    } else {
+      locks.unlock();
+      readUnlock();
+    }
+  }
+
+  boolean isFineGrainedLocking() {
+    return pathLocks != null;
+  }
+
+  /** The parent directory of a normalized path; the root for the root. */
+  private static String getParentPath(String path) {
+    int i = path.lastIndexOf(Path.SEPARATOR_CHAR);
+    return (i <= 0) ? Path.SEPARATOR : path.substring(0, i);
+  }
+
+  /**
+   * @return the profiler of the namesystem lock, or null if the lock is
+   *         not profiled
+   */
+  FSNamesystemLockProfiler getLockProfiler() {
+    return this.lockProfiler;
+  }
+
   /**
    * Set parameters derived from heartbeat interval.
    */
@@ -599,8 +719,25 @@ public class FSNamesystem extends ReconfigurableBase
     LOG.info("fsOwner=" + fsOwner);
 
     this.hasRwLock = conf.getBoolean("dfs.rwlock", false);
+    if (conf.getBoolean("dfs.namenode.lock.fine", false)) {
+      if (hasRwLock) {
+        this.pathLocks = new PathLockManager(
+            conf.getInt("dfs.namenode.lock.fine.stripes", 1024));
+        LOG.info("Fine-grained namespace locking with " +
+                 pathLocks.getNumStripes() + " path lock stripes");
+      } else {
+        LOG.warn("dfs.namenode.lock.fine needs dfs.rwlock; using the " +
+                 "write lock for all namespace mutations");
+      }
+    }
     this.supergroup = conf.get("dfs.permissions.supergroup", "supergroup");
     this.isPermissionEnabled = conf.getBoolean("dfs.permissions", true);
+    int traverseCacheSize = conf.getInt("dfs.permissions.traverse.cache.size",
+        10000);
+    if (traverseCacheSize > 0) {
+      this.traverseCache =
+        new FSPermissionChecker.TraverseCache(traverseCacheSize);
+    }
     this.setPersistBlocks(conf.getBoolean("dfs.persist.blocks", false));
     LOG.info("supergroup=" + supergroup);
     LOG.info("isPermissionEnabled=" + isPermissionEnabled);
@@ -650,7 +787,23 @@ public class FSNamesystem extends ReconfigurableBase
     }
     blockInvalidateLimit = conf.getInt("dfs.block.invalidate.limit",
         FSConstants.BLOCK_INVALIDATE_CHUNK);
+    this.blockReportBatchSize =
+      conf.getInt("dfs.namenode.blockreport.batch.size", 0);
+    this.concurrentInitialReports =
+      conf.getBoolean("dfs.namenode.blockreport.initial.concurrent", false);
+    if (concurrentInitialReports && !hasRwLock) {
+      LOG.warn("dfs.namenode.blockreport.initial.concurrent needs " +
+               "dfs.rwlock; initial block reports will be processed one " +
+               "at a time");
+    }
+    for (int i = 0; i < initialReportStripes.length; i++) {
+      initialReportStripes[i] = new Object();
+    }
     this.maxReplicationStreams = conf.getInt("dfs.max-repl-streams", 2);
+    this.maxReplicationStreamsPerRack =
+      conf.getInt("dfs.max-repl-streams-per-rack", 0);
+    this.replicationBudget =
+      new ReplicationBudget(maxReplicationStreamsPerRack);
     this.replicationWorkMultiplier =
         conf.getFloat("dfs.replication.iteration.multiplier",
             UnderReplicationMonitor.REPLICATION_WORK_MULTIPLIER_PER_ITERATION);
@@ -721,8 +874,12 @@ public class FSNamesystem extends ReconfigurableBase
 
   public OpenFilesInfo getOpenFiles() throws IOException {
     List <FileStatusExtended> openFiles = new ArrayList <FileStatusExtended>();
-    for (Lease lease : leaseManager.getSortedLeases()) {
-      for (String path : lease.getPaths()) {
+    for (Lease lease : leaseManager.getLeases()) {
+      String[] paths;
+      synchronized (leaseManager) {
+        paths = lease.getPaths().toArray(new String[0]);
+      }
+      for (String path : paths) {
         FileStatusExtended stat = this.getFileInfoExtended(path,
             lease.getHolder());
         if (stat != null) {
@@ -770,6 +927,10 @@ public class FSNamesystem extends ReconfigurableBase
       if (dnthread != null) {
         dnthread.interrupt();
       }
+      if (ibrthread != null) {
+        incrementalBlockReportQueue.stop();
+        ibrthread.interrupt();
+      }
       if (safeMode != null) {
         safeMode.shutdown();
       }
@@ -1154,6 +1315,30 @@ public class FSNamesystem extends ReconfigurableBase
     return blocks;
   }
 
+  /**
+   * Get block locations of a batch of files within the specified range,
+   * holding the read lock across the whole batch. As for a single file the
+   * access times are not updated: that would need the write lock, which
+   * cannot be taken while the read lock is held for the batch.
+   *
+   * @see ClientProtocol#getBlockLocations(String[], long, long)
+   */
+  LocatedBlocks[] getBlockLocations(String clientMachine, String[] srcs,
+                                    long offset, long length)
+    throws IOException {
+    LocatedBlocks[] results = new LocatedBlocks[srcs.length];
+    readLock();
+    try {
+      for (int i = 0; i < srcs.length; i++) {
+        results[i] = getBlockLocations(clientMachine, srcs[i],
+            offset, length, BlockMetaInfoType.NONE);
+      }
+    } finally {
+      readUnlock();
+    }
+    return results;
+  }
+
   /**
    * Get block locations within the specified range.
    *
@@ -1715,112 +1900,121 @@ public class FSNamesystem extends ReconfigurableBase
         + ", append=" + append);
     }
     
-    writeLock();
-    try {
-      if (isInSafeMode()) {
-        throw new SafeModeException("Cannot create file" + src, safeMode);
-      }
-      INode[] inodes = new INode[components.length];
-      dir.rootDir.getExistingPathINodes(components, inodes);
-      INode inode = inodes[inodes.length-1];
-      boolean pathExists = inode != null &&
-          (inode.isDirectory() || ((INodeFile)inode).getBlocks() != null);
-      if (pathExists && inode.isDirectory()) {
-        throw new IOException("Cannot create file " + src + "; already exists as a directory.");
-      }
-
-      if (isPermissionEnabled) {
-        if (append || (overwrite && pathExists)) {
-          checkPathAccess(src, inodes, FsAction.WRITE);
-        } else {
-          checkAncestorAccess(src, inodes, FsAction.WRITE);
-        }
-      }
-
-      if (!createParent) {
-        verifyParentDir(src);
-      }
-
+    String parent = getParentPath(dir.normalizePath(src));
+    for (boolean fine = true; ; fine = false) {
+      PathLockManager.Locks locks = lockNamespace(fine, parent);
       try {
-        INode myFile = (INodeFile) inode;
-        recoverLeaseInternal(myFile, src, holder, clientMachine, false, false);
+        if (isInSafeMode()) {
+          throw new SafeModeException("Cannot create file" + src, safeMode);
+        }
+        INode[] inodes = new INode[components.length];
+        dir.getExistingPathINodes(components, inodes);
+        INode inode = inodes[inodes.length-1];
+        if (locks != null && (append || inode != null ||
+                              inodes[inodes.length-2] == null)) {
+          // replacing a file, recovering its lease or creating the parent
+          // directories needs the write lock
+          continue;
+        }
+        boolean pathExists = inode != null &&
+            (inode.isDirectory() || ((INodeFile)inode).getBlocks() != null);
+        if (pathExists && inode.isDirectory()) {
+          throw new IOException("Cannot create file " + src + "; already exists as a directory.");
+        }
 
-        try {
-          verifyReplication(src, replication, clientMachine);
-        } catch (IOException e) {
-          throw new IOException("failed to create " + e.getMessage());
-        }
-        if (append) {
-          if (myFile == null) {
-            throw new FileNotFoundException("failed to append to non-existent file "
-              + src + " on client " + clientMachine);
-          } else if (myFile.isDirectory()) {
-            throw new IOException("failed to append to directory " + src
-              + " on client " + clientMachine);
-          }
-        } else if (myFile != null) {
-          if (overwrite) {
-            deleteInternal(src, inodes, false, true);
+        if (isPermissionEnabled) {
+          if (append || (overwrite && pathExists)) {
+            checkPathAccess(src, inodes, FsAction.WRITE);
           } else {
-            throw new IOException("failed to create file " + src
-              + " on client " + clientMachine
-              + " either because the filename is invalid or the file exists");
+            checkAncestorAccess(src, inodes, FsAction.WRITE);
           }
         }
 
-        DatanodeDescriptor clientNode =
-          host2DataNodeMap.getDatanodeByHost(clientMachine);
+        if (!createParent) {
+          verifyParentDir(src);
+        }
 
-        if (append) {
-          //
-          // Replace current node with a INodeUnderConstruction.
-          // Recreate in-memory lease record.
-          //
-          INodeFile node = (INodeFile) myFile;
-          INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
-            node.getLocalNameBytes(),
-            node.getReplication(),
-            node.getModificationTime(),
-            node.getPreferredBlockSize(),
-            node.getBlocks(),
-            node.getPermissionStatus(),
-            holder,
-            clientMachine,
-            clientNode);
-          dir.replaceNode(src, inodes, node, cons, true);
-          leaseManager.addLease(cons.clientName, src,
-                                cons.getModificationTime());
-          return cons;
-        } else {
-          // Now we can add the name to the filesystem. This file has no
-          // blocks associated with it.
-          //
-          checkFsObjectLimit();
-
-          // increment global generation stamp
-          long genstamp = nextGenerationStamp();
-          INodeFileUnderConstruction newNode = dir.addFile(
-            src, names, components, inodes, permissions,
-            replication, blockSize, holder, clientMachine, clientNode, genstamp);
-          if (newNode == null) {
-            throw new IOException("DIR* NameSystem.startFile: " +
-              "Unable to add file to namespace.");
+        try {
+          INode myFile = (INodeFile) inode;
+          recoverLeaseInternal(myFile, src, holder, clientMachine, false, false);
+
+          try {
+            verifyReplication(src, replication, clientMachine);
+          } catch (IOException e) {
+            throw new IOException("failed to create " + e.getMessage());
           }
-          leaseManager.addLease(newNode.clientName, src,
-                                newNode.getModificationTime());
-          if (NameNode.stateChangeLog.isDebugEnabled()) {
-            NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
-              + "add " + src + " to namespace for " + holder);
+          if (append) {
+            if (myFile == null) {
+              throw new FileNotFoundException("failed to append to non-existent file "
+                + src + " on client " + clientMachine);
+            } else if (myFile.isDirectory()) {
+              throw new IOException("failed to append to directory " + src
+                + " on client " + clientMachine);
+            }
+          } else if (myFile != null) {
+            if (overwrite) {
+              deleteInternal(src, inodes, false, true);
+            } else {
+              throw new IOException("failed to create file " + src
+                + " on client " + clientMachine
+                + " either because the filename is invalid or the file exists");
+            }
           }
-          return newNode;
+
+          DatanodeDescriptor clientNode =
+            host2DataNodeMap.getDatanodeByHost(clientMachine);
+
+          if (append) {
+            //
+            // Replace current node with a INodeUnderConstruction.
+            // Recreate in-memory lease record.
+            //
+            INodeFile node = (INodeFile) myFile;
+            INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
+              node.getLocalNameBytes(),
+              node.getReplication(),
+              node.getModificationTime(),
+              node.getPreferredBlockSize(),
+              node.getBlocks(),
+              node.getPermissionStatus(),
+              holder,
+              clientMachine,
+              clientNode);
+            dir.replaceNode(src, inodes, node, cons, true);
+            leaseManager.addLease(cons.clientName, src,
+                                  cons.getModificationTime());
+            return cons;
+          } else {
+            // Now we can add the name to the filesystem. This file has no
+            // blocks associated with it.
+            //
+            checkFsObjectLimit();
+
+            // increment global generation stamp
+            long genstamp = nextGenerationStamp();
+            INodeFileUnderConstruction newNode = dir.addFile(
+              src, names, components, inodes, permissions,
+              replication, blockSize, holder, clientMachine, clientNode, genstamp);
+            if (newNode == null) {
+              throw new IOException("DIR* NameSystem.startFile: " +
+                "Unable to add file to namespace.");
+            }
+            leaseManager.addLease(newNode.clientName, src,
+                                  newNode.getModificationTime());
+            if (NameNode.stateChangeLog.isDebugEnabled()) {
+              NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
+                + "add " + src + " to namespace for " + holder);
+            }
+            return newNode;
+          }
+        } catch (IOException ie) {
+          NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
+            + ie.getMessage());
+          throw ie;
         }
-      } catch (IOException ie) {
-        NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
-          + ie.getMessage());
-        throw ie;
+      } finally {
+        unlockNamespace(locks);
       }
-    } finally {
-      writeUnlock();
     }
   }
 
@@ -2199,7 +2393,7 @@ public class FSNamesystem extends ReconfigurableBase
       // have we exceeded the configured limit of fs objects.
       checkFsObjectLimit();
 
-      dir.rootDir.getExistingPathINodes(components, pathINodes);
+      dir.getExistingPathINodes(components, pathINodes);
       pendingFile =
          checkLease(src, clientName, pathINodes[pathINodes.length - 1]);
 
@@ -2916,15 +3110,20 @@ public class FSNamesystem extends ReconfigurableBase
       NameNode.stateChangeLog.debug("DIR* NameSystem.renameTo: " + src + " to " + dst);
     }
     
-    writeLock();
+    // the source parent loses a child and the destination or, if it is a
+    // directory, the destination itself gains one
+    String srcParent = getParentPath(dir.normalizePath(src));
+    String dstPath = dir.normalizePath(dst);
+    PathLockManager.Locks locks = lockNamespace(true, srcParent, dstPath,
+                                                getParentPath(dstPath));
     try {
       if (isInSafeMode()) {
         throw new SafeModeException("Cannot rename " + src, safeMode);
       }
       INode[] srcInodes = new INode[srcComponents.length];
-      dir.rootDir.getExistingPathINodes(srcComponents, srcInodes);
+      dir.getExistingPathINodes(srcComponents, srcInodes);
       INode[] dstInodes = new INode[dstComponents.length];
-      dir.rootDir.getExistingPathINodes(dstComponents, dstInodes);
+      dir.getExistingPathINodes(dstComponents, dstInodes);
       INode dstNode = dstInodes[dstInodes.length-1];
       String actualDst = dst;
       byte[] lastDstComponent = dstComponents[dstComponents.length-1];
@@ -2960,7 +3159,7 @@ public class FSNamesystem extends ReconfigurableBase
       }
       return null;
     } finally {
-      writeUnlock();
+      unlockNamespace(locks);
     }
   }
 
@@ -3073,6 +3272,7 @@ public class FSNamesystem extends ReconfigurableBase
           pendingReplications.remove(b);
         }    
       }    
+      replicationBudget.release(b);
       addToInvalidates(b, false);
       blocksMap.removeBlock(b);
     }
@@ -3147,6 +3347,70 @@ public class FSNamesystem extends ReconfigurableBase
     return dir.getHdfsFileInfo(src);
   }
 
+  /**
+   * Get the file info for a batch of files, holding the read lock across
+   * the whole batch.
+   *
+   * @param srcs The string representations of the paths to the files
+   * @return one entry per path; an entry is null if the file is not found
+   * @throws IOException if permission to access a file is denied
+   */
+  HdfsFileStatus[] getHdfsFileInfo(String[] srcs) throws IOException {
+    HdfsFileStatus[] stats = new HdfsFileStatus[srcs.length];
+    readLock();
+    try {
+      for (int i = 0; i < srcs.length; i++) {
+        String src = dir.normalizePath(srcs[i]);
+        INode[] inodes = dir.getExistingPathINodes(src);
+        if (isPermissionEnabled) {
+          checkTraverse(src, inodes);
+        }
+        INode targetNode = inodes[inodes.length-1];
+        stats[i] = targetNode == null ? null :
+            FSDirectory.getHdfsFileInfo(targetNode);
+      }
+    } finally {
+      readUnlock();
+    }
+    return stats;
+  }
+
+  /**
+   * Get the file info and the block locations of a batch of files, holding
+   * the read lock across the whole batch so that the locations of each file
+   * match its status. Access times are not updated, as in
+   * {@link #getBlockLocations(String, String[], long, long)}.
+   *
+   * @see ClientProtocol#getLocatedFileInfo(String[])
+   */
+  HdfsLocatedFileStatus[] getLocatedFileInfo(String clientMachine,
+                                             String[] srcs)
+    throws IOException {
+    HdfsLocatedFileStatus[] stats = new HdfsLocatedFileStatus[srcs.length];
+    readLock();
+    try {
+      for (int i = 0; i < srcs.length; i++) {
+        String src = dir.normalizePath(srcs[i]);
+        INode[] inodes = dir.getExistingPathINodes(src);
+        if (isPermissionEnabled) {
+          checkTraverse(src, inodes);
+        }
+        INode targetNode = inodes[inodes.length-1];
+        if (targetNode == null) {
+          continue;
+        }
+        LocatedBlocks locs = targetNode.isDirectory() ? null :
+            getBlockLocations(clientMachine, src, 0, Long.MAX_VALUE,
+                              BlockMetaInfoType.NONE);
+        stats[i] = new HdfsLocatedFileStatus(
+            FSDirectory.getHdfsFileInfo(targetNode), locs);
+      }
+    } finally {
+      readUnlock();
+    }
+    return stats;
+  }
+
   /** Get the block info for a specific block id.
    * @param id The id of the block for which info is requested
    * @return object containing information regarding the block
@@ -3202,41 +3466,47 @@ public class FSNamesystem extends ReconfigurableBase
     }
     // convert the names into an array of bytes w/o holding lock
     byte[][] components = INodeDirectory.getPathComponents(names);
-    INode[] inodes = new INode[components.length];
+    String parent = getParentPath(src);
 
-    writeLock();
-    try {
-      if (NameNode.stateChangeLog.isDebugEnabled()) {
-        NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
-      }
-      dir.rootDir.getExistingPathINodes(components, inodes);
-      if (isPermissionEnabled) {
-        checkTraverse(src, inodes);
-      }
-      INode lastINode = inodes[inodes.length-1];
-      if (lastINode !=null && lastINode.isDirectory()) {
-        // all the users of mkdirs() are used to expect 'true' even if
-        // a new directory is not created.
-        return lastINode;
-      }
-      if (isInSafeMode()) {
-        throw new SafeModeException("Cannot create directory " + src, safeMode);
-      }
-      if (isPermissionEnabled) {
-        checkAncestorAccess(src, inodes, FsAction.WRITE);
-      }
+    for (boolean fine = true; ; fine = false) {
+      INode[] inodes = new INode[components.length];
+      PathLockManager.Locks locks = lockNamespace(fine, parent);
+      try {
+        if (NameNode.stateChangeLog.isDebugEnabled()) {
+          NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
+        }
+        dir.getExistingPathINodes(components, inodes);
+        if (isPermissionEnabled) {
+          checkTraverse(src, inodes);
+        }
+        INode lastINode = inodes[inodes.length-1];
+        if (lastINode !=null && lastINode.isDirectory()) {
+          // all the users of mkdirs() are used to expect 'true' even if
+          // a new directory is not created.
+          return lastINode;
+        }
+        if (locks != null && inodes[inodes.length-2] == null) {
+          continue;  // creating the ancestors too needs the write lock
+        }
+        if (isInSafeMode()) {
+          throw new SafeModeException("Cannot create directory " + src, safeMode);
+        }
+        if (isPermissionEnabled) {
+          checkAncestorAccess(src, inodes, FsAction.WRITE);
+        }
 
-      // validate that we have enough inodes. This is, at best, a
-      // heuristic because the mkdirs() operation migth need to
-      // create multiple inodes.
-      checkFsObjectLimit();
+        // validate that we have enough inodes. This is, at best, a
+        // heuristic because the mkdirs() operation migth need to
+        // create multiple inodes.
+        checkFsObjectLimit();
 
-      if (!dir.mkdirs(src, names, components, inodes, inodes.length, permissions, false, now())) {
-        throw new IOException("Invalid directory name: " + src);
+        if (!dir.mkdirs(src, names, components, inodes, inodes.length, permissions, false, now())) {
+          throw new IOException("Invalid directory name: " + src);
+        }
+        return inodes[inodes.length-1];
+      } finally {
+        unlockNamespace(locks);
       }
-      return inodes[inodes.length-1];
-    } finally {
-      writeUnlock();
     }
   }
 
@@ -3672,7 +3942,7 @@ public class FSNamesystem extends ReconfigurableBase
     INode[] inodes = new INode[names.length];
     readLock();
     try {
-      dir.rootDir.getExistingPathINodes(names, inodes);
+      dir.getExistingPathINodes(names, inodes);
       getListingCheck(src, inodes);
       stats = dir.getPartialListing(src, inodes[inodes.length-1],
           startAfter, needLocation);
@@ -4243,23 +4513,29 @@ public class FSNamesystem extends ReconfigurableBase
       blocksToReplicate.add(new ArrayList<Block>());
     }
 
-    writeLock();
-    try {
-      synchronized (neededReplications) {
+    // neededReplications and replIndex are guarded by the monitor of
+    // neededReplications, so the namesystem lock is not needed here
+    synchronized (neededReplications) {
         if (neededReplications.size() == 0) {
           return blocksToReplicate;
         }
 
         for (int priority = 0; priority<UnderReplicatedBlocks.LEVEL; priority++) {
         // Go through all blocks that need replications of priority
-        BlockIterator neededReplicationsIterator = neededReplications.iterator(priority);
         int numBlocks = neededReplications.size(priority);
         if (replIndex[priority] > numBlocks) {
           replIndex[priority] = 0;
-        }
-        // skip to the first unprocessed block, which is at replIndex
-        for (int i = 0; i < replIndex[priority] && neededReplicationsIterator.hasNext(); i++) {
-          neededReplicationsIterator.next();
+          replNext[priority] = null;
+        }
+        // resume at the first unprocessed block if it is still queued,
+        // otherwise skip to replIndex
+        BlockIterator neededReplicationsIterator = replNext[priority] == null ?
+          null : neededReplications.iterator(priority, replNext[priority]);
+        if (neededReplicationsIterator == null) {
+          neededReplicationsIterator = neededReplications.iterator(priority);
+          for (int i = 0; i < replIndex[priority] && neededReplicationsIterator.hasNext(); i++) {
+            neededReplicationsIterator.next();
+          }
         }
         // # of blocks to process for this priority
         int blocksToProcessIter = getQuotaForThisPriority(blocksToProcess,
@@ -4278,11 +4554,49 @@ public class FSNamesystem extends ReconfigurableBase
           Block block = neededReplicationsIterator.next();
           blocksToReplicate.get(priority).add(block);
         } // end for
+        replNext[priority] = neededReplicationsIterator.hasNext() ?
+          neededReplicationsIterator.next() : null;
         }
-      } // end try
-      return blocksToReplicate;
-    } finally {
-      writeUnlock();
+    }
+    return blocksToReplicate;
+  }
+
+  /**
+   * Leave a block queued because the racks have no replication streams
+   * left, and remember it if it is the first of its priority.
+   */
+  private static void deferReplication(ReplicationWork rw,
+                                       Block[] firstDeferred) {
+    rw.targets = null;
+    if (firstDeferred[rw.priority] == null) {
+      firstDeferred[rw.priority] = rw.block;
+    }
+  }
+
+  /**
+   * Make the next iteration of the replication monitor resume each
+   * priority at the first block that was deferred for lack of replication
+   * streams, rather than after the blocks of this iteration.
+   */
+  private void resumeAtDeferred(List<List<Block>> blocksToReplicate,
+                                Block[] firstDeferred) {
+    synchronized (neededReplications) {
+      for (int priority = 0; priority < firstDeferred.length; priority++) {
+        if (firstDeferred[priority] == null) {
+          continue;
+        }
+        List<Block> blocks = blocksToReplicate.get(priority);
+        // blocks that left the queue already moved replIndex back
+        int stillQueued = 0;
+        for (int i = blocks.indexOf(firstDeferred[priority]);
+             i < blocks.size(); i++) {
+          if (neededReplications.contains(blocks.get(i))) {
+            stillQueued++;
+          }
+        }
+        replIndex[priority] = Math.max(0, replIndex[priority] - stillQueued);
+        replNext[priority] = firstDeferred[priority];
+      }
     }
   }
 
@@ -4300,8 +4614,12 @@ public class FSNamesystem extends ReconfigurableBase
 
     int scheduledWork = 0;
     List<ReplicationWork> work = new LinkedList<ReplicationWork>();
+    // the first block of each priority left queued for lack of budget
+    Block[] firstDeferred = new Block[UnderReplicatedBlocks.LEVEL];
 
-    writeLock();
+    // neededReplications is guarded by its own monitor, so only the read
+    // lock is needed to look at the replicas
+    readLock();
     try {
       synchronized (neededReplications) {
         for (priority = 0; priority < blocksToReplicate.size(); priority++) {
@@ -4339,11 +4657,22 @@ public class FSNamesystem extends ReconfigurableBase
         }
       }
     } finally {
-      writeUnlock();
+      readUnlock();
     }
 
     // choose replication targets: NOT HODING THE GLOBAL LOCK
+    // Targets are not chosen for sources whose rack has no streams left,
+    // counting one cross-rack stream for every block planned before.
+    Map<String, Integer> planned = new HashMap<String, Integer>();
     for(ReplicationWork rw : work){
+      String srcRack = rw.srcNode.getNetworkLocation();
+      Integer numPlanned = planned.get(srcRack);
+      int n = numPlanned == null ? 0 : numPlanned;
+      if (!replicationBudget.hasOutgoingRoom(srcRack, n)) {
+        deferReplication(rw, firstDeferred);
+        continue;
+      }
+      planned.put(srcRack, n + 1);
       DatanodeDescriptor targets[] = chooseTarget(rw);
       rw.targets = targets;
     }
@@ -4396,6 +4725,12 @@ public class FSNamesystem extends ReconfigurableBase
             continue;
           }
 
+          // leave the block queued if the racks have no streams left
+          if (!replicationBudget.acquire(block, rw.srcNode, targets)) {
+            deferReplication(rw, firstDeferred);
+            continue;
+          }
+
           // Add block to the to be replicated list
           rw.srcNode.addBlockToBeReplicated(block, targets);
           
@@ -4425,6 +4760,7 @@ public class FSNamesystem extends ReconfigurableBase
     } finally {
       writeUnlock();
     }
+    resumeAtDeferred(blocksToReplicate, firstDeferred);
 
     // update metrics
     updateReplicationMetrics(work);
@@ -4565,6 +4901,16 @@ public class FSNamesystem extends ReconfigurableBase
       if (srcNode.isDecommissionInProgress()) {
         continue;
       }
+      // prefer the node with the fewest replications queued, so that the
+      // work is spread over the replicas instead of loading hot nodes
+      int load = node.getNumberOfBlocksToBeReplicated();
+      int srcLoad = srcNode.getNumberOfBlocksToBeReplicated();
+      if (load < srcLoad) {
+        srcNode = node;
+        continue;
+      } else if (load > srcLoad) {
+        continue;
+      }
       // switch to a different node randomly
       // this to prevent from deterministically selecting the same node even
       // if the node failed to replicate the block on previous iterations
@@ -4668,6 +5014,7 @@ public class FSNamesystem extends ReconfigurableBase
       writeLock();
       try {
         for (int i = 0; i < timedOutItems.length; i++) {
+          replicationBudget.release(timedOutItems[i]);
           NumberReplicas num = countNodes(timedOutItems[i]);
           neededReplications.add(timedOutItems[i],
             num.liveReplicas(),
@@ -4767,7 +5114,12 @@ public class FSNamesystem extends ReconfigurableBase
    */
   void wipeDatanode(DatanodeID nodeID) throws IOException {
     String key = nodeID.getStorageID();
-    host2DataNodeMap.remove(datanodeMap.remove(key));
+    DatanodeDescriptor node = datanodeMap.remove(key);
+    host2DataNodeMap.remove(node);
+    // its replicas were removed with removeDatanode
+    if (node != null) {
+      blocksMap.releaseOffHeapDatanode(node);
+    }
     if (NameNode.stateChangeLog.isDebugEnabled()) {
       NameNode.stateChangeLog.debug(
         "BLOCK* NameSystem.wipeDatanode: "
@@ -4939,6 +5291,29 @@ public class FSNamesystem extends ReconfigurableBase
       }
     }
 
+    if (concurrentInitialReports) {
+      Collection<Block> toRetry =
+        this.getNameNode().shouldRetryAbsentBlocks() ?
+            new LinkedList<Block>() : null;
+      if (processInitialReportConcurrently(nodeID, newReport, toRetry)) {
+        return toRetry;
+      }
+    }
+
+    if (blockReportBatchSize > 0) {
+      DatanodeDescriptor node;
+      readLock();
+      try {
+        node = getDatanode(nodeID);
+      } finally {
+        readUnlock();
+      }
+      // the first report of a node is short-circuited below
+      if (node != null && node.numBlocks() != 0) {
+        return processReportStaged(nodeID, node, newReport);
+      }
+    }
+
     int processTime;
     Collection<Block> toAdd = null, toRemove = null, toInvalidate = null, toRetry = null;
     boolean firstReport = false;
@@ -5012,6 +5387,10 @@ public class FSNamesystem extends ReconfigurableBase
           + " does not belong to any file.");
       }
     }
+    if (firstReport) {
+      initialReportProcessed(nodeID, newReport.getNumberOfBlocks(),
+          processTime);
+    }
     String shortCircuit = firstReport ? " (shortCircuit first report)" : "";
     NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport"+ shortCircuit 
         + ": from " + nodeID.getName() + " with " + newReport.getNumberOfBlocks()
@@ -5029,6 +5408,268 @@ public class FSNamesystem extends ReconfigurableBase
     return toRetry;
   }
 
+  /**
+   * Process the first block report of a datanode received in startup safe
+   * mode concurrently with the first reports of other datanodes.
+   * <p/>
+   * The replicas of the datanode are added under the read lock. Adding a
+   * replica changes the replica list of the block and of the block at the
+   * head of the list of the datanode, so both are locked through
+   * {@link #initialReportStripes}. The lists of the datanode itself are
+   * only changed by the thread that processes its report. Replicas that
+   * need more than that, such as those of files under construction or
+   * with a different length, are added afterwards under the write lock,
+   * along with the count of safe blocks.
+   *
+   * @param toRetry blocks to retry are added to it if not null
+   * @return false if the report has to be processed the regular way
+   */
+  private boolean processInitialReportConcurrently(DatanodeID nodeID,
+      BlockListAsLongs newReport, Collection<Block> toRetry)
+      throws IOException {
+    long startTime = now();
+    DatanodeDescriptor node;
+    SafeModeInfo startupSafeMode;
+    readLock();
+    try {
+      if (!canProcessInitialReportConcurrently()) {
+        return false;
+      }
+      startupSafeMode = safeMode;
+      node = getDatanode(nodeID);
+      if (node == null || !node.isAlive) {
+        throw new IOException("ProcessReport from dead or unregistered node: "
+          + nodeID.getName());
+      }
+      if (!initialReportsInProgress.add(node)) {
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: "
+            + "discarded block report from " + nodeID.getName()
+            + " because its initial report is being processed");
+        return true;
+      }
+    } finally {
+      readUnlock();
+    }
+
+    List<Block> deferred = new ArrayList<Block>();
+    int blocksSafeAdded = 0;
+    long addTime;
+    try {
+      readLock();
+      try {
+        // safe mode may have ended while the lock was released
+        if (!canProcessInitialReportConcurrently() ||
+            node.numBlocks() != 0 || !node.isAlive) {
+          return false;
+        }
+        boolean countSafe =
+          !node.isDecommissionInProgress() && !node.isDecommissioned();
+        Block iblk = new Block(); // reused for every reported block
+        for (int i = 0; i < newReport.getNumberOfBlocks(); ++i) {
+          iblk.set(newReport.getBlockId(i), newReport.getBlockLen(i),
+            newReport.getBlockGenStamp(i));
+          BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+          INodeFile file = storedBlock == null ? null : storedBlock.getINode();
+          if (file == null || file.isUnderConstruction() ||
+              storedBlock.getNumBytes() != iblk.getNumBytes()) {
+            deferred.add(new Block(iblk));
+            continue;
+          }
+          int live = addInitialReplica(node, storedBlock);
+          if (countSafe && live == minReplication) {
+            blocksSafeAdded++;
+          }
+        }
+      } finally {
+        readUnlock();
+      }
+      addTime = now();
+
+      writeLock();
+      try {
+        // Count the safe blocks even if the node is gone: removing it has
+        // already decremented the count for the replicas added above.
+        if (safeMode == startupSafeMode && safeMode.isOn()) {
+          blocksSafe += blocksSafeAdded;
+        }
+        if (!node.isAlive) {
+          throw new IOException("ProcessReport from dead or unregistered " +
+            "node: " + nodeID.getName());
+        }
+        for (Block b : deferred) {
+          if (!addStoredBlockInternal(b, node, null, true)
+              && this.getNameNode().shouldRetryAbsentBlock(b)) {
+            toRetry.add(b);
+          }
+        }
+        dnReporting++;
+      } finally {
+        writeUnlock();
+        checkSafeMode();
+      }
+    } finally {
+      initialReportsInProgress.remove(node);
+    }
+    long endTime = now();
+    int processTime = (int)(endTime - startTime);
+    NameNode.getNameNodeMetrics().blockReport.inc(processTime);
+    initialReportProcessed(nodeID, newReport.getNumberOfBlocks(), processTime);
+    NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport "
+        + "(concurrent first report): from " + nodeID.getName() + " with "
+        + newReport.getNumberOfBlocks() + " blocks took " + processTime
+        + "ms (add " + (addTime - startTime) + "ms, deferred "
+        + (endTime - addTime) + "ms): #deferred = " + deferred.size() + ".");
+    if (isInSafeMode()) {
+      LOG.info("BLOCK* NameSystem.processReport: " + dnReporting +
+          " data nodes reporting, " +
+          getSafeBlocks() + "/" + getBlocksTotal() +
+          " blocks safe (" + getSafeBlockRatio() + ")");
+    }
+    return true;
+  }
+
+  /**
+   * Replicas can only be added without updating the replication queues
+   * while the namenode is in startup safe mode and the queues are not
+   * being populated. Must be called with the read lock held.
+   */
+  private boolean canProcessInitialReportConcurrently() {
+    return isInStartupSafeMode() && !isPopulatingReplQueues() &&
+        !blocksMap.isOffHeapTriplets();
+  }
+
+  /**
+   * Add a replica of an initial block report to the datanode, locking the
+   * replica lists it changes. Locks are taken in the order of their stripes.
+   *
+   * @return the number of live replicas of the block after adding this one,
+   * or -1 if the datanode already had the replica
+   */
+  private int addInitialReplica(DatanodeDescriptor node, BlockInfo block) {
+    BlockInfo head = node.getBlockListHead();
+    int s1 = getInitialReportStripe(block);
+    int s2 = head == null ? s1 : getInitialReportStripe(head);
+    synchronized (initialReportStripes[Math.min(s1, s2)]) {
+      synchronized (initialReportStripes[Math.max(s1, s2)]) {
+        if (!node.addBlock(block)) {
+          return -1;
+        }
+        return countLiveNodes(block, blocksMap.nodeIterator(block));
+      }
+    }
+  }
+
+  private static int getInitialReportStripe(Block b) {
+    long id = b.getBlockId();
+    int h = (int)(id ^ (id >>> 32));
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & (INITIAL_REPORT_STRIPES - 1);
+  }
+
+  /**
+   * Record the processing time of the first block report of a datanode
+   * in the startup safe mode.
+   */
+  private void initialReportProcessed(DatanodeID nodeID, int numBlocks,
+      long processTime) {
+    SafeModeInfo sm = safeMode;
+    if (sm instanceof NameNodeSafeModeInfo) {
+      ((NameNodeSafeModeInfo)sm).initialBlockReportProcessed(
+          nodeID.getName(), numBlocks, processTime);
+    }
+  }
+
+  /**
+   * Process a block report in stages, holding the write lock only to apply
+   * the changes. The report is diffed against the block list of the node
+   * under the read lock, the replicas that were not reported are found
+   * without any lock, and the changes are then applied in batches of
+   * {@link #blockReportBatchSize}, each under the write lock.
+   */
+  private Collection<Block> processReportStaged(DatanodeID nodeID,
+      DatanodeDescriptor node, BlockListAsLongs newReport) throws IOException {
+    long startTime = now();
+    BlockReportDiff diff = new BlockReportDiff(node,
+        this.getNameNode().shouldRetryAbsentBlocks());
+    readLock();
+    try {
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: "
+          + "from " + nodeID.getName() + " " +
+          newReport.getNumberOfBlocks() + " blocks");
+      }
+      if (!node.isAlive) {
+        throw new IOException("ProcessReport from dead or unregistered node: "
+          + nodeID.getName());
+      }
+      diff.scan(blocksMap, newReport, this);
+    } finally {
+      readUnlock();
+    }
+    long scanTime = now();
+    diff.diff();
+    long diffTime = now();
+
+    int removed = 0, added = 0, invalidated = 0;
+    try {
+      while (removed < diff.toRemove.size() || added < diff.toAdd.size()
+             || invalidated < diff.toInvalidate.size()) {
+        writeLock();
+        try {
+          if (!node.isAlive) {
+            throw new IOException("ProcessReport from dead or unregistered " +
+              "node: " + nodeID.getName());
+          }
+          int ops = 0;
+          for (; removed < diff.toRemove.size() && ops < blockReportBatchSize;
+               removed++, ops++) {
+            // a block that changed since the scan is left to the next report
+            if (diff.isUnchangedSinceScan(removed, blocksMap)) {
+              removeStoredBlock(diff.toRemove.get(removed), node);
+            }
+          }
+          for (; added < diff.toAdd.size() && ops < blockReportBatchSize;
+               added++, ops++) {
+            addStoredBlock(diff.toAdd.get(added), node, null);
+          }
+          for (; invalidated < diff.toInvalidate.size() &&
+                 ops < blockReportBatchSize; invalidated++, ops++) {
+            Block b = diff.toInvalidate.get(invalidated);
+            if (blocksMap.getStoredBlock(b) == null) {
+              addToInvalidatesNoLog(b, node, false);
+            }
+          }
+        } finally {
+          writeUnlock();
+        }
+      }
+    } finally {
+      checkSafeMode();
+    }
+    long endTime = now();
+    NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+    metrics.blockReportScan.inc(scanTime - startTime);
+    metrics.blockReportDiff.inc(diffTime - scanTime);
+    metrics.blockReportApply.inc(endTime - diffTime);
+    metrics.blockReport.inc(endTime - startTime);
+
+    for (Block b : diff.toInvalidate) {
+      NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: block "
+        + b + " on " + nodeID.getName() + " size " + b.getNumBytes()
+        + " does not belong to any file.");
+    }
+    NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport (staged)"
+        + ": from " + nodeID.getName() + " with "
+        + newReport.getNumberOfBlocks() + " blocks took "
+        + (endTime - startTime) + "ms (scan " + (scanTime - startTime)
+        + "ms, diff " + (diffTime - scanTime) + "ms, apply "
+        + (endTime - diffTime) + "ms): #toAdd = " + diff.toAdd.size()
+        + " #toRemove = " + diff.toRemove.size()
+        + " #toInvalidate = " + diff.toInvalidate.size() + ".");
+    return diff.toRetry;
+  }
+
   /**
    * Return true if the block size number is valid
    */
@@ -5165,6 +5806,9 @@ public class FSNamesystem extends ReconfigurableBase
       } else {
         long cursize = storedBlock.getNumBytes();
         INodeFile file = storedBlock.getINode();
+        // the length of a closed file may change below
+        long[] oldCounts = (file == null || file.isUnderConstruction()) ?
+            null : dir.getSubtreeCountsSnapshot(file);
         if (cursize == 0) {
           storedBlock.setNumBytes(block.getNumBytes());
         } else if (cursize != block.getNumBytes()) {
@@ -5218,6 +5862,9 @@ public class FSNamesystem extends ReconfigurableBase
             LOG.warn("Error in deleting bad block " + block + e);
           }
         }
+        if (file != null) {
+          dir.updateSubtreeCounts(file, oldCounts);
+        }
       }
       block = storedBlock;
     } else {
@@ -5738,11 +6385,15 @@ public class FSNamesystem extends ReconfigurableBase
 
   public void blockReceivedAndDeleted(DatanodeRegistration nodeReg,
       Block receivedAndDeletedBlocks[]) throws IOException {
-  int received = 0;
-  int deleted = 0;
-  int processTime = 0;
-  writeLock();
-  long startTime = now();
+    if (incrementalBlockReportQueue != null) {
+      checkIncrementalBlockReportNode(nodeReg);
+      incrementalBlockReportQueue.put(nodeReg, receivedAndDeletedBlocks);
+      return;
+    }
+    int[] counts = new int[2];
+    int processTime = 0;
+    writeLock();
+    long startTime = now();
     try {
       DatanodeDescriptor node = getDatanode(nodeReg);
       if (node == null || !node.isAlive) {
@@ -5751,64 +6402,139 @@ public class FSNamesystem extends ReconfigurableBase
         throw new IOException(
           "Got blockReceivedDeleted message from unregistered or dead node " + nodeReg.getName());
       }
+      processReceivedAndDeleted(nodeReg, node, receivedAndDeletedBlocks,
+                                counts);
+    } finally {
+      processTime = (int)(now() - startTime);
+      writeUnlock();
+      logReceivedAndDeleted(nodeReg, receivedAndDeletedBlocks, counts[0],
+                            counts[1], processTime);
+    }
+  }
 
-      if (NameNode.stateChangeLog.isDebugEnabled()) {
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceivedDeleted"
-           + " is received from " + nodeReg.getName());
-      }
-
-      for (int i = 0; i < receivedAndDeletedBlocks.length; i++) {
-        //avatar datanode mighs send nulls in the array
-        if (receivedAndDeletedBlocks[i] == null) {
-          continue;
-        }
-        if (DFSUtil.isDeleted(receivedAndDeletedBlocks[i])) {
-          removeStoredBlock(receivedAndDeletedBlocks[i], node);
-          // only leave received block in the array
-          receivedAndDeletedBlocks[i] = null; 
-          deleted++;
-        } else {
-          blockReceived(receivedAndDeletedBlocks[i],
-              receivedAndDeletedBlocks[i].getDelHints(),node);
-          received++;
+  /**
+   * Apply the incremental block reports taken off the queue under one
+   * write lock. The reports of dead or unregistered datanodes are dropped.
+   */
+  void applyIncrementalBlockReports(
+      List<IncrementalBlockReportQueue.Report> reports) {
+    int[][] counts = new int[reports.size()][2];
+    int processTime = 0;
+    writeLock();
+    long startTime = now();
+    try {
+      for (int i = 0; i < reports.size(); i++) {
+        IncrementalBlockReportQueue.Report report = reports.get(i);
+        try {
+          DatanodeDescriptor node = getDatanode(report.nodeReg);
+          if (node == null || !node.isAlive) {
+            NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceivedDeleted" +
+              " is dropped for dead or unregistered node " +
+              report.nodeReg.getName());
+            continue;
+          }
+          processReceivedAndDeleted(report.nodeReg, node, report.blocks,
+                                    counts[i]);
+        } catch (IOException e) {
+          LOG.warn("Error applying the incremental block report of " +
+                   report.nodeReg.getName(), e);
         }
       }
     } finally {
       processTime = (int)(now() - startTime);
       writeUnlock();
-      if (received + deleted > 10) {
-        // Only log for bigger incremental block reports.
-        // This will cut a lot of logging.
-        NameNode.stateChangeLog.info("*BLOCK* NameNode.blockReceivedAndDeleted: "
-          + "from " + nodeReg.getName() + " took " + processTime
-          + "ms: (#received = " + received + ", "
-          + " #deleted = " + deleted + ")");
+    }
+    for (int i = 0; i < reports.size(); i++) {
+      IncrementalBlockReportQueue.Report report = reports.get(i);
+      logReceivedAndDeleted(report.nodeReg, report.blocks, counts[i][0],
+                            counts[i][1], processTime);
+    }
+  }
+
+  /**
+   * Check that an incremental block report comes from a live datanode
+   * before it is queued.
+   */
+  private void checkIncrementalBlockReportNode(DatanodeRegistration nodeReg)
+    throws IOException {
+    synchronized (datanodeMap) {
+      DatanodeDescriptor node = getDatanode(nodeReg);
+      if (node == null || !node.isAlive) {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceivedDeleted" +
+          " is received from dead or unregistered node " + nodeReg.getName());
+        throw new IOException(
+          "Got blockReceivedDeleted message from unregistered or dead node " + nodeReg.getName());
       }
-      if(!isInStartupSafeMode()){
-        int count = 0;
-        // At startup time, because too many new blocks come in
-        // they take up lots of space in the log file.
-        // So, we log only when namenode is out of safemode.
-        // We log only blockReceived messages.
-        for (int i = 0; i < receivedAndDeletedBlocks.length; i++) {
-          // log only the ones that have been processed
-          if (count > received) {
-            break;
-          }
-          Block blk = receivedAndDeletedBlocks[i];
-          if (blk == null) 
-              continue;
-          ++count;
-          if (blk.getNumBytes() != BlockFlags.NO_ACK) {       
-            NameNode.stateChangeLog.info("BLOCK* NameSystem.blockReceived: "
-                + "blockMap updated: " + nodeReg.getName() + " is added to "
-                + receivedAndDeletedBlocks[i] + " size "
-                + receivedAndDeletedBlocks[i].getNumBytes());
-          } else {
-            NameNode.stateChangeLog.info("BLOCK* NameSystem.blockReceived: "
-                + "for block "
-                + receivedAndDeletedBlocks[i] + " was rejected");
-          }
+    }
+  }
+
+  /**
+   * Apply the received and deleted blocks of a datanode. The deleted
+   * blocks are set to null in the array.
+   * @param counts the number of received and deleted blocks are added to
+   *        the first and second element
+   */
+  private void processReceivedAndDeleted(DatanodeRegistration nodeReg,
+      DatanodeDescriptor node, Block receivedAndDeletedBlocks[], int[] counts)
+      throws IOException {
+    if (NameNode.stateChangeLog.isDebugEnabled()) {
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceivedDeleted"
+         + " is received from " + nodeReg.getName());
+    }
+
+    for (int i = 0; i < receivedAndDeletedBlocks.length; i++) {
+      //avatar datanode mighs send nulls in the array
+      if (receivedAndDeletedBlocks[i] == null) {
+        continue;
+      }
+      if (DFSUtil.isDeleted(receivedAndDeletedBlocks[i])) {
+        removeStoredBlock(receivedAndDeletedBlocks[i], node);
+        // only leave received block in the array
+        receivedAndDeletedBlocks[i] = null; 
+        counts[1]++;
+      } else {
+        blockReceived(receivedAndDeletedBlocks[i],
+            receivedAndDeletedBlocks[i].getDelHints(),node);
+        counts[0]++;
+      }
+    }
+  }
+
+  private void logReceivedAndDeleted(DatanodeRegistration nodeReg,
+      Block receivedAndDeletedBlocks[], int received, int deleted,
+      int processTime) {
+    if (received + deleted > 10) {
+      // Only log for bigger incremental block reports.
+      // This will cut a lot of logging.
+      NameNode.stateChangeLog.info("*BLOCK* NameNode.blockReceivedAndDeleted: "
+        + "from " + nodeReg.getName() + " took " + processTime
+        + "ms: (#received = " + received + ", "
+        + " #deleted = " + deleted + ")");
+    }
+    if(!isInStartupSafeMode()){
+      int count = 0;
+      // At startup time, because too many new blocks come in
+      // they take up lots of space in the log file.
+      // So, we log only when namenode is out of safemode.
+      // We log only blockReceived messages.
+      for (int i = 0; i < receivedAndDeletedBlocks.length; i++) {
+        // log only the ones that have been processed
+        if (count > received) {
+          break;
+        }
+        Block blk = receivedAndDeletedBlocks[i];
+        if (blk == null) 
+            continue;
+        ++count;
+        if (blk.getNumBytes() != BlockFlags.NO_ACK) {       
+          NameNode.stateChangeLog.info("BLOCK* NameSystem.blockReceived: "
+              + "blockMap updated: " + nodeReg.getName() + " is added to "
+              + receivedAndDeletedBlocks[i] + " size "
+              + receivedAndDeletedBlocks[i].getNumBytes());
+        } else {
+          NameNode.stateChangeLog.info("BLOCK* NameSystem.blockReceived: "
+              + "for block "
+              + receivedAndDeletedBlocks[i] + " was rejected");
         }
       }
     }
@@ -5817,6 +6543,22 @@ public class FSNamesystem extends ReconfigurableBase
   public void blockReceivedAndDeleted(DatanodeRegistration nodeReg,
       IncrementalBlockReport receivedAndDeletedBlocks)
       throws IOException {
+    if (incrementalBlockReportQueue != null) {
+      // queue the report as blocks, since it is read again when applied
+      checkIncrementalBlockReportNode(nodeReg);
+      Block[] blocks = new Block[receivedAndDeletedBlocks.getLength()];
+      Block blk = new Block();
+      receivedAndDeletedBlocks.resetIterator();
+      for (int i = 0; receivedAndDeletedBlocks.hasNext(); i++) {
+        String hint = receivedAndDeletedBlocks.getNext(blk);
+        if (blk.getNumBytes() != BlockFlags.IGNORE) {
+          blocks[i] = hint == null ? new Block(blk)
+                                   : new ReceivedBlockInfo(blk, hint);
+        }
+      }
+      incrementalBlockReportQueue.put(nodeReg, blocks);
+      return;
+    }
     int received = 0;
     int deleted = 0;
     int processTime = 0;
@@ -6041,9 +6783,21 @@ public class FSNamesystem extends ReconfigurableBase
     // Modify the blocks->datanode map and node's map.
     //
     pendingReplications.remove(block);
+    replicationBudget.replicaAdded(block, node);
+    if (pendingReplications.getNumReplicas(block) == 0) {
+      replicationBudget.release(block);
+    }
     addStoredBlock(block, node, delHintNode);
   }
 
+  /**
+   * @return the number of incremental block reports waiting to be applied
+   */
+  public int getIncrementalBlockReportQueueLength() {
+    return incrementalBlockReportQueue == null ? 0 :
+      incrementalBlockReportQueue.size();
+  }
+
   public long getMissingBlocksCount() {
     // not locking
     return neededReplications.getCorruptBlocksCount();
@@ -7152,7 +7906,8 @@ public class FSNamesystem extends ReconfigurableBase
     throws AccessControlException {
     boolean permissionCheckFailed = false;
     FSPermissionChecker pc = new FSPermissionChecker(
-      fsOwner.getUserName(), supergroup);
+      fsOwner.getUserName(), supergroup, traverseCache,
+      dir.getNamespaceGeneration());
     if (!pc.isSuper) {
       dir.waitForReady();
       readLock();
@@ -7354,9 +8109,13 @@ public class FSNamesystem extends ReconfigurableBase
    * Increments, logs and then returns the stamp
    */
   private long nextGenerationStamp() {
-    long gs = generationStamp.nextStamp();
-    getEditLog().logGenerationStamp(gs);
-    return gs;
+    // creates may run concurrently under fine-grained locking; log the
+    // stamps in the order they are issued
+    synchronized (generationStamp) {
+      long gs = generationStamp.nextStamp();
+      getEditLog().logGenerationStamp(gs);
+      return gs;
+    }
   }
 
   /**
@@ -7441,8 +8200,7 @@ public class FSNamesystem extends ReconfigurableBase
     synchronized (leaseManager) {
       out.writeInt(leaseManager.countPath()); // write the size
 
-      LightWeightLinkedSet<Lease> sortedLeases = leaseManager.getSortedLeases();
-      Iterator<Lease> itr = sortedLeases.iterator();
+      Iterator<Lease> itr = leaseManager.getLeases().iterator();
       while (itr.hasNext()) {
         ctx.checkCancelled();
         Lease lease = itr.next();
@@ -8071,6 +8829,19 @@ public class FSNamesystem extends ReconfigurableBase
   public boolean getIsPrimary() {
     return getNameNode().getIsPrimary();
   }
+
+  /**
+   * Returned information is a JSON representation of the wait and hold
+   * times of the namesystem lock by operation, and of the recent long holds
+   */
+  @Override // NameNodeMXBean
+  public String getLockProfile() {
+    FSNamesystemLockProfiler profiler = getLockProfiler();
+    if (profiler == null) {
+      return "";
+    }
+    return JSON.toString(profiler.getProfile());
+  }
   
   /**
    * Remove an already decommissioned data node who is neither in include nor
@@ -0,0 +1,499 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.Server;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingHistogram;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Records how long each operation waits for and holds the namesystem lock.
+ * {@link FSNamesystem} tells it of every acquisition and release.
+ *
+ * An operation is the RPC method of the current call, or the runnable of a
+ * namenode daemon thread (e.g. ReplicationMonitor), or else the thread
+ * name. Holds longer than a threshold are also kept, with the stack trace
+ * of where the lock was acquired, in a ring buffer of the most recent long
+ * holds. To have that stack trace, every outermost acquisition records its
+ * call site; the stack trace is only built for the long holds.
+ *
+ * The times are kept by interval, so that the profile shows the recent
+ * behaviour of the lock: the times of the current interval and of the one
+ * before it are available.
+ *
+ * All times are in microseconds.
+ */
+class FSNamesystemLockProfiler {
+  public static final Log LOG =
+    LogFactory.getLog(FSNamesystemLockProfiler.class);
+
+  static final String ENABLED_KEY = "dfs.namenode.lock.profiler.enabled";
+  static final String THRESHOLD_KEY =
+    "dfs.namenode.lock.profiler.threshold.ms";
+  static final String HOLDS_KEY = "dfs.namenode.lock.profiler.holds";
+  static final String INTERVAL_KEY =
+    "dfs.namenode.lock.profiler.interval.sec";
+
+  /** Operations beyond this many are all recorded as OTHER. */
+  static final int MAX_OPERATIONS = 512;
+  static final String OTHER = "other";
+
+  /** Times of the read or the write lock of one operation. */
+  static class LockTimes {
+    final Histogram wait = new Histogram();
+    final Histogram hold = new Histogram();
+  }
+
+  /** Times of the read and the write lock of one operation. */
+  static class OperationTimes {
+    final LockTimes read = new LockTimes();
+    final LockTimes write = new LockTimes();
+
+    LockTimes get(boolean write) {
+      return write ? this.write : this.read;
+    }
+  }
+
+  /** A hold of the lock longer than the threshold. */
+  static class LongHold {
+    final String operation;
+    final boolean write;
+    final long holdTime;
+    final long releaseTime;
+    final String thread;
+    final StackTraceElement[] stackTrace;
+
+    /**
+     * @param site taken by the thread when it acquired the lock
+     */
+    LongHold(String operation, boolean write, long holdTime,
+             Thread thread, Throwable site) {
+      this.operation = operation;
+      this.write = write;
+      this.holdTime = holdTime;
+      this.releaseTime = System.currentTimeMillis();
+      this.thread = thread.getName();
+      this.stackTrace = site.getStackTrace();
+    }
+
+    /** The stack trace of where the lock was acquired. */
+    String getStackTrace() {
+      StringBuilder sb = new StringBuilder();
+      // skip the profiler and the lock methods of the namesystem
+      for (StackTraceElement e : stackTrace) {
+        String cls = e.getClassName();
+        if (cls.equals(FSNamesystemLockProfiler.class.getName()) ||
+            (cls.equals(FSNamesystem.class.getName()) &&
+             e.getMethodName().endsWith("Lock"))) {
+          continue;
+        }
+        sb.append("\tat ").append(e).append('\n');
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * A lock-free histogram of times, with the buckets of
+   * {@link MetricsTimeVaryingHistogram}.
+   */
+  static class Histogram {
+    private final AtomicLongArray counts =
+      new AtomicLongArray(MetricsTimeVaryingHistogram.NUM_BUCKETS);
+    private final AtomicLong numOps = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void add(long value) {
+      counts.incrementAndGet(MetricsTimeVaryingHistogram.getBucket(value));
+      numOps.incrementAndGet();
+      total.addAndGet(value);
+      long m;
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+      }
+    }
+
+    long getNumOps() {
+      return numOps.get();
+    }
+
+    long getTotal() {
+      return total.get();
+    }
+
+    long getMax() {
+      return max.get();
+    }
+
+    long[] getPercentiles() {
+      long[] c = new long[counts.length()];
+      long n = 0;
+      for (int i = 0; i < c.length; i++) {
+        c[i] = counts.get(i);
+        n += c[i];
+      }
+      return MetricsTimeVaryingHistogram.getPercentiles(c, n, max.get());
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> m = new HashMap<String, Object>();
+      m.put("NumOps", getNumOps());
+      m.put("Total", getTotal());
+      m.put("Max", getMax());
+      long[] p = getPercentiles();
+      for (int i = 0; i < p.length; i++) {
+        m.put(MetricsTimeVaryingHistogram.PERCENTILE_NAMES[i], p[i]);
+      }
+      return m;
+    }
+  }
+
+  /** The times of each operation over an interval. */
+  static class Interval {
+    final long startTime = System.currentTimeMillis();
+    final Map<String, OperationTimes> operations =
+      new ConcurrentHashMap<String, OperationTimes>();
+  }
+
+  /** The locks held by a thread. */
+  private static class HolderState {
+    int readDepth;
+    int writeDepth;
+    long readStart;
+    long writeStart;
+    String readOperation;
+    String writeOperation;
+    Throwable readSite;      // where the lock was acquired
+    Throwable writeSite;
+  }
+
+  private final ThreadLocal<HolderState> holders =
+    new ThreadLocal<HolderState>() {
+      protected HolderState initialValue() {
+        return new HolderState();
+      }
+    };
+
+  private volatile Interval current = new Interval();
+  private volatile Interval previous = null;
+  private final long intervalNanos;
+  private volatile long intervalEnd;   // System.nanoTime()
+  private final long thresholdNanos;
+  private final LongHold[] longHolds;
+  private int nextLongHold = 0;
+
+  /**
+   * @param thresholdMs holds longer than this are kept
+   * @param numLongHolds the number of long holds kept
+   * @param intervalMs the length of an interval; if not positive, the
+   *        times are never reset
+   */
+  FSNamesystemLockProfiler(long thresholdMs, int numLongHolds,
+                           long intervalMs) {
+    this.thresholdNanos = thresholdMs * 1000000L;
+    this.longHolds = new LongHold[Math.max(numLongHolds, 0)];
+    this.intervalNanos = intervalMs * 1000000L;
+    this.intervalEnd = System.nanoTime() + intervalNanos;
+  }
+
+  /**
+   * @return a profiler configured by conf, or null if profiling is
+   *         disabled
+   */
+  static FSNamesystemLockProfiler create(Configuration conf) {
+    if (!conf.getBoolean(ENABLED_KEY, false)) {
+      return null;
+    }
+    long threshold = conf.getLong(THRESHOLD_KEY, 100);
+    int holds = conf.getInt(HOLDS_KEY, 32);
+    long interval = conf.getLong(INTERVAL_KEY, 300);
+    LOG.info("Profiling the namesystem lock over intervals of " + interval +
+             " s; holds over " + threshold + " ms are kept in a buffer of " +
+             holds);
+    return new FSNamesystemLockProfiler(threshold, holds, interval * 1000);
+  }
+
+  /**
+   * The current thread has acquired the lock.
+   * @param write whether it is the write lock
+   * @param waitStart the System.nanoTime() before waiting for the lock
+   */
+  void acquired(boolean write, long waitStart) {
+    HolderState state = holders.get();
+    if (write ? state.writeDepth++ > 0 : state.readDepth++ > 0) {
+      return;  // a reentrant acquisition is part of the outer hold
+    }
+    long now = System.nanoTime();
+    rollInterval(now);
+    String operation = getOperation();
+    getTimes(operation).get(write).wait.add((now - waitStart) / 1000);
+    // the stack trace is only built if the hold turns out to be long
+    Throwable site = (longHolds.length > 0) ? new Throwable() : null;
+    if (write) {
+      state.writeStart = now;
+      state.writeOperation = operation;
+      state.writeSite = site;
+    } else {
+      state.readStart = now;
+      state.readOperation = operation;
+      state.readSite = site;
+    }
+  }
+
+  /**
+   * The current thread is releasing the lock.
+   * @param write whether it is the write lock
+   */
+  void released(boolean write) {
+    HolderState state = holders.get();
+    if (write ? --state.writeDepth > 0 : --state.readDepth > 0) {
+      return;
+    }
+    long start = write ? state.writeStart : state.readStart;
+    String operation = write ? state.writeOperation : state.readOperation;
+    Throwable site = write ? state.writeSite : state.readSite;
+    long now = System.nanoTime();
+    rollInterval(now);
+    long hold = now - start;
+    getTimes(operation).get(write).hold.add(hold / 1000);
+    if (hold >= thresholdNanos && site != null) {
+      addLongHold(new LongHold(operation, write, hold / 1000,
+                               Thread.currentThread(), site));
+    }
+    if (write) {
+      state.writeOperation = null;
+      state.writeSite = null;
+    } else {
+      state.readOperation = null;
+      state.readSite = null;
+    }
+  }
+
+  static String getOperation() {
+    String operation = Server.getCurrentMethodName();
+    if (operation != null) {
+      return operation;
+    }
+    Thread thread = Thread.currentThread();
+    if (thread instanceof Daemon) {
+      Runnable runnable = ((Daemon) thread).getRunnable();
+      if (runnable != null) {
+        String name = runnable.getClass().getSimpleName();
+        if (name.length() > 0) {
+          return name;
+        }
+      }
+    }
+    return thread.getName();
+  }
+
+  /**
+   * Start a new interval if the current one is over.
+   * @param now the current System.nanoTime()
+   */
+  private void rollInterval(long now) {
+    if (intervalNanos <= 0 || now - intervalEnd < 0) {
+      return;
+    }
+    synchronized (this) {
+      if (now - intervalEnd >= 0) {
+        previous = current;
+        current = new Interval();
+        intervalEnd = now + intervalNanos;
+      }
+    }
+  }
+
+  private OperationTimes getTimes(String operation) {
+    Map<String, OperationTimes> operations = current.operations;
+    OperationTimes times = operations.get(operation);
+    if (times == null) {
+      if (operations.size() >= MAX_OPERATIONS) {
+        operation = OTHER;
+      }
+      synchronized (operations) {
+        times = operations.get(operation);
+        if (times == null) {
+          times = new OperationTimes();
+          operations.put(operation, times);
+        }
+      }
+    }
+    return times;
+  }
+
+  private synchronized void addLongHold(LongHold hold) {
+    longHolds[nextLongHold] = hold;
+    nextLongHold = (nextLongHold + 1) % longHolds.length;
+  }
+
+  /** @return the kept long holds, longest first */
+  synchronized List<LongHold> getLongHolds() {
+    List<LongHold> holds = new ArrayList<LongHold>();
+    for (LongHold h : longHolds) {
+      if (h != null) {
+        holds.add(h);
+      }
+    }
+    Collections.sort(holds, new Comparator<LongHold>() {
+      public int compare(LongHold a, LongHold b) {
+        return (a.holdTime > b.holdTime) ? -1 :
+               (a.holdTime < b.holdTime) ? 1 : 0;
+      }
+    });
+    return holds;
+  }
+
+  /** @return the times of each operation in the current interval */
+  Map<String, OperationTimes> getOperations() {
+    return Collections.unmodifiableMap(current.operations);
+  }
+
+  /**
+   * @return the times of each operation in the previous interval, or null
+   *         if the first interval is not over yet
+   */
+  Map<String, OperationTimes> getPreviousOperations() {
+    Interval last = previous;
+    return (last == null) ? null :
+      Collections.unmodifiableMap(last.operations);
+  }
+
+  private static Map<String, Object> toMap(Interval interval) {
+    Map<String, Object> ops = new HashMap<String, Object>();
+    for (Map.Entry<String, OperationTimes> e :
+         interval.operations.entrySet()) {
+      Map<String, Object> times = new HashMap<String, Object>();
+      times.put("ReadWaitTime", e.getValue().read.wait.toMap());
+      times.put("ReadHoldTime", e.getValue().read.hold.toMap());
+      times.put("WriteWaitTime", e.getValue().write.wait.toMap());
+      times.put("WriteHoldTime", e.getValue().write.hold.toMap());
+      ops.put(e.getKey(), times);
+    }
+    Map<String, Object> m = new HashMap<String, Object>();
+    m.put("startTime", interval.startTime);
+    m.put("operations", ops);
+    return m;
+  }
+
+  /**
+   * The profile as nested maps and lists, for JSON.
+   */
+  Map<String, Object> getProfile() {
+    Interval cur = current;
+    Interval last = previous;
+    List<Object> holds = new ArrayList<Object>();
+    for (LongHold h : getLongHolds()) {
+      Map<String, Object> hold = new HashMap<String, Object>();
+      hold.put("operation", h.operation);
+      hold.put("lock", h.write ? "write" : "read");
+      hold.put("holdTime", h.holdTime);
+      hold.put("releaseTime", h.releaseTime);
+      hold.put("thread", h.thread);
+      hold.put("stackTrace", h.getStackTrace());
+      holds.add(hold);
+    }
+    Map<String, Object> profile = new HashMap<String, Object>();
+    profile.put("currentInterval", toMap(cur));
+    if (last != null) {
+      profile.put("previousInterval", toMap(last));
+    }
+    profile.put("longHolds", holds);
+    return profile;
+  }
+
+  /**
+   * Print the operations of the previous and the current interval by their
+   * total hold time, then the long holds.
+   */
+  void printReport(PrintWriter out) {
+    Interval cur = current;
+    Interval last = previous;
+    if (last != null) {
+      printInterval(out, last, cur.startTime);
+    }
+    printInterval(out, cur, System.currentTimeMillis());
+    List<LongHold> holds = getLongHolds();
+    out.println("Recent holds over " + (thresholdNanos / 1000000) +
+                " ms, longest first");
+    for (LongHold h : holds) {
+      out.println(h.operation + " held the " + (h.write ? "write" : "read") +
+                  " lock for " + h.holdTime + " us in " + h.thread +
+                  ", released at " + new Date(h.releaseTime) +
+                  ", acquired at");
+      out.print(h.getStackTrace());
+    }
+  }
+
+  private static void printInterval(PrintWriter out, Interval interval,
+                                    long endTime) {
+    List<Map.Entry<String, OperationTimes>> ops =
+      new ArrayList<Map.Entry<String, OperationTimes>>(
+          interval.operations.entrySet());
+    Collections.sort(ops, new Comparator<Map.Entry<String, OperationTimes>>() {
+      public int compare(Map.Entry<String, OperationTimes> a,
+                         Map.Entry<String, OperationTimes> b) {
+        long x = a.getValue().write.hold.getTotal() +
+                 a.getValue().read.hold.getTotal();
+        long y = b.getValue().write.hold.getTotal() +
+                 b.getValue().read.hold.getTotal();
+        return (x > y) ? -1 : (x < y) ? 1 : 0;
+      }
+    });
+    out.println("Namesystem lock times in microseconds, by operation, from " +
+                new Date(interval.startTime) + " to " + new Date(endTime));
+    out.printf("%-32s %-5s %-4s %10s %14s %8s %8s %8s %8s %10s%n",
+               "operation", "lock", "", "ops", "total",
+               "p50", "p95", "p99", "p999", "max");
+    for (Map.Entry<String, OperationTimes> e : ops) {
+      for (boolean write : new boolean[] { true, false }) {
+        LockTimes times = e.getValue().get(write);
+        if (times.wait.getNumOps() == 0) {
+          continue;
+        }
+        printHistogram(out, e.getKey(), write, "hold", times.hold);
+        printHistogram(out, e.getKey(), write, "wait", times.wait);
+      }
+    }
+    out.println();
+  }
+
+  private static void printHistogram(PrintWriter out, String operation,
+      boolean write, String kind, Histogram h) {
+    long[] p = h.getPercentiles();
+    out.printf("%-32s %-5s %-4s %10d %14d %8d %8d %8d %8d %10d%n",
+               operation, write ? "write" : "read", kind, h.getNumOps(),
+               h.getTotal(), p[0], p[1], p[2], p[3], h.getMax());
+  }
+}
@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,9 +32,24 @@ import org.apache.hadoop.security.UserGroupInformation;
 class FSPermissionChecker extends PermissionChecker {
   static final Log LOG = LogFactory.getLog(UserGroupInformation.class);
 
+  private final TraverseCache traverseCache;
+  private final long generation;
+
   FSPermissionChecker(String fsOwner, String supergroup
       ) throws AccessControlException{
+    this(fsOwner, supergroup, null, 0);
+  }
+
+  /**
+   * @param traverseCache cache of the passed traverse checks, may be null
+   * @param generation the namespace generation read before the check
+   */
+  FSPermissionChecker(String fsOwner, String supergroup,
+      TraverseCache traverseCache, long generation
+      ) throws AccessControlException{
     super(fsOwner, supergroup);
+    this.traverseCache = traverseCache;
+    this.generation = generation;
   }
 
   /**
@@ -108,9 +124,32 @@ class FSPermissionChecker extends PermissionChecker {
 
   private void checkTraverse(INode[] inodes, int last
       ) throws AccessControlException {
+    if (traverseCache != null && last >= 0 &&
+        traverseCache.contains(user, groups, inodes[last], generation)) {
+      return;
+    }
     for(int j = 0; j <= last; j++) {
       check(inodes[j], FsAction.EXECUTE);
     }
+    if (traverseCache != null && last >= 0 && isLinked(inodes, last)) {
+      traverseCache.add(user, groups, inodes[last], generation);
+    }
+  }
+
+  /**
+   * Whether inodes[0..last] is still a chain of parent and child,
+   * i.e. the path was not changed after it was resolved.
+   */
+  private static boolean isLinked(INode[] inodes, int last) {
+    if (inodes[0] == null || inodes[0].getParent() != null) {
+      return false;
+    }
+    for(int j = 1; j <= last; j++) {
+      if (inodes[j] == null || inodes[j].getParent() != inodes[j-1]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private void checkSubAccess(INode inode, FsAction access
@@ -156,4 +195,86 @@ class FSPermissionChecker extends PermissionChecker {
     throw new AccessControlException("Permission denied: user=" + user
         + ", access=" + access + ", inode=" + inode);
   }
+
+  /**
+   * Remembers the directories under which a user has passed the traverse
+   * check, so that repeated lookups under the same prefix do not check
+   * every ancestor again. All the entries belong to one namespace
+   * generation and are dropped as soon as the generation changes.
+   */
+  static class TraverseCache {
+    private final int maxSize;
+    private final Map<Key, Set<String>> entries =
+      new ConcurrentHashMap<Key, Set<String>>();
+    private volatile long generation = -1;
+
+    TraverseCache(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * Whether the user with the given groups may traverse all the
+     * ancestors of the given directory, including the directory itself.
+     */
+    boolean contains(String user, Set<String> groups, INode inode,
+        long gen) {
+      if (gen != generation) {
+        if (gen > generation) {
+          advance(gen);
+        }
+        return false;
+      }
+      Set<String> cached = entries.get(new Key(user, inode));
+      return cached != null && cached.equals(groups);
+    }
+
+    /** Drop the entries of the generations before the given one. */
+    private synchronized void advance(long gen) {
+      if (gen > generation) {
+        entries.clear();
+        generation = gen;
+      }
+    }
+
+    synchronized void add(String user, Set<String> groups, INode inode,
+        long gen) {
+      if (gen < generation) {
+        return;
+      }
+      if (gen != generation || entries.size() >= maxSize) {
+        entries.clear();
+        generation = gen;
+      }
+      entries.put(new Key(user, inode),
+          Collections.unmodifiableSet(new HashSet<String>(groups)));
+    }
+
+    int size() {
+      return entries.size();
+    }
+
+    private static class Key {
+      private final String user;
+      private final INode inode;
+
+      Key(String user, INode inode) {
+        this.user = user;
+        this.inode = inode;
+      }
+
+      @Override
+      public int hashCode() {
+        return user.hashCode() * 31 + System.identityHashCode(inode);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (!(o instanceof Key)) {
+          return false;
+        }
+        Key that = (Key)o;
+        return inode == that.inode && user.equals(that.user);
+      }
+    }
+  }
 }
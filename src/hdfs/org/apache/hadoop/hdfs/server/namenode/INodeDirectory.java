@@ -37,8 +37,24 @@ class INodeDirectory extends INode {
   protected static final int UNKNOWN_INDEX = -1;
   final static String ROOT_NAME = "";
 
+  /**
+   * Default for the number of children above which {@link FSDirectory}
+   * keeps them in a {@link ChunkedINodeList}, see
+   * {@link #updateChildrenList(int)}.
+   */
+  static final int DEFAULT_CHUNKED_CHILDREN_THRESHOLD = 16 * 1024;
+
   private List<INode> children;
 
+  /**
+   * Length, file count, directory count and disk space of the subtree
+   * rooted at this directory, laid out as in
+   * {@link #computeContentSummary(long[])}. Only maintained by
+   * {@link FSDirectory} when incremental content summaries are enabled;
+   * files under construction contribute their file count only.
+   */
+  private long[] subtreeCounts;
+
   INodeDirectory(String name, PermissionStatus permissions) {
     super(name, permissions);
     this.children = null;
@@ -62,6 +78,10 @@ class INodeDirectory extends INode {
   INodeDirectory(INodeDirectory other) {
     super(other);
     this.children = other.getChildren();
+    this.subtreeCounts = other.subtreeCounts;
+    for (INode child : children) {
+      child.parent = this;
+    }
   }
   
   /**
@@ -71,13 +91,54 @@ class INodeDirectory extends INode {
     return true;
   }
   
-  public void setChildrenCapacity(int size){  
-    this.children = new ArrayList<INode>(size); 
+  long[] getSubtreeCounts() {
+    return subtreeCounts;
+  }
+
+  void setSubtreeCounts(long[] counts) {
+    this.subtreeCounts = counts;
+  }
+
+  public void setChildrenCapacity(int size, int chunkedThreshold){  
+    if (size > chunkedThreshold) {
+      this.children = new ChunkedINodeList();
+    } else {
+      this.children = new ArrayList<INode>(size); 
+    }
+  }
+
+  /**
+   * Keep the children in a {@link ChunkedINodeList} if there are more than
+   * chunkedThreshold of them, and switch back to an {@link ArrayList} when
+   * they shrink below half of it.
+   */
+  void updateChildrenList(int chunkedThreshold) {
+    if (children == null) {
+      return;
+    }
+    if (children instanceof ChunkedINodeList) {
+      if (children.size() < chunkedThreshold / 2) {
+        children = new ArrayList<INode>(children);
+      }
+    } else if (children.size() > chunkedThreshold) {
+      children = new ChunkedINodeList(children);
+    }
+  }
+
+  /**
+   * Search the children for a name, see
+   * {@link Collections#binarySearch(List, Object)}.
+   */
+  private int searchChildren(byte[] name) {
+    if (children instanceof ChunkedINodeList) {
+      return ((ChunkedINodeList)children).binarySearch(name);
+    }
+    return Collections.binarySearch(children, name);
   }
 
   INode removeChild(INode node) {
     assert children != null;
-    int low = Collections.binarySearch(children, node.name);
+    int low = searchChildren(node.name);
     if (low >= 0) {
       return children.remove(low);
     } else {
@@ -93,7 +154,7 @@ class INodeDirectory extends INode {
     if ( children == null ) {
       throw new IllegalArgumentException("The directory is empty");
     }
-    int low = Collections.binarySearch(children, newChild.name);
+    int low = searchChildren(newChild.name);
     if (low>=0) { // an old child exists so replace by the newChild
       children.set(low, newChild);
     } else {
@@ -109,7 +170,7 @@ class INodeDirectory extends INode {
     if (children == null) {
       return null;
     }
-    int low = Collections.binarySearch(children, name);
+    int low = searchChildren(name);
     if (low >= 0) {
       return children.get(low);
     }
@@ -254,7 +315,7 @@ class INodeDirectory extends INode {
     if (childIndex >= 0) {
       index = childIndex; 
     } else {
-      int low = Collections.binarySearch(children, node.name);
+      int low = searchChildren(node.name);
       if(low >= 0)
         return null;
       index = -low - 1;
@@ -286,7 +347,7 @@ class INodeDirectory extends INode {
     if (name.length == 0) { // empty name
       return 0;
     }
-    int nextPos = Collections.binarySearch(children, name) + 1;
+    int nextPos = searchChildren(name) + 1;
     if (nextPos >= 0) {  // the name is in the list of children
       return nextPos;
     }
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
+
+/**
+ * A queue of incremental block reports of datanodes.
+ * 
+ * The RPC handlers add the reports to the queue and return without taking
+ * the write lock of the namesystem. A single thread takes the reports off
+ * the queue and applies as many as are waiting, up to the batch size, under
+ * one write lock. When the queue is full, the handlers wait for room, which
+ * slows down the datanodes instead of letting the queue grow.
+ * 
+ * The reports of a datanode are applied in the order they were received.
+ */
+class IncrementalBlockReportQueue implements Runnable {
+  static final Log LOG = LogFactory.getLog(IncrementalBlockReportQueue.class);
+
+  /** An incremental block report of a datanode. */
+  static class Report {
+    final DatanodeRegistration nodeReg;
+    final Block[] blocks;
+
+    Report(DatanodeRegistration nodeReg, Block[] blocks) {
+      this.nodeReg = nodeReg;
+      this.blocks = blocks;
+    }
+  }
+
+  private final FSNamesystem namesystem;
+  private final BlockingQueue<Report> queue;
+  private final int maxBatchSize;
+  private volatile boolean running = true;
+
+  /**
+   * @param capacity the number of reports the queue holds
+   * @param maxBatchSize the number of reports applied under one lock
+   */
+  IncrementalBlockReportQueue(FSNamesystem namesystem, int capacity,
+                              int maxBatchSize) {
+    this.namesystem = namesystem;
+    this.queue = new LinkedBlockingQueue<Report>(capacity);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Add a report to the queue, waiting for room if the queue is full.
+   */
+  void put(DatanodeRegistration nodeReg, Block[] blocks) throws IOException {
+    try {
+      queue.put(new Report(nodeReg, blocks));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while queueing the " +
+          "incremental block report of " + nodeReg.getName());
+    }
+  }
+
+  /** @return the number of reports waiting to be applied */
+  int size() {
+    return queue.size();
+  }
+
+  void stop() {
+    running = false;
+  }
+
+  public void run() {
+    List<Report> batch = new ArrayList<Report>(maxBatchSize);
+    while (running && namesystem.isRunning()) {
+      try {
+        Report report = queue.poll(1, TimeUnit.SECONDS);
+        if (report == null) {
+          continue;
+        }
+        batch.add(report);
+        queue.drainTo(batch, maxBatchSize - 1);
+        namesystem.applyIncrementalBlockReports(batch);
+      } catch (InterruptedException ie) {
+        // running is checked again
+      } catch (Throwable t) {
+        LOG.error("Error applying incremental block reports", t);
+      } finally {
+        batch.clear();
+      }
+    }
+    LOG.info("Stopped applying incremental block reports; " + queue.size() +
+             " reports were left in the queue");
+  }
+}
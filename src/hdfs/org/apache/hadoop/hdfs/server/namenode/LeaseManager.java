@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,7 +36,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.util.InjectionEvent;
 import org.apache.hadoop.hdfs.util.InjectionHandler;
-import org.apache.hadoop.hdfs.util.LightWeightLinkedSet;
+import org.apache.hadoop.util.TimingWheel;
 
 /**
  * LeaseManager does the lease housekeeping for writing on files.   
@@ -75,13 +76,25 @@ public class LeaseManager {
   //
   // Used for handling lock-leases
   // Mapping: leaseHolder -> Lease
+  // The map is read and renewed without the LeaseManager lock, which
+  // only guards changes to it; renewals of different holders thus only
+  // contend on the segments of the map.
   //
-  private SortedMap<String, Lease> leases = new TreeMap<String, Lease>();
-  // Set of: Lease
-  private LightWeightLinkedSet<Lease> sortedLeases = new LightWeightLinkedSet<Lease>();
+  private final ConcurrentHashMap<String, Lease> leases =
+    new ConcurrentHashMap<String, Lease>();
+
+  //
+  // The leases scheduled to expire at their hard limit. A lease is not
+  // moved when it is renewed; checkLeases() reschedules it instead when
+  // the wheel returns it and it has not expired. Protected by the
+  // LeaseManager lock.
+  //
+  private TimingWheel<Lease> expiry;
 
   // 
-  // Map path names to leases. It is protected by the sortedLeases lock.
+  // Map path names to leases. It is protected by the LeaseManager lock,
+  // also for reading, as the fine-grained locking mode changes it under
+  // the read lock of FSNamesystem.
   // The map stores pathnames in lexicographical order.
   //
   private SortedMap<String, LeaseOpenTime> sortedLeasesByPath =
@@ -111,17 +124,36 @@ public class LeaseManager {
       this.discardLastBlockIfNoSync = conf.getBoolean(
           "dfs.leaserecovery.discardlastblock.ifnosync", false);
     }
-    
+    this.expiry = newExpiryWheel();
+  }
+
+  /**
+   * A wheel with ticks of a 64th of the hard limit, up to a second, and
+   * enough slots to schedule a full hard limit in one turn.
+   */
+  private TimingWheel<Lease> newExpiryWheel() {
+    long tickLength = Math.max(1, Math.min(1000, hardLimit / 64));
+    int numSlots = (int) Math.min(4096, hardLimit / tickLength + 2);
+    return new TimingWheel<Lease>(tickLength, numSlots, FSNamesystem.now());
+  }
+
+  /** Schedule a lease to be checked when it reaches its hard limit. */
+  private void scheduleExpiry(Lease lease) {
+    expiry.add(lease, lease.lastUpdate + hardLimit + 1);
   }
 
   Lease getLease(String holder) {
     return leases.get(holder);
   }
   
-  LightWeightLinkedSet<Lease> getSortedLeases() {return sortedLeases;}
+  /**
+   * @return the leases. The collection may be iterated without the
+   *         LeaseManager lock, but then may not reflect the latest changes.
+   */
+  Collection<Lease> getLeases() {return leases.values();}
 
   /** @return the lease containing src */
-  public Lease getLeaseByPath(String src) {
+  public synchronized Lease getLeaseByPath(String src) {
     LeaseOpenTime leaseOpenTime = sortedLeasesByPath.get(src);
     if (leaseOpenTime != null)
       return leaseOpenTime.lease;
@@ -129,13 +161,30 @@ public class LeaseManager {
       return null;
   }
 
+  /**
+   * @return the paths of the files under construction at or below
+   *         the given path
+   */
+  synchronized List<String> getPathsUnderConstruction(String prefix) {
+    List<String> paths = new ArrayList<String>();
+    if (Path.SEPARATOR.equals(prefix)) {
+      paths.addAll(sortedLeasesByPath.keySet());
+      return paths;
+    }
+    for (Map.Entry<String, LeaseOpenTime> entry :
+        findLeaseWithPrefixPath(prefix, sortedLeasesByPath)) {
+      paths.add(entry.getKey());
+    }
+    return paths;
+  }
+
   /** @return the number of leases currently in the system */
-  public synchronized int countLease() {return sortedLeases.size();}
+  public int countLease() {return leases.size();}
 
   /** @return the number of paths contained in all leases */
   public synchronized int countPath() {
     int count = 0;
-    for(Lease lease : sortedLeases) {
+    for(Lease lease : leases.values()) {
       count += lease.getPaths().size();
     }
     return count;
@@ -153,7 +202,7 @@ public class LeaseManager {
     if (lease == null) {
       lease = new Lease(holder);
       leases.put(holder, lease);
-      sortedLeases.add(lease);
+      scheduleExpiry(lease);
     } else {
       renewLease(lease);
     }
@@ -188,9 +237,9 @@ public class LeaseManager {
     }
 
     if (!lease.hasPath()) {
-      leases.remove(lease.holder);
-      if (!sortedLeases.remove(lease)) {
-        LOG.error(lease + " not found in sortedLeases");
+      // its entry in the expiry wheel is dropped when it comes up
+      if (!leases.remove(lease.holder, lease)) {
+        LOG.error(lease + " not found in leases");
       }
     }
     return leaseOpenTime;
@@ -261,23 +310,22 @@ public class LeaseManager {
       return result;
     }
 
-  synchronized void renewAllLeases() {
-    for (String holder : leases.keySet()) {
-      renewLease(holder);
+  void renewAllLeases() {
+    for (Lease lease : leases.values()) {
+      renewLease(lease);
     }
   }
 
   /**
-   * Renew the lease(s) held by the given client
+   * Renew the lease(s) held by the given client. This does not take the
+   * LeaseManager lock.
    */
-  synchronized void renewLease(String holder) {
+  void renewLease(String holder) {
     renewLease(getLease(holder));
   }
-  synchronized void renewLease(Lease lease) {
+  void renewLease(Lease lease) {
     if (lease != null) {
-      sortedLeases.remove(lease);
       lease.renew();
-      sortedLeases.add(lease);
     }
   }
 
@@ -286,8 +334,7 @@ public class LeaseManager {
    */
   synchronized void replaceLease(Lease newLease) {
     leases.put(newLease.getHolder(), newLease);
-    sortedLeases.remove(newLease);
-    sortedLeases.add(newLease);
+    scheduleExpiry(newLease);
 
     for (String path : newLease.paths) {
       sortedLeasesByPath.put(
@@ -303,7 +350,7 @@ public class LeaseManager {
    *************************************************************/
   class Lease implements Comparable<Lease> {
     private final String holder;
-    private long lastUpdate;
+    private volatile long lastUpdate;
     private final Collection<String> paths = new TreeSet<String>();
   
     /** Only LeaseManager object can create a lease */
@@ -444,9 +491,14 @@ public class LeaseManager {
   }
 
 
-  public void setLeasePeriod(long softLimit, long hardLimit) {
+  public synchronized void setLeasePeriod(long softLimit, long hardLimit) {
     this.softLimit = softLimit;
     this.hardLimit = hardLimit; 
+    // the deadlines depend on the hard limit
+    this.expiry = newExpiryWheel();
+    for (Lease lease : leases.values()) {
+      scheduleExpiry(lease);
+    }
   }
   
   /******************************************************
@@ -485,13 +537,21 @@ public class LeaseManager {
     }
   }
 
-  /** Check the leases beginning from the oldest. */
+  /**
+   * Check the leases the expiry wheel returns, which are the ones that
+   * may have reached their hard limit since the last check.
+   */
   synchronized void checkLeases() {
     int numPathsChecked = 0;
-    for(; sortedLeases.size() > 0; ) {
-      final Lease oldest = sortedLeases.first();
+    List<Lease> expired = expiry.expire(FSNamesystem.now());
+    for (int i = 0; i < expired.size(); i++) {
+      final Lease oldest = expired.get(i);
+      if (leases.get(oldest.holder) != oldest) {
+        continue; // the lease was removed
+      }
       if (!oldest.expiredHardLimit()) {
-        return;
+        scheduleExpiry(oldest); // the lease was renewed
+        continue;
       }
       
       // internalReleaseLease() removes paths corresponding to empty files,
@@ -504,6 +564,10 @@ public class LeaseManager {
           + Arrays.toString(leasePaths));
       for(String p : leasePaths) {
         if (++numPathsChecked > this.maxPathsPerCheck) {
+          // check the rest of the expired leases next time
+          for (int j = i; j < expired.size(); j++) {
+            scheduleExpiry(expired.get(j));
+          }
           return;
         }
         try {
@@ -515,6 +579,9 @@ public class LeaseManager {
           removeLease(oldest, p);
         }
       }
+      if (leases.get(oldest.holder) == oldest) {
+        scheduleExpiry(oldest); // paths are left, check again
+      }
     }
   }
 
@@ -522,7 +589,6 @@ public class LeaseManager {
   public synchronized String toString() {
     return getClass().getSimpleName() + "= {"
         + "\n leases=" + leases
-        + "\n sortedLeases=" + sortedLeases
         + "\n sortedLeasesByPath=" + sortedLeasesByPath
         + "\n}";
   }
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class is used in Namesystem's jetty to report the wait and hold
+ * times of the namesystem lock.
+ */
+public class LockProfileServlet extends HttpServlet {
+  /** For java.io.Serializable */
+  private static final long serialVersionUID = 1L;
+
+  public void doGet(HttpServletRequest request,
+                    HttpServletResponse response
+                    ) throws ServletException, IOException {
+    ServletContext context = getServletContext();
+    NameNode nn = (NameNode) context.getAttribute("name.node");
+    FSNamesystemLockProfiler profiler =
+      nn.getNamesystem().getLockProfiler();
+    response.setContentType("text/plain");
+    PrintWriter out = response.getWriter();
+    if (profiler == null) {
+      out.println("The namesystem lock is not profiled; set " +
+                  FSNamesystemLockProfiler.ENABLED_KEY + " to true.");
+    } else {
+      profiler.printReport(out);
+    }
+    out.flush();
+  }
+}
@@ -426,6 +426,8 @@ public class NameNode extends ReconfigurableBase
     this.httpServer.addInternalServlet("data", "/data/*", FileDataServlet.class);
     this.httpServer.addInternalServlet("checksum", "/fileChecksum/*",
         FileChecksumServlets.RedirectServlet.class);
+    this.httpServer.addInternalServlet("lockProfile", "/lockProfile",
+        LockProfileServlet.class);
     httpServer.setAttribute(ReconfigurationServlet.
                             CONF_SERVLET_RECONFIGURABLE_PREFIX +
                             CONF_SERVLET_PATH, NameNode.this);
@@ -711,6 +713,15 @@ public class NameNode extends ReconfigurableBase
                                         BlockMetaInfoType.NONE);
   }
   
+  @Override
+  public LocatedBlocks[] getBlockLocations(String[] srcs,
+                                           long offset,
+                                           long length) throws IOException {
+    myMetrics.numGetBlockLocations.inc(srcs.length);
+    return namesystem.getBlockLocations(getClientMachine(),
+                                        srcs, offset, length);
+  }
+
   public VersionedLocatedBlocks open(String src, 
                                      long offset, 
                                      long length) throws IOException {
@@ -1200,6 +1211,23 @@ public class NameNode extends ReconfigurableBase
     return value;
   }
 
+  @Override
+  public HdfsFileStatus[] getHdfsFileInfo(String[] srcs) throws IOException {
+    HdfsFileStatus[] values = namesystem.getHdfsFileInfo(srcs);
+    myMetrics.numFileInfoOps.inc(srcs.length);
+    return values;
+  }
+
+  @Override
+  public HdfsLocatedFileStatus[] getLocatedFileInfo(String[] srcs)
+      throws IOException {
+    HdfsLocatedFileStatus[] values =
+        namesystem.getLocatedFileInfo(getClientMachine(), srcs);
+    myMetrics.numFileInfoOps.inc(srcs.length);
+    myMetrics.numGetBlockLocations.inc(srcs.length);
+    return values;
+  }
+
   /** @inheritDoc */
   public long[] getStats() throws IOException {
     return namesystem.getStats();
@@ -183,4 +183,12 @@ public interface NameNodeMXBean {
    * Return true if the NN acts as the primary
    */
   public boolean getIsPrimary();
+
+  /**
+   * Gets the wait and hold times of the namesystem lock by operation, and
+   * the recent holds longer than the profiler threshold
+   *
+   * @return the lock profile, or an empty string if it is not profiled
+   */
+  public String getLockProfile();
 }
@@ -59,6 +59,15 @@ public class NameNodeSafeModeInfo implements SafeModeInfo {
    */
   private long lastStatusReport = 0;
 
+  /**
+   * statistics of the first block reports of datanodes
+   */
+  private int initialReports = 0;
+  private long initialReportBlocks = 0;
+  private long initialReportTime = 0;
+  private long maxInitialReportTime = 0;
+  private String slowestInitialReport = null;
+
   private final FSNamesystem namesystem;
   private final NameNode nameNode;
   private Daemon smmthread = null; // SafeModeMonitor thread
@@ -294,7 +303,8 @@ public class NameNodeSafeModeInfo implements SafeModeInfo {
         + ", Remaining blocks = "
         + (namesystem.getTotalBlocks() - namesystem.getSafeBlocks())
         + ". "
-        + "Reporting nodes = " + namesystem.getReportingNodes() + ". " + leaveMsg;
+        + "Reporting nodes = " + namesystem.getReportingNodes() + ". "
+        + getInitialBlockReportStats() + leaveMsg;
       if (reached == 0 || isManual()) // threshold is not reached or manual
       {
         return safeBlockRatioMsg + ".";
@@ -304,6 +314,38 @@ public class NameNodeSafeModeInfo implements SafeModeInfo {
         / 1000 + " seconds.";
     }
 
+  /**
+   * Record the processing of the first block report of a datanode.
+   *
+   * @param node name of the datanode
+   * @param numBlocks number of blocks in the report
+   * @param processTime time taken to process the report in ms
+   */
+  public synchronized void initialBlockReportProcessed(String node,
+      int numBlocks, long processTime) {
+    initialReports++;
+    initialReportBlocks += numBlocks;
+    initialReportTime += processTime;
+    if (slowestInitialReport == null || processTime > maxInitialReportTime) {
+      maxInitialReportTime = processTime;
+      slowestInitialReport = node;
+    }
+  }
+
+  /**
+   * @return statistics of the first block reports processed so far, or an
+   * empty string if there are none
+   */
+  public synchronized String getInitialBlockReportStats() {
+    if (initialReports == 0) {
+      return "";
+    }
+    return "Initial block reports = " + initialReports
+      + " (" + initialReportBlocks + " blocks), average time = "
+      + (initialReportTime / initialReports) + " ms, max time = "
+      + maxInitialReportTime + " ms (" + slowestInitialReport + "). ";
+  }
+
   /**
    * Print status every 20 seconds.
    */
@@ -0,0 +1,383 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Keeps the replica triplets of {@link BlockInfo}s outside of the Java heap.
+ * 
+ * A block that has replicas is given an id. The triplets of the block are
+ * a record of ints in a direct memory slab, with room for a number of
+ * replicas that is one of a few size classes. For each replica the record
+ * holds the id of the datanode and the ids of the previous and next blocks
+ * in the list of blocks of that datanode, each plus one so that 0 stands
+ * for null. Ids are mapped back to {@link DatanodeDescriptor}s and
+ * {@link BlockInfo}s through tables that hold one reference per datanode
+ * and per block, in place of an array of references per block.
+ * 
+ * Each {@link BlocksMap} that keeps its triplets off the heap has a store
+ * of its own, and only blocks and datanodes of that map may be linked in
+ * it; linking any other block throws {@link IllegalArgumentException}.
+ * 
+ * Records are changed only under the write lock of the namesystem, which
+ * is checked, and may be read concurrently under its read lock. Writes to
+ * records are not synchronized, so this is what keeps them from racing
+ * with {@link #reallocate}, which moves a record. Allocating and freeing
+ * records is also synchronized, and so is growing the tables, which are
+ * replaced rather than changed in place. The id of a datanode is released
+ * when the datanode is removed from the namesystem, once no record refers
+ * to it any more.
+ * 
+ * This replaces the array of references each {@link BlockInfo} has. The
+ * {@link BlockInfo}s themselves, the map that holds them and the table
+ * from ids to blocks stay on the heap.
+ */
+class OffHeapBlockTriplets {
+  /** block ids per chunk of the block tables */
+  private static final int SLOT_CHUNK_SHIFT = 16;
+  private static final int SLOT_CHUNK_SIZE = 1 << SLOT_CHUNK_SHIFT;
+  private static final int SLOT_CHUNK_MASK = SLOT_CHUNK_SIZE - 1;
+  /** ints per slab of records */
+  private static final int SLAB_INTS = 1 << 18;
+  /** the number of replicas the records of each size class have room for */
+  private static final int[] CLASS_CAPACITY =
+    {1, 2, 3, 4, 5, 6, 8, 12, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096};
+
+  /**
+   * Records of one size class. A record is addressed by its index in the
+   * class.
+   */
+  private static class SizeClass {
+    final int capacity;
+    final int recordInts;
+    final int recordsPerSlab;
+    volatile IntBuffer[] slabs = new IntBuffer[0];
+    int numRecords = 0;
+    int[] free = new int[16];
+    int numFree = 0;
+
+    SizeClass(int capacity) {
+      this.capacity = capacity;
+      this.recordInts = 3 * capacity;
+      this.recordsPerSlab = Math.max(1, SLAB_INTS / recordInts);
+    }
+
+    IntBuffer slab(int record) {
+      return slabs[record / recordsPerSlab];
+    }
+
+    int offset(int record) {
+      return (record % recordsPerSlab) * recordInts;
+    }
+  }
+
+  private final SizeClass[] classes = new SizeClass[CLASS_CAPACITY.length];
+
+  /** the block of each id */
+  private volatile BlockInfo[][] blocks = new BlockInfo[0][];
+  /** the size class and record of each id */
+  private volatile IntBuffer[] slots = new IntBuffer[0];
+  private int numSlots = 0;
+  private int[] freeSlots = new int[16];
+  private int numFreeSlots = 0;
+
+  /** the datanode of each datanode id */
+  private volatile DatanodeDescriptor[] datanodes = new DatanodeDescriptor[16];
+  private int numDatanodes = 0;
+  private int[] freeDatanodeIds = new int[16];
+  private int numFreeDatanodeIds = 0;
+
+  private long allocatedBytes = 0;
+
+  /** the namesystem whose write lock guards changes, null in tests */
+  private final FSNamesystem ns;
+
+  OffHeapBlockTriplets(FSNamesystem ns) {
+    this.ns = ns;
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new SizeClass(CLASS_CAPACITY[i]);
+    }
+  }
+
+  private static IntBuffer allocateDirect(int ints) {
+    return ByteBuffer.allocateDirect(ints * 4)
+      .order(ByteOrder.nativeOrder()).asIntBuffer();
+  }
+
+  private static int sizeClass(int capacity) {
+    for (int i = 0; i < CLASS_CAPACITY.length; i++) {
+      if (CLASS_CAPACITY[i] >= capacity) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Cannot keep " + capacity +
+        " replicas of a block off the heap");
+  }
+
+  /**
+   * Give a block an id and a record with room for the given number of
+   * replicas.
+   * @return the id of the block
+   */
+  synchronized int allocate(BlockInfo block, int capacity) {
+    checkWriteLock();
+    int id;
+    if (numFreeSlots > 0) {
+      id = freeSlots[--numFreeSlots];
+    } else {
+      id = numSlots++;
+      if ((id & SLOT_CHUNK_MASK) == 0) {
+        addSlotChunk();
+      }
+    }
+    int sizeClass = sizeClass(capacity);
+    setSlot(id, sizeClass, allocateRecord(classes[sizeClass]));
+    blocks[id >>> SLOT_CHUNK_SHIFT][id & SLOT_CHUNK_MASK] = block;
+    return id;
+  }
+
+  /**
+   * Move the triplets of a block to a record with room for more replicas.
+   */
+  synchronized void reallocate(int id, int capacity) {
+    checkWriteLock();
+    SizeClass from = classes[getSizeClass(id)];
+    int record = getRecord(id);
+    int sizeClass = sizeClass(capacity);
+    SizeClass to = classes[sizeClass];
+    int newRecord = allocateRecord(to);
+    IntBuffer src = from.slab(record);
+    IntBuffer dst = to.slab(newRecord);
+    int srcOffset = from.offset(record);
+    int dstOffset = to.offset(newRecord);
+    int ints = Math.min(from.recordInts, to.recordInts);
+    for (int i = 0; i < ints; i++) {
+      dst.put(dstOffset + i, src.get(srcOffset + i));
+    }
+    freeRecord(from, record);
+    setSlot(id, sizeClass, newRecord);
+  }
+
+  /**
+   * Free the id and the record of a block.
+   */
+  synchronized void free(int id) {
+    checkWriteLock();
+    freeRecord(classes[getSizeClass(id)], getRecord(id));
+    blocks[id >>> SLOT_CHUNK_SHIFT][id & SLOT_CHUNK_MASK] = null;
+    if (numFreeSlots == freeSlots.length) {
+      int[] newFree = new int[2 * freeSlots.length];
+      System.arraycopy(freeSlots, 0, newFree, 0, numFreeSlots);
+      freeSlots = newFree;
+    }
+    freeSlots[numFreeSlots++] = id;
+  }
+
+  /** Number of replicas the record of a block has room for. */
+  int getCapacity(int id) {
+    return CLASS_CAPACITY[getSizeClass(id)];
+  }
+
+  DatanodeDescriptor getDatanode(int id, int index) {
+    int dn = get(id, 3 * index);
+    return dn == 0 ? null : datanodes[dn - 1];
+  }
+
+  BlockInfo getPrevious(int id, int index) {
+    return getBlock(get(id, 3 * index + 1));
+  }
+
+  BlockInfo getNext(int id, int index) {
+    return getBlock(get(id, 3 * index + 2));
+  }
+
+  void setDatanode(int id, int index, DatanodeDescriptor node) {
+    set(id, 3 * index, node == null ? 0 : datanodeId(node) + 1);
+  }
+
+  void setPrevious(int id, int index, BlockInfo block) {
+    set(id, 3 * index + 1, block == null ? 0 : block.getOffHeapId(this) + 1);
+  }
+
+  void setNext(int id, int index, BlockInfo block) {
+    set(id, 3 * index + 2, block == null ? 0 : block.getOffHeapId(this) + 1);
+  }
+
+  /** Bytes of direct memory allocated for records and tables. */
+  synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /** Number of blocks that have an id. */
+  synchronized int getNumBlocks() {
+    return numSlots - numFreeSlots;
+  }
+
+  private BlockInfo getBlock(int idPlusOne) {
+    if (idPlusOne == 0) {
+      return null;
+    }
+    int id = idPlusOne - 1;
+    return blocks[id >>> SLOT_CHUNK_SHIFT][id & SLOT_CHUNK_MASK];
+  }
+
+  private int get(int id, int i) {
+    SizeClass c = classes[getSizeClass(id)];
+    int record = getRecord(id);
+    return c.slab(record).get(c.offset(record) + i);
+  }
+
+  /**
+   * Change an int of a record. Not synchronized: the caller holds the
+   * write lock of the namesystem, which keeps out {@link #reallocate}.
+   */
+  private void set(int id, int i, int value) {
+    checkWriteLock();
+    SizeClass c = classes[getSizeClass(id)];
+    int record = getRecord(id);
+    c.slab(record).put(c.offset(record) + i, value);
+  }
+
+  private void checkWriteLock() {
+    if (ns != null && !ns.hasWriteLock()) {
+      throw new IllegalStateException("The replica triplets of blocks " +
+          "can only be changed under the write lock of the namesystem");
+    }
+  }
+
+  private int getSizeClass(int id) {
+    return slots[id >>> SLOT_CHUNK_SHIFT].get(2 * (id & SLOT_CHUNK_MASK));
+  }
+
+  private int getRecord(int id) {
+    return slots[id >>> SLOT_CHUNK_SHIFT].get(2 * (id & SLOT_CHUNK_MASK) + 1);
+  }
+
+  private void setSlot(int id, int sizeClass, int record) {
+    IntBuffer chunk = slots[id >>> SLOT_CHUNK_SHIFT];
+    chunk.put(2 * (id & SLOT_CHUNK_MASK), sizeClass);
+    chunk.put(2 * (id & SLOT_CHUNK_MASK) + 1, record);
+  }
+
+  private void addSlotChunk() {
+    int n = blocks.length;
+    BlockInfo[][] newBlocks = new BlockInfo[n + 1][];
+    System.arraycopy(blocks, 0, newBlocks, 0, n);
+    newBlocks[n] = new BlockInfo[SLOT_CHUNK_SIZE];
+    IntBuffer[] newSlots = new IntBuffer[n + 1];
+    System.arraycopy(slots, 0, newSlots, 0, n);
+    newSlots[n] = allocateDirect(2 * SLOT_CHUNK_SIZE);
+    allocatedBytes += 8L * SLOT_CHUNK_SIZE;
+    // publish the tables after their new chunks are filled in
+    slots = newSlots;
+    blocks = newBlocks;
+  }
+
+  private int allocateRecord(SizeClass c) {
+    if (c.numFree > 0) {
+      return c.free[--c.numFree];
+    }
+    int record = c.numRecords++;
+    if (record % c.recordsPerSlab == 0) {
+      int n = c.slabs.length;
+      IntBuffer[] newSlabs = new IntBuffer[n + 1];
+      System.arraycopy(c.slabs, 0, newSlabs, 0, n);
+      newSlabs[n] = allocateDirect(c.recordsPerSlab * c.recordInts);
+      allocatedBytes += 4L * c.recordsPerSlab * c.recordInts;
+      c.slabs = newSlabs;
+    }
+    return record;
+  }
+
+  /** Clear a record and put it on the free list of its class. */
+  private void freeRecord(SizeClass c, int record) {
+    IntBuffer slab = c.slab(record);
+    int offset = c.offset(record);
+    for (int i = 0; i < c.recordInts; i++) {
+      slab.put(offset + i, 0);
+    }
+    if (c.numFree == c.free.length) {
+      int[] newFree = new int[2 * c.free.length];
+      System.arraycopy(c.free, 0, newFree, 0, c.numFree);
+      c.free = newFree;
+    }
+    c.free[c.numFree++] = record;
+  }
+
+  /** @return the id of a datanode, giving it one if it has none */
+  private int datanodeId(DatanodeDescriptor node) {
+    int id = node.offHeapId;
+    if (id >= 0) {
+      DatanodeDescriptor[] nodes = datanodes;
+      if (id >= nodes.length || nodes[id] != node) {
+        throw new IllegalArgumentException("Datanode " + node.getName() +
+            " has an id in another off-heap store");
+      }
+      return id;
+    }
+    synchronized (this) {
+      if (node.offHeapId < 0) {
+        if (numFreeDatanodeIds > 0) {
+          id = freeDatanodeIds[--numFreeDatanodeIds];
+        } else {
+          if (numDatanodes == datanodes.length) {
+            DatanodeDescriptor[] newDatanodes =
+              new DatanodeDescriptor[2 * datanodes.length];
+            System.arraycopy(datanodes, 0, newDatanodes, 0, numDatanodes);
+            datanodes = newDatanodes;
+          }
+          id = numDatanodes++;
+        }
+        datanodes[id] = node;
+        node.offHeapId = id;
+      }
+      return node.offHeapId;
+    }
+  }
+
+  /**
+   * Release the id of a datanode so that the datanode is no longer
+   * referenced and the id can be given to another datanode. No record may
+   * refer to the datanode any more. The datanode gets a new id if it is
+   * given replicas again.
+   */
+  synchronized void releaseDatanode(DatanodeDescriptor node) {
+    int id = node.offHeapId;
+    if (id < 0 || id >= datanodes.length || datanodes[id] != node) {
+      return;                       // no id in this store
+    }
+    datanodes[id] = null;
+    node.offHeapId = -1;
+    if (numFreeDatanodeIds == freeDatanodeIds.length) {
+      int[] newFree = new int[2 * freeDatanodeIds.length];
+      System.arraycopy(freeDatanodeIds, 0, newFree, 0, numFreeDatanodeIds);
+      freeDatanodeIds = newFree;
+    }
+    freeDatanodeIds[numFreeDatanodeIds++] = id;
+  }
+
+  /** Number of datanodes that have an id. */
+  synchronized int getNumDatanodes() {
+    return numDatanodes - numFreeDatanodeIds;
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks on the directories of the namespace, for the fine-grained locking
+ * mode of {@link FSNamesystem}.
+ *
+ * A mutation locks the directories whose children it changes for writing
+ * and all their ancestors for reading, so mutations in disjoint subtrees
+ * proceed concurrently while a directory cannot be renamed or replaced
+ * under a mutation below it. Paths are hashed onto a fixed number of
+ * striped locks, which are always acquired in stripe order, so two
+ * mutations cannot deadlock whatever paths they lock.
+ */
+class PathLockManager {
+
+  /** The path locks held by one mutation. */
+  class Locks {
+    private final int[] stripes;       // ascending
+    private final boolean[] write;
+
+    private Locks(int[] stripes, boolean[] write) {
+      this.stripes = stripes;
+      this.write = write;
+    }
+
+    void unlock() {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+        ReentrantReadWriteLock lock = locks[stripes[i]];
+        if (write[i]) {
+          lock.writeLock().unlock();
+        } else {
+          lock.readLock().unlock();
+        }
+      }
+    }
+  }
+
+  private final ReentrantReadWriteLock[] locks;
+
+  PathLockManager(int numStripes) {
+    int n = 1;
+    while (n < numStripes) {
+      n <<= 1;
+    }
+    locks = new ReentrantReadWriteLock[n];
+    for (int i = 0; i < n; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  int getNumStripes() {
+    return locks.length;
+  }
+
+  /**
+   * Lock the given directories for writing and their ancestors for
+   * reading.
+   * @param dirs normalized absolute paths of directories
+   * @return the locks, to be released with {@link Locks#unlock()}
+   */
+  Locks lock(String... dirs) {
+    // stripe -> whether it is locked for writing
+    TreeMap<Integer, Boolean> modes = new TreeMap<Integer, Boolean>();
+    for (String dir : dirs) {
+      int h = 0;
+      for (int i = 0; i < dir.length(); i++) {
+        char c = dir.charAt(i);
+        if (c == '/' && i > 0) {
+          addStripe(modes, h, false);       // the ancestor dir[0, i)
+        }
+        h = 31 * h + c;
+        if (i == 0 && dir.length() > 1) {
+          addStripe(modes, h, false);       // the root
+        }
+      }
+      addStripe(modes, h, true);
+    }
+
+    int[] stripes = new int[modes.size()];
+    boolean[] write = new boolean[stripes.length];
+    int i = 0;
+    for (Map.Entry<Integer, Boolean> e : modes.entrySet()) {
+      stripes[i] = e.getKey();
+      write[i] = e.getValue();
+      if (write[i]) {
+        locks[stripes[i]].writeLock().lock();
+      } else {
+        locks[stripes[i]].readLock().lock();
+      }
+      i++;
+    }
+    return new Locks(stripes, write);
+  }
+
+  private void addStripe(TreeMap<Integer, Boolean> modes, int hash,
+                         boolean write) {
+    int stripe = getStripe(hash);
+    if (write || !modes.containsKey(stripe)) {
+      modes.put(stripe, write);
+    }
+  }
+
+  /** Spread the bits of a path hash over the stripes. */
+  int getStripe(int hash) {
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return hash & (locks.length - 1);
+  }
+}
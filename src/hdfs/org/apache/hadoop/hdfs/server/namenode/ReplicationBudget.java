@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Limits the replication streams that cross a rack boundary and are in
+ * flight at the same time.
+ * 
+ * The streams of each source datanode are already limited by
+ * dfs.max-repl-streams. This also limits the streams leaving and the
+ * streams entering each rack, so that after a rack fails the recovery is
+ * spread over the links of all racks instead of piling onto the racks that
+ * happen to hold the first blocks in the queue. Streams within a rack are
+ * not limited.
+ * 
+ * A stream is in flight from the time it is scheduled until its target
+ * reports the replica, or the replication of the block times out or the
+ * block is removed; see {@link PendingReplicationBlocks}.
+ */
+class ReplicationBudget {
+  private final int maxStreamsPerRack;
+  private final Map<String, Integer> outgoing = new HashMap<String, Integer>();
+  private final Map<String, Integer> incoming = new HashMap<String, Integer>();
+  /** the cross-rack streams in flight for each block */
+  private final Map<Block, List<Stream>> streams =
+    new HashMap<Block, List<Stream>>();
+
+  /** A stream from a rack to another. */
+  private static class Stream {
+    final String srcRack;
+    final String targetRack;
+
+    Stream(String srcRack, String targetRack) {
+      this.srcRack = srcRack;
+      this.targetRack = targetRack;
+    }
+  }
+
+  /**
+   * @param maxStreamsPerRack the streams each rack may send and receive,
+   *        or 0 for no limit
+   */
+  ReplicationBudget(int maxStreamsPerRack) {
+    this.maxStreamsPerRack = maxStreamsPerRack;
+  }
+
+  /**
+   * Check whether a rack can send more streams, before targets are chosen.
+   * 
+   * @param planned streams from the rack that are about to be acquired
+   * @return true if the rack has room for one more stream
+   */
+  synchronized boolean hasOutgoingRoom(String rack, int planned) {
+    return maxStreamsPerRack <= 0 ||
+      get(outgoing, rack) + planned < maxStreamsPerRack;
+  }
+
+  /**
+   * Take the streams from the source to the targets out of the budget
+   * until they finish.
+   * 
+   * @return true if the budget had room for all of them; false, and
+   *         nothing is taken, otherwise
+   */
+  synchronized boolean acquire(Block block, DatanodeDescriptor src,
+                               DatanodeDescriptor[] targets) {
+    if (maxStreamsPerRack <= 0) {
+      return true;
+    }
+    String srcRack = src.getNetworkLocation();
+    int crossRack = 0;
+    for (int i = 0; i < targets.length; i++) {
+      String targetRack = targets[i].getNetworkLocation();
+      if (!srcRack.equals(targetRack)) {
+        crossRack++;
+        // count the earlier targets on the same rack too
+        int n = get(incoming, targetRack) + 1;
+        for (int j = 0; j < i; j++) {
+          if (targetRack.equals(targets[j].getNetworkLocation())) {
+            n++;
+          }
+        }
+        if (n > maxStreamsPerRack) {
+          return false;
+        }
+      }
+    }
+    if (crossRack == 0) {
+      return true;
+    }
+    if (get(outgoing, srcRack) + crossRack > maxStreamsPerRack) {
+      return false;
+    }
+    List<Stream> blockStreams = streams.get(block);
+    if (blockStreams == null) {
+      blockStreams = new ArrayList<Stream>(crossRack);
+      streams.put(block, blockStreams);
+    }
+    for (DatanodeDescriptor target : targets) {
+      String targetRack = target.getNetworkLocation();
+      if (!srcRack.equals(targetRack)) {
+        blockStreams.add(new Stream(srcRack, targetRack));
+        add(outgoing, srcRack, 1);
+        add(incoming, targetRack, 1);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A replica of a block was added to a datanode; the stream of the block
+   * into its rack, if any, has finished.
+   */
+  synchronized void replicaAdded(Block block, DatanodeDescriptor node) {
+    List<Stream> blockStreams = streams.get(block);
+    if (blockStreams == null) {
+      return;
+    }
+    String rack = node.getNetworkLocation();
+    for (Iterator<Stream> it = blockStreams.iterator(); it.hasNext();) {
+      Stream s = it.next();
+      if (s.targetRack.equals(rack)) {
+        it.remove();
+        finished(s);
+        break;
+      }
+    }
+    if (blockStreams.isEmpty()) {
+      streams.remove(block);
+    }
+  }
+
+  /**
+   * The replication of a block has finished, timed out or the block was
+   * removed; all its streams are returned to the budget.
+   */
+  synchronized void release(Block block) {
+    List<Stream> blockStreams = streams.remove(block);
+    if (blockStreams == null) {
+      return;
+    }
+    for (Stream s : blockStreams) {
+      finished(s);
+    }
+  }
+
+  private void finished(Stream s) {
+    add(outgoing, s.srcRack, -1);
+    add(incoming, s.targetRack, -1);
+  }
+
+  /** @return the streams in flight leaving the rack */
+  synchronized int getOutgoing(String rack) {
+    return get(outgoing, rack);
+  }
+
+  /** @return the streams in flight entering the rack */
+  synchronized int getIncoming(String rack) {
+    return get(incoming, rack);
+  }
+
+  private static int get(Map<String, Integer> streams, String rack) {
+    Integer n = streams.get(rack);
+    return n == null ? 0 : n;
+  }
+
+  private static void add(Map<String, Integer> streams, String rack,
+                          int delta) {
+    int n = get(streams, rack) + delta;
+    if (n == 0) {
+      streams.remove(rack);
+    } else {
+      streams.put(rack, n);
+    }
+  }
+}
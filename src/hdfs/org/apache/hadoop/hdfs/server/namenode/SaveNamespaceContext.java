@@ -17,16 +17,39 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.apache.hadoop.hdfs.util.InjectionEvent;
 import org.apache.hadoop.hdfs.util.InjectionHandler;
 
 
 /**
  * Context for an ongoing SaveNamespace operation. This class
- * allows cancellation.
+ * allows cancellation, and accumulates the time spent in each phase
+ * of the operation.
  */
 class SaveNamespaceContext {
 
+  /**
+   * Phases of saving an image. The time of a phase is summed over all
+   * image directories, and over all threads for {@link #SERIALIZE}.
+   */
+  enum Phase {
+    /** writing the inodes to the image */
+    INODES,
+    /** serializing subtrees, when they are saved in parallel */
+    SERIALIZE,
+    /** waiting for serialized subtrees and writing them to the image */
+    STITCH,
+    /** writing the files under construction */
+    FILES_UNDER_CONSTRUCTION,
+    /** flushing and syncing the image to disk */
+    SYNC
+  }
+
+  private final AtomicLongArray phaseTimes =
+    new AtomicLongArray(Phase.values().length);
+
   /**
    * If the operation has been canceled, set to the reason why
    * it has been canceled (eg standby moving to active)
@@ -58,6 +81,39 @@ class SaveNamespaceContext {
   
   public void clear() {
     this.cancelReason = null;
+    resetPhaseTimes();
+  }
+
+  void resetPhaseTimes() {
+    for (int i = 0; i < phaseTimes.length(); i++) {
+      phaseTimes.set(i, 0);
+    }
+  }
+
+  /**
+   * Add to the time spent in a phase.
+   */
+  void addPhaseTime(Phase phase, long millis) {
+    phaseTimes.addAndGet(phase.ordinal(), millis);
+  }
+
+  long getPhaseTime(Phase phase) {
+    return phaseTimes.get(phase.ordinal());
+  }
+
+  /**
+   * @return the time spent in each phase, for the log
+   */
+  String getPhaseTimes() {
+    StringBuilder sb = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(phase.name().toLowerCase()).append(" ")
+        .append(getPhaseTime(phase)).append(" ms");
+    }
+    return sb.toString();
   }
   
   public void setTxId(long txid) {
@@ -227,6 +227,13 @@ class UnderReplicatedBlocks implements Iterable<Block> {
     return new BlockIterator(level);
   }
 
+  /* returns an iterator of the blocks in a given priority queue from the
+   * given block on, or null if the queue does not contain the block */
+  synchronized BlockIterator iterator(int level, Block start) {
+    Iterator<Block> it = priorityQueues.get(level).iterator(start);
+    return it == null ? null : new BlockIterator(level, it);
+  }
+
   
   /* return an iterator of all the under replication blocks */
   public synchronized BlockIterator iterator() {
@@ -247,9 +254,13 @@ class UnderReplicatedBlocks implements Iterable<Block> {
     }
  
     BlockIterator(int l) {
+      this(l, priorityQueues.get(l).iterator());
+    }
+
+    BlockIterator(int l, Iterator<Block> it) {
       level = l;
       isIteratorForLevel = true;
-      iterators.add(priorityQueues.get(level).iterator());
+      iterators.add(it);
     }
  
     private void update() {
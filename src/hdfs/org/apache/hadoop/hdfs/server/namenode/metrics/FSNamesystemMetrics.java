@@ -63,6 +63,8 @@ public class FSNamesystemMetrics implements Updater {
   final MetricsIntValue missingBlocks = new MetricsIntValue("MissingBlocks", registry);    
   final MetricsIntValue blockCapacity = new MetricsIntValue("BlockCapacity", registry);
   final MetricsIntValue numLeases = new MetricsIntValue("numLeases", registry);
+  final MetricsIntValue incrementalBlockReportQueueLength =
+    new MetricsIntValue("IncrementalBlockReportQueueLength", registry);
   final MetricsIntValue upgradeTime = 
 		  		 new MetricsIntValue("UpgradeTime", registry, "Minutes in upgrade state");
   final public MetricsTimeVaryingLong numLeaseRecoveries = 
@@ -139,6 +141,8 @@ public class FSNamesystemMetrics implements Updater {
       missingBlocks.set((int)fsNameSystem.getMissingBlocksCount());
       blockCapacity.set(fsNameSystem.getBlockCapacity());
       numLeases.set(fsNameSystem.leaseManager.countLease());
+      incrementalBlockReportQueueLength.set(
+          fsNameSystem.getIncrementalBlockReportQueueLength());
       numUnderConstructionFiles.set(fsNameSystem.leaseManager.countPath());
       upgradeTime.set(fsNameSystem.getUpgradeTime());
       
@@ -122,6 +122,15 @@ public class NameNodeMetrics implements Updater {
                     new MetricsTimeVaryingLong("JournalTransactionsBatchedInSync", registry, "Journal Transactions Batched In Sync");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsTimeVaryingRate blockReportScan =
+                    new MetricsTimeVaryingRate("blockReportScan", registry,
+                        "Block Report lookups under the read lock");
+    public MetricsTimeVaryingRate blockReportDiff =
+                    new MetricsTimeVaryingRate("blockReportDiff", registry,
+                        "Block Report diff without the lock");
+    public MetricsTimeVaryingRate blockReportApply =
+                    new MetricsTimeVaryingRate("blockReportApply", registry,
+                        "Block Report changes under the write lock");
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
@@ -178,5 +187,8 @@ public class NameNodeMetrics implements Updater {
       transactions.resetMinMax();
       syncs.resetMinMax();
       blockReport.resetMinMax();
+      blockReportScan.resetMinMax();
+      blockReportDiff.resetMinMax();
+      blockReportApply.resetMinMax();
     }
 }
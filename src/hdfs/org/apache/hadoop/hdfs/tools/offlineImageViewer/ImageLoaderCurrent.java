@@ -31,6 +31,7 @@ import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.protocol.LayoutVersion;
 import org.apache.hadoop.hdfs.protocol.LayoutVersion.Feature;
 import org.apache.hadoop.hdfs.server.namenode.FSImage;
+import org.apache.hadoop.hdfs.server.namenode.FSImageSections;
 import org.apache.hadoop.hdfs.tools.offlineImageViewer.ImageVisitor.ImageElement;
 import org.apache.hadoop.hdfs.util.InjectionEvent;
 import org.apache.hadoop.hdfs.util.InjectionHandler;
@@ -155,6 +156,12 @@ class ImageLoaderCurrent implements ImageLoader {
           v.visit(ImageElement.COMPRESS_CODEC, codecClassName);
           CompressionCodecFactory codecFac = new CompressionCodecFactory(
               new Configuration());
+          if (FSImageSections.SECTIONED_IMAGE.equals(codecClassName)) {
+            processSectionedImage(in, v, numInodes, skipBlocks, codecFac);
+            v.leaveEnclosingElement(); // FSImage
+            v.finish();
+            return;
+          }
           CompressionCodec codec = codecFac.getCodecByClassName(codecClassName);
           if (codec == null) {
             throw new IOException("Image compression codec not supported: "
@@ -176,6 +183,48 @@ class ImageLoaderCurrent implements ImageLoader {
     }
   }
 
+  /**
+   * Process the body of a sectioned fsimage, chunk by chunk.
+   *
+   * @param in DataInputStream to process
+   * @param v Visitor to walk over inodes
+   * @param numInodes Number of INodes stored in file
+   * @param skipBlocks Walk over each block?
+   * @param codecFac Factory of the codec the chunks are compressed with
+   */
+  private void processSectionedImage(DataInputStream in, ImageVisitor v,
+      long numInodes, boolean skipBlocks, CompressionCodecFactory codecFac)
+      throws IOException {
+    FSImageSections.Reader reader = new FSImageSections.Reader(in, codecFac);
+    v.visitEnclosingElement(ImageElement.INODES,
+        ImageElement.NUM_INODES, numInodes);
+    boolean inINodes = true;
+    for (FSImageSections.Chunk chunk = reader.next(); chunk != null;
+         chunk = reader.next()) {
+      DataInputStream chunkIn = chunk.getInputStream();
+      if (chunk.getType() == FSImageSections.FILES_UNDER_CONSTRUCTION) {
+        if (inINodes) {
+          v.leaveEnclosingElement(); // INodes
+          inINodes = false;
+        }
+        processINodesUC(chunkIn, v, skipBlocks);
+        continue;
+      }
+      for (int i = 0; i < chunk.getNumRecords(); i++) {
+        String parentName = FSImage.readString(chunkIn);
+        chunkIn.readInt(); // number of children of the parent
+        chunkIn.readInt(); // index of the first child in this record
+        int count = chunkIn.readInt();
+        for (int j = 0; j < count; j++) {
+          processINode(chunkIn, v, skipBlocks, parentName);
+        }
+      }
+    }
+    if (inINodes) {
+      v.leaveEnclosingElement(); // INodes
+    }
+  }
+
   /**
    * Process the INodes under construction section of the fsimage.
    *
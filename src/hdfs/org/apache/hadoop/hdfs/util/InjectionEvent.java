@@ -32,6 +32,8 @@ public enum InjectionEvent {
   FSIMAGE_SN_CLEANUP,
   FSIMAGE_CANCEL_REQUEST_RECEIVED,
   FSIMAGE_RENAME,
+
+  FSEDIT_FLUSH_STREAM,
   
   FSNAMESYSTEM_CLOSE_DIRECTORY,
   FSNAMESYSTEM_STOP_LEASEMANAGER,
@@ -223,14 +223,39 @@ public class LightWeightLinkedSet<T> extends LightWeightHashSet<T> {
   }
 
   public Iterator<T> iterator() {
-    return new LinkedSetIterator();
+    return new LinkedSetIterator(head);
+  }
+
+  /**
+   * Return an iterator over the elements from the given element on, in
+   * the order of the linked list.
+   *
+   * @return the iterator, or null if the set does not contain the element
+   */
+  @SuppressWarnings("unchecked")
+  public Iterator<T> iterator(final T start) {
+    if (start == null) {
+      throw new IllegalArgumentException("Null element is not supported.");
+    }
+    final int hashCode = start.hashCode();
+    for (LinkedElement<T> e = entries[getIndex(hashCode)]; e != null;
+         e = e.next) {
+      if (hashCode == e.hashCode && e.element.equals(start)) {
+        return new LinkedSetIterator((DoubleLinkedElement<T>) e);
+      }
+    }
+    return null;
   }
 
   private class LinkedSetIterator implements Iterator<T> {
     /** The starting modification for fail-fast. */
     private final int startModification = modification;
     /** The next element to return. */
-    private DoubleLinkedElement<T> next = head;
+    private DoubleLinkedElement<T> next;
+
+    LinkedSetIterator(DoubleLinkedElement<T> first) {
+      this.next = first;
+    }
 
     @Override
     public boolean hasNext() {
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
@@ -297,6 +298,10 @@ public abstract class FileInputFormat<K, V> implements InputFormat<K, V> {
       filters.add(jobFilter);
     }
     final PathFilter inputFilter = new MultiPathFilter(filters);
+    final Map<Path, LocatedFileStatus> prefetched =
+      job.getBoolean("mapred.fileinputformat.batchfileinfo", true) ?
+        getLocatedFileStatus(job, dirs) :
+        Collections.<Path, LocatedFileStatus>emptyMap();
     ThreadPoolExecutor executor = null;
     int numExecutors = Math.min(job.getInt("mapred.dfsclient.parallelism.max", 1), dirs.length);
 
@@ -331,6 +336,13 @@ public abstract class FileInputFormat<K, V> implements InputFormat<K, V> {
               }
 
               for (Path onePath: plist) {
+                LocatedFileStatus fileStat = prefetched.get(onePath);
+                if (fileStat != null) {
+                  if (inputFilter.accept(fileStat.getPath())) {
+                    result.add(fileStat);
+                  }
+                  continue;
+                }
                 for(RemoteIterator<LocatedFileStatus> itor = fs.listLocatedStatus
                       (onePath, inputFilter); itor.hasNext();) {
                   LocatedFileStatus stat = itor.next();
@@ -379,6 +391,44 @@ public abstract class FileInputFormat<K, V> implements InputFormat<K, V> {
     return result.toArray(new LocatedFileStatus[result.size()]);
   }
 
+  /**
+   * Fetch the statuses of the input paths that name plain files, one batch
+   * per file system, instead of asking for each file separately.
+   * Globs, directories and missing paths are left to the regular listing.
+   */
+  private static Map<Path, LocatedFileStatus> getLocatedFileStatus(
+      JobConf job, Path[] dirs) throws IOException {
+    Map<FileSystem, List<Path>> plainPaths =
+      new IdentityHashMap<FileSystem, List<Path>>();
+    for (Path p : dirs) {
+      if (p.isAbsolute() && !FileSystem.hasGlobComponent(p)) {
+        FileSystem fs = p.getFileSystem(job);
+        List<Path> paths = plainPaths.get(fs);
+        if (paths == null) {
+          paths = new ArrayList<Path>();
+          plainPaths.put(fs, paths);
+        }
+        paths.add(p);
+      }
+    }
+    Map<Path, LocatedFileStatus> prefetched =
+      new HashMap<Path, LocatedFileStatus>();
+    for (Map.Entry<FileSystem, List<Path>> e : plainPaths.entrySet()) {
+      List<Path> paths = e.getValue();
+      if (paths.size() < 2) {
+        continue;
+      }
+      Path[] files = paths.toArray(new Path[paths.size()]);
+      LocatedFileStatus[] stats = e.getKey().getLocatedFileStatus(files);
+      for (int i = 0; i < files.length; i++) {
+        if (stats[i] != null && !stats[i].isDir()) {
+          prefetched.put(files[i], stats[i]);
+        }
+      }
+    }
+    return prefetched;
+  }
+
   private void verifyLocatedFileStatus(
       JobConf conf, List<LocatedFileStatus> stats)
       throws IOException {
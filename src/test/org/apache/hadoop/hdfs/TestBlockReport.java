@@ -25,10 +25,12 @@ import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.hdfs.server.datanode.DataNode;
 import org.apache.hadoop.hdfs.server.namenode.NameNode;
@@ -132,4 +134,136 @@ public class TestBlockReport extends TestCase {
     }
   }
 
+  /**
+   * Verify that a block report processed in stages removes the replicas
+   * that are not reported and adds the reported ones back
+   */
+  public void testStagedBlockReport() throws Exception {
+    MiniDFSCluster cluster = null;
+    try {
+      Configuration conf = new Configuration();
+      final long BLOCK_SIZE = 1024 * 1024;
+      conf.setLong(DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+      conf.setInt("dfs.namenode.blockreport.batch.size", 2);
+      cluster = new MiniDFSCluster(conf, 3, true, null);
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      NameNode namenode = cluster.getNameNode();
+
+      Path file = new Path("/staged");
+      DFSTestUtil.createFile(fs, file, 9 * BLOCK_SIZE, (short)3, 1L);
+      DFSTestUtil.waitReplication(fs, file, (short)3);
+
+      DataNode dn = cluster.getDataNodes().get(0);
+      int nsId = namenode.getNamespaceID();
+      Block[] blocks = dn.data.getBlockReport(nsId);
+      assertEquals(9, blocks.length);
+
+      // leave out three replicas and report one the namenode does not know
+      Block[] partial = new Block[blocks.length - 2];
+      System.arraycopy(blocks, 3, partial, 0, blocks.length - 3);
+      partial[partial.length - 1] = new Block(Long.MAX_VALUE - 1, 1, 1);
+      namenode.blockReport(dn.getDNRegistrationForNS(nsId),
+          BlockListAsLongs.convertToArrayLongs(partial));
+      assertEquals(6, countReplicasOn(namenode, file, dn, nsId));
+
+      namenode.blockReport(dn.getDNRegistrationForNS(nsId),
+          BlockListAsLongs.convertToArrayLongs(blocks));
+      assertEquals(9, countReplicasOn(namenode, file, dn, nsId));
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Verify that a block report processed in stages also removes the
+   * replicas of a file under construction that are not reported
+   */
+  public void testStagedBlockReportUnderConstruction() throws Exception {
+    MiniDFSCluster cluster = null;
+    FSDataOutputStream out = null;
+    try {
+      Configuration conf = new Configuration();
+      final long BLOCK_SIZE = 1024 * 1024;
+      conf.setLong(DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+      conf.setInt("dfs.namenode.blockreport.batch.size", 2);
+      cluster = new MiniDFSCluster(conf, 3, true, null);
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      NameNode namenode = cluster.getNameNode();
+      DataNode dn = cluster.getDataNodes().get(0);
+      int nsId = namenode.getNamespaceID();
+
+      // two full blocks and a partial one, the file is left open
+      Path file = new Path("/stagedUnderConstruction");
+      out = fs.create(file, true, 4096, (short)3, BLOCK_SIZE);
+      out.write(new byte[(int)(2 * BLOCK_SIZE) + 100]);
+      out.sync();
+      long deadline = System.currentTimeMillis() + 30000;
+      while (!isReplicaOn(namenode, file, 0, dn, nsId)) {
+        assertTrue("Timed out waiting for the first block",
+                   System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+      Block first = namenode.getBlockLocations(file.toString(), 0,
+          Long.MAX_VALUE).get(0).getBlock();
+
+      Block[] blocks = dn.data.getBlockReport(nsId);
+      ArrayList<Block> partial = new ArrayList<Block>();
+      for (Block b : blocks) {
+        if (b.getBlockId() != first.getBlockId()) {
+          partial.add(b);
+        }
+      }
+      namenode.blockReport(dn.getDNRegistrationForNS(nsId),
+          BlockListAsLongs.convertToArrayLongs(
+              partial.toArray(new Block[partial.size()])));
+      assertFalse(isReplicaOn(namenode, file, 0, dn, nsId));
+
+      namenode.blockReport(dn.getDNRegistrationForNS(nsId),
+          BlockListAsLongs.convertToArrayLongs(blocks));
+      assertTrue(isReplicaOn(namenode, file, 0, dn, nsId));
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  private static boolean isReplicaOn(NameNode namenode, Path file,
+      int blockIndex, DataNode dn, int nsId) throws IOException {
+    String name = dn.getDNRegistrationForNS(nsId).getName();
+    LocatedBlocks locations = namenode.getBlockLocations(
+        file.toString(), 0, Long.MAX_VALUE);
+    if (locations.locatedBlockCount() <= blockIndex) {
+      return false;
+    }
+    for (DatanodeInfo node : locations.get(blockIndex).getLocations()) {
+      if (node.getName().equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int countReplicasOn(NameNode namenode, Path file,
+      DataNode dn, int nsId) throws IOException {
+    String name = dn.getDNRegistrationForNS(nsId).getName();
+    LocatedBlocks locations = namenode.getBlockLocations(
+        file.toString(), 0, Long.MAX_VALUE);
+    int count = 0;
+    for (int i = 0; i < locations.locatedBlockCount(); i++) {
+      for (DatanodeInfo node : locations.get(i).getLocations()) {
+        if (node.getName().equals(name)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
 }
@@ -174,6 +174,8 @@ public class TestDFSClientRetries extends TestCase {
 
     public LocatedBlocks  getBlockLocations(String src, long offset, long length) throws IOException { return null; }
 
+    public LocatedBlocks[] getBlockLocations(String[] srcs, long offset, long length) throws IOException { return null; }
+
     @Deprecated
     public void create(String src, FsPermission masked, String clientName, boolean overwrite, short replication, long blockSize) throws IOException {}
 
@@ -259,6 +261,12 @@ public class TestDFSClientRetries extends TestCase {
     public HdfsFileStatus getHdfsFileInfo(String src) throws IOException {
       return null; }
 
+    public HdfsFileStatus[] getHdfsFileInfo(String[] srcs) throws IOException {
+      return null; }
+
+    public HdfsLocatedFileStatus[] getLocatedFileInfo(String[] srcs)
+        throws IOException { return null; }
+
     public ContentSummary getContentSummary(String path) throws IOException { return null; }
 
     public void setQuota(String path, long namespaceQuota, long diskspaceQuota) throws IOException {}
@@ -23,11 +23,14 @@ import java.net.URI;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.hdfs.protocol.HdfsLocatedFileStatus;
 import org.apache.hadoop.hdfs.server.namenode.NameNode;
 
 /**
@@ -264,6 +267,61 @@ public class TestFileStatus extends TestCase {
     }
   }
 
+  /**
+   * Test the batched file info calls, including batches that are split
+   * across several rpcs and entries for missing paths.
+   */
+  public void testBatchedFileStatus() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.client.fileinfo.batch.size", 2);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      Path dir = new Path("/batched");
+      Path file1 = new Path(dir, "file1");
+      Path file2 = new Path(dir, "file2");
+      writeFile(fs, file1, 1, fileSize, blockSize);
+      writeFile(fs, file2, 1, blockSize, blockSize);
+      Path[] paths = { file1, new Path(dir, "noSuchFile"), dir, file2 };
+
+      FileStatus[] stats = fs.getFileStatuses(paths);
+      assertEquals(paths.length, stats.length);
+      assertEquals(fs.getFileStatus(file1), stats[0]);
+      assertEquals(fileSize, stats[0].getLen());
+      assertNull(stats[1]);
+      assertTrue(stats[2].isDir());
+      assertEquals(fs.makeQualified(dir), stats[2].getPath());
+      assertEquals(blockSize, stats[3].getLen());
+
+      LocatedFileStatus[] located = fs.getLocatedFileStatus(paths);
+      assertEquals(paths.length, located.length);
+      assertEquals(fs.makeQualified(file1), located[0].getPath());
+      assertEquals(fileSize / blockSize, located[0].getBlockLocations().length);
+      assertNull(located[1]);
+      assertTrue(located[2].isDir());
+      assertEquals(1, located[3].getBlockLocations().length);
+      BlockLocation[] expected = fs.getFileBlockLocations(stats[0], 0, fileSize);
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i].getOffset(),
+            located[0].getBlockLocations()[i].getOffset());
+        assertEquals(expected[i].getLength(),
+            located[0].getBlockLocations()[i].getLength());
+      }
+
+      // the status and the locations come back from a single rpc
+      HdfsLocatedFileStatus[] hdfsLocated = fs.getClient().namenode
+          .getLocatedFileInfo(new String[] { file2.toString(), "/noSuchFile",
+                                             dir.toString() });
+      assertEquals(blockSize, hdfsLocated[0].getLen());
+      assertEquals(1, hdfsLocated[0].getBlockLocations().locatedBlockCount());
+      assertNull(hdfsLocated[1]);
+      assertTrue(hdfsLocated[2].isDir());
+      assertNull(hdfsLocated[2].getBlockLocations());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
   private static void validateStatusCount(FileStatus[] statuses, int i) {
     for (FileStatus f : statuses) {
       FileSystem.LOG.info("Found recursive path: " + f.getPath());
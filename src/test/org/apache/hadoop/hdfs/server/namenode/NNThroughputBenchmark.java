@@ -30,6 +30,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.Log4JLogger;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -532,6 +533,47 @@ public class NNThroughputBenchmark {
     }
   }
 
+  /**
+   * Directory creation statistics.
+   * 
+   * Each thread creates the same number of directories.
+   * The parents of the directories are created before the benchmark,
+   * so that each call creates exactly one directory.
+   */
+  class MkdirsStats extends CreateFileStats {
+    // Operation types
+    static final String OP_MKDIRS_NAME = "mkdirs";
+    static final String OP_MKDIRS_USAGE = 
+      "-op " + OP_MKDIRS_NAME + " [-threads T] [-files N] [-filesPerDir P]";
+
+    MkdirsStats(List<String> args) {
+      super(args);
+    }
+
+    String getOpName() {
+      return OP_MKDIRS_NAME;
+    }
+
+    void generateInputs(int[] opsPerThread) throws IOException {
+      super.generateInputs(opsPerThread);
+      for(String[] names : fileNames)
+        for(String name : names)
+          nameNode.mkdirs(new Path(name).getParent().toString(),
+                          FsPermission.getDefault());
+    }
+
+    /**
+     * Do directory create.
+     */
+    long executeOp(int daemonId, int inputIdx, String ignore) 
+    throws IOException {
+      long start = System.currentTimeMillis();
+      nameNode.mkdirs(fileNames[daemonId][inputIdx], FsPermission.getDefault());
+      long end = System.currentTimeMillis();
+      return end-start;
+    }
+  }
+
   /**
    * Open file statistics.
    * 
@@ -1110,9 +1152,10 @@ public class NNThroughputBenchmark {
   }   // end ReplicationStats
 
   static void printUsage() {
-    System.err.println("Usage: NNThroughputBenchmark"
+    System.err.println("Usage: NNThroughputBenchmark [-fineLocking]"
         + "\n\t"    + OperationStatsBase.OP_ALL_USAGE
         + " | \n\t" + CreateFileStats.OP_CREATE_USAGE
+        + " | \n\t" + MkdirsStats.OP_MKDIRS_USAGE
         + " | \n\t" + OpenFileStats.OP_OPEN_USAGE
         + " | \n\t" + DeleteFileStats.OP_DELETE_USAGE
         + " | \n\t" + RenameFileStats.OP_RENAME_USAGE
@@ -1125,9 +1168,19 @@ public class NNThroughputBenchmark {
 
   /**
    * Main method of the benchmark.
+   * -fineLocking runs the name-node with dfs.namenode.lock.fine, so that 
+   * the create, mkdirs and rename results can be compared to the ones of 
+   * the default locking.
    * @param args command line parameters
    */
   public static void runBenchmark(Configuration conf, List<String> args) throws Exception {
+    args = new ArrayList<String>(args);
+    int flIndex = args.indexOf("-fineLocking");
+    if(flIndex >= 0) {
+      args.remove(flIndex);
+      conf.setBoolean("dfs.rwlock", true);
+      conf.setBoolean("dfs.namenode.lock.fine", true);
+    }
     if(args.size() < 2 || ! args.get(0).startsWith("-op"))
       printUsage();
 
@@ -1143,6 +1196,10 @@ public class NNThroughputBenchmark {
         opStat = bench.new CreateFileStats(args);
         ops.add(opStat);
       }
+      if(runAll || MkdirsStats.OP_MKDIRS_NAME.equals(type)) {
+        opStat = bench.new MkdirsStats(args);
+        ops.add(opStat);
+      }
       if(runAll || OpenFileStats.OP_OPEN_NAME.equals(type)) {
         opStat = bench.new OpenFileStats(args);
         ops.add(opStat);
@@ -1176,6 +1233,8 @@ public class NNThroughputBenchmark {
         op.cleanUp();
       }
       // print statistics
+      LOG.info("Fine-grained namespace locking: " +
+               nameNode.getNamesystem().isFineGrainedLocking());
       for(OperationStatsBase op : ops) {
         LOG.info("");
         op.printResults();
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+
+/**
+ * Test for {@link ChunkedINodeList} and its use by {@link INodeDirectory}
+ */
+public class TestChunkedINodeList extends TestCase {
+  private static final PermissionStatus PERM = PermissionStatus.createImmutable(
+      "user", "group", FsPermission.getDefault());
+
+  private static INode newINode(String name) {
+    return new INodeDirectory(DFSUtil.string2Bytes(name), PERM, 0L);
+  }
+
+  private static void checkEquals(List<INode> expected,
+                                  ChunkedINodeList actual) {
+    assertEquals(expected.size(), actual.size());
+    Iterator<INode> it = actual.iterator();
+    for (int i = 0; i < expected.size(); i++) {
+      INode node = expected.get(i);
+      assertSame(node, actual.get(i));
+      assertSame(node, it.next());
+      assertEquals(i, actual.binarySearch(node.getLocalNameBytes()));
+    }
+    assertFalse(it.hasNext());
+  }
+
+  public void testRandomOperations() {
+    Random r = new Random(0xc4L);
+    List<INode> expected = new ArrayList<INode>();
+    ChunkedINodeList actual = new ChunkedINodeList();
+    for (int round = 0; round < 20; round++) {
+      // grow, then shrink
+      int ops = round % 2 == 0 ? 3000 : 2000;
+      for (int i = 0; i < ops; i++) {
+        boolean add = round % 2 == 0 ? r.nextInt(10) < 8 : r.nextInt(10) < 2;
+        byte[] name = DFSUtil.string2Bytes("f" + r.nextInt(100000));
+        int expectedPos = Collections.binarySearch(expected, name);
+        assertEquals(expectedPos, actual.binarySearch(name));
+        if (add && expectedPos < 0) {
+          INode node = newINode(DFSUtil.bytes2String(name));
+          expected.add(-expectedPos - 1, node);
+          actual.add(-expectedPos - 1, node);
+        } else if (!add && !expected.isEmpty()) {
+          int pos = r.nextInt(expected.size());
+          assertSame(expected.remove(pos), actual.remove(pos));
+        }
+      }
+      checkEquals(expected, actual);
+      assertTrue(actual.getNumChunks() <=
+          1 + 2 * actual.size() / (ChunkedINodeList.MAX_CHUNK_SIZE / 2));
+    }
+    actual.clear();
+    assertEquals(0, actual.size());
+    assertEquals(-1, actual.binarySearch(DFSUtil.string2Bytes("f")));
+  }
+
+  public void testAppend() {
+    List<INode> expected = new ArrayList<INode>();
+    ChunkedINodeList actual = new ChunkedINodeList();
+    for (int i = 0; i < 10 * ChunkedINodeList.MAX_CHUNK_SIZE; i++) {
+      INode node = newINode(String.format("f%08d", i));
+      expected.add(node);
+      actual.add(actual.size(), node);
+    }
+    checkEquals(expected, actual);
+    // appended chunks are full
+    assertEquals(10, actual.getNumChunks());
+    assertEquals(expected, new ChunkedINodeList(expected));
+  }
+
+  public void testLargeDirectory() {
+    final int threshold = 100;
+    INodeDirectory dir = new INodeDirectory(PERM, 0L);
+    for (int i = 999; i >= 0; i--) {
+      assertNotNull(dir.addChild(newINode(String.format("d%04d", i)), false));
+      dir.updateChildrenList(threshold);
+      assertEquals(dir.getChildren().size() > threshold,
+                   dir.getChildrenRaw() instanceof ChunkedINodeList);
+    }
+    assertNull(dir.addChild(newINode("d0500"), false));
+    assertTrue(dir.getChildrenRaw() instanceof ChunkedINodeList);
+    assertEquals(1000, dir.getChildren().size());
+    assertEquals("d0500", dir.getChild("d0500").getLocalName());
+    assertEquals(501, dir.nextChild(DFSUtil.string2Bytes("d0500")));
+    assertEquals(501, dir.nextChild(DFSUtil.string2Bytes("d05000")));
+    for (int i = 0; i < 960; i++) {
+      INode child = dir.getChild(String.format("d%04d", i));
+      assertSame(child, dir.removeChild(child));
+      dir.updateChildrenList(threshold);
+    }
+    assertNull(dir.getChild("d0500"));
+    // shrunk below half of the threshold
+    assertTrue(dir.getChildrenRaw() instanceof ArrayList);
+    assertEquals(40, dir.getChildren().size());
+    assertEquals("d0960", dir.getChildren().get(0).getLocalName());
+
+    // the threshold is the caller's, not shared between directories
+    INodeDirectory other = new INodeDirectory(PERM, 0L);
+    other.setChildrenCapacity(40, threshold);
+    assertTrue(other.getChildrenRaw() instanceof ArrayList);
+    other.setChildrenCapacity(40, 10);
+    assertTrue(other.getChildrenRaw() instanceof ChunkedINodeList);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.FSConstants.DatanodeReportType;
+
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * This verifies that the first block reports of datanodes received in startup
+ * safe mode, when processed concurrently, add every replica and keep a
+ * correct count of safe blocks.
+ */
+public class TestConcurrentInitialBlockReports {
+
+  private static MiniDFSCluster cluster;
+  private static Configuration conf;
+  private final static int BLOCK_SIZE = 1024;
+  private final static int MAX_BLOCKS = 20;
+  private final static int MAX_FILE_SIZE = MAX_BLOCKS * BLOCK_SIZE;
+  private final static int NUM_DATANODES = 3;
+  private static final long MAX_WAIT_TIME = 30 * 1000;
+
+  @After
+  public void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentInitialReports() throws Exception {
+    conf = new Configuration();
+    conf.setInt("dfs.block.size", BLOCK_SIZE);
+    conf.setLong("dfs.heartbeat.interval", 1);
+    conf.setBoolean("dfs.rwlock", true);
+    conf.setBoolean("dfs.namenode.blockreport.initial.concurrent", true);
+    cluster = new MiniDFSCluster(conf, NUM_DATANODES, true, null);
+    FileSystem fs = cluster.getFileSystem();
+
+    // Create data.
+    String test = "/testConcurrentInitialReports";
+    DFSTestUtil util = new DFSTestUtil(test, 20, 1, MAX_FILE_SIZE);
+    util.createFiles(fs, test, (short) NUM_DATANODES);
+    fs.close();
+    cluster.shutdown();
+
+    // Restart the cluster, keeping the NN in startup safe mode.
+    conf.setFloat("dfs.safemode.threshold.pct", 1.5f);
+    cluster = new MiniDFSCluster(conf, 0, false, null);
+    NameNode nn = cluster.getNameNode();
+    FSNamesystem ns = nn.namesystem;
+    assertTrue(ns.isInStartupSafeMode());
+    cluster.startDataNodes(conf, NUM_DATANODES, true, null, null);
+    cluster.waitActive();
+
+    long totalBlocks = ns.getBlocksTotal();
+    long start = System.currentTimeMillis();
+    while (ns.getSafeBlocks() < totalBlocks
+        && System.currentTimeMillis() - start <= MAX_WAIT_TIME) {
+      Thread.sleep(200);
+    }
+    assertEquals(totalBlocks, ns.getSafeBlocks());
+    assertTrue(ns.isInStartupSafeMode());
+
+    // Every datanode reported every block.
+    ns.readLock();
+    try {
+      for (DatanodeInfo dn : ns.datanodeReport(DatanodeReportType.LIVE)) {
+        DatanodeDescriptor node = ns.getDatanode(dn);
+        assertEquals(totalBlocks, node.numBlocks());
+        int listed = 0;
+        for (Iterator<Block> it = node.getBlockIterator(); it.hasNext();) {
+          Block b = it.next();
+          assertEquals(NUM_DATANODES, ns.countNodes(b).liveReplicas());
+          listed++;
+        }
+        assertEquals(totalBlocks, listed);
+      }
+    } finally {
+      ns.readUnlock();
+    }
+
+    String tip = ns.getSafeModeTip();
+    assertTrue(tip, tip.contains("Initial block reports = " + NUM_DATANODES));
+  }
+}
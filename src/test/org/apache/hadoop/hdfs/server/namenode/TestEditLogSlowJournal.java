@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.server.common.Storage.StorageDirectory;
+import org.apache.hadoop.hdfs.server.namenode.FSImage.NameNodeDirType;
+import org.apache.hadoop.hdfs.util.InjectionEvent;
+import org.apache.hadoop.hdfs.util.InjectionHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a slow edits directory that is not required does not hold up
+ * namespace edits, and that it catches up once it is fast again.
+ */
+public class TestEditLogSlowJournal {
+
+  public static final Log LOG = LogFactory.getLog(TestEditLogSlowJournal.class);
+
+  private static final long SLOW_SYNC_DELAY = 1000;
+
+  private int editsPerformed = 0;
+  private File slowDir;
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private Configuration conf;
+  private SlowJournalInjectionHandler handler;
+
+  @Before
+  public void setUpMiniCluster() throws IOException {
+    conf = new Configuration();
+    File baseDir = MiniDFSCluster.getBaseDirectory(conf);
+    File editDir1 = new File(baseDir, "edit1");
+    slowDir = new File(baseDir, "edit2");
+    conf.set("dfs.name.edits.dir",
+        editDir1.getPath() + "," + slowDir.getPath());
+    conf.set("dfs.name.edits.dir.required", editDir1.getPath());
+    conf.setLong("dfs.name.edits.slow.sync.threshold.ms", 100);
+    conf.setInt("dfs.name.edits.slow.sync.count", 2);
+    conf.set("dfs.secondary.http.address", "0.0.0.0:0");
+
+    handler = new SlowJournalInjectionHandler(slowDir);
+    InjectionHandler.set(handler);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+  }
+
+  @After
+  public void shutDownMiniCluster() throws IOException {
+    if (fs != null)
+      fs.close();
+    if (cluster != null)
+      cluster.shutdown();
+    InjectionHandler.clear();
+  }
+
+  private boolean doAnEdit() throws IOException {
+    return fs.mkdirs(new Path("/tmp", Integer.toString(editsPerformed++)));
+  }
+
+  private StorageDirectory getSlowStorageDirectory() {
+    FSImage fsimage = cluster.getNameNode().getFSImage();
+    for (Iterator<StorageDirectory> it =
+           fsimage.dirIterator(NameNodeDirType.EDITS); it.hasNext();) {
+      StorageDirectory sd = it.next();
+      if (sd.getRoot().getAbsoluteFile().equals(slowDir.getAbsoluteFile())) {
+        return sd;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testSlowJournalLagsAndCatchesUp() throws Exception {
+    assertTrue(doAnEdit());
+    FSImage fsimage = cluster.getNameNode().getFSImage();
+    FSEditLog editLog = fsimage.getEditLog();
+    StorageDirectory sd = getSlowStorageDirectory();
+    assertFalse(editLog.isLagging(sd));
+
+    // the slow directory becomes lagging after two slow syncs
+    handler.slow = true;
+    for (int i = 0; i < 3; i++) {
+      assertTrue(doAnEdit());
+    }
+    assertTrue(editLog.isLagging(sd));
+    assertEquals(fsimage.checkpointTime - 1, fsimage.readCheckpointTime(sd));
+
+    // edits no longer wait for it
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(doAnEdit());
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    LOG.info("5 edits with a lagging journal took " + elapsed + " ms");
+    assertTrue(elapsed < 5 * SLOW_SYNC_DELAY);
+
+    // once fast again it catches up
+    handler.slow = false;
+    for (int i = 0; i < 100 && editLog.isLagging(sd); i++) {
+      assertTrue(doAnEdit());
+      Thread.sleep(100);
+    }
+    assertFalse(editLog.isLagging(sd));
+    assertEquals(fsimage.checkpointTime, fsimage.readCheckpointTime(sd));
+
+    // no edit is lost after a restart
+    fs.close();
+    cluster.shutdown();
+    cluster = new MiniDFSCluster(conf, 1, false, null);
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    for (int i = 0; i < editsPerformed; i++) {
+      assertTrue(fs.exists(new Path("/tmp", Integer.toString(i))));
+    }
+  }
+
+  class SlowJournalInjectionHandler extends InjectionHandler {
+
+    final String slowPath;
+    volatile boolean slow = false;
+
+    SlowJournalInjectionHandler(File dir) {
+      slowPath = dir.getPath();
+    }
+
+    public void _processEventIO(InjectionEvent event, Object... args) {
+      if (event == InjectionEvent.FSEDIT_FLUSH_STREAM && slow &&
+          ((String)args[0]).startsWith(slowPath)) {
+        try {
+          Thread.sleep(SLOW_SYNC_DELAY);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Test for {@link FSNamesystemLockProfiler}
+ */
+public class TestFSNamesystemLockProfiler extends TestCase {
+
+  /** A namesystem whose read/write lock is profiled. */
+  private static FSNamesystem createNamesystem(long thresholdMs, int holds,
+      long intervalSec) throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.rwlock", true);
+    conf.setBoolean(FSNamesystemLockProfiler.ENABLED_KEY, true);
+    conf.setLong(FSNamesystemLockProfiler.THRESHOLD_KEY, thresholdMs);
+    conf.setInt(FSNamesystemLockProfiler.HOLDS_KEY, holds);
+    conf.setLong(FSNamesystemLockProfiler.INTERVAL_KEY, intervalSec);
+    return new FSNamesystem(new FSImage(), conf);
+  }
+
+  public void testHoldAndWaitTimes() throws Exception {
+    FSNamesystem lock = createNamesystem(50, 4, 0);
+    FSNamesystemLockProfiler profiler = lock.getLockProfiler();
+    String operation = Thread.currentThread().getName();
+
+    acquireForLongHold(lock);
+    try {
+      // reentrant acquisitions are part of the outer hold
+      lock.writeLock();
+      lock.writeUnlock();
+      lock.readLock();
+      Thread.sleep(100);
+      lock.readUnlock();
+    } finally {
+      lock.writeUnlock();
+    }
+    for (int i = 0; i < 3; i++) {
+      lock.readLock();
+      lock.readUnlock();
+    }
+
+    FSNamesystemLockProfiler.OperationTimes times =
+      profiler.getOperations().get(operation);
+    assertNotNull(times);
+    assertEquals(1, times.write.hold.getNumOps());
+    assertEquals(1, times.write.wait.getNumOps());
+    assertTrue(times.write.hold.getMax() >= 100000);
+    assertEquals(4, times.read.hold.getNumOps());
+
+    // the write hold and the nested read hold are over the threshold
+    List<FSNamesystemLockProfiler.LongHold> holds = profiler.getLongHolds();
+    assertEquals(2, holds.size());
+    assertTrue(holds.get(0).write);
+    assertEquals(operation, holds.get(0).operation);
+    assertTrue(holds.get(0).holdTime >= holds.get(1).holdTime);
+    // the stack trace is the one of the acquisition, not of the release
+    String stackTrace = holds.get(0).getStackTrace();
+    assertTrue(stackTrace, stackTrace.startsWith(
+        "\tat " + getClass().getName() + ".acquireForLongHold("));
+  }
+
+  private static void acquireForLongHold(FSNamesystem lock) {
+    lock.writeLock();
+  }
+
+  public void testWaitTime() throws Exception {
+    final FSNamesystem lock = createNamesystem(1000, 4, 0);
+    FSNamesystemLockProfiler profiler = lock.getLockProfiler();
+    Thread waiter = new Thread("waiter") {
+      public void run() {
+        lock.readLock();
+        lock.readUnlock();
+      }
+    };
+    lock.writeLock();
+    try {
+      waiter.start();
+      Thread.sleep(100);
+    } finally {
+      lock.writeUnlock();
+    }
+    waiter.join();
+
+    FSNamesystemLockProfiler.OperationTimes times =
+      profiler.getOperations().get("waiter");
+    assertEquals(1, times.read.wait.getNumOps());
+    assertTrue(times.read.wait.getMax() >= 50000);
+    assertTrue(profiler.getLongHolds().isEmpty());
+  }
+
+  public void testLongHoldsAreBounded() throws Exception {
+    FSNamesystem lock = createNamesystem(0, 4, 0);
+    FSNamesystemLockProfiler profiler = lock.getLockProfiler();
+    for (int i = 0; i < 10; i++) {
+      lock.writeLock();
+      lock.writeUnlock();
+      lock.readLock();
+      lock.readUnlock();
+    }
+    assertEquals(4, profiler.getLongHolds().size());
+  }
+
+  public void testIntervals() throws Exception {
+    FSNamesystem lock = createNamesystem(1000, 4, 1);
+    FSNamesystemLockProfiler profiler = lock.getLockProfiler();
+    String operation = Thread.currentThread().getName();
+    lock.writeLock();
+    lock.writeUnlock();
+    assertEquals(1,
+        profiler.getOperations().get(operation).write.hold.getNumOps());
+    assertNull(profiler.getPreviousOperations());
+
+    // the next acquisition after the interval starts a new one
+    Thread.sleep(1200);
+    lock.readLock();
+    lock.readUnlock();
+    FSNamesystemLockProfiler.OperationTimes times =
+      profiler.getOperations().get(operation);
+    assertEquals(0, times.write.hold.getNumOps());
+    assertEquals(1, times.read.hold.getNumOps());
+    times = profiler.getPreviousOperations().get(operation);
+    assertEquals(1, times.write.hold.getNumOps());
+    assertEquals(0, times.read.hold.getNumOps());
+  }
+}
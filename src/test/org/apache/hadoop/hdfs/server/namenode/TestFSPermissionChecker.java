@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UnixUserGroupInformation;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Test the cache of traverse checks in {@link FSPermissionChecker}.
+ */
+public class TestFSPermissionChecker extends TestCase {
+  private static final String SUPERUSER = "hdfs";
+  private static final String SUPERGROUP = "supergroup";
+
+  private INodeDirectory root;
+  private INodeDirectory dirA;
+  private INodeDirectory dirB;
+  private INode[] inodes;
+  private UserGroupInformation oldUgi;
+
+  protected void setUp() throws Exception {
+    oldUgi = UserGroupInformation.getCurrentUGI();
+    root = new INodeDirectory(perm(0755), 0L);
+    dirA = root.addChild(new INodeDirectory("a", perm(0711)), false);
+    dirB = dirA.addChild(new INodeDirectory("b", perm(0755)), false);
+    inodes = new INode[] {root, dirA, dirB, null};
+  }
+
+  protected void tearDown() throws Exception {
+    UserGroupInformation.setCurrentUser(oldUgi);
+  }
+
+  private static PermissionStatus perm(int mode) {
+    return new PermissionStatus(SUPERUSER, SUPERGROUP,
+        new FsPermission((short)mode));
+  }
+
+  private static void setUser(String user, String... groups) {
+    UserGroupInformation.setCurrentUser(
+        new UnixUserGroupInformation(user, groups));
+  }
+
+  private static boolean canTraverse(FSPermissionChecker.TraverseCache cache,
+      long generation, INode[] inodes) throws AccessControlException {
+    FSPermissionChecker pc = new FSPermissionChecker(SUPERUSER, SUPERGROUP,
+        cache, generation);
+    try {
+      pc.checkPermission("/a/b/c", inodes, false, null, null, null, null);
+      return true;
+    } catch (AccessControlException e) {
+      return false;
+    }
+  }
+
+  public void testCacheHitSkipsAncestors() throws Exception {
+    FSPermissionChecker.TraverseCache cache =
+      new FSPermissionChecker.TraverseCache(100);
+    setUser("alice", "users");
+    assertTrue(canTraverse(cache, 1, inodes));
+    assertEquals(1, cache.size());
+
+    // within the same generation the ancestors are not checked again
+    dirA.setPermission(new FsPermission((short)0700));
+    assertTrue(canTraverse(cache, 1, inodes));
+
+    // a new generation drops the cache and the change is seen
+    assertFalse(canTraverse(cache, 2, inodes));
+    assertEquals(0, cache.size());
+
+    dirA.setPermission(new FsPermission((short)0711));
+    assertTrue(canTraverse(cache, 3, inodes));
+    assertEquals(1, cache.size());
+
+    // a check that started before the last change does not add entries
+    setUser("bob", "users");
+    assertTrue(canTraverse(cache, 2, inodes));
+    assertEquals(1, cache.size());
+  }
+
+  public void testCacheIsPerUserAndGroups() throws Exception {
+    FSPermissionChecker.TraverseCache cache =
+      new FSPermissionChecker.TraverseCache(100);
+    dirA.setPermission(new FsPermission((short)0710));
+    dirA.setGroup("staff");
+
+    setUser("bob", "staff");
+    assertTrue(canTraverse(cache, 1, inodes));
+    assertEquals(1, cache.size());
+
+    // the entry of bob is neither used for alice
+    setUser("alice", "users");
+    assertFalse(canTraverse(cache, 1, inodes));
+
+    // nor for bob once he has left the group
+    setUser("bob", "users");
+    assertFalse(canTraverse(cache, 1, inodes));
+  }
+
+  public void testMovedPathIsNotCached() throws Exception {
+    FSPermissionChecker.TraverseCache cache =
+      new FSPermissionChecker.TraverseCache(100);
+    setUser("alice", "users");
+    // /a/b was moved to /c/b after the path was resolved
+    INodeDirectory dirC = root.addChild(
+        new INodeDirectory("c", perm(0700)), false);
+    dirA.removeChild(dirB);
+    dirC.addChild(dirB, false);
+    assertTrue(canTraverse(cache, 1, inodes));
+    assertEquals(0, cache.size());
+  }
+
+  public void testCacheIsBounded() throws Exception {
+    FSPermissionChecker.TraverseCache cache =
+      new FSPermissionChecker.TraverseCache(2);
+    for (int i = 0; i < 5; i++) {
+      setUser("user" + i, "users");
+      assertTrue(canTraverse(cache, 1, inodes));
+      assertTrue(cache.size() <= 2);
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.security.UnixUserGroupInformation;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Runs creates and renames concurrently with readers of the namespace and
+ * of the leases, with dfs.namenode.lock.fine set.
+ */
+public class TestFineGrainedNamespaceLocking extends TestCase {
+  private static final Log LOG =
+    LogFactory.getLog(TestFineGrainedNamespaceLocking.class);
+
+  private static final int NUM_WRITERS = 8;
+  private static final int NUM_READERS = 4;
+  private static final int FILES_PER_WRITER = 100;
+
+  private MiniDFSCluster cluster;
+  private NameNode nn;
+  private FSNamesystem namesystem;
+  private UserGroupInformation ugi;
+  private final AtomicBoolean done = new AtomicBoolean(false);
+  private final List<Throwable> errors = new ArrayList<Throwable>();
+
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.rwlock", true);
+    conf.setBoolean("dfs.namenode.lock.fine", true);
+    cluster = new MiniDFSCluster(conf, 0, true, null);
+    cluster.waitActive();
+    nn = cluster.getNameNode();
+    namesystem = nn.getNamesystem();
+    ugi = UnixUserGroupInformation.login(conf);
+  }
+
+  protected void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static String file(int writer, int i) {
+    return "/dir" + writer + "/file" + i;
+  }
+
+  private static String renamed(int writer, int i) {
+    return "/dir" + writer + "/renamed/file" + i;
+  }
+
+  private synchronized void error(Throwable t) {
+    LOG.error("Concurrent operation failed", t);
+    errors.add(t);
+  }
+
+  /**
+   * Creates files, renames them while they are open and closes them under
+   * the new name.
+   */
+  private class Writer extends Thread {
+    private final int id;
+    private final String client;
+
+    Writer(int id) {
+      super("Writer" + id);
+      this.id = id;
+      this.client = "client" + id;
+    }
+
+    public void run() {
+      UserGroupInformation.setCurrentUser(ugi);
+      try {
+        for (int i = 0; i < FILES_PER_WRITER; i++) {
+          nn.create(file(id, i), FsPermission.getDefault(), client, false,
+                    false, (short) 1, 1024);
+          assertTrue(nn.rename(file(id, i), renamed(id, i)));
+          assertNotNull(namesystem.leaseManager.getLeaseByPath(
+              renamed(id, i)));
+          assertTrue(nn.complete(renamed(id, i), client));
+        }
+      } catch (Throwable t) {
+        error(t);
+      }
+    }
+  }
+
+  /** Reads the files and the leases of the writers while they run. */
+  private class Reader extends Thread {
+    private final Random r;
+
+    Reader(int id) {
+      super("Reader" + id);
+      this.r = new Random(id);
+    }
+
+    public void run() {
+      UserGroupInformation.setCurrentUser(ugi);
+      try {
+        while (!done.get()) {
+          int writer = r.nextInt(NUM_WRITERS);
+          int i = r.nextInt(FILES_PER_WRITER);
+          String src = r.nextBoolean() ? file(writer, i) : renamed(writer, i);
+          nn.getHdfsFileInfo(src);
+          namesystem.getFileInfoExtended(src);
+          namesystem.leaseManager.getLeaseByPath(src);
+          nn.getRandomFiles(10);
+        }
+      } catch (Throwable t) {
+        error(t);
+      }
+    }
+  }
+
+  public void testConcurrentCreateRenameAndGetFileInfo() throws Exception {
+    assertTrue(namesystem.isFineGrainedLocking());
+    for (int i = 0; i < NUM_WRITERS; i++) {
+      assertTrue(nn.mkdirs("/dir" + i + "/renamed",
+                           FsPermission.getDefault()));
+    }
+
+    List<Thread> writers = new ArrayList<Thread>();
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int i = 0; i < NUM_WRITERS; i++) {
+      writers.add(new Writer(i));
+    }
+    for (int i = 0; i < NUM_READERS; i++) {
+      readers.add(new Reader(i));
+    }
+    for (Thread t : readers) {
+      t.start();
+    }
+    for (Thread t : writers) {
+      t.start();
+    }
+    for (Thread t : writers) {
+      t.join();
+    }
+    done.set(true);
+    for (Thread t : readers) {
+      t.join();
+    }
+    assertTrue("Errors: " + errors, errors.isEmpty());
+
+    checkNamespace();
+    assertEquals(0, namesystem.leaseManager.countLease());
+    assertEquals(0, namesystem.leaseManager.countPath());
+
+    // the edit log replays to the same namespace
+    cluster.restartNameNode();
+    nn = cluster.getNameNode();
+    namesystem = nn.getNamesystem();
+    checkNamespace();
+  }
+
+  private void checkNamespace() throws IOException {
+    for (int writer = 0; writer < NUM_WRITERS; writer++) {
+      for (int i = 0; i < FILES_PER_WRITER; i++) {
+        assertNull(nn.getHdfsFileInfo(file(writer, i)));
+        HdfsFileStatus status = nn.getHdfsFileInfo(renamed(writer, i));
+        assertNotNull(renamed(writer, i), status);
+        assertFalse(status.isDir());
+      }
+      assertEquals(FILES_PER_WRITER,
+          nn.getContentSummary("/dir" + writer).getFileCount());
+    }
+  }
+}
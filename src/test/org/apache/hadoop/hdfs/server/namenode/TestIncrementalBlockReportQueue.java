@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+/**
+ * Test that incremental block reports queued on the namenode are applied.
+ */
+public class TestIncrementalBlockReportQueue extends TestCase {
+  private static final long BLOCK_SIZE = 1024;
+
+  public void testQueuedReports() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    // a small queue and batches make the handlers wait for room
+    conf.setInt("dfs.namenode.incrementalblockreport.queue.size", 2);
+    conf.setInt("dfs.namenode.incrementalblockreport.batch.size", 2);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 3, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+
+      Path[] files = new Path[10];
+      for (int i = 0; i < files.length; i++) {
+        files[i] = new Path("/queued/file" + i);
+        DFSTestUtil.createFile(fs, files[i], 5 * BLOCK_SIZE, (short)3, i);
+      }
+      for (Path file : files) {
+        DFSTestUtil.waitReplication(fs, file, (short)3);
+      }
+
+      long deadline = System.currentTimeMillis() + 60000;
+      while (namesystem.getIncrementalBlockReportQueueLength() > 0 &&
+             System.currentTimeMillis() < deadline) {
+        Thread.sleep(100);
+      }
+      assertEquals(0, namesystem.getIncrementalBlockReportQueueLength());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check that the incrementally maintained content summaries agree with
+ * a full walk of the subtree across namespace operations.
+ */
+public class TestIncrementalContentSummary {
+  private static final int BLOCK_SIZE = 1024;
+  private MiniDFSCluster cluster;
+  private Configuration conf;
+  private DistributedFileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setBoolean("dfs.namenode.contentsummary.incremental", true);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setBoolean("dfs.support.append", true);
+    cluster = new MiniDFSCluster(conf, 2, true, null);
+    cluster.waitActive();
+    fs = (DistributedFileSystem)cluster.getFileSystem();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private void checkSummary(String path) throws IOException {
+    INode node = cluster.getNameNode().namesystem.dir.rootDir.getNode(path);
+    ContentSummary expected = node.computeContentSummary();
+    ContentSummary actual = fs.getContentSummary(new Path(path));
+    assertEquals(path, expected.getLength(), actual.getLength());
+    assertEquals(path, expected.getFileCount(), actual.getFileCount());
+    assertEquals(path, expected.getDirectoryCount(),
+        actual.getDirectoryCount());
+    assertEquals(path, expected.getSpaceConsumed(), actual.getSpaceConsumed());
+  }
+
+  private void checkAll() throws IOException {
+    checkSummary("/");
+    checkSummary("/a");
+    checkSummary("/a/b");
+    checkSummary("/c");
+  }
+
+  @Test
+  public void testNamespaceOperations() throws IOException {
+    fs.mkdirs(new Path("/a/b"));
+    fs.mkdirs(new Path("/c"));
+    DFSTestUtil.createFile(fs, new Path("/a/b/f1"), 3 * BLOCK_SIZE, (short)2, 0);
+    DFSTestUtil.createFile(fs, new Path("/a/b/f2"), BLOCK_SIZE, (short)2, 0);
+    DFSTestUtil.createFile(fs, new Path("/a/f3"), BLOCK_SIZE / 2, (short)1, 0);
+    checkAll();
+
+    // a file being written
+    FSDataOutputStream out = fs.create(new Path("/c/open"));
+    out.write(new byte[BLOCK_SIZE + 10]);
+    out.sync();
+    checkAll();
+    out.close();
+    checkAll();
+
+    fs.setReplication(new Path("/a/b/f2"), (short)1);
+    checkAll();
+
+    fs.concat(new Path("/a/b/f1"), new Path[] {new Path("/a/b/f2")}, false);
+    checkAll();
+
+    out = fs.append(new Path("/a/f3"));
+    out.write(new byte[BLOCK_SIZE]);
+    out.sync();
+    checkAll();
+    out.close();
+    checkAll();
+
+    fs.setQuota(new Path("/a/b"), 100, Long.MAX_VALUE);
+    checkAll();
+
+    fs.rename(new Path("/a/b"), new Path("/c/b"));
+    checkSummary("/");
+    checkSummary("/a");
+    checkSummary("/c");
+    fs.rename(new Path("/c/b"), new Path("/a/b"));
+    checkAll();
+
+    fs.delete(new Path("/a/b"), true);
+    fs.mkdirs(new Path("/a/b"));
+    checkAll();
+
+    // the counts are rebuilt when the image is loaded
+    cluster.restartNameNode();
+    fs = (DistributedFileSystem)cluster.getFileSystem();
+    checkAll();
+  }
+}
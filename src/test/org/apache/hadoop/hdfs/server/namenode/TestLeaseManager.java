@@ -67,4 +67,42 @@ public class TestLeaseManager extends TestCase {
     verify(spyNamesystem).internalReleaseLeaseOne((LeaseManager.Lease)anyObject(), eq("/file-2"), eq(false));
     verify(spyNamesystem, never()).internalReleaseLease((LeaseManager.Lease)anyObject(), anyString(), (INodeFileUnderConstruction)anyObject());
   }
+
+  /*
+   * test case: a lease that is renewed is not recovered, while a lease
+   * that is not renewed is recovered once it reaches its hard limit
+   */
+  public void testRenewedLeaseNotRecovered()
+    throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      FSNamesystem spyNamesystem = spy(cluster.getNameNode().getNamesystem());
+      LeaseManager leaseManager = new LeaseManager(spyNamesystem);
+      spyNamesystem.leaseManager = leaseManager;
+      spyNamesystem.lmthread.interrupt();
+
+      leaseManager.setLeasePeriod(1, 500);
+      leaseManager.addLease("client-renewed", "/renewed",
+                            System.currentTimeMillis());
+      leaseManager.addLease("client-expired", "/expired",
+                            System.currentTimeMillis());
+      for (int i = 0; i < 10; i++) {
+        Thread.sleep(100);
+        leaseManager.renewLease("client-renewed");
+        synchronized (spyNamesystem) {
+          leaseManager.checkLeases();
+        }
+      }
+
+      verify(spyNamesystem).internalReleaseLeaseOne(
+          (LeaseManager.Lease)anyObject(), eq("/expired"), eq(false));
+      verify(spyNamesystem, never()).internalReleaseLeaseOne(
+          (LeaseManager.Lease)anyObject(), eq("/renewed"), eq(false));
+      assertNotNull(leaseManager.getLease("client-renewed"));
+      assertEquals(1, leaseManager.countLease());
+    } finally {
+      cluster.shutdown();
+    }
+  }
 }
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.net.NetworkTopology;
+
+public class TestLoadAwareBlockPlacement extends TestCase {
+  private static final int BLOCK_SIZE = 1024;
+  private static final long CAPACITY =
+    100 * FSConstants.MIN_BLOCKS_FOR_WRITE * BLOCK_SIZE;
+  private static final String filename = "/dummyfile.txt";
+
+  private NetworkTopology cluster;
+  private BlockPlacementPolicyLoadAware replicator;
+  private DatanodeDescriptor[] dataNodes;
+
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.replication.considerLoad", false);
+    cluster = new NetworkTopology();
+    dataNodes = new DatanodeDescriptor[] {
+      new DatanodeDescriptor(new DatanodeID("h1:5020"), "/r1"),
+      new DatanodeDescriptor(new DatanodeID("h2:5020"), "/r1"),
+      new DatanodeDescriptor(new DatanodeID("h3:5020"), "/r1"),
+      new DatanodeDescriptor(new DatanodeID("h4:5020"), "/r1"),
+      new DatanodeDescriptor(new DatanodeID("h5:5020"), "/r2"),
+      new DatanodeDescriptor(new DatanodeID("h6:5020"), "/r2"),
+      new DatanodeDescriptor(new DatanodeID("h7:5020"), "/r2"),
+      new DatanodeDescriptor(new DatanodeID("h8:5020"), "/r2")
+    };
+    for (DatanodeDescriptor node : dataNodes) {
+      cluster.add(node);
+      node.updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L, 0);
+    }
+    replicator = new BlockPlacementPolicyLoadAware(conf, null, cluster);
+  }
+
+  /**
+   * The sampler picks the nodes in proportion to their weights.
+   */
+  public void testWeightedSampler() throws Exception {
+    List<DatanodeDescriptor> nodes = Arrays.asList(dataNodes).subList(0, 4);
+    double[] weights = new double[] {1, 2, 3, 4};
+    BlockPlacementPolicyLoadAware.WeightedSampler sampler =
+      new BlockPlacementPolicyLoadAware.WeightedSampler(nodes, weights);
+    Random random = new Random(0);
+    int draws = 100000;
+    int[] counts = new int[nodes.size()];
+    for (int i = 0; i < draws; i++) {
+      counts[nodes.indexOf(sampler.sample(random))]++;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      double expected = draws * weights[i] / 10;
+      assertTrue("node " + i + " was picked " + counts[i] + " times",
+          Math.abs(counts[i] - expected) < expected * 0.05);
+    }
+  }
+
+  /**
+   * A node that is almost full or busy is picked less often than the
+   * others, but it is still picked.
+   */
+  public void testLoadedNodesArePickedLess() throws Exception {
+    DatanodeDescriptor full = dataNodes[1];
+    full.updateHeartbeat(CAPACITY, CAPACITY * 9 / 10, CAPACITY / 10, 0L, 0);
+    DatanodeDescriptor busy = dataNodes[6];
+    busy.updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L, 40);
+    for (int i = 0; i < dataNodes.length; i++) {
+      if (dataNodes[i] != busy) {
+        dataNodes[i].updateHeartbeat(CAPACITY,
+            dataNodes[i].getDfsUsed(), dataNodes[i].getRemaining(), 0L, 1);
+      }
+    }
+
+    int rounds = 4000;
+    int fullCount = 0, busyCount = 0;
+    for (int i = 0; i < rounds; i++) {
+      DatanodeDescriptor[] targets = replicator.chooseTarget(filename, 1,
+          null, new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+      assertEquals(1, targets.length);
+      if (targets[0] == full) {
+        fullCount++;
+      } else if (targets[0] == busy) {
+        busyCount++;
+      }
+    }
+    // a uniform choice would pick each node rounds / 8 times
+    int uniform = rounds / dataNodes.length;
+    assertTrue("full node was picked " + fullCount + " times",
+        fullCount > 0 && fullCount < uniform / 2);
+    assertTrue("busy node was picked " + busyCount + " times",
+        busyCount > 0 && busyCount < uniform / 2);
+  }
+
+  /**
+   * The rack constraints of the default policy still hold.
+   */
+  public void testRackPlacement() throws Exception {
+    dataNodes[3].updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L, 30);
+    for (int i = 0; i < 100; i++) {
+      DatanodeDescriptor[] targets = replicator.chooseTarget(filename, 3,
+          dataNodes[0], new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+      assertEquals(3, targets.length);
+      assertEquals(dataNodes[0], targets[0]);
+      assertFalse(cluster.isOnSameRack(targets[0], targets[1]));
+      assertTrue(cluster.isOnSameRack(targets[1], targets[2]));
+      assertFalse(targets[1] == targets[2]);
+    }
+
+    // all the nodes can be used
+    DatanodeDescriptor[] targets = replicator.chooseTarget(filename,
+        dataNodes.length, null, new ArrayList<DatanodeDescriptor>(),
+        BLOCK_SIZE);
+    assertEquals(dataNodes.length, targets.length);
+  }
+
+  /**
+   * A node added after the samplers were built can be picked.
+   */
+  public void testNewNode() throws Exception {
+    replicator.chooseTarget(filename, 1, null,
+        new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+    DatanodeDescriptor newNode =
+      new DatanodeDescriptor(new DatanodeID("h9:5020"), "/r3");
+    newNode.updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L, 0);
+    cluster.add(newNode);
+    DatanodeDescriptor[] targets = replicator.chooseTarget(filename, 2,
+        dataNodes[0], new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+    assertEquals(2, targets.length);
+    List<DatanodeDescriptor> excluded = new ArrayList<DatanodeDescriptor>(
+        Arrays.asList(dataNodes));
+    targets = replicator.chooseTarget(filename, 1, null, excluded,
+        BLOCK_SIZE);
+    assertEquals(1, targets.length);
+    assertEquals(newNode, targets[0]);
+  }
+}
@@ -37,4 +37,16 @@ public class TestNNThroughputBenchmark extends TestCase {
     String[] args = new String[] {"-op", "all"};
     NNThroughputBenchmark.runBenchmark(conf, Arrays.asList(args));
   }
+
+  /**
+   * This test runs all benchmarks with fine-grained namespace locking.
+   */
+  public void testNNThroughputWithFineLocking() throws Exception {
+    Configuration conf = new Configuration();
+    FileSystem.setDefaultUri(conf, "hdfs://localhost:" + 0);
+    conf.set("dfs.http.address", "0.0.0.0:0");
+    NameNode.format(conf);
+    String[] args = new String[] {"-fineLocking", "-op", "all"};
+    NNThroughputBenchmark.runBenchmark(conf, Arrays.asList(args));
+  }
 }
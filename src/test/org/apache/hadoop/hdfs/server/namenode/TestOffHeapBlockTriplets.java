@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Test the replica triplets of {@link BlockInfo} kept on and off the heap
+ * in {@link OffHeapBlockTriplets}.
+ */
+public class TestOffHeapBlockTriplets extends TestCase {
+  private static final int NUM_DATANODES = 8;
+  private static final int NUM_BLOCKS = 3000;
+
+  public void testOnHeap() {
+    checkBlockLists(null);
+  }
+
+  public void testOffHeap() {
+    OffHeapBlockTriplets triplets = new OffHeapBlockTriplets(null);
+    checkBlockLists(triplets);
+    // every block freed its triplets when its last replica was removed
+    assertEquals(0, triplets.getNumBlocks());
+    assertTrue(triplets.getAllocatedBytes() > 0);
+  }
+
+  public void testReleaseDatanode() {
+    OffHeapBlockTriplets triplets = new OffHeapBlockTriplets(null);
+    DatanodeDescriptor node =
+      new DatanodeDescriptor(new DatanodeID("h0:5020"));
+    BlockInfo b = new BlockInfo(new Block(1, 0, 1), 1, triplets);
+    assertTrue(node.addBlock(b));
+    assertEquals(1, triplets.getNumDatanodes());
+    assertTrue(node.removeBlock(b));
+    triplets.releaseDatanode(node);
+    assertEquals(0, triplets.getNumDatanodes());
+    assertEquals(-1, node.offHeapId);
+
+    // the released id goes to the next datanode
+    DatanodeDescriptor other =
+      new DatanodeDescriptor(new DatanodeID("h1:5020"));
+    assertTrue(other.addBlock(b));
+    assertSame(other, b.getDatanode(0));
+    // and a released datanode that gets replicas again gets a new id
+    assertTrue(node.addBlock(b));
+    assertSame(node, b.getDatanode(1));
+    assertTrue(node.offHeapId != other.offHeapId);
+    assertTrue(node.removeBlock(b));
+    assertTrue(other.removeBlock(b));
+    triplets.releaseDatanode(node);
+    triplets.releaseDatanode(other);
+    assertEquals(0, triplets.getNumDatanodes());
+  }
+
+  /**
+   * Blocks kept on the heap and blocks kept in another store cannot be
+   * added to the block list of a datanode, and the list is left as is.
+   */
+  public void testMixedBlocks() {
+    OffHeapBlockTriplets triplets = new OffHeapBlockTriplets(null);
+    DatanodeDescriptor node =
+      new DatanodeDescriptor(new DatanodeID("h0:5020"));
+    BlockInfo offHeap = new BlockInfo(new Block(1, 0, 1), 1, triplets);
+    assertTrue(node.addBlock(offHeap));
+
+    BlockInfo onHeap = new BlockInfo(new Block(2, 0, 1), 1);
+    BlockInfo otherStore = new BlockInfo(new Block(3, 0, 1), 1,
+        new OffHeapBlockTriplets(null));
+    for (BlockInfo b : new BlockInfo[] {onHeap, otherStore}) {
+      try {
+        node.addBlock(b);
+        fail("Added " + b + " to a list of blocks kept in another store");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      assertEquals(0, b.numNodes());
+    }
+    assertEquals(1, node.numBlocks());
+    assertTrue(offHeap.listIsConsistent(node));
+
+    // a datanode can only have an id in one store
+    try {
+      otherStore.addNode(node);
+      fail("Datanode got an id in two stores");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertTrue(node.removeBlock(offHeap));
+    assertEquals(0, triplets.getNumBlocks());
+  }
+
+  /**
+   * Run a name-node with the triplets off the heap, where they are changed
+   * under the write lock only, through writes, block reports and
+   * deletion.
+   */
+  public void testNameNode() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.namenode.blocksmap.offheap", true);
+    conf.setLong("dfs.block.size", 1024);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 3, true, null);
+    try {
+      cluster.waitActive();
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+      assertTrue(namesystem.blocksMap.isOffHeapTriplets());
+      FileSystem fs = cluster.getFileSystem();
+      Path file1 = new Path("/file1");
+      Path file2 = new Path("/file2");
+      DFSTestUtil.createFile(fs, file1, 10 * 1024, (short) 3, 0L);
+      DFSTestUtil.createFile(fs, file2, 10 * 1024, (short) 3, 1L);
+      DFSTestUtil.waitReplication(fs, file1, (short) 3);
+      assertTrue(namesystem.blocksMap.getOffHeapTripletsBytes() > 0);
+
+      assertTrue(fs.delete(file1, false));
+
+      // the block reports of the restarted datanodes rebuild the lists
+      cluster.restartDataNodes();
+      cluster.waitActive();
+      DFSTestUtil.waitReplication(fs, file2, (short) 3);
+      assertEquals(10, namesystem.blocksMap.size());
+      assertTrue(fs.delete(file2, false));
+      assertEquals(0, namesystem.blocksMap.size());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Add, move and remove replicas at random and compare the lists of
+   * blocks of the datanodes, and the datanodes of the blocks, with what
+   * was done.
+   */
+  private void checkBlockLists(OffHeapBlockTriplets triplets) {
+    Random r = new Random(0x5eedL);
+    DatanodeDescriptor[] nodes = new DatanodeDescriptor[NUM_DATANODES];
+    List<Set<BlockInfo>> expected = new ArrayList<Set<BlockInfo>>();
+    for (int i = 0; i < NUM_DATANODES; i++) {
+      nodes[i] = new DatanodeDescriptor(new DatanodeID("h" + i + ":5020"));
+      expected.add(new HashSet<BlockInfo>());
+    }
+    BlockInfo[] blocks = new BlockInfo[NUM_BLOCKS];
+    for (int i = 0; i < NUM_BLOCKS; i++) {
+      // some blocks get more replicas than they have room for
+      blocks[i] = new BlockInfo(new Block(i, 0, 1), 1 + r.nextInt(3),
+                                triplets);
+    }
+
+    for (int round = 0; round < 4; round++) {
+      for (int op = 0; op < 20000; op++) {
+        int n = r.nextInt(NUM_DATANODES);
+        BlockInfo b = blocks[r.nextInt(NUM_BLOCKS)];
+        int action = r.nextInt(10);
+        if (action < 5) {
+          assertEquals(expected.get(n).add(b), nodes[n].addBlock(b));
+        } else if (action < 8) {
+          assertEquals(expected.get(n).remove(b), nodes[n].removeBlock(b));
+        } else if (expected.get(n).contains(b)) {
+          nodes[n].moveBlockToHead(b);
+        }
+      }
+      checkEquals(nodes, expected, blocks);
+    }
+
+    // remove all replicas
+    for (int n = 0; n < NUM_DATANODES; n++) {
+      for (BlockInfo b : expected.get(n)) {
+        assertTrue(nodes[n].removeBlock(b));
+      }
+      expected.get(n).clear();
+    }
+    checkEquals(nodes, expected, blocks);
+  }
+
+  private static void checkEquals(DatanodeDescriptor[] nodes,
+      List<Set<BlockInfo>> expected, BlockInfo[] blocks) {
+    for (int n = 0; n < nodes.length; n++) {
+      Set<BlockInfo> listed = new HashSet<BlockInfo>();
+      for (Iterator<Block> it = nodes[n].getBlockIterator(); it.hasNext();) {
+        assertTrue(listed.add((BlockInfo)it.next()));
+      }
+      assertEquals(expected.get(n), listed);
+      assertEquals(expected.get(n).size(), nodes[n].numBlocks());
+    }
+    for (BlockInfo b : blocks) {
+      int numNodes = 0;
+      for (int n = 0; n < nodes.length; n++) {
+        if (expected.get(n).contains(b)) {
+          assertTrue(b.findDatanode(nodes[n]) >= 0);
+          assertTrue(b.listIsConsistent(nodes[n]));
+          numNodes++;
+        } else {
+          assertEquals(-1, b.findDatanode(nodes[n]));
+        }
+      }
+      assertEquals(numNodes, b.numNodes());
+      for (int i = 0; i < numNodes; i++) {
+        assertNotNull(b.getDatanode(i));
+      }
+    }
+  }
+}
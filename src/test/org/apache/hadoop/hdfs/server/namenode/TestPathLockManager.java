@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link PathLockManager}
+ */
+public class TestPathLockManager extends TestCase {
+
+  /** Lock paths in another thread; count down when locked. */
+  private static class Locker extends Thread {
+    private final PathLockManager manager;
+    private final String[] dirs;
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    Locker(PathLockManager manager, String... dirs) {
+      this.manager = manager;
+      this.dirs = dirs;
+      setDaemon(true);
+    }
+
+    public void run() {
+      PathLockManager.Locks locks = manager.lock(dirs);
+      locked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+      } finally {
+        locks.unlock();
+      }
+    }
+  }
+
+  public void testDisjointSubtrees() throws Exception {
+    PathLockManager manager = new PathLockManager(1 << 16);
+    PathLockManager.Locks a = manager.lock("/user/a");
+    Locker b = new Locker(manager, "/user/b");
+    b.start();
+    assertTrue(b.locked.await(10, TimeUnit.SECONDS));
+    b.release.countDown();
+    b.join();
+    a.unlock();
+  }
+
+  public void testSameDirectory() throws Exception {
+    PathLockManager manager = new PathLockManager(1 << 16);
+    PathLockManager.Locks a = manager.lock("/user/a");
+    Locker b = new Locker(manager, "/user/a");
+    b.start();
+    assertFalse(b.locked.await(200, TimeUnit.MILLISECONDS));
+    a.unlock();
+    assertTrue(b.locked.await(10, TimeUnit.SECONDS));
+    b.release.countDown();
+    b.join();
+  }
+
+  public void testAncestorIsExclusiveWithDescendants() throws Exception {
+    PathLockManager manager = new PathLockManager(1 << 16);
+    // a mutation below /user/a keeps out changes to the children of /user
+    // but not other mutations below /user
+    PathLockManager.Locks a = manager.lock("/user/a/b");
+    Locker c = new Locker(manager, "/user/c");
+    c.start();
+    assertTrue(c.locked.await(10, TimeUnit.SECONDS));
+    Locker rename = new Locker(manager, "/user");
+    rename.start();
+    assertFalse(rename.locked.await(200, TimeUnit.MILLISECONDS));
+    c.release.countDown();
+    a.unlock();
+    assertTrue(rename.locked.await(10, TimeUnit.SECONDS));
+    rename.release.countDown();
+    rename.join();
+    c.join();
+  }
+
+  public void testNoDeadlock() throws Exception {
+    // few stripes, so that the paths share them in every order
+    final PathLockManager manager = new PathLockManager(4);
+    final String[] paths = { "/", "/a", "/a/b", "/c", "/c/d", "/e/f/g" };
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int seed = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 2000; i++) {
+            String x = paths[(seed + i) % paths.length];
+            String y = paths[(seed * 7 + i * 3) % paths.length];
+            manager.lock(x, y).unlock();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join(60000);
+      assertFalse(t.isAlive());
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+
+/**
+ * Test the limits of {@link ReplicationBudget} on cross-rack streams.
+ */
+public class TestReplicationBudget extends TestCase {
+  private static DatanodeDescriptor node(String name, String rack) {
+    return new DatanodeDescriptor(new DatanodeID(name + ":5020"), rack);
+  }
+
+  private final DatanodeDescriptor a1 = node("a1", "/a");
+  private final DatanodeDescriptor a2 = node("a2", "/a");
+  private final DatanodeDescriptor b1 = node("b1", "/b");
+  private final DatanodeDescriptor b2 = node("b2", "/b");
+  private final DatanodeDescriptor c1 = node("c1", "/c");
+  private long nextBlockId = 0;
+
+  private boolean acquire(ReplicationBudget budget, DatanodeDescriptor src,
+                          DatanodeDescriptor... targets) {
+    return budget.acquire(new Block(nextBlockId++, 0, 1), src, targets);
+  }
+
+  public void testNoLimit() {
+    ReplicationBudget budget = new ReplicationBudget(0);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(acquire(budget, a1, b1, c1));
+    }
+  }
+
+  public void testSameRackIsFree() {
+    ReplicationBudget budget = new ReplicationBudget(1);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(acquire(budget, a1, a2));
+    }
+    assertEquals(0, budget.getOutgoing("/a"));
+    assertEquals(0, budget.getIncoming("/a"));
+  }
+
+  public void testRackLimits() {
+    ReplicationBudget budget = new ReplicationBudget(2);
+    assertTrue(acquire(budget, a1, b1));
+    assertTrue(acquire(budget, a2, c1));
+    // rack /a has sent two streams
+    assertFalse(acquire(budget, a1, b2));
+    assertEquals(2, budget.getOutgoing("/a"));
+
+    // rack /b may still receive one stream, but not two
+    assertFalse(acquire(budget, c1, b1, b2));
+    assertEquals(0, budget.getOutgoing("/c"));
+    assertTrue(acquire(budget, c1, b2, a1));
+    assertEquals(2, budget.getIncoming("/b"));
+    assertEquals(1, budget.getIncoming("/a"));
+    assertFalse(acquire(budget, c1, b1));
+  }
+
+  public void testStreamsInFlight() {
+    ReplicationBudget budget = new ReplicationBudget(2);
+    Block blk1 = new Block(1, 0, 1);
+    Block blk2 = new Block(2, 0, 1);
+    assertTrue(budget.acquire(blk1, a1, new DatanodeDescriptor[] {b1, c1}));
+    assertFalse(budget.hasOutgoingRoom("/a", 0));
+    assertTrue(budget.hasOutgoingRoom("/b", 1));
+    assertFalse(budget.hasOutgoingRoom("/b", 2));
+    assertFalse(budget.acquire(blk2, a2, new DatanodeDescriptor[] {b2}));
+
+    // a replica on a rack the block was not sent to ends no stream
+    budget.replicaAdded(blk1, a2);
+    assertEquals(2, budget.getOutgoing("/a"));
+    // the stream into /b finished
+    budget.replicaAdded(blk1, b1);
+    assertEquals(1, budget.getOutgoing("/a"));
+    assertEquals(0, budget.getIncoming("/b"));
+    assertEquals(1, budget.getIncoming("/c"));
+    assertTrue(budget.acquire(blk2, a2, new DatanodeDescriptor[] {b2}));
+
+    // releasing a block returns all its streams
+    budget.release(blk1);
+    budget.release(blk2);
+    assertEquals(0, budget.getOutgoing("/a"));
+    assertEquals(0, budget.getIncoming("/b"));
+    assertEquals(0, budget.getIncoming("/c"));
+    assertTrue(budget.hasOutgoingRoom("/a", 1));
+  }
+}
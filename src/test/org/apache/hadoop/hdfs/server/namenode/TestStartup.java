@@ -15,6 +15,7 @@ import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
@@ -357,6 +358,93 @@ public class TestStartup extends TestCase {
     checkNameSpace(conf);
   }
   
+  public void testSectionedImage() throws Exception {
+    LOG.info("Test saving and loading a sectioned image.");
+    Configuration conf = new Configuration();
+    FileSystem.setDefaultUri(conf, "hdfs://localhost:0");
+    conf.set("dfs.http.address", "127.0.0.1:0");  
+    File base_dir = new File(System.getProperty("test.build.data", "build/test/data"), "dfs/");
+    conf.set("dfs.name.dir", new File(base_dir, "name").getPath());
+    conf.setBoolean("dfs.permissions", false);
+    // small chunks, so that the large directory spans several of them
+    conf.setInt(HdfsConstants.DFS_IMAGE_CHUNK_SIZE_KEY, 1024);
+    conf.setInt(HdfsConstants.DFS_IMAGE_LOAD_THREADS_KEY, 3);
+
+    NameNode.format(conf); 
+
+    // create a flat image
+    LOG.info("Create a flat fsimage");
+    NameNode namenode = new NameNode(conf);
+    PermissionStatus perm =
+      new PermissionStatus("hairong", null, FsPermission.getDefault());
+    namenode.getNamesystem().mkdirs("/test", perm);
+    for (int i = 0; i < 500; i++) {
+      namenode.getNamesystem().mkdirs("/large/dir" + i, perm);
+    }
+    namenode.getNamesystem().mkdirs("/large/dir7/a/b/c", perm);
+    namenode.create("/large/dir7/a/open", FsPermission.getDefault(),
+        "client", false, (short)1, 1024);
+    for (int i = 0; i < 50; i++) {
+      namenode.getNamesystem().mkdirs("/deep/" + i + "/sub" + i, perm);
+    }
+    namenode.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+    namenode.saveNamespace(false, false);
+    ContentSummary expected = namenode.getContentSummary("/");
+    namenode.stop();
+    namenode.join();
+
+    // read the flat image and store it sectioned
+    LOG.info("Read a flat image and store it sectioned.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_SAVE_SECTIONED_KEY, true);
+    conf.setInt(HdfsConstants.DFS_IMAGE_SAVE_THREADS_KEY, 1);
+    checkSectionedNameSpace(conf, expected);
+
+    // read the sectioned image and store it with parallel savers
+    LOG.info("Read a sectioned image and store it in parallel.");
+    conf.setInt(HdfsConstants.DFS_IMAGE_SAVE_THREADS_KEY, 3);
+    checkSectionedNameSpace(conf, expected);
+
+    // split directories over several small segments
+    LOG.info("Read a sectioned image and store it in small segments.");
+    conf.setInt(HdfsConstants.DFS_IMAGE_SAVE_SEGMENT_INODES_KEY, 3);
+    checkSectionedNameSpace(conf, expected);
+    conf.setInt(HdfsConstants.DFS_IMAGE_SAVE_SEGMENT_INODES_KEY,
+        HdfsConstants.DFS_IMAGE_SAVE_SEGMENT_INODES_DEFAULT);
+
+    // read the sectioned image and store it sectioned and compressed
+    LOG.info("Read a sectioned image and store it compressed in parallel.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_COMPRESS_KEY, true);
+    checkSectionedNameSpace(conf, expected);
+
+    // read the compressed sectioned image and store it flat
+    LOG.info("Read a compressed sectioned image and store it flat.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_SAVE_SECTIONED_KEY, false);
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_COMPRESS_KEY, false);
+    checkSectionedNameSpace(conf, expected);
+
+    // read the flat image again
+    LOG.info("Read a flat image and store it flat.");
+    checkSectionedNameSpace(conf, expected);
+  }
+
+  private void checkSectionedNameSpace(Configuration conf,
+      ContentSummary expected) throws IOException {
+    NameNode namenode = new NameNode(conf);
+    assertTrue(namenode.getFileInfo("/test").isDir());
+    assertTrue(namenode.getFileInfo("/large/dir499").isDir());
+    assertTrue(namenode.getFileInfo("/large/dir7/a/b/c").isDir());
+    assertTrue(namenode.getFileInfo("/deep/49/sub49").isDir());
+    assertFalse(namenode.getFileInfo("/large/dir7/a/open").isDir());
+    ContentSummary summary = namenode.getContentSummary("/");
+    assertEquals(expected.getDirectoryCount(), summary.getDirectoryCount());
+    assertEquals(expected.getFileCount(), summary.getFileCount());
+    assertEquals(1, namenode.getNamesystem().leaseManager.countPath());
+    namenode.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+    namenode.saveNamespace(false, false);
+    namenode.stop();
+    namenode.join();
+  }
+
   private void checkNameSpace(Configuration conf) throws IOException {
     NameNode namenode = new NameNode(conf);
     assertTrue(namenode.getFileInfo("/test").isDir());
@@ -82,6 +82,29 @@ public class TestLinkedHashSet extends TestCase {
     LOG.info("Test one element basic - DONE");
   }
 
+  public void testIteratorFrom() {
+    LOG.info("Test iterator from an element");
+    for (Integer i : list) {
+      set.add(i);
+    }
+    List<Integer> elements = new ArrayList<Integer>();
+    for (Integer i : set) {
+      elements.add(i);
+    }
+    for (int start = 0; start < elements.size(); start += 7) {
+      Iterator<Integer> iter = set.iterator(elements.get(start));
+      for (int i = start; i < elements.size(); i++) {
+        assertTrue(iter.hasNext());
+        assertEquals(elements.get(i), iter.next());
+      }
+      assertFalse(iter.hasNext());
+    }
+    // not in the set
+    set.remove(elements.get(0));
+    assertNull(set.iterator(elements.get(0)));
+    LOG.info("Test iterator from an element - DONE");
+  }
+
   public void testMultiBasic() {
     LOG.info("Test multi element basic");
     // add once
@@ -27,6 +27,7 @@ import static org.apache.hadoop.io.retry.RetryPolicies.retryUpToMaximumCountWith
 import static org.apache.hadoop.io.retry.RetryPolicies.retryUpToMaximumCountWithProportionalSleep;
 import static org.apache.hadoop.io.retry.RetryPolicies.retryUpToMaximumTimeWithFixedSleep;
 import static org.apache.hadoop.io.retry.RetryPolicies.exponentialBackoffRetry;
+import static org.apache.hadoop.io.retry.RetryPolicies.exponentialBackoffOnServerBusy;
 
 import java.util.Collections;
 import java.util.Map;
@@ -37,6 +38,7 @@ import junit.framework.TestCase;
 import org.apache.hadoop.io.retry.UnreliableInterface.FatalException;
 import org.apache.hadoop.io.retry.UnreliableInterface.UnreliableException;
 import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.ServerBusyException;
 
 public class TestRetryProxy extends TestCase {
   
@@ -136,6 +138,31 @@ public class TestRetryProxy extends TestCase {
     }
   }
   
+  public void testExponentialBackoffOnServerBusy() throws Exception {
+    UnreliableInterface unreliable = (UnreliableInterface)
+      RetryProxy.create(UnreliableInterface.class, unreliableImpl,
+                        exponentialBackoffOnServerBusy(TRY_ONCE_THEN_FAIL,
+                            5, 1L, 4L, TimeUnit.NANOSECONDS));
+    unreliable.busyThreeTimesThenSucceeds();
+    try {
+      unreliable.alwaysFailsWithRemoteFatalException();
+      fail("Should fail");
+    } catch (RemoteException e) {
+      // expected: not a busy server, so the default policy applies
+    }
+    
+    unreliable = (UnreliableInterface)
+      RetryProxy.create(UnreliableInterface.class, new UnreliableImplementation(),
+                        exponentialBackoffOnServerBusy(TRY_ONCE_THEN_FAIL,
+                            2, 1L, 4L, TimeUnit.NANOSECONDS));
+    try {
+      unreliable.busyThreeTimesThenSucceeds();
+      fail("Should fail");
+    } catch (RemoteException e) {
+      assertEquals(ServerBusyException.class.getName(), e.getClassName());
+    }
+  }
+  
   public void testRetryByException() throws UnreliableException {
     Map<Class<? extends Exception>, RetryPolicy> exceptionToPolicyMap =
       Collections.<Class<? extends Exception>, RetryPolicy>singletonMap(FatalException.class, TRY_ONCE_THEN_FAIL);
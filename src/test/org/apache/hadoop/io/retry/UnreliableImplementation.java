@@ -19,12 +19,14 @@
 package org.apache.hadoop.io.retry;
 
 import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.ServerBusyException;
 
 public class UnreliableImplementation implements UnreliableInterface {
 
   private int failsOnceInvocationCount,
     failsOnceWithValueInvocationCount,
-    failsTenTimesInvocationCount;
+    failsTenTimesInvocationCount,
+    busyInvocationCount;
   
   public void alwaysSucceeds() {
     // do nothing
@@ -57,4 +59,10 @@ public class UnreliableImplementation implements UnreliableInterface {
     }
   }
 
+  public void busyThreeTimesThenSucceeds() throws RemoteException {
+    if (busyInvocationCount++ < 3) {
+      throw new RemoteException(ServerBusyException.class.getName(), "Busy");
+    }
+  }
+
 }
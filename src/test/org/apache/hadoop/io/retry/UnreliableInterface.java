@@ -39,4 +39,6 @@ public interface UnreliableInterface {
   boolean failsOnceThenSucceedsWithReturnValue() throws UnreliableException;
 
   void failsTenTimesThenSucceeds() throws UnreliableException;
+
+  void busyThreeTimesThenSucceeds() throws RemoteException;
 }
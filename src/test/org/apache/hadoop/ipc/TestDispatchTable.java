@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import junit.framework.TestCase;
+
+/** Unit tests for {@link DispatchTable}. */
+public class TestDispatchTable extends TestCase {
+
+  private interface Protocol extends VersionedProtocol {
+    void ping() throws IOException;
+    String echo(String value) throws IOException;
+    int add(int a, int b) throws IOException;
+    int add(int[] values) throws IOException;
+  }
+
+  private interface OtherProtocol {
+    void ping() throws IOException;
+  }
+
+  public void testMethodIds() throws Exception {
+    DispatchTable table = DispatchTable.get(Protocol.class);
+    for (Method method : Protocol.class.getMethods()) {
+      int id = table.getMethodId(method);
+      assertTrue(method.toString(), id != DispatchTable.NO_ID);
+      assertEquals(method, table.getMethod(id, method.getName(),
+                                           method.getParameterTypes()));
+    }
+
+    // overloads get different ids
+    Method add2 = Protocol.class.getMethod("add", int.class, int.class);
+    Method addN = Protocol.class.getMethod("add", int[].class);
+    assertTrue(table.getMethodId(add2) != table.getMethodId(addN));
+  }
+
+  public void testUnknownMethods() throws Exception {
+    DispatchTable table = DispatchTable.get(Protocol.class);
+    Method other = OtherProtocol.class.getMethod("ping");
+    assertEquals(DispatchTable.NO_ID, table.getMethodId(other));
+    assertNull(table.getMethod(DispatchTable.NO_ID, "ping", new Class[0]));
+  }
+
+  public void testMismatchedIds() throws Exception {
+    DispatchTable table = DispatchTable.get(Protocol.class);
+    Method echo = Protocol.class.getMethod("echo", String.class);
+    int id = table.getMethodId(echo);
+    // an id the client mapped to another method is not trusted
+    assertNull(table.getMethod(id, "ping", new Class[0]));
+    assertNull(table.getMethod(id, "echo", new Class[] { Object.class }));
+    assertEquals(echo, table.getMethod(id, "echo",
+                                       new Class[] { String.class }));
+  }
+
+  public void testTablesAreCached() {
+    assertSame(DispatchTable.get(Protocol.class),
+               DispatchTable.get(Protocol.class));
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Unit tests for {@link FairCallQueue} and its scheduler and multiplexer.
+ */
+public class TestFairCallQueue extends TestCase {
+
+  private static class FakeCall implements Schedulable {
+    private final String identity;
+    private int level;
+
+    FakeCall(String identity) {
+      this.identity = identity;
+    }
+
+    public String getIdentity() {
+      return identity;
+    }
+
+    public int getPriorityLevel() {
+      return level;
+    }
+
+    public void setPriorityLevel(int level) {
+      this.level = level;
+    }
+  }
+
+  /** Schedules "user<n>" at level n. */
+  private static class FixedScheduler implements RpcScheduler {
+    public int getPriorityLevel(Schedulable obj) {
+      return Integer.parseInt(obj.getIdentity().substring("user".length()));
+    }
+
+    public void stop() {}
+  }
+
+  private Configuration newConf() {
+    Configuration conf = new Configuration();
+    // never decay during the test unless asked to
+    conf.setLong(DecayRpcScheduler.IPC_CALLQUEUE_DECAY_PERIOD_KEY,
+                 Integer.MAX_VALUE);
+    return conf;
+  }
+
+  public void testWeightedRoundRobin() {
+    Configuration conf = newConf();
+    conf.set(WeightedRoundRobinMultiplexer.IPC_CALLQUEUE_WEIGHTS_KEY, "3,2,1");
+    WeightedRoundRobinMultiplexer mux =
+      new WeightedRoundRobinMultiplexer(3, conf);
+    int[] expected = { 0, 0, 0, 1, 1, 2, 0, 0, 0, 1 };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], mux.getAndAdvanceCurrentIndex());
+    }
+
+    // default weights halve with every level
+    mux = new WeightedRoundRobinMultiplexer(2, newConf());
+    assertEquals(0, mux.getAndAdvanceCurrentIndex());
+    assertEquals(0, mux.getAndAdvanceCurrentIndex());
+    assertEquals(1, mux.getAndAdvanceCurrentIndex());
+    assertEquals(0, mux.getAndAdvanceCurrentIndex());
+  }
+
+  public void testDecaySchedulerDemotesHeavyUser() {
+    DecayRpcScheduler scheduler = new DecayRpcScheduler(4, newConf());
+    try {
+      for (int i = 0; i < 100; i++) {
+        scheduler.getPriorityLevel(new FakeCall("heavy"));
+      }
+      assertEquals(3, scheduler.getPriorityLevel(new FakeCall("heavy")));
+      assertEquals(0, scheduler.getPriorityLevel(new FakeCall("light")));
+
+      scheduler.decayCurrentCounts();
+      assertEquals(3, scheduler.getPriorityLevel(new FakeCall("heavy")));
+      assertEquals(0, scheduler.getPriorityLevel(new FakeCall("light")));
+      assertEquals(Integer.valueOf(3),
+                   scheduler.getThrottledIdentities().get("heavy"));
+      assertNull(scheduler.getThrottledIdentities().get("light"));
+
+      // once the heavy user goes quiet it is forgotten
+      for (int i = 0; i < 10; i++) {
+        scheduler.decayCurrentCounts();
+      }
+      assertTrue(scheduler.getCallCounts().isEmpty());
+      assertTrue(scheduler.getThrottledIdentities().isEmpty());
+    } finally {
+      scheduler.stop();
+    }
+  }
+
+  public void testUnknownIdentity() {
+    DecayRpcScheduler scheduler = new DecayRpcScheduler(2, newConf());
+    try {
+      assertEquals(1, scheduler.getPriorityLevel(new FakeCall(null)));
+      assertTrue(scheduler.getCallCounts().containsKey(
+                     DecayRpcScheduler.UNKNOWN_IDENTITY));
+    } finally {
+      scheduler.stop();
+    }
+  }
+
+  public void testQueueDrainsByWeight() throws Exception {
+    Configuration conf = newConf();
+    conf.set(WeightedRoundRobinMultiplexer.IPC_CALLQUEUE_WEIGHTS_KEY, "2,1");
+    FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(2, 20,
+        new FixedScheduler(), new WeightedRoundRobinMultiplexer(2, conf));
+    for (int i = 0; i < 4; i++) {
+      queue.put(new FakeCall("user1"));
+      queue.put(new FakeCall("user0"));
+    }
+    assertEquals(8, queue.size());
+    assertEquals(4, queue.getQueueSizes()[0]);
+    assertEquals(4, queue.getQueueSizes()[1]);
+
+    int[] expected = { 0, 0, 1, 0, 0, 1, 1, 1 };
+    for (int i = 0; i < expected.length; i++) {
+      FakeCall call = queue.take();
+      assertEquals(expected[i], call.getPriorityLevel());
+      assertEquals("user" + expected[i], call.getIdentity());
+    }
+    assertNull(queue.poll());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  public void testOverflowToLowerLevel() throws Exception {
+    FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(2, 2,
+        new FixedScheduler(), new WeightedRoundRobinMultiplexer(2, newConf()));
+    assertTrue(queue.offer(new FakeCall("user0")));
+    // level 0 is full, so the call goes to level 1
+    FakeCall overflow = new FakeCall("user0");
+    assertTrue(queue.offer(overflow));
+    assertEquals(1, overflow.getPriorityLevel());
+    // everything is full
+    assertFalse(queue.offer(new FakeCall("user0")));
+    assertEquals(0, queue.remainingCapacity());
+  }
+
+  public void testTakeBlocksUntilPut() throws Exception {
+    final FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(2, 10,
+        new FixedScheduler(), new WeightedRoundRobinMultiplexer(2, newConf()));
+    final FakeCall[] taken = new FakeCall[1];
+    Thread taker = new Thread() {
+      public void run() {
+        try {
+          taken[0] = queue.take();
+        } catch (InterruptedException e) {}
+      }
+    };
+    taker.start();
+    Thread.sleep(100);
+    assertNull(taken[0]);
+    FakeCall call = new FakeCall("user1");
+    queue.put(call);
+    taker.join(10000);
+    assertSame(call, taken[0]);
+  }
+}
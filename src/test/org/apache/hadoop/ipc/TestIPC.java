@@ -20,15 +20,24 @@ package org.apache.hadoop.ipc;
 
 import org.apache.commons.logging.*;
 
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.net.NetUtils;
 
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.DataInput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
 import junit.framework.TestCase;
@@ -57,6 +66,11 @@ public class TestIPC extends TestCase {
     private boolean sleep;
 
     public TestServer(int handlerCount, boolean sleep) 
+      throws IOException {
+      this(handlerCount, sleep, conf);
+    }
+
+    public TestServer(int handlerCount, boolean sleep, Configuration conf)
       throws IOException {
       super(ADDRESS, 0, LongWritable.class, handlerCount, conf);
       this.sleep = sleep;
@@ -173,6 +187,45 @@ public class TestIPC extends TestCase {
     server.stop();
   }
 	
+  public void testAsync() throws Exception {
+    Server server = new TestServer(5, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      final AtomicInteger completed = new AtomicInteger();
+      final AtomicInteger failed = new AtomicInteger();
+      RpcCallback<Writable> callback = new RpcCallback<Writable>() {
+        public void completed(Writable result) {
+          completed.incrementAndGet();
+        }
+        public void failed(IOException error) {
+          failed.incrementAndGet();
+        }
+      };
+
+      // issue all the calls from this thread before collecting any result
+      int numCalls = 100;
+      LongWritable[] params = new LongWritable[numCalls];
+      @SuppressWarnings("unchecked")
+      Future<Writable>[] futures = new Future[numCalls];
+      for (int i = 0; i < numCalls; i++) {
+        params[i] = new LongWritable(RANDOM.nextLong());
+        futures[i] = client.callAsync(params[i], addr, null, null, 0, callback);
+      }
+      for (int i = 0; i < numCalls; i++) {
+        assertEquals(params[i], futures[i].get());
+        assertTrue(futures[i].isDone());
+        assertFalse(futures[i].cancel(true));
+      }
+      assertEquals(numCalls, completed.get());
+      assertEquals(0, failed.get());
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
   public void testParallel() throws Exception {
     testParallel(10, false, 2, 4, 2, 4, 100);
   }
@@ -293,6 +346,279 @@ public class TestIPC extends TestCase {
         addr, null, null, 3*PING_INTERVAL+MIN_SLEEP_TIME);
   }
 
+  private static class BytesEchoServer extends Server {
+    public BytesEchoServer(Configuration conf) throws IOException {
+      super(ADDRESS, 0, BytesWritable.class, 1, conf);
+    }
+
+    @Override
+    public Writable call(Class<?> protocol, Writable param, long receiveTime)
+        throws IOException {
+      return param;                               // echo param as result
+    }
+  }
+
+  public void testCompressedResponses() throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.setInt(Server.IPC_SERVER_RESPONSE_COMPRESSION_THRESHOLD_KEY,
+                      1024);
+    Server server = new BytesEchoServer(serverConf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+
+    Configuration clientConf = new Configuration(conf);
+    clientConf.set(Client.IPC_CLIENT_RESPONSE_COMPRESSION_CODEC_KEY,
+                   DefaultCodec.class.getName());
+    Client client = new Client(BytesWritable.class, clientConf);
+    Client plainClient = new Client(BytesWritable.class, conf);
+    try {
+      byte[] small = new byte[100];
+      byte[] large = new byte[64 * 1024];
+      for (int i = 0; i < large.length; i++) {
+        large[i] = (byte) (i % 16);
+      }
+      assertEquals(new BytesWritable(small),
+          client.call(new BytesWritable(small), addr, null, null, 0));
+      assertEquals(0, server.rpcMetrics.compressedResponses.getCurrentIntervalValue());
+
+      assertEquals(new BytesWritable(large),
+          client.call(new BytesWritable(large), addr, null, null, 0));
+      assertEquals(1, server.rpcMetrics.compressedResponses.getCurrentIntervalValue());
+      assertTrue(server.rpcMetrics.responseBytesSaved.getCurrentIntervalValue() > 0);
+
+      // clients that did not ask for compression get plain responses
+      assertEquals(new BytesWritable(large),
+          plainClient.call(new BytesWritable(large), addr, null, null, 0));
+      assertEquals(1, server.rpcMetrics.compressedResponses.getCurrentIntervalValue());
+    } finally {
+      client.stop();
+      plainClient.stop();
+      server.stop();
+    }
+  }
+
+  /** A class that is not a codec, which counts its instances. */
+  public static class NotACodec {
+    static final AtomicInteger instances = new AtomicInteger();
+
+    public NotACodec() {
+      instances.incrementAndGet();
+    }
+  }
+
+  public void testUnknownCompressionCodec() throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.setInt(Server.IPC_SERVER_RESPONSE_COMPRESSION_THRESHOLD_KEY,
+                      1024);
+    Server server = new BytesEchoServer(serverConf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    // the client checks its own codec, so write the header by hand
+    Socket socket = new Socket();
+    try {
+      socket.connect(addr);
+      socket.setSoTimeout(10000);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.write(Server.HEADER.array());
+      out.write(Server.CURRENT_VERSION);
+      DataOutputBuffer buf = new DataOutputBuffer();
+      new ConnectionHeader(null, null, NotACodec.class.getName(), 0).write(buf);
+      out.writeInt(buf.getLength());
+      out.write(buf.getData(), 0, buf.getLength());
+      out.flush();
+      // the server closes the connection without loading the class
+      try {
+        assertEquals(-1, socket.getInputStream().read());
+      } catch (SocketException e) {
+        LOG.info("Connection was reset", e);
+      }
+      assertEquals(0, NotACodec.instances.get());
+    } finally {
+      socket.close();
+      server.stop();
+    }
+  }
+
+  /** A server with one handler that blocks until released. */
+  private static class BlockingServer extends Server {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    BlockingServer(Configuration conf) throws IOException {
+      super(ADDRESS, 0, LongWritable.class, 1, conf);
+    }
+
+    @Override
+    public Writable call(Class<?> protocol, Writable param, long receiveTime)
+        throws IOException {
+      started.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e.toString());
+      }
+      return param;
+    }
+  }
+
+  /**
+   * Fill the call queue of a server that rejects calls over its high-water
+   * mark: one call is in the handler and one is queued.
+   */
+  private BlockingServer startBusyServer(Client client) throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.setInt("ipc.server.handler.queue.size", 1);
+    serverConf.setFloat(Server.IPC_SERVER_CALLQUEUE_HIGHWATERMARK_KEY, 1f);
+    final BlockingServer server = new BlockingServer(serverConf);
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    for (int i = 0; i < 2; i++) {
+      final Client caller = client;
+      Thread t = new Thread() {
+        public void run() {
+          try {
+            caller.call(new LongWritable(0), addr, null, null, 0);
+          } catch (Exception e) {
+            LOG.info("Blocked call failed", e);
+          }
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+      if (i == 0) {
+        server.started.await();
+      }
+    }
+    while (server.getCallQueueLen() < 1) {
+      Thread.sleep(10);
+    }
+    return server;
+  }
+
+  public void testServerBusyBackoff() throws Exception {
+    Configuration clientConf = new Configuration(conf);
+    clientConf.setInt(Client.IPC_CLIENT_BUSY_MAX_RETRIES_KEY, 20);
+    clientConf.setLong(Client.IPC_CLIENT_BUSY_BACKOFF_KEY, 20);
+    clientConf.setLong(Client.IPC_CLIENT_BUSY_BACKOFF_MAX_KEY, 100);
+    Client client = new Client(LongWritable.class, clientConf);
+    final BlockingServer server = startBusyServer(client);
+    try {
+      // release the handler while the call below is backing off
+      Thread releaser = new Thread() {
+        public void run() {
+          try {
+            Thread.sleep(300);
+          } catch (InterruptedException e) {}
+          server.released.countDown();
+        }
+      };
+      releaser.start();
+      LongWritable param = new LongWritable(RANDOM.nextLong());
+      assertEquals(param, client.call(param,
+          NetUtils.getConnectAddress(server), null, null, 0));
+      releaser.join();
+      assertTrue(client.clientMetrics.serverBusyRetries
+                 .getCurrentIntervalValue() > 0);
+      assertTrue(client.clientMetrics.serverBusyBackoffTime
+                 .getCurrentIntervalValue() > 0);
+      assertTrue(server.rpcMetrics.rpcRejectedCalls.getCurrentIntervalValue()
+                 > 0);
+    } finally {
+      server.released.countDown();
+      client.stop();
+      server.stop();
+    }
+  }
+
+  public void testServerBusyGiveUp() throws Exception {
+    Configuration clientConf = new Configuration(conf);
+    clientConf.setInt(Client.IPC_CLIENT_BUSY_MAX_RETRIES_KEY, 2);
+    clientConf.setLong(Client.IPC_CLIENT_BUSY_BACKOFF_KEY, 10);
+    Client client = new Client(LongWritable.class, clientConf);
+    BlockingServer server = startBusyServer(client);
+    try {
+      client.call(new LongWritable(0), NetUtils.getConnectAddress(server),
+                  null, null, 0);
+      fail("Expected the busy server to reject the call");
+    } catch (RemoteException re) {
+      assertEquals(ServerBusyException.class.getName(), re.getClassName());
+      assertEquals(2, client.clientMetrics.serverBusyRetries
+                   .getCurrentIntervalValue());
+      assertEquals(3, server.rpcMetrics.rpcRejectedCalls
+                   .getCurrentIntervalValue());
+    } finally {
+      server.released.countDown();
+      client.stop();
+      server.stop();
+    }
+  }
+
+  public void testThrottledIdentitiesMetric() throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.set(Server.IPC_SERVER_CALLQUEUE_IMPL_KEY,
+                   FairCallQueue.class.getName());
+    serverConf.setLong(DecayRpcScheduler.IPC_CALLQUEUE_DECAY_PERIOD_KEY, 500);
+    Server server = new TestServer(1, false, serverConf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      server.rpcMetrics.doUpdates(null);
+      assertEquals(0, server.rpcMetrics.numThrottledIdentities.get());
+      // the only caller makes all the calls, so it is demoted at the
+      // next decay
+      for (int i = 0; i < 100; i++) {
+        client.call(new LongWritable(i), addr, null, null, 0);
+      }
+      for (int i = 0; i < 100 && server.getThrottledIdentities().isEmpty();
+           i++) {
+        Thread.sleep(50);
+      }
+      server.rpcMetrics.doUpdates(null);
+      assertEquals(1, server.rpcMetrics.numThrottledIdentities.get());
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  public void testIdleConnectionsClosed() throws Exception {
+    Configuration serverConf = new Configuration(conf);
+    serverConf.setInt("ipc.client.connection.maxidletime", 100);
+    serverConf.setInt("ipc.client.idlethreshold", 1);
+    Server server = new TestServer(1, false, serverConf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client1 = new Client(LongWritable.class, conf);
+    Client client2 = new Client(LongWritable.class, conf);
+    try {
+      // under the threshold an idle connection is left alone
+      client1.call(new LongWritable(1), addr, null, null, 0);
+      Thread.sleep(500);
+      client1.call(new LongWritable(2), addr, null, null, 0);
+      assertEquals(1, server.getNumOpenConnections());
+
+      // over the threshold the idle connection of client1 is closed
+      Thread.sleep(500);
+      client2.call(new LongWritable(3), addr, null, null, 0);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (server.getNumOpenConnections() > 1 &&
+             System.currentTimeMillis() < deadline) {
+        client2.call(new LongWritable(4), addr, null, null, 0);
+        Thread.sleep(100);
+      }
+      assertEquals(1, server.getNumOpenConnections());
+
+      // and client1 reconnects transparently
+      LongWritable param = new LongWritable(5);
+      assertEquals(param, client1.call(param, addr, null, null, 0));
+    } finally {
+      client1.stop();
+      client2.stop();
+      server.stop();
+    }
+  }
+
 	public static void main(String[] args) throws Exception {
 
     //new TestIPC("test").testSerial(5, false, 2, 10, 1000);
@@ -28,6 +28,8 @@ import java.lang.reflect.Method;
 import junit.framework.TestCase;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.*;
 
 import org.apache.commons.logging.*;
@@ -37,6 +39,7 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.Writable;
 
@@ -386,6 +389,85 @@ public class TestRPC extends TestCase {
     }
   }
  
+  public void testAsyncCalls() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
+    TestProtocol proxy = null;
+    try {
+      server.start();
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      proxy = (TestProtocol)RPC.getProxy(
+          TestProtocol.class, TestProtocol.versionID, addr, conf);
+
+      Method add = TestProtocol.class.getMethod("add",
+          new Class[] { int.class, int.class });
+      Future<?>[] futures = new Future<?>[10];
+      for (int i = 0; i < futures.length; i++) {
+        futures[i] = RPC.callAsync(proxy, add, new Object[] { i, 1 }, null);
+      }
+      for (int i = 0; i < futures.length; i++) {
+        assertEquals(i + 1, futures[i].get());
+      }
+
+      final AtomicReference<IOException> error =
+        new AtomicReference<IOException>();
+      Method errorMethod = TestProtocol.class.getMethod("error", new Class[0]);
+      Future<Object> future = RPC.callAsync(proxy, errorMethod, new Object[0],
+          new RpcCallback<Object>() {
+            public void completed(Object result) {}
+            public void failed(IOException e) {
+              error.set(e);
+            }
+          });
+      try {
+        future.get();
+        fail("error() should have thrown");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RemoteException);
+        assertSame(e.getCause(), error.get());
+      }
+    } finally {
+      server.stop();
+      if (proxy != null) RPC.stopProxy(proxy);
+    }
+  }
+
+  /** A protocol with a method that TestProtocol does not have. */
+  public interface NewerTestProtocol extends TestProtocol {
+    void newPing() throws IOException;
+  }
+
+  public void testUnknownMethod() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
+    Method newPing = NewerTestProtocol.class.getMethod("newPing");
+    // by id and by name, an unknown method is reported the same way
+    RPC.Invocation[] calls = {
+      new RPC.Invocation(newPing, new Object[0],
+                         ProtocolSignature.getFingerprint(newPing)),
+      new RPC.Invocation(newPing, new Object[0])
+    };
+    for (RPC.Invocation call : calls) {
+      try {
+        server.call(TestProtocol.class, call, System.currentTimeMillis());
+        fail("Expected the call of an unknown method to fail");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith(
+            NoSuchMethodException.class.getName()));
+      }
+    }
+  }
+
+  public void testMismatchedMethodId() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
+    Method echo = TestProtocol.class.getMethod("echo", String.class);
+    Method add = TestProtocol.class.getMethod("add", int.class, int.class);
+    // a client whose version of the protocol gives echo the id of add
+    RPC.Invocation call = new RPC.Invocation(echo, new Object[] { "foo" },
+        ProtocolSignature.getFingerprint(add));
+    ObjectWritable value = (ObjectWritable) server.call(
+        TestProtocol.class, call, System.currentTimeMillis());
+    assertEquals("foo", value.get());
+  }
+
   public void testStandaloneClient() throws IOException {
     try {
       RPC.waitForProxy(TestProtocol.class,
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/** Unit tests for {@link ResponseBufferPool}. */
+public class TestResponseBufferPool extends TestCase {
+
+  public void testReuse() {
+    ResponseBufferPool pool = new ResponseBufferPool(4096, 1024 * 1024);
+    byte[] data = new byte[600];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    ByteBuffer buf = pool.copyOf(data, 0, data.length);
+    assertEquals(1024, buf.capacity());
+    assertEquals(0, buf.position());
+    assertEquals(data.length, buf.limit());
+    assertEquals((byte) 599, buf.get(599));
+
+    pool.release(buf);
+    assertEquals(1024, pool.getPooledBytes());
+    ByteBuffer again = pool.get(700);
+    assertSame(buf, again);
+    assertEquals(0, again.position());
+    assertEquals(0, pool.getPooledBytes());
+
+    // a different size class is a different buffer
+    assertNotSame(buf, pool.get(100));
+  }
+
+  public void testLargeBuffersAreNotPooled() {
+    ResponseBufferPool pool = new ResponseBufferPool(4096, 1024 * 1024);
+    ByteBuffer big = pool.get(5000);
+    assertEquals(5000, big.capacity());
+    pool.release(big);
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  public void testPoolIsBounded() {
+    ResponseBufferPool pool = new ResponseBufferPool(4096, 2048);
+    ByteBuffer a = pool.get(2048);
+    ByteBuffer b = pool.get(2048);
+    pool.release(a);
+    pool.release(b);
+    assertEquals(2048, pool.getPooledBytes());
+    assertSame(a, pool.get(2048));
+    assertNotSame(b, pool.get(2048));
+  }
+
+  public void testDisabled() {
+    ResponseBufferPool pool = new ResponseBufferPool(4096, 0);
+    ByteBuffer buf = pool.get(600);
+    assertEquals(600, buf.capacity());
+    pool.release(buf);
+    assertEquals(0, pool.getPooledBytes());
+  }
+}
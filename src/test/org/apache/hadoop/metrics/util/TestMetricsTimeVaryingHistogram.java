@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics.util;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+
+public class TestMetricsTimeVaryingHistogram extends TestCase {
+
+  public void testBuckets() {
+    long last = -1;
+    for (int b = 0; b < MetricsTimeVaryingHistogram.NUM_BUCKETS; b++) {
+      long upper = MetricsTimeVaryingHistogram.getBucketUpperBound(b);
+      assertTrue(upper > last);
+      assertEquals(b, MetricsTimeVaryingHistogram.getBucket(last + 1));
+      assertEquals(b, MetricsTimeVaryingHistogram.getBucket(upper));
+      last = upper;
+    }
+    assertEquals(MetricsTimeVaryingHistogram.NUM_BUCKETS - 1,
+                 MetricsTimeVaryingHistogram.getBucket(Long.MAX_VALUE));
+    assertEquals(0, MetricsTimeVaryingHistogram.getBucket(-5));
+  }
+
+  public void testPercentiles() throws Exception {
+    MetricsRegistry registry = new MetricsRegistry();
+    MetricsTimeVaryingHistogram h =
+      new MetricsTimeVaryingHistogram("test", registry);
+    MetricsRecord mr =
+      MetricsUtil.createRecord(MetricsUtil.getContext("test"), "test");
+
+    for (int i = 1; i <= 1000; i++) {
+      h.inc(i);
+    }
+    h.pushMetric(mr);
+    assertEquals(1000, h.getPreviousIntervalNumOps());
+    long[] expected = { 500, 950, 990, 999 };
+    for (int i = 0; i < expected.length; i++) {
+      long p = h.getPreviousIntervalPercentile(i);
+      assertTrue("p" + i + "=" + p, p >= expected[i]);
+      assertTrue("p" + i + "=" + p, p <= expected[i] + expected[i] / 8);
+    }
+    
+    // a new interval starts empty
+    h.pushMetric(mr);
+    assertEquals(0, h.getPreviousIntervalNumOps());
+    assertEquals(0, h.getPreviousIntervalPercentile(3));
+  }
+}
@@ -19,8 +19,15 @@
 package org.apache.hadoop.net;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 
 import junit.framework.TestCase;
 
@@ -119,6 +126,35 @@ public class TestNetworkTopology extends TestCase {
     }
   }
   
+  /**
+   * The read-only queries see the changes of the tree right away.
+   */
+  public void testQueriesAfterChanges() throws Exception {
+    assertEquals(6, cluster.getDistance(dataNodes[0], dataNodes[5]));
+    assertFalse(cluster.contains(NODE));
+    cluster.add(NODE);
+    try {
+      assertTrue(cluster.contains(NODE));
+      assertEquals(dataNodes.length + 1, cluster.getNumOfLeaves());
+      assertEquals(4, cluster.getNumOfRacks());
+      assertEquals(4, cluster.getDistance(dataNodes[5], NODE));
+      assertEquals(6, cluster.getDistance(dataNodes[0], NODE));
+      assertFalse(cluster.isOnSameRack(dataNodes[6], NODE));
+      for (int i = 0; i < 10; i++) {
+        assertSame(NODE, cluster.chooseRandom("/d2/r4"));
+      }
+      assertEquals(2, cluster.countNumOfAvailableNodes("/d2",
+          new ArrayList<Node>(Arrays.asList(dataNodes[5]))));
+      assertEquals(5, cluster.countNumOfAvailableNodes("~/d2",
+          new ArrayList<Node>()));
+    } finally {
+      cluster.remove(NODE);
+    }
+    assertFalse(cluster.contains(NODE));
+    assertEquals(dataNodes.length, cluster.getNumOfLeaves());
+    assertEquals(3, cluster.getNumOfRacks());
+  }
+
   /**
    * This picks a large number of nodes at random in order to ensure coverage
    * 
@@ -212,4 +248,101 @@ public class TestNetworkTopology extends TestCase {
     assertTrue(testNodes[3] == dataNodes[5] && testNodes[4] == dataNodes[6] ||
         testNodes[3] == dataNodes[6] && testNodes[4] == dataNodes[5]);
   }
+
+  /**
+   * The snapshot queries answer as the locked tree walk does, on random
+   * topologies of different depths with nodes added and removed in between.
+   */
+  public void testQueriesMatchTreeWalk() {
+    Random rand = new Random(0x24L);
+    for (int depth = 1; depth <= 3; depth++) {
+      NetworkTopology topology = new NetworkTopology();
+      List<Node> nodes = new ArrayList<Node>();
+      List<Node> removed = new ArrayList<Node>();
+      for (int round = 0; round < 40; round++) {
+        for (int i = 0; i < 4; i++) {
+          if (!nodes.isEmpty() && rand.nextInt(3) == 0) {
+            Node node = nodes.remove(rand.nextInt(nodes.size()));
+            topology.remove(node);
+            removed.add(node);
+          } else {
+            StringBuilder location = new StringBuilder();
+            for (int level = 0; level < depth; level++) {
+              location.append("/l").append(level).append('_')
+                  .append(rand.nextInt(3));
+            }
+            Node node = new NodeBase("h" + round + "_" + i,
+                                     location.toString());
+            topology.add(node);
+            nodes.add(node);
+          }
+        }
+        checkAgainstTreeWalk(topology, nodes, removed, rand);
+      }
+    }
+  }
+
+  private static void checkAgainstTreeWalk(NetworkTopology topology,
+      List<Node> nodes, List<Node> removed, Random rand) {
+    assertEquals(nodes.size(), topology.getNumOfLeaves());
+    for (Node n1 : nodes) {
+      assertTrue(topology.contains(n1));
+      for (Node n2 : nodes) {
+        assertEquals(n1 == n2 ? 0 : topology.walkDistance(n1, n2),
+                     topology.getDistance(n1, n2));
+        assertEquals(topology.walkIsOnSameRack(n1, n2),
+                     topology.isOnSameRack(n1, n2));
+      }
+    }
+
+    // the root and every inner node
+    Set<String> paths = new TreeSet<String>();
+    paths.add(NodeBase.ROOT);
+    for (Node node : nodes) {
+      String location = node.getNetworkLocation();
+      for (int i = location.indexOf('/', 1); i > 0;
+           i = location.indexOf('/', i + 1)) {
+        paths.add(location.substring(0, i));
+      }
+      paths.add(location);
+    }
+    for (String path : paths) {
+      for (String scope : new String[] {path, "~" + path}) {
+        // excluded nodes inside and outside of the tree
+        Collection<Node> excluded = new ArrayList<Node>();
+        for (Node node : nodes) {
+          if (rand.nextInt(4) == 0) {
+            excluded.add(node);
+          }
+        }
+        if (!removed.isEmpty()) {
+          excluded.add(removed.get(rand.nextInt(removed.size())));
+        }
+        assertEquals(topology.walkCountNumOfAvailableNodes(scope, excluded),
+                     topology.countNumOfAvailableNodes(scope, excluded));
+
+        Collection<Node> none = new ArrayList<Node>();
+        if (topology.walkCountNumOfAvailableNodes(scope, none) == 0) {
+          continue;
+        }
+        Node scopeNode = topology.getNode(path);
+        for (int i = 0; i < 10; i++) {
+          Node chosen = topology.chooseRandom(scope);
+          assertTrue(nodes.contains(chosen));
+          assertEquals(scope, !scope.startsWith("~"),
+                       isUnder(chosen, scopeNode));
+        }
+      }
+    }
+  }
+
+  /** @return whether ancestor is on the path from node to the root */
+  private static boolean isUnder(Node node, Node ancestor) {
+    for (Node n = node; n != null; n = n.getParent()) {
+      if (n == ancestor) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestTimingWheel extends TestCase {
+
+  public void testExpire() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 0);
+    wheel.add("a", 15);
+    wheel.add("b", 25);
+    wheel.add("c", 95);      // more than one turn of the wheel away
+    wheel.add("d", -5);      // already due
+    assertEquals(4, wheel.size());
+
+    // nothing expires before a tick has passed
+    assertTrue(wheel.expire(9).isEmpty());
+
+    List<String> expired = wheel.expire(12);
+    assertEquals(1, expired.size());
+    assertEquals("d", expired.get(0));
+
+    // "a" is due at 15 but only expires in the next tick
+    assertTrue(wheel.expire(19).isEmpty());
+    expired = wheel.expire(20);
+    assertEquals(1, expired.size());
+    assertEquals("a", expired.get(0));
+
+    expired = wheel.expire(50);
+    assertEquals(1, expired.size());
+    assertEquals("b", expired.get(0));
+    assertEquals(1, wheel.size());
+
+    // "c" stays in its slot until its turn of the wheel
+    assertTrue(wheel.expire(90).isEmpty());
+    expired = wheel.expire(100);
+    assertEquals(1, expired.size());
+    assertEquals("c", expired.get(0));
+    assertEquals(0, wheel.size());
+  }
+
+  public void testJumpAhead() {
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 8, 1000);
+    for (int i = 0; i < 100; i++) {
+      wheel.add(i, 1000 + i * 10);
+    }
+    // skipping more than a turn of the wheel still visits every slot once
+    List<Integer> expired = wheel.expire(1500);
+    assertEquals(51, expired.size());
+    assertEquals(49, wheel.size());
+    assertEquals(49, wheel.expire(5000).size());
+    assertEquals(0, wheel.size());
+
+    wheel.add(1, 6000);
+    wheel.clear();
+    assertEquals(0, wheel.size());
+    assertTrue(wheel.expire(7000).isEmpty());
+  }
+}